@@ -7,20 +7,29 @@ import android.net.Uri;
 import android.test.ApplicationTestCase;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 
 import pro.dbro.ble.crypto.KeyPair;
 import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.crypto.VerifiedSignatureCache;
 import pro.dbro.ble.data.ContentProviderStore;
 import pro.dbro.ble.data.model.ChatContentProvider;
-import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.AggregatePacket;
 import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.BLEProtocolV3;
 import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
 import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.NoDataPacket;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.SketchPacket;
 import pro.dbro.ble.util.RandomString;
 
 /**
@@ -63,9 +72,9 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
         // Parse Identity from sender's identityResponse response byte[]
         IdentityPacket parsedIdentityPacket = bleProtocol.deserializeIdentity(identityResponse);
 
-        assertEquals(parsedIdentityPacket.alias, mSenderIdentity.alias);
+        assertEquals(parsedIdentityPacket.getAlias(), mSenderIdentity.getAlias());
         assertEquals(Arrays.equals(parsedIdentityPacket.publicKey, mSenderIdentity.publicKey), true);
-        assertDateIsRecent(parsedIdentityPacket.dateSeen);
+        assertDateIsRecent(parsedIdentityPacket.getDateSeen());
     }
 
     /**
@@ -78,9 +87,267 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
 
         MessagePacket parsedMessagePacket = bleProtocol.deserializeMessage(messageResponse.rawPacket);
 
-        assertEquals(messageBody, parsedMessagePacket.body);
+        assertEquals(messageBody, parsedMessagePacket.getBody());
         assertEquals(Arrays.equals(parsedMessagePacket.sender.publicKey, mSenderIdentity.publicKey), true);
-        assertDateIsRecent(parsedMessagePacket.authoredDate);
+        assertDateIsRecent(parsedMessagePacket.getAuthoredDate());
+    }
+
+    /**
+     * Version 2 messages carry only the bytes of their body, and version 2 reads version 1
+     */
+    public void testCreateAndConsumeV2MessageResponse() {
+        BLEProtocolV2 protocolV2 = new BLEProtocolV2();
+
+        MessagePacket messageResponse = protocolV2.serializeMessage(mSenderIdentity, "ok");
+        assertEquals(BLEProtocolV2.MIN_MESSAGE_RESPONSE_LENGTH + 2, messageResponse.rawPacket.length);
+
+        MessagePacket parsedMessagePacket = protocolV2.deserializeMessage(messageResponse.rawPacket);
+        assertEquals("ok", parsedMessagePacket.getBody());
+        assertEquals(Arrays.equals(parsedMessagePacket.sender.publicKey, mSenderIdentity.publicKey), true);
+        assertDateIsRecent(parsedMessagePacket.getAuthoredDate());
+
+        MessagePacket legacyMessage = bleProtocol.serializeMessage(mSenderIdentity, "legacy");
+        assertEquals("legacy", protocolV2.deserializeMessage(legacyMessage.rawPacket).getBody());
+    }
+
+    /**
+     * A signed message whose compressed body is not a valid code stream must be rejected when
+     * parsed, not when its body is first read
+     */
+    public void testRejectsMalformedCompressedBody() {
+        BLEProtocolV2 protocolV2 = new BLEProtocolV2();
+        byte[] valid = protocolV2.serializeMessage(mSenderIdentity, "the the the the").rawPacket;
+        int bodyOffset = BLEProtocolV2.MIN_MESSAGE_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES;
+
+        int bodyLength = valid[bodyOffset - 1];
+
+        // A verbatim byte code with no byte following it
+        byte[] truncatedByte = valid.clone();
+        truncatedByte[bodyOffset + bodyLength - 1] = (byte) 254;
+        // A verbatim run longer than the body
+        byte[] truncatedRun = valid.clone();
+        truncatedRun[bodyOffset] = (byte) 255;
+        truncatedRun[bodyOffset + 1] = (byte) 200;
+
+        for (byte[] message : new byte[][] {truncatedByte, truncatedRun}) {
+            resign(message);
+            try {
+                protocolV2.deserializeMessage(message);
+                fail("Malformed compressed body was accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * NoData advertises the sender's highest version. Earlier versions must accept a later one
+     * so that peers negotiate the lower of their versions
+     */
+    public void testNoDataFromLaterVersion() {
+        NoDataPacket noData = new BLEProtocolV3().serializeNoDataPacket(mSenderIdentity);
+        assertEquals(BLEProtocolV3.VERSION, noData.rawPacket[BLEProtocol.VERSION_OFFSET]);
+
+        assertNotNull(new BLEProtocolV2().deserializeNoDataPacket(noData.rawPacket));
+        assertNotNull(bleProtocol.deserializeNoDataPacket(noData.rawPacket));
+    }
+
+    /**
+     * A later version's message re-encoded for a legacy peer must always produce the same packet,
+     * so the legacy peer stores it once however often it is sent
+     */
+    public void testLegacyReEncodingIsDeterministic() {
+        MessagePacket message = new BLEProtocolV2().serializeMessage(mSenderIdentity, "re-encoded");
+
+        MessagePacket first = bleProtocol.serializeMessage(mSenderIdentity, message.getBody(), message.getAuthoredDate());
+        MessagePacket second = new BLEProtocol().serializeMessage(mSenderIdentity, message.getBody(), message.getAuthoredDate());
+
+        assertTrue(Arrays.equals(first.rawPacket, second.rawPacket));
+        assertEquals(BLEProtocol.VERSION, bleProtocol.getPacketVersion(first.rawPacket));
+        MessagePacket parsed = bleProtocol.deserializeMessage(first.rawPacket);
+        assertEquals("re-encoded", parsed.getBody());
+        assertEquals(message.getAuthoredDate(), parsed.getAuthoredDate());
+    }
+
+    /**
+     * A packet deserialized twice should only be verified by libsodium once,
+     * and a cached signature must not validate altered content.
+     */
+    public void testVerifiedSignatureCache() {
+        BLEProtocol protocol = new BLEProtocol(new VerifiedSignatureCache(8));
+        VerifiedSignatureCache cache = protocol.getVerifiedSignatureCache();
+
+        MessagePacket messageResponse = protocol.serializeMessage(mSenderIdentity, "cached");
+        long hits = cache.getHitCount();
+
+        protocol.deserializeMessage(messageResponse.rawPacket);
+        assertEquals(hits + 1, cache.getHitCount());
+
+        byte[] tampered = messageResponse.rawPacket.clone();
+        tampered[50] ^= 0x01;
+        try {
+            protocol.deserializeMessage(tampered);
+            fail("Tampered message passed signature verification");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    /**
+     * Batch deserialization should return one entry per input, null for any packet
+     * failing signature verification.
+     */
+    public void testDeserializeMessageBatch() {
+        BLEProtocol protocol = new BLEProtocol(new VerifiedSignatureCache(1));
+        List<byte[]> batch = new ArrayList<>();
+        for (int x = 0; x < 10; x++) {
+            batch.add(protocol.serializeMessage(mSenderIdentity, "batch " + x).rawPacket);
+        }
+        batch.get(3)[50] ^= 0x01;
+
+        List<MessagePacket> parsed = protocol.deserializeMessagesWithIdentity(batch, null);
+
+        assertEquals(batch.size(), parsed.size());
+        for (int x = 0; x < parsed.size(); x++) {
+            if (x == 3) {
+                assertNull(parsed.get(x));
+            } else {
+                assertEquals("batch " + x, parsed.get(x).getBody());
+            }
+        }
+    }
+
+    /**
+     * Messages relayed from other authors must verify against their own author's key, not the
+     * identity given, which is attached only to the messages it wrote. A malformed item is null
+     * without aborting the rest of the batch.
+     */
+    public void testDeserializeMessageBatchWithIdentity() {
+        BLEProtocol protocol = new BLEProtocol(new VerifiedSignatureCache(1));
+        IdentityPacket remoteIdentity = protocol.deserializeIdentity(protocol.serializeIdentity(mSenderIdentity));
+        OwnedIdentityPacket thirdParty = createIdentity();
+
+        List<byte[]> batch = new ArrayList<>();
+        for (int x = 0; x < 6; x++) {
+            OwnedIdentityPacket author = x % 2 == 0 ? mSenderIdentity : thirdParty;
+            batch.add(protocol.serializeMessage(author, "batch " + x).rawPacket);
+        }
+        batch.set(2, Arrays.copyOf(batch.get(2), 40));
+        batch.get(3)[50] ^= 0x01;
+
+        List<MessagePacket> parsed = protocol.deserializeMessagesWithIdentity(batch, remoteIdentity);
+
+        assertEquals(batch.size(), parsed.size());
+        assertNull(parsed.get(2));
+        assertNull(parsed.get(3));
+        for (int x : new int[] {0, 1, 4, 5}) {
+            MessagePacket message = parsed.get(x);
+            assertEquals("batch " + x, message.getBody());
+            if (x % 2 == 0) {
+                assertTrue(Arrays.equals(mSenderIdentity.publicKey, message.sender.publicKey));
+                assertEquals(mSenderIdentity.getAlias(), message.sender.getAlias());
+            } else {
+                assertTrue(Arrays.equals(thirdParty.publicKey, message.sender.publicKey));
+                assertNull(message.sender.getAlias());
+            }
+        }
+    }
+
+    /**
+     * Aggregates carry messages relayed from any author. Each item must parse, whether verified
+     * against its author or, as when it was sent from the store, not verified again
+     */
+    public void testCreateAndConsumeAggregate() {
+        BLEProtocolV2 protocolV2 = new BLEProtocolV2();
+        IdentityPacket remoteIdentity = protocolV2.deserializeIdentity(protocolV2.serializeIdentity(mSenderIdentity));
+        OwnedIdentityPacket thirdParty = createIdentity();
+        List<byte[]> messages = new ArrayList<>();
+        for (int x = 0; x < 20; x++) {
+            OwnedIdentityPacket author = x % 2 == 0 ? mSenderIdentity : thirdParty;
+            messages.add(protocolV2.serializeMessage(author, "aggregate " + x).rawPacket);
+        }
+
+        AggregatePacket aggregate = protocolV2.serializeAggregate(MessagePacket.TYPE, messages);
+        assertEquals(AggregatePacket.TYPE, protocolV2.getPacketType(aggregate.rawPacket));
+
+        AggregatePacket parsedAggregate = protocolV2.deserializeAggregate(aggregate.rawPacket);
+        assertEquals(MessagePacket.TYPE, parsedAggregate.itemType);
+        assertEquals(messages.size(), parsedAggregate.getItemCount());
+
+        List<MessagePacket> parsed = protocolV2.deserializeMessagesWithIdentity(parsedAggregate.getItems(), remoteIdentity);
+        for (int x = 0; x < parsed.size(); x++) {
+            byte[] author = x % 2 == 0 ? mSenderIdentity.publicKey : thirdParty.publicKey;
+            assertEquals("aggregate " + x, parsed.get(x).getBody());
+            assertTrue(Arrays.equals(author, parsed.get(x).sender.publicKey));
+
+            MessagePacket sent = protocolV2.deserializeVerifiedMessage(parsedAggregate.getItem(x));
+            assertEquals("aggregate " + x, sent.getBody());
+            assertTrue(Arrays.equals(parsed.get(x).signature, sent.signature));
+        }
+    }
+
+    /**
+     * Subtracting a received sketch from a local one should recover exactly the messages
+     * held by only one side.
+     */
+    public void testSketchReconciliation() {
+        BLEProtocolV2 protocolV2 = new BLEProtocolV2();
+        InvertibleBloomLookupTable local = new InvertibleBloomLookupTable(60);
+        InvertibleBloomLookupTable remote = new InvertibleBloomLookupTable(60);
+
+        List<Long> localOnly = new ArrayList<>();
+        List<Long> remoteOnly = new ArrayList<>();
+        for (int x = 0; x < 200; x++) {
+            long key = SketchPacket.getMessageKey(protocolV2.serializeMessage(mSenderIdentity, "shared " + x).signature);
+            local.add(key);
+            remote.add(key);
+        }
+        for (int x = 0; x < 5; x++) {
+            long key = SketchPacket.getMessageKey(protocolV2.serializeMessage(mSenderIdentity, "local " + x).signature);
+            local.add(key);
+            localOnly.add(key);
+
+            key = SketchPacket.getMessageKey(protocolV2.serializeMessage(mSenderIdentity, "remote " + x).signature);
+            remote.add(key);
+            remoteOnly.add(key);
+        }
+
+        SketchPacket sketchPacket = protocolV2.deserializeSketch(protocolV2.serializeSketch(mSenderIdentity, remote).rawPacket);
+        local.subtract(sketchPacket.getSketch());
+        InvertibleBloomLookupTable.Difference difference = local.decode();
+
+        assertNotNull(difference);
+        assertEquals(new HashSet<>(localOnly), new HashSet<>(difference.localOnly));
+        assertEquals(new HashSet<>(remoteOnly), new HashSet<>(difference.remoteOnly));
+    }
+
+    /**
+     * A sketch's cell count is read from the packet, and a local sketch of as many cells is built
+     * to reconcile with it. Counts outside whole partitions or above the maximum must be rejected
+     */
+    public void testRejectsIllegalSketchCellCounts() {
+        BLEProtocolV2 protocolV2 = new BLEProtocolV2();
+        int maxCells = BLEProtocolV2.MAX_SKETCH_CELLS;
+        assertEquals(0, maxCells % InvertibleBloomLookupTable.HASH_COUNT);
+        byte[] largest = protocolV2.serializeSketch(mSenderIdentity, new InvertibleBloomLookupTable(maxCells)).rawPacket;
+        assertTrue(largest.length <= BLEProtocolV2.MAX_AGGREGATE_LENGTH);
+        assertEquals(maxCells, protocolV2.deserializeSketch(largest).getSketch().getCellCount());
+
+        int cellCountOffset = largest.length - SodiumShaker.crypto_sign_BYTES -
+                maxCells * InvertibleBloomLookupTable.CELL_LENGTH - 2;
+        for (int cellCount : new int[] {0, 1, maxCells - 1, maxCells + InvertibleBloomLookupTable.HASH_COUNT, 0xFFFF}) {
+            byte[] sketch = largest.clone();
+            sketch[cellCountOffset]     = (byte) cellCount;
+            sketch[cellCountOffset + 1] = (byte) (cellCount >> 8);
+            resign(sketch);
+            try {
+                protocolV2.deserializeSketch(sketch);
+                fail("Accepted sketch of " + cellCount + " cells");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
     }
 
     /** Application Tests **/
@@ -140,7 +407,7 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
         byte[] fakePubKey = new byte[] { (byte) 0x01 };
         ContentValues stubPeer = new ContentValues();
         stubPeer.put(PeerTable.alias, "test");
-        stubPeer.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        stubPeer.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         stubPeer.put(PeerTable.pubKey, fakePubKey);
         Uri stubPeerUri = getContext().getContentResolver().insert(ChatContentProvider.Peers.PEERS, stubPeer);
 
@@ -184,6 +451,19 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
     }
     /** Utility **/
 
+    /** Sign message as mSenderIdentity, after its content was altered */
+    private void resign(byte[] message) {
+        int signedLength = message.length - SodiumShaker.crypto_sign_BYTES;
+        byte[] signature = SodiumShaker.generateSignatureForMessage(mSenderIdentity.secretKey, message, signedLength);
+        System.arraycopy(signature, 0, message, signedLength, signature.length);
+    }
+
+    private OwnedIdentityPacket createIdentity() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        return new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+    }
+
     private Peer getOrCreatePrimaryPeerIdentity() throws IOException {
         Peer user = mApp.getPrimaryLocalPeer();
         if (user == null) {
@@ -0,0 +1,757 @@
+package pro.dbro.ble;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.AsyncDataStore;
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.SQLiteStore;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.IdentityDeliveryTable;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.BLEProtocolV3;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.NoDataPacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.Protocol;
+import pro.dbro.ble.protocol.ProtocolV2;
+import pro.dbro.ble.protocol.SketchPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Tests of a {@link ChatPeerFlow} driven directly. The remote peer is simulated: frames the flow
+ * sends are captured and acknowledged by the test, and received packets are handed to the flow
+ * as {@link PacketIntake} would.
+ */
+public class ChatPeerFlowTest extends ApplicationTestCase<Application> {
+
+    private static final int SKETCH_CELLS = 120;
+
+    private Protocol mProtocol = new BLEProtocolV3();
+    private DataStore mDataStore;
+    private AsyncDataStore mAsyncDataStore;
+    private List<Integer> mCreatedPeerIds = new ArrayList<>();
+
+    private OwnedIdentityPacket mLocalIdentity;
+    private OwnedIdentityPacket mRemoteIdentity;
+    private OwnedIdentityPacket mAuthor;
+    private RecordingOutlet mOutlet = new RecordingOutlet();
+
+    public ChatPeerFlowTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDataStore = new SQLiteStore(getContext());
+        mAsyncDataStore = new AsyncDataStore(mDataStore);
+        mLocalIdentity  = createIdentity();
+        mRemoteIdentity = createIdentity();
+        mAuthor         = createIdentity();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Receipts are recorded by the store's single writer, in submission order
+        AsyncDataStore.await(mAsyncDataStore.write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }));
+        for (Integer peerId : mCreatedPeerIds) {
+            String[] args = new String[] {String.valueOf(peerId)};
+            getContext().getContentResolver().delete(ChatContentProvider.Messages.MESSAGES,
+                    MessageTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                    MessageDeliveryBitmapTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+                    IdentityDeliveryTable.peerRecipientId + " = ? OR " + IdentityDeliveryTable.peerPayloadId + " = ?",
+                    new String[] {String.valueOf(peerId), String.valueOf(peerId)});
+            getContext().getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                    PeerTable.id + " = ?", args);
+        }
+        super.tearDown();
+    }
+
+    // <editor-fold desc="Send window">
+
+    public void testSendWindowNeverExceedsLimit() throws ChatPeerFlow.UnexpectedDataException {
+        List<MessagePacket> messages = storeMessages(10);
+        ChatPeerFlow flow = startMessagePhase(BLEProtocol.VERSION);
+
+        List<byte[]> sentMessages = new ArrayList<>();
+        int acked = 0;
+        while (true) {
+            List<byte[]> frames = mOutlet.takeFrames();
+            assertNoNoData(frames.subList(0, frames.size() - (endsWithNoData(frames) ? 1 : 0)));
+            sentMessages.addAll(endsWithNoData(frames) ? frames.subList(0, frames.size() - 1) : frames);
+            assertTrue(sentMessages.size() - acked <= ChatPeerFlow.DEFAULT_SEND_WINDOW);
+            if (endsWithNoData(frames)) break;
+
+            assertTrue("Flow stopped sending before its outbox drained", sentMessages.size() > acked);
+            flow.onDataSent(sentMessages.get(acked++));
+        }
+
+        assertEquals(acked, sentMessages.size());
+        for (MessagePacket message : messages) {
+            assertTrue(containsFrame(sentMessages, message.rawPacket));
+        }
+        flow.close();
+    }
+
+    public void testOutOfOrderAcksAreMatchedByPacket() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(8);
+        ChatPeerFlow flow = startMessagePhase(BLEProtocol.VERSION);
+
+        List<byte[]> window = mOutlet.takeFrames();
+        assertEquals(ChatPeerFlow.DEFAULT_SEND_WINDOW, window.size());
+
+        // Acknowledging a frame in the middle of the window frees its place, not the head's
+        flow.onDataSent(window.get(2));
+        List<byte[]> next = mOutlet.takeFrames();
+        assertEquals(1, next.size());
+        assertFalse(containsFrame(window, next.get(0)));
+
+        // A repeated acknowledgement matches no frame in flight, so frees no place
+        flow.onDataSent(window.get(2));
+        assertEquals(0, mOutlet.takeFrames().size());
+
+        flow.onDataSent(window.get(0));
+        assertEquals(1, mOutlet.takeFrames().size());
+        flow.close();
+    }
+
+    public void testNoDataSentOnlyAfterWindowDrains() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(6);
+        ChatPeerFlow flow = startMessagePhase(BLEProtocol.VERSION);
+
+        // Acknowledge the newest frame in flight first, so the oldest remains until last
+        List<byte[]> inFlight = new ArrayList<>();
+        List<byte[]> frames = mOutlet.takeFrames();
+        while (!endsWithNoData(frames)) {
+            assertNoNoData(frames);
+            inFlight.addAll(frames);
+            assertFalse("Flow stopped sending with no frame in flight", inFlight.isEmpty());
+            flow.onDataSent(inFlight.remove(inFlight.size() - 1));
+            frames = mOutlet.takeFrames();
+        }
+
+        assertEquals(1, frames.size());
+        assertEquals(0, inFlight.size());
+        flow.close();
+    }
+
+    // </editor-fold desc="Send window">
+
+    // <editor-fold desc="Intake">
+
+    public void testIntakeStagesRunInOrder() throws InterruptedException {
+        List<PacketIntake.StageMetrics> before = PacketIntake.getStageMetrics();
+        assertEquals(Arrays.asList("Decode", "Dedupe", "Verify", "Persist", "Notify"), getStageNames(before));
+
+        RecordingFlow flow = createRecordingFlow(mAsyncDataStore);
+        MessagePacket message = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+        PacketIntake.submit(flow, mRemoteIdentity.rawPacket);
+        PacketIntake.submit(flow, message.rawPacket);
+        PacketIntake.submit(flow, mProtocol.serializeNoDataPacket(mRemoteIdentity).rawPacket);
+
+        ReceivedPacket identityPacket = flow.takePacket();
+        assertEquals(IdentityPacket.TYPE, identityPacket.type);
+        assertEquals(1, identityPacket.identities.size());
+        assertTrue(Arrays.equals(mRemoteIdentity.publicKey, identityPacket.identities.get(0).publicKey));
+        assertNotNull(identityPacket.identityPeers.get(0));
+
+        ReceivedPacket messagePacket = flow.takePacket();
+        assertEquals(MessagePacket.TYPE, messagePacket.type);
+        assertEquals(1, messagePacket.messages.size());
+        assertNotNull(messagePacket.newMessages.get(0));
+        assertTrue(Arrays.equals(mRemoteIdentity.publicKey, messagePacket.remoteIdentity.publicKey));
+
+        assertEquals(NoDataPacket.TYPE, flow.takePacket().type);
+
+        // A stage counts a packet once it has handed it on
+        long deadline = System.currentTimeMillis() + 5000;
+        String lagging;
+        do {
+            lagging = null;
+            List<PacketIntake.StageMetrics> after = PacketIntake.getStageMetrics();
+            for (int x = 0; x < after.size() && lagging == null; x++) {
+                if (after.get(x).processedCount - before.get(x).processedCount < 3) lagging = after.get(x).name;
+            }
+            if (lagging != null) Thread.sleep(10);
+        } while (lagging != null && System.currentTimeMillis() < deadline);
+        assertNull(lagging + " processed too few packets", lagging);
+        flow.close();
+    }
+
+    /**
+     * Messages relayed from other authors are verified with their own authors' keys.
+     * A forged message is dropped alone
+     */
+    public void testIntakeVerifiesEachMessageWithItsAuthor() throws InterruptedException {
+        RecordingFlow flow = createRecordingFlow(mAsyncDataStore);
+        MessagePacket remoteMessage  = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+        MessagePacket relayedMessage = mProtocol.serializeMessage(mAuthor, new RandomString(40).nextString());
+        byte[] forgedMessage = mProtocol.serializeMessage(mAuthor, new RandomString(40).nextString()).rawPacket;
+        forgedMessage[forgedMessage.length - 1] ^= 1;
+
+        PacketIntake.submit(flow, mRemoteIdentity.rawPacket);
+        PacketIntake.submit(flow, serializeMessageAggregate(remoteMessage.rawPacket, forgedMessage, relayedMessage.rawPacket));
+        flow.takePacket();
+
+        ReceivedPacket packet = flow.takePacket();
+        assertEquals(2, packet.messages.size());
+        assertEquals(remoteMessage.getBody(), packet.messages.get(0).getBody());
+        assertEquals(relayedMessage.getBody(), packet.messages.get(1).getBody());
+        assertTrue(Arrays.equals(mAuthor.publicKey, packet.messages.get(1).sender.publicKey));
+        assertNotNull(packet.newMessages.get(0));
+        assertNotNull(packet.newMessages.get(1));
+        assertNull(mDataStore.getMessageBySignature(mProtocol.getMessageSignature(forgedMessage)));
+        flow.close();
+    }
+
+    /**
+     * Messages stored byte for byte were verified when first received, and aren't again
+     */
+    public void testIntakeSkipsVerifyingStoredMessages() throws InterruptedException {
+        MessagePacket stored = storeMessages(1).get(0);
+        RecordingFlow flow = createRecordingFlow(mAsyncDataStore);
+
+        PacketIntake.submit(flow, stored.rawPacket);
+
+        ReceivedPacket packet = flow.takePacket();
+        assertEquals(1, packet.storedMessages.size());
+        assertTrue(Arrays.equals(stored.signature, packet.storedMessages.get(0).signature));
+        assertEquals(0, packet.unstoredMessages.size());
+        assertEquals(0, packet.messages.size());
+        flow.close();
+    }
+
+    /**
+     * A message that fails to store is dropped from its packet, which still reaches its flow
+     */
+    public void testIntakeDropsOnlyMessagesThatFailToStore() throws InterruptedException {
+        final MessagePacket failing = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+        DataStore failingStore = new SQLiteStore(getContext()) {
+            @Override
+            public Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket) {
+                if (Arrays.equals(failing.signature, protocolMessagePacket.signature))
+                    throw new IllegalStateException("Test failure");
+                return super.createOrUpdateMessageWithProtocolMessage(protocolMessagePacket);
+            }
+        };
+        RecordingFlow flow = createRecordingFlow(new AsyncDataStore(failingStore));
+        MessagePacket first = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+        MessagePacket last  = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+
+        PacketIntake.submit(flow, mRemoteIdentity.rawPacket);
+        PacketIntake.submit(flow, serializeMessageAggregate(first.rawPacket, failing.rawPacket, last.rawPacket));
+        flow.takePacket();
+
+        ReceivedPacket packet = flow.takePacket();
+        assertEquals(2, packet.messages.size());
+        assertEquals(2, packet.newMessages.size());
+        assertEquals(first.getBody(), packet.messages.get(0).getBody());
+        assertEquals(last.getBody(), packet.messages.get(1).getBody());
+        assertNotNull(packet.newMessages.get(0));
+        assertNotNull(packet.newMessages.get(1));
+        assertNotNull(packet.sender);
+        assertNull(mDataStore.getMessageBySignature(failing.signature));
+        flow.close();
+    }
+
+    // </editor-fold desc="Intake">
+
+    // <editor-fold desc="Watchdog & resumption">
+
+    public void testStallsAfterStateTimeout() throws ChatPeerFlow.UnexpectedDataException {
+        ChatPeerFlow flow = createFlow(true);
+        long beforeStart = SystemClock.elapsedRealtime();
+        flow.start();
+        long afterStart = SystemClock.elapsedRealtime();
+        assertFalse(flow.isStalled(beforeStart + ChatPeerFlow.IDENTITY_STATE_TIMEOUT_MS));
+        assertTrue(flow.isStalled(afterStart + ChatPeerFlow.IDENTITY_STATE_TIMEOUT_MS + 1));
+        flow.close();
+        mOutlet.takeFrames();
+
+        flow = startMessagePhase(BLEProtocol.VERSION);
+        long afterProgress = SystemClock.elapsedRealtime();
+        assertFalse(flow.isStalled(afterProgress + ChatPeerFlow.IDENTITY_STATE_TIMEOUT_MS + 1));
+        assertTrue(flow.isStalled(afterProgress + ChatPeerFlow.MESSAGE_STATE_TIMEOUT_MS + 1));
+
+        // Closed flows never stall
+        flow.close();
+        assertFalse(flow.isStalled(afterProgress + ChatPeerFlow.MESSAGE_STATE_TIMEOUT_MS + 1));
+    }
+
+    public void testWatchdogReportsStalledFlows() {
+        FlowRegistry flows = new FlowRegistry();
+        final List<FlowRegistry.Registration> stalled = new ArrayList<>();
+        FlowWatchdog watchdog = new FlowWatchdog(flows, new FlowWatchdog.Listener() {
+            @Override
+            public void onFlowStalled(@NonNull FlowRegistry.Registration registration) {
+                stalled.add(registration);
+            }
+        });
+
+        // As host, the flow awaits the remote identity
+        ChatPeerFlow flow = createFlow(false);
+        flows.register(flow.getRemoteAirSharePeer(), flow);
+        long beforeStart = SystemClock.elapsedRealtime();
+        flow.start();
+        long afterStart = SystemClock.elapsedRealtime();
+
+        watchdog.check(beforeStart + ChatPeerFlow.IDENTITY_STATE_TIMEOUT_MS);
+        assertEquals(0, stalled.size());
+
+        watchdog.check(afterStart + ChatPeerFlow.IDENTITY_STATE_TIMEOUT_MS + 1);
+        assertEquals(1, stalled.size());
+        assertSame(flow, stalled.get(0).flow);
+        flow.close();
+    }
+
+    /**
+     * A stalled flow is replaced on the same link, keeping the remote peer it identified
+     */
+    public void testStalledFlowIsReplaced() {
+        FlowRegistry flows = new FlowRegistry();
+        ChatPeerFlow stalledFlow = createFlow(true);
+        pro.dbro.airshare.session.Peer airSharePeer = stalledFlow.getRemoteAirSharePeer();
+        flows.register(airSharePeer, stalledFlow);
+        assertTrue(flows.setRemotePeerId(stalledFlow, 7));
+        FlowRegistry.Registration stalled = flows.getRegistrations().get(0);
+        assertEquals(0, stalled.restarts);
+
+        ChatPeerFlow flow = createFlow(true);
+        FlowRegistry.Registration restarted = flows.replace(stalled, flow);
+        assertNotNull(restarted);
+        assertEquals(1, restarted.restarts);
+        assertEquals(Integer.valueOf(7), restarted.getRemotePeerId());
+        assertSame(flow, flows.getFlow(airSharePeer));
+
+        // A registration no longer current, e.g: reported stalled twice, is not replaced
+        assertNull(flows.replace(stalled, createFlow(true)));
+        assertSame(flow, flows.getFlow(airSharePeer));
+    }
+
+    /**
+     * A flow restarted from the checkpoint of a stalled flow doesn't send again the sketch
+     * or the messages the stalled flow delivered
+     */
+    public void testRestartedFlowResumesFromCheckpoint() throws ChatPeerFlow.UnexpectedDataException {
+        List<MessagePacket> messages = storeMessages(3);
+        ChatPeerFlow stalled = startMessagePhase(BLEProtocolV3.VERSION);
+        List<byte[]> frames = mOutlet.takeFrames();
+        assertEquals(SketchPacket.TYPE, mProtocol.getPacketType(frames.get(0)));
+        while (!endsWithNoData(frames)) {
+            assertTrue("Flow stopped sending with no frame in flight", frames.size() > 0);
+            for (byte[] frame : frames) {
+                stalled.onDataSent(frame);
+            }
+            frames = mOutlet.takeFrames();
+        }
+        stalled.close();
+
+        FlowCheckpoint checkpoint = stalled.getCheckpoint();
+        assertNotNull(checkpoint);
+        assertTrue(checkpoint.isFor(mRemoteIdentity.publicKey));
+        assertTrue(checkpoint.sketchDelivered);
+
+        ChatPeerFlow flow = createFlow(true);
+        flow.resumeFrom(checkpoint);
+        startMessagePhase(flow, BLEProtocolV3.VERSION);
+        List<byte[]> resent = mOutlet.takeFrames();
+        for (byte[] frame : resent) {
+            assertFalse("Sketch sent again", mProtocol.getPacketType(frame) == SketchPacket.TYPE);
+        }
+        for (MessagePacket message : messages) {
+            assertFalse(containsFrame(resent, message.rawPacket));
+        }
+        flow.close();
+    }
+
+    public void testCheckpointResumesWithinWindow() {
+        FlowCheckpoint.Store checkpoints = new FlowCheckpoint.Store();
+        pro.dbro.airshare.session.Peer airSharePeer = createFlow(true).getRemoteAirSharePeer();
+        long beforeCreated = SystemClock.elapsedRealtime();
+        FlowCheckpoint checkpoint = new FlowCheckpoint(mRemoteIdentity.publicKey, null, true, null);
+
+        checkpoints.put(airSharePeer, checkpoint);
+        assertSame(checkpoint, checkpoints.take(airSharePeer, beforeCreated + FlowCheckpoint.RESUME_WINDOW_MS));
+        // Taken checkpoints are not resumed from again
+        assertNull(checkpoints.take(airSharePeer, beforeCreated + FlowCheckpoint.RESUME_WINDOW_MS));
+    }
+
+    public void testCheckpointExpiresAfterWindow() {
+        FlowCheckpoint.Store checkpoints = new FlowCheckpoint.Store();
+        pro.dbro.airshare.session.Peer airSharePeer = createFlow(true).getRemoteAirSharePeer();
+        FlowCheckpoint checkpoint = new FlowCheckpoint(mRemoteIdentity.publicKey, null, true, null);
+        long afterCreated = SystemClock.elapsedRealtime();
+
+        checkpoints.put(airSharePeer, checkpoint);
+        assertNull(checkpoints.take(airSharePeer, afterCreated + FlowCheckpoint.RESUME_WINDOW_MS + 1));
+    }
+
+    // </editor-fold desc="Watchdog & resumption">
+
+    // <editor-fold desc="Duplex messages">
+
+    /**
+     * Peers reading version 3 exchange messages at once. The flow accepts the host's messages
+     * while it writes its own, and completes once both peers have sent NoData
+     */
+    public void testDuplexFlowCompletes() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(2);
+        ChatPeerFlow flow = startMessagePhase(BLEProtocolV3.VERSION);
+        receiveMessage(flow, mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString()));
+
+        List<byte[]> frames = acknowledgeUntilNoData(flow);
+        // The client leads its messages with its sketch
+        assertEquals(SketchPacket.TYPE, mProtocol.getPacketType(frames.get(0)));
+        assertTrue(frames.size() > 2);
+
+        assertFalse(flow.onDataSent(frames.get(frames.size() - 1)));
+        assertFalse(flow.isComplete());
+        receiveNoData(flow, BLEProtocolV3.VERSION);
+        assertTrue(flow.isComplete());
+        flow.close();
+    }
+
+    public void testHostAwaitsClientSketch() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(2);
+        ChatPeerFlow flow = createFlow(false);
+        List<byte[]> identityFrames = startHostMessagePhase(flow, BLEProtocolV3.VERSION);
+        assertTrue(containsPacketType(identityFrames, SketchPacket.TYPE));
+
+        // The host selects its messages with the client's sketch, so sends nothing until it arrives
+        assertEquals(0, mOutlet.takeFrames().size());
+
+        receiveSketch(flow, new InvertibleBloomLookupTable(SKETCH_CELLS));
+        List<byte[]> frames = mOutlet.takeFrames();
+        assertTrue(frames.size() > 0);
+        assertNoNoData(frames);
+        flow.close();
+    }
+
+    /**
+     * A host resuming with a delivered sketch neither sends it again nor awaits the client's
+     */
+    public void testResumedHostSendsNoSketch() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(2);
+        ChatPeerFlow flow = createFlow(false);
+        flow.resumeFrom(new FlowCheckpoint(mRemoteIdentity.publicKey, new InvertibleBloomLookupTable(SKETCH_CELLS), true, null));
+        List<byte[]> identityFrames = startHostMessagePhase(flow, BLEProtocolV3.VERSION);
+        assertFalse(containsPacketType(identityFrames, SketchPacket.TYPE));
+
+        List<byte[]> frames = acknowledgeUntilNoData(flow);
+        assertTrue(frames.size() > 1);
+        assertFalse(containsPacketType(frames, SketchPacket.TYPE));
+        flow.close();
+    }
+
+    /**
+     * With a peer reading version 2, the flow takes turns: the client writes its messages,
+     * ending with its sketch, before the host may write
+     */
+    public void testFallsBackToHalfDuplexWithV2Peer() throws ChatPeerFlow.UnexpectedDataException {
+        storeMessages(2);
+        ChatPeerFlow flow = startMessagePhase(BLEProtocolV2.VERSION);
+        MessagePacket hostMessage = mProtocol.serializeMessage(mRemoteIdentity, new RandomString(40).nextString());
+        try {
+            receiveMessage(flow, hostMessage);
+            fail("Host message accepted during the client's message phase");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        List<byte[]> frames = acknowledgeUntilNoData(flow);
+        assertTrue(frames.size() > 2);
+        assertFalse(mProtocol.getPacketType(frames.get(0)) == SketchPacket.TYPE);
+        assertEquals(SketchPacket.TYPE, mProtocol.getPacketType(frames.get(frames.size() - 2)));
+
+        assertFalse(flow.onDataSent(frames.get(frames.size() - 1)));
+        receiveMessage(flow, hostMessage);
+        receiveNoData(flow, BLEProtocolV2.VERSION);
+        assertTrue(flow.isComplete());
+        flow.close();
+    }
+
+    // </editor-fold desc="Duplex messages">
+
+    // <editor-fold desc="Helpers">
+
+    /**
+     * Begin a flow as the client of the remote peer, and play the host through the identity
+     * phases. The flow then writes its messages, as the remote peer reads remoteVersion
+     */
+    private ChatPeerFlow startMessagePhase(byte remoteVersion) throws ChatPeerFlow.UnexpectedDataException {
+        return startMessagePhase(createFlow(true), remoteVersion);
+    }
+
+    private ChatPeerFlow startMessagePhase(ChatPeerFlow flow, byte remoteVersion) throws ChatPeerFlow.UnexpectedDataException {
+        flow.start();
+
+        List<byte[]> frames = mOutlet.takeFrames();
+        assertEquals(1, frames.size());
+        assertEquals(IdentityPacket.TYPE, mProtocol.getPacketType(frames.get(0)));
+        flow.onDataSent(frames.get(0));
+
+        frames = mOutlet.takeFrames();
+        assertTrue(endsWithNoData(frames));
+        flow.onDataSent(frames.get(0));
+
+        receiveIdentity(flow, mRemoteIdentity);
+        receiveNoData(flow, remoteVersion);
+        return flow;
+    }
+
+    /**
+     * Begin flow as host of the remote peer, and play the client through its identity phase.
+     * The flow then writes its identities, acknowledged here, and enters its message phase
+     * @return the frames the flow sent in its identity phase
+     */
+    private List<byte[]> startHostMessagePhase(ChatPeerFlow flow, byte remoteVersion) throws ChatPeerFlow.UnexpectedDataException {
+        flow.start();
+        assertEquals(0, mOutlet.takeFrames().size());
+
+        receiveIdentity(flow, mRemoteIdentity);
+        receiveNoData(flow, remoteVersion);
+        List<byte[]> frames = acknowledgeUntilNoData(flow);
+        flow.onDataSent(frames.get(frames.size() - 1));
+        return frames;
+    }
+
+    /**
+     * Acknowledge each frame flow sends until it sends NoData, which is left unacknowledged
+     * @return the frames sent, ending with NoData
+     */
+    private List<byte[]> acknowledgeUntilNoData(ChatPeerFlow flow) throws ChatPeerFlow.UnexpectedDataException {
+        List<byte[]> sent = new ArrayList<>();
+        List<byte[]> frames = mOutlet.takeFrames();
+        while (!endsWithNoData(frames)) {
+            assertTrue("Flow stopped sending with no frame in flight", frames.size() > 0);
+            sent.addAll(frames);
+            for (byte[] frame : frames) {
+                flow.onDataSent(frame);
+            }
+            frames = mOutlet.takeFrames();
+        }
+        sent.addAll(frames);
+        return sent;
+    }
+
+    private ChatPeerFlow createFlow(boolean remoteIsHost) {
+        pro.dbro.airshare.session.Peer airSharePeer = new pro.dbro.airshare.session.Peer(
+                mRemoteIdentity.publicKey, mRemoteIdentity.getAlias(), new Date(), 0, 0);
+        return new ChatPeerFlow(mAsyncDataStore, mProtocol, new TestIdentityCache(mDataStore, mProtocol, mLocalIdentity),
+                mOutlet, airSharePeer, remoteIsHost, new NoOpCallback());
+    }
+
+    private RecordingFlow createRecordingFlow(AsyncDataStore dataStore) {
+        pro.dbro.airshare.session.Peer airSharePeer = new pro.dbro.airshare.session.Peer(
+                mRemoteIdentity.publicKey, mRemoteIdentity.getAlias(), new Date(), 0, 0);
+        return new RecordingFlow(dataStore, mProtocol, new TestIdentityCache(mDataStore, mProtocol, mLocalIdentity),
+                mOutlet, airSharePeer);
+    }
+
+    private byte[] serializeMessageAggregate(byte[]... messages) {
+        return ((ProtocolV2) mProtocol).serializeAggregate(MessagePacket.TYPE, Arrays.asList(messages)).rawPacket;
+    }
+
+    private static List<String> getStageNames(List<PacketIntake.StageMetrics> metrics) {
+        List<String> names = new ArrayList<>(metrics.size());
+        for (PacketIntake.StageMetrics stage : metrics) {
+            names.add(stage.name);
+        }
+        return names;
+    }
+
+    private void receiveIdentity(ChatPeerFlow flow, IdentityPacket identity) throws ChatPeerFlow.UnexpectedDataException {
+        ReceivedPacket packet = new ReceivedPacket(flow, identity.rawPacket);
+        packet.type = packet.itemType = IdentityPacket.TYPE;
+        packet.identities.add(identity);
+        packet.identityPeers.add(mDataStore.getPeerByPubKey(identity.publicKey));
+        packet.remoteIdentity = identity;
+        flow.onPacketReceived(packet);
+    }
+
+    private void receiveMessage(ChatPeerFlow flow, MessagePacket message) throws ChatPeerFlow.UnexpectedDataException {
+        ReceivedPacket packet = new ReceivedPacket(flow, message.rawPacket);
+        packet.type = packet.itemType = MessagePacket.TYPE;
+        packet.messages.add(message);
+        packet.newMessages.add(null);
+        flow.onPacketReceived(packet);
+    }
+
+    private void receiveSketch(ChatPeerFlow flow, InvertibleBloomLookupTable sketch) throws ChatPeerFlow.UnexpectedDataException {
+        SketchPacket sketchPacket = ((ProtocolV2) mProtocol).serializeSketch(mRemoteIdentity, sketch);
+        ReceivedPacket packet = new ReceivedPacket(flow, sketchPacket.rawPacket);
+        packet.type = packet.itemType = SketchPacket.TYPE;
+        packet.sketch = sketchPacket;
+        flow.onPacketReceived(packet);
+    }
+
+    private void receiveNoData(ChatPeerFlow flow, byte version) throws ChatPeerFlow.UnexpectedDataException {
+        ReceivedPacket packet = new ReceivedPacket(flow, mProtocol.serializeNoDataPacket(mRemoteIdentity).rawPacket);
+        packet.type = packet.itemType = NoDataPacket.TYPE;
+        packet.version = version;
+        packet.remoteIdentity = mRemoteIdentity;
+        flow.onPacketReceived(packet);
+    }
+
+    private List<MessagePacket> storeMessages(int count) {
+        BLEProtocol protocol = new BLEProtocol();
+        List<MessagePacket> messages = new ArrayList<>(count);
+        for (int x = 0; x < count; x++) {
+            MessagePacket messagePacket = protocol.serializeMessage(mAuthor, new RandomString(40).nextString());
+            Message message = mDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket);
+            assertNotNull(message);
+            message.close();
+            messages.add(messagePacket);
+        }
+        return messages;
+    }
+
+    private OwnedIdentityPacket createIdentity() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        String alias = new RandomString(BLEProtocol.ALIAS_LENGTH).nextString();
+        OwnedIdentityPacket unsigned = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, alias, null);
+        OwnedIdentityPacket identity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, alias,
+                mProtocol.serializeIdentity(unsigned));
+        Peer peer = mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(identity);
+        mCreatedPeerIds.add(peer.getId());
+        return identity;
+    }
+
+    private boolean endsWithNoData(List<byte[]> frames) {
+        return frames.size() > 0 && mProtocol.getPacketType(frames.get(frames.size() - 1)) == NoDataPacket.TYPE;
+    }
+
+    private void assertNoNoData(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            assertFalse("NoData sent with frames in flight", mProtocol.getPacketType(frame) == NoDataPacket.TYPE);
+        }
+    }
+
+    private boolean containsPacketType(List<byte[]> frames, byte type) {
+        for (byte[] frame : frames) {
+            if (mProtocol.getPacketType(frame) == type) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsFrame(List<byte[]> frames, byte[] frame) {
+        for (byte[] candidate : frames) {
+            if (Arrays.equals(candidate, frame)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Captures the frames a flow sends
+     */
+    private static class RecordingOutlet implements ChatPeerFlow.DataOutlet {
+        private final List<byte[]> mFrames = new ArrayList<>();
+
+        @Override
+        public synchronized void sendData(pro.dbro.airshare.session.Peer peer, byte[] data) {
+            mFrames.add(data);
+        }
+
+        /**
+         * @return the frames sent since the last call
+         */
+        synchronized List<byte[]> takeFrames() {
+            List<byte[]> frames = new ArrayList<>(mFrames);
+            mFrames.clear();
+            return frames;
+        }
+    }
+
+    /**
+     * Captures the packets {@link PacketIntake} hands a flow, in place of handling them
+     */
+    private static class RecordingFlow extends ChatPeerFlow {
+        private final BlockingQueue<ReceivedPacket> mPackets = new LinkedBlockingQueue<>();
+
+        RecordingFlow(AsyncDataStore dataStore, Protocol protocol, LocalIdentityCache localIdentityCache,
+                      DataOutlet outlet, pro.dbro.airshare.session.Peer remotePeer) {
+            super(dataStore, protocol, localIdentityCache, outlet, remotePeer, true, new NoOpCallback());
+        }
+
+        @Override
+        synchronized boolean onPacketReceived(ReceivedPacket packet) {
+            mPackets.add(packet);
+            return false;
+        }
+
+        ReceivedPacket takePacket() throws InterruptedException {
+            ReceivedPacket packet = mPackets.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No packet received", packet);
+            return packet;
+        }
+    }
+
+    /**
+     * Serves a test identity in place of the primary local peer's
+     */
+    private static class TestIdentityCache extends LocalIdentityCache {
+        private final DataStore           mStore;
+        private final OwnedIdentityPacket mTestIdentity;
+
+        TestIdentityCache(DataStore dataStore, Protocol protocol, OwnedIdentityPacket identity) {
+            super(dataStore, protocol);
+            mStore = dataStore;
+            mTestIdentity = identity;
+        }
+
+        @Nullable
+        @Override
+        public synchronized Peer getLocalPeer() {
+            return mStore.getPeerByPubKey(mTestIdentity.publicKey);
+        }
+
+        @Nullable
+        @Override
+        public synchronized OwnedIdentityPacket getIdentity() {
+            return mTestIdentity;
+        }
+    }
+
+    private static class NoOpCallback implements ChatPeerFlow.Callback {
+        @Override
+        public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow, @NonNull Peer peer, @NonNull ConnectionStatus status) {}
+
+        @Override
+        public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull Message message, @NonNull Peer recipient) {}
+
+        @Override
+        public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull Message message, @Nullable Peer sender) {}
+    }
+
+    // </editor-fold desc="Helpers">
+}
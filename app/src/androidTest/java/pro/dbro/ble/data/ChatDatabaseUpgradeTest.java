@@ -0,0 +1,164 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ApplicationTestCase;
+
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.IdentityDeliveryTable;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
+import pro.dbro.ble.data.model.MessageDeliveryTable;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.PeerTable;
+
+/**
+ * Tests of {@link ChatDatabase#onUpgrade} from the version 2 schema, which could hold
+ * duplicate peers and messages.
+ */
+public class ChatDatabaseUpgradeTest extends ApplicationTestCase<Application> {
+
+    private static final byte[] PUBLIC_KEY       = new byte[] {1, 2, 3};
+    private static final byte[] OTHER_PUBLIC_KEY = new byte[] {4, 5, 6};
+    private static final byte[] SIGNATURE        = new byte[] {7, 8, 9};
+    private static final byte[] OTHER_SIGNATURE  = new byte[] {10, 11, 12};
+
+    public ChatDatabaseUpgradeTest() {
+        super(Application.class);
+    }
+
+    /**
+     * Peer 3 duplicates peer 1 and message 2 duplicates message 1. Deliveries naming the
+     * duplicates should be kept against the surviving rows.
+     */
+    public void testVersion2UpgradeKeepsDeliveriesOfDuplicates() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            createVersion2Schema(db);
+            insertPeer(db, 1, PUBLIC_KEY);
+            insertPeer(db, 2, OTHER_PUBLIC_KEY);
+            insertPeer(db, 3, PUBLIC_KEY);
+            insertMessage(db, 1, 3, SIGNATURE);
+            insertMessage(db, 2, 1, SIGNATURE);
+            insertMessage(db, 3, 2, OTHER_SIGNATURE);
+            insertMessageDelivery(db, 2, 3);
+            insertMessageDelivery(db, 1, 1);
+            insertMessageDelivery(db, 3, 3);
+            insertIdentityDelivery(db, 3, 2);
+            insertIdentityDelivery(db, 1, 2);
+            insertIdentityDelivery(db, 2, 3);
+
+            ChatDatabase.onUpgrade(getContext(), db, 2, ChatDatabase.DATABASE_VERSION);
+
+            Cursor peers = db.query(ChatDatabase.PEERS, new String[] {PeerTable.id, PeerTable.lastSeenDate},
+                    null, null, null, null, PeerTable.id);
+            assertEquals(2, peers.getCount());
+            peers.moveToNext();
+            assertEquals(1, peers.getInt(0));
+            assertTrue(peers.getLong(1) > 0);
+            peers.moveToNext();
+            assertEquals(2, peers.getInt(0));
+            peers.close();
+
+            Cursor messages = db.query(ChatDatabase.MESSAGES, new String[] {MessageTable.id, MessageTable.peerId},
+                    null, null, null, null, MessageTable.id);
+            assertEquals(2, messages.getCount());
+            messages.moveToNext();
+            assertEquals(1, messages.getInt(0));
+            assertEquals(1, messages.getInt(1));
+            messages.moveToNext();
+            assertEquals(3, messages.getInt(0));
+            assertEquals(2, messages.getInt(1));
+            messages.close();
+
+            Cursor bitmaps = db.query(ChatDatabase.MESSAGE_DELIVERIES,
+                    new String[] {MessageDeliveryBitmapTable.peerId, MessageDeliveryBitmapTable.bitmap},
+                    null, null, null, null, null);
+            assertEquals(1, bitmaps.getCount());
+            bitmaps.moveToNext();
+            assertEquals(1, bitmaps.getInt(0));
+            DeliveryBitmap delivered = DeliveryBitmap.fromBytes(bitmaps.getBlob(1));
+            assertEquals(2, delivered.getCardinality());
+            assertTrue(delivered.contains(1));
+            assertTrue(delivered.contains(3));
+            bitmaps.close();
+
+            Cursor identities = db.query(ChatDatabase.DELIVERED_IDENTITIES,
+                    new String[] {IdentityDeliveryTable.peerRecipientId, IdentityDeliveryTable.peerPayloadId},
+                    null, null, null, null, IdentityDeliveryTable.peerRecipientId);
+            assertEquals(2, identities.getCount());
+            identities.moveToNext();
+            assertEquals(1, identities.getInt(0));
+            assertEquals(2, identities.getInt(1));
+            identities.moveToNext();
+            assertEquals(2, identities.getInt(0));
+            assertEquals(1, identities.getInt(1));
+            identities.close();
+
+            Cursor indexes = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                    new String[] {"p_dlvry_recipient"});
+            assertEquals(0, indexes.getCount());
+            indexes.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Version 2 stored dates as TEXT and indexed deliveries by recipient
+     */
+    private static void createVersion2Schema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ChatDatabase.PEERS + " (" +
+                PeerTable.id           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                PeerTable.alias        + " TEXT, " +
+                PeerTable.lastSeenDate + " TEXT NOT NULL, " +
+                PeerTable.pubKey       + " BLOB NOT NULL, " +
+                PeerTable.secKey       + " BLOB, " +
+                PeerTable.rawPkt       + " BLOB)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.MESSAGES + " (" +
+                MessageTable.id           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                MessageTable.body         + " TEXT NOT NULL, " +
+                MessageTable.peerId       + " INTEGER, " +
+                MessageTable.authoredDate + " TEXT, " +
+                MessageTable.receivedDate + " TEXT, " +
+                MessageTable.signature    + " BLOB, " +
+                MessageTable.replySig     + " BLOB, " +
+                MessageTable.rawPacket    + " BLOB)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.DELIVERED_MESSAGES + " (" +
+                MessageDeliveryTable.id        + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                MessageDeliveryTable.messageId + " INTEGER NOT NULL, " +
+                MessageDeliveryTable.peerId    + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.DELIVERED_IDENTITIES + " (" +
+                IdentityDeliveryTable.id              + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                IdentityDeliveryTable.peerRecipientId + " INTEGER NOT NULL, " +
+                IdentityDeliveryTable.peerPayloadId   + " INTEGER NOT NULL)");
+        db.execSQL(ChatDatabase.INDEX_DELIVERED_MESSAGES);
+        db.execSQL("CREATE INDEX p_dlvry_recipient ON " + ChatDatabase.DELIVERED_IDENTITIES +
+                "(" + IdentityDeliveryTable.peerRecipientId + ", " + IdentityDeliveryTable.peerPayloadId + ")");
+    }
+
+    private static void insertPeer(SQLiteDatabase db, int id, byte[] publicKey) {
+        db.execSQL("INSERT INTO " + ChatDatabase.PEERS + " (" + PeerTable.id + ", " + PeerTable.alias + ", " +
+                PeerTable.lastSeenDate + ", " + PeerTable.pubKey + ") VALUES (?, ?, ?, ?)",
+                new Object[] {id, "peer" + id, "2015-01-02 03:04:05", publicKey});
+    }
+
+    private static void insertMessage(SQLiteDatabase db, int id, int peerId, byte[] signature) {
+        db.execSQL("INSERT INTO " + ChatDatabase.MESSAGES + " (" + MessageTable.id + ", " + MessageTable.body + ", " +
+                MessageTable.peerId + ", " + MessageTable.authoredDate + ", " + MessageTable.receivedDate + ", " +
+                MessageTable.signature + ") VALUES (?, ?, ?, ?, ?, ?)",
+                new Object[] {id, "message" + id, peerId, "2015-01-02 03:04:05", "2015-01-02 03:04:06", signature});
+    }
+
+    private static void insertMessageDelivery(SQLiteDatabase db, int messageId, int peerId) {
+        db.execSQL("INSERT INTO " + ChatDatabase.DELIVERED_MESSAGES + " (" +
+                MessageDeliveryTable.messageId + ", " + MessageDeliveryTable.peerId + ") VALUES (?, ?)",
+                new Object[] {messageId, peerId});
+    }
+
+    private static void insertIdentityDelivery(SQLiteDatabase db, int recipientId, int payloadId) {
+        db.execSQL("INSERT INTO " + ChatDatabase.DELIVERED_IDENTITIES + " (" +
+                IdentityDeliveryTable.peerRecipientId + ", " + IdentityDeliveryTable.peerPayloadId + ") VALUES (?, ?)",
+                new Object[] {recipientId, payloadId});
+    }
+}
@@ -0,0 +1,252 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.test.ApplicationTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.MessageTombstoneTable;
+
+/**
+ * Tests of {@link RetentionPolicy}, of the deletions {@link DataStore#compact(RetentionPolicy)}
+ * chooses, and of {@link MessageCompactor}. Compaction runs against a store that records
+ * the deletions it is asked for rather than making them, so stored messages are untouched.
+ */
+public class CompactionTest extends ApplicationTestCase<Application> {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    public CompactionTest() {
+        super(Application.class);
+    }
+
+    public void testRetainsUntilCountOrSizeLimit() {
+        RetentionPolicy policy = new RetentionPolicy(0, 3, 1000, false);
+        assertTrue(policy.retains(2, 0, 10));
+        assertFalse(policy.retains(3, 0, 10));
+        assertTrue(policy.retains(0, 990, 10));
+        assertFalse(policy.retains(0, 991, 10));
+
+        RetentionPolicy unlimited = new RetentionPolicy(0, 0, 0, false);
+        assertTrue(unlimited.retains(Integer.MAX_VALUE - 1, Long.MAX_VALUE / 2, 1000));
+    }
+
+    public void testAdmitsWithinMaxAge() {
+        long now = System.currentTimeMillis();
+        RetentionPolicy policy = new RetentionPolicy(DAY_MS, 0, 0, false);
+        assertTrue(policy.admits(now, now));
+        assertTrue(policy.admits(now - DAY_MS, now));
+        assertFalse(policy.admits(now - DAY_MS - 1, now));
+
+        assertTrue(new RetentionPolicy(0, 0, 0, false).admits(0, now));
+    }
+
+    public void testTombstoneMaxAge() {
+        assertEquals(DAY_MS, new RetentionPolicy(DAY_MS, 0, 0, false).getTombstoneMaxAgeMillis());
+        assertEquals(RetentionPolicy.DEFAULT_TOMBSTONE_AGE_MILLIS,
+                new RetentionPolicy(0, 10, 0, false).getTombstoneMaxAgeMillis());
+    }
+
+    public void testRejectsNegativeLimits() {
+        try {
+            new RetentionPolicy(-1, 0, 0, false);
+            fail("Negative max age accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testCompactDeletesBeyondCountLimit() {
+        RecordingStore store = new RecordingStore(getContext(), createMessages(10, 100, 0));
+        store.compact(new RetentionPolicy(0, 3, 0, false));
+        assertEquals(8, store.mDeletedBefore);
+    }
+
+    public void testCompactDeletesBeyondSizeLimit() {
+        RecordingStore store = new RecordingStore(getContext(), createMessages(10, 100, 0));
+        store.compact(new RetentionPolicy(0, 0, 250, false));
+        assertEquals(9, store.mDeletedBefore);
+    }
+
+    public void testCompactRetainsEverythingWithoutLimits() {
+        RecordingStore store = new RecordingStore(getContext(), createMessages(10, 100, 0));
+        store.compact(new RetentionPolicy(0, 0, 0, false));
+        assertEquals(0, store.mDeletedBefore);
+        assertEquals(-1, store.mStalePeersBefore);
+    }
+
+    /**
+     * Age is measured from when a message was authored. Only messages received before every
+     * message within the max age are deleted
+     */
+    public void testCompactDeletesByAuthoredAge() {
+        long now = System.currentTimeMillis();
+        MatrixCursor messages = newMessageCursor();
+        messages.addRow(new Object[] {10, now, 100L});
+        // Relayed long after it was authored
+        messages.addRow(new Object[] {9, now - 3 * DAY_MS, 100L});
+        messages.addRow(new Object[] {8, now - DAY_MS / 2, 100L});
+        messages.addRow(new Object[] {7, now - 2 * DAY_MS, 100L});
+        messages.addRow(new Object[] {6, now - 2 * DAY_MS, 100L});
+        RecordingStore store = new RecordingStore(getContext(), messages);
+
+        store.compact(new RetentionPolicy(DAY_MS, 0, 0, false));
+        assertEquals(8, store.mDeletedBefore);
+        assertTrue(Math.abs(store.mStalePeersBefore - (now - DAY_MS)) < 1000);
+    }
+
+    public void testCompactDeletesEveryExpiredMessage() {
+        RecordingStore store = new RecordingStore(getContext(),
+                createMessages(5, 100, System.currentTimeMillis() - 2 * DAY_MS));
+        store.compact(new RetentionPolicy(DAY_MS, 100, 0, false));
+        assertEquals(6, store.mDeletedBefore);
+    }
+
+    public void testCompactBoundsTombstonesWithoutMaxAge() {
+        long now = System.currentTimeMillis();
+        RecordingStore store = new RecordingStore(getContext(), createMessages(1, 100, now));
+        store.compact(new RetentionPolicy(0, 100, 0, false));
+        assertTrue(Math.abs(store.mTombstonesBefore - (now - RetentionPolicy.DEFAULT_TOMBSTONE_AGE_MILLIS)) < 1000);
+        assertEquals(RetentionPolicy.MAX_TOMBSTONES, store.mTombstonesBeyond);
+
+        store = new RecordingStore(getContext(), createMessages(1, 100, now));
+        store.compact(new RetentionPolicy(DAY_MS, 0, 0, false));
+        assertTrue(Math.abs(store.mTombstonesBefore - (now - DAY_MS)) < 1000);
+        assertEquals(RetentionPolicy.MAX_TOMBSTONES, store.mTombstonesBeyond);
+    }
+
+    public void testOldestTombstonesBeyondSelection() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE " + ChatDatabase.MESSAGE_TOMBSTONES + " (" +
+                    MessageTombstoneTable.signature + " BLOB PRIMARY KEY, " +
+                    MessageTombstoneTable.deletedDate + " INTEGER NOT NULL)");
+            for (int x = 1; x <= 5; x++) {
+                db.execSQL("INSERT INTO " + ChatDatabase.MESSAGE_TOMBSTONES + " VALUES (?, ?)",
+                        new Object[] {new byte[] {(byte) x}, x});
+            }
+
+            assertEquals(3, db.delete(ChatDatabase.MESSAGE_TOMBSTONES,
+                    ContentProviderStore.OLDEST_TOMBSTONES_BEYOND_SELECTION, new String[] {"2"}));
+
+            Cursor remaining = db.query(ChatDatabase.MESSAGE_TOMBSTONES,
+                    new String[] {MessageTombstoneTable.deletedDate},
+                    null, null, null, null, MessageTombstoneTable.deletedDate);
+            assertEquals(2, remaining.getCount());
+            remaining.moveToNext();
+            assertEquals(4, remaining.getInt(0));
+            remaining.moveToNext();
+            assertEquals(5, remaining.getInt(0));
+            remaining.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testCompactorRunsInBackground() throws InterruptedException {
+        RecordingStore store = new RecordingStore(getContext(), createMessages(3, 100, 0));
+        MessageCompactor.compactNow(store, new RetentionPolicy(0, 1, 0, false));
+
+        assertTrue(store.mCompacted.await(5, TimeUnit.SECONDS));
+        assertEquals(3, store.mDeletedBefore);
+        assertEquals("MessageCompactor", store.mCompactionThread.getName());
+        assertEquals(Thread.MIN_PRIORITY, store.mCompactionThread.getPriority());
+    }
+
+    public void testCompactorSurvivesFailedCompaction() throws InterruptedException {
+        RecordingStore failing = new RecordingStore(getContext(), createMessages(3, 100, 0));
+        failing.mFailure = new IllegalStateException("Test failure");
+        MessageCompactor.compactNow(failing, new RetentionPolicy(0, 1, 0, false));
+
+        RecordingStore store = new RecordingStore(getContext(), createMessages(3, 100, 0));
+        MessageCompactor.compactNow(store, new RetentionPolicy(0, 1, 0, false));
+
+        assertTrue(failing.mCompacted.await(5, TimeUnit.SECONDS));
+        assertTrue(store.mCompacted.await(5, TimeUnit.SECONDS));
+        assertEquals(3, store.mDeletedBefore);
+    }
+
+    /**
+     * @return a cursor over count messages, newest first, with ids count down to 1
+     */
+    private static MatrixCursor createMessages(int count, long bytes, long authoredMillis) {
+        MatrixCursor messages = newMessageCursor();
+        for (int id = count; id > 0; id--) {
+            messages.addRow(new Object[] {id, authoredMillis, bytes});
+        }
+        return messages;
+    }
+
+    private static MatrixCursor newMessageCursor() {
+        return new MatrixCursor(new String[] {"_id", "author_date", "size"});
+    }
+
+    /**
+     * Compacts over the given messages, recording the deletions asked for and deleting nothing
+     */
+    private static class RecordingStore extends SQLiteStore {
+        private final Cursor mMessages;
+        final CountDownLatch mCompacted = new CountDownLatch(1);
+
+        volatile RuntimeException mFailure;
+        volatile Thread mCompactionThread;
+        volatile int  mDeletedBefore     = -1;
+        volatile long mTombstonesBefore  = -1;
+        volatile int  mTombstonesBeyond  = -1;
+        volatile long mStalePeersBefore  = -1;
+
+        RecordingStore(Context context, Cursor messages) {
+            super(context);
+            mMessages = messages;
+        }
+
+        @NonNull
+        @Override
+        protected Cursor queryMessageSizesNewestFirst() {
+            mCompactionThread = Thread.currentThread();
+            if (mFailure != null) {
+                mCompacted.countDown();
+                throw mFailure;
+            }
+            return mMessages;
+        }
+
+        @Override
+        protected int deleteMessagesBefore(int messageId, int limit, long deletedMillis) {
+            mDeletedBefore = messageId;
+            return 0;
+        }
+
+        @Override
+        protected int deleteTombstonesBefore(long deletedMillis) {
+            mTombstonesBefore = deletedMillis;
+            return 0;
+        }
+
+        @Override
+        protected int deleteTombstonesBeyond(int count) {
+            mTombstonesBeyond = count;
+            return 0;
+        }
+
+        @Override
+        protected int deleteStalePeers(long lastSeenMillis) {
+            mStalePeersBefore = lastSeenMillis;
+            return 0;
+        }
+
+        @Override
+        public int compact(@NonNull RetentionPolicy policy) {
+            int deleted = super.compact(policy);
+            mCompacted.countDown();
+            return deleted;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.test.ApplicationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Runs the packet path workload against {@link ContentProviderStore} and {@link SQLiteStore}:
+ * store the sender, store each message, look it up by signature, record its delivery
+ * and select what remains outgoing.
+ */
+public class DataStoreBenchmarkTest extends ApplicationTestCase<Application> {
+    private static final String TAG = "DataStoreBenchmark";
+
+    private static final int MESSAGE_COUNT = 200;
+
+    private BLEProtocolV2 mProtocol = new BLEProtocolV2();
+    private List<Integer> mCreatedPeerIds = new ArrayList<>();
+
+    public DataStoreBenchmarkTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Integer peerId : mCreatedPeerIds) {
+            String[] args = new String[] {String.valueOf(peerId)};
+            getContext().getContentResolver().delete(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                    MessageDeliveryBitmapTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.Messages.MESSAGES,
+                    MessageTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                    PeerTable.id + " = ?", args);
+        }
+        super.tearDown();
+    }
+
+    public void testCompareStores() {
+        long providerMs = runWorkload(new ContentProviderStore(getContext()));
+        long sqliteMs = runWorkload(new SQLiteStore(getContext()));
+
+        Log.i(TAG, String.format("%d messages: ContentProviderStore %d ms, SQLiteStore %d ms",
+                MESSAGE_COUNT, providerMs, sqliteMs));
+    }
+
+    /**
+     * @return the elapsed time of the workload. Packets are signed beforehand, so only storage is timed
+     */
+    private long runWorkload(DataStore dataStore) {
+        OwnedIdentityPacket sender = createIdentity();
+        OwnedIdentityPacket recipient = createIdentity();
+        List<MessagePacket> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int x = 0; x < MESSAGE_COUNT; x++) {
+            messages.add(mProtocol.serializeMessage(sender, new RandomString(40).nextString()));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+
+        Peer senderPeer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(sender);
+        Peer recipientPeer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(recipient);
+        mCreatedPeerIds.add(senderPeer.getId());
+        mCreatedPeerIds.add(recipientPeer.getId());
+
+        for (MessagePacket messagePacket : messages) {
+            dataStore.createOrUpdateRemotePeerWithProtocolIdentity(messagePacket.sender);
+            dataStore.createOrUpdateMessageWithProtocolMessage(messagePacket).close();
+        }
+
+        for (MessagePacket messagePacket : messages) {
+            Message message = dataStore.getMessageBySignature(messagePacket.signature);
+            assertNotNull(message);
+            message.close();
+            dataStore.markMessageDeliveredToPeer(messagePacket, recipient);
+        }
+
+        // Every message was delivered, so nothing we stored remains outgoing
+        for (MessagePacket outgoing : dataStore.getOutgoingMessagesForPeer(recipientPeer, MESSAGE_COUNT, mProtocol.getVersion())) {
+            assertFalse(Arrays.equals(outgoing.sender.publicKey, sender.publicKey));
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, String.format("%s: %d ms", dataStore.getClass().getSimpleName(), elapsed));
+        return elapsed;
+    }
+
+    private OwnedIdentityPacket createIdentity() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        return new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+    }
+}
@@ -0,0 +1,331 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ApplicationTestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
+import pro.dbro.ble.data.model.MessageDeliveryTable;
+
+/**
+ * Tests of {@link DeliveryBitmap} and the database version 5 migration that produces them.
+ */
+public class DeliveryBitmapTest extends ApplicationTestCase<Application> {
+
+    /** Serialized sizes, used to tell which container {@link DeliveryBitmap#toBytes()} chose */
+    private static final int HEADER_LENGTH           = 13;
+    private static final int CONTAINER_HEADER_LENGTH = 3;
+    private static final int BITMAP_LENGTH           = 8192;
+
+    public DeliveryBitmapTest() {
+        super(Application.class);
+    }
+
+    /**
+     * A partition switches from an array to a bitmap past 4096 ids
+     */
+    public void testAddAcrossArrayToBitmapSwitch() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        for (int x = 0; x < 5000; x++) {
+            assertTrue(bitmap.add(2 * x));
+            assertFalse(bitmap.add(2 * x));
+
+            if (x == 4095 || x == 4096 || x == 4999) {
+                assertEquals(x + 1, bitmap.getCardinality());
+                assertTrue(bitmap.contains(0));
+                assertTrue(bitmap.contains(2 * x));
+                assertFalse(bitmap.contains(2 * x - 1));
+                assertFalse(bitmap.contains(2 * x + 1));
+                assertEquals(1, bitmap.nextAbsent(0));
+                assertEquals(2 * x + 1, bitmap.nextAbsent(2 * x));
+            }
+        }
+    }
+
+    public void testNextAbsentAcrossConsecutiveIds() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        for (int id = 0; id <= 5000; id++) {
+            bitmap.add(id);
+        }
+        assertEquals(5001, bitmap.nextAbsent(0));
+        assertEquals(5001, bitmap.nextAbsent(4096));
+        assertEquals(6000, bitmap.nextAbsent(6000));
+    }
+
+    public void testPartitionBoundary() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        bitmap.add(65534);
+        bitmap.add(65535);
+        bitmap.add(65536);
+        bitmap.add(65537);
+
+        assertTrue(bitmap.contains(65535));
+        assertTrue(bitmap.contains(65536));
+        assertFalse(bitmap.contains(65533));
+        assertFalse(bitmap.contains(65538));
+        assertEquals(65538, bitmap.nextAbsent(65534));
+        assertEquals(4, bitmap.getCardinality());
+    }
+
+    /**
+     * nextAbsent continues into the next partition once one is full
+     */
+    public void testNextAbsentPastFullPartition() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        for (int id = 0; id < 65536; id++) {
+            bitmap.add(id);
+        }
+        assertEquals(65536, bitmap.getCardinality());
+        assertEquals(65536, bitmap.nextAbsent(0));
+
+        bitmap.add(65536);
+        bitmap.add(65537);
+        assertEquals(65538, bitmap.nextAbsent(0));
+        assertEquals(65538, bitmap.nextAbsent(65535));
+    }
+
+    public void testSetFloorRemovesPartOfArrayContainer() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        addRange(bitmap, 10, 20);
+        addRange(bitmap, 70000, 70010);
+
+        bitmap.setFloor(15);
+        assertEquals(15, bitmap.getFloor());
+        assertEquals(6 + 11, bitmap.getCardinality());
+        // Ids below the floor are present, stored or not
+        assertTrue(bitmap.contains(0));
+        assertTrue(bitmap.contains(12));
+        assertTrue(bitmap.contains(15));
+        assertEquals(21, bitmap.nextAbsent(0));
+        assertFalse(bitmap.add(3));
+
+        // Lowering the floor is ignored
+        bitmap.setFloor(5);
+        assertEquals(15, bitmap.getFloor());
+    }
+
+    public void testSetFloorRemovesPartOfBitmapContainer() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        addRange(bitmap, 0, 5000);
+
+        bitmap.setFloor(4000);
+        assertEquals(1001, bitmap.getCardinality());
+        assertEquals(5001, bitmap.nextAbsent(0));
+        assertEquals(1001, DeliveryBitmap.fromBytes(bitmap.toBytes()).getCardinality());
+    }
+
+    public void testSetFloorRemovesWholeContainers() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        addRange(bitmap, 10, 20);
+        addRange(bitmap, 65536, 65540);
+        addRange(bitmap, 140000, 140009);
+
+        // The first partition is below the floor, and the floor's own partition is emptied
+        bitmap.setFloor(65541);
+        assertEquals(10, bitmap.getCardinality());
+        assertEquals(65541, bitmap.nextAbsent(0));
+        assertTrue(bitmap.contains(140000));
+
+        bitmap.setFloor(3 * 65536);
+        assertEquals(0, bitmap.getCardinality());
+        assertEquals(3 * 65536, bitmap.nextAbsent(0));
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(bitmap.toBytes());
+        assertEquals(3 * 65536, read.getFloor());
+        assertEquals(0, read.getCardinality());
+    }
+
+    /**
+     * Consecutive ids are written as runs
+     */
+    public void testRoundTripRunContainer() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        addRange(bitmap, 0, 999);
+
+        byte[] serialized = bitmap.toBytes();
+        // [run_count=2][start=2][length=2]
+        assertEquals(HEADER_LENGTH + CONTAINER_HEADER_LENGTH + 2 + 4, serialized.length);
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(serialized);
+        assertEquals(1000, read.getCardinality());
+        assertEquals(1000, read.nextAbsent(0));
+        assertCardinalityAgrees(serialized);
+    }
+
+    /**
+     * Sparse ids are written as an array
+     */
+    public void testRoundTripArrayContainer() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        for (int x = 0; x <= 100; x++) {
+            bitmap.add(2 * x);
+        }
+
+        byte[] serialized = bitmap.toBytes();
+        // [count=2][value=2, per value]
+        assertEquals(HEADER_LENGTH + CONTAINER_HEADER_LENGTH + 2 + 2 * 101, serialized.length);
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(serialized);
+        assertEquals(101, read.getCardinality());
+        for (int id = 0; id <= 201; id++) {
+            assertEquals(id % 2 == 0, read.contains(id));
+        }
+        assertCardinalityAgrees(serialized);
+    }
+
+    /**
+     * Dense ids without runs are written as a bitmap
+     */
+    public void testRoundTripBitmapContainer() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        for (int x = 0; x < 20000; x++) {
+            bitmap.add(2 * x);
+        }
+
+        byte[] serialized = bitmap.toBytes();
+        assertEquals(HEADER_LENGTH + CONTAINER_HEADER_LENGTH + BITMAP_LENGTH, serialized.length);
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(serialized);
+        assertEquals(20000, read.getCardinality());
+        for (int id = 0; id < 40000; id++) {
+            assertEquals(id % 2 == 0, read.contains(id));
+        }
+        assertCardinalityAgrees(serialized);
+    }
+
+    public void testRoundTripMixedContainersWithFloor() {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        addRange(bitmap, 0, 99);
+        addRange(bitmap, 65536, 65536 + 4999);
+        for (int x = 0; x < 10; x++) {
+            bitmap.add(200000 + 3 * x);
+        }
+        bitmap.setFloor(50);
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(bitmap.toBytes());
+        assertEquals(50, read.getFloor());
+        assertEquals(bitmap.getCardinality(), read.getCardinality());
+        assertEquals(100, read.nextAbsent(0));
+        assertEquals(65536 + 5000, read.nextAbsent(65536));
+        assertTrue(read.contains(200027));
+        assertFalse(read.contains(200028));
+        assertCardinalityAgrees(bitmap.toBytes());
+    }
+
+    public void testReadEmpty() {
+        assertEquals(0, DeliveryBitmap.fromBytes(null).getCardinality());
+        assertEquals(0, DeliveryBitmap.fromBytes(new byte[0]).getCardinality());
+        assertEquals(0, DeliveryBitmap.getCardinality(null));
+        assertCardinalityAgrees(new DeliveryBitmap().toBytes());
+    }
+
+    /**
+     * Version 1 blobs have no floor: [version=1][cardinality=4][container_count=4]
+     */
+    public void testReadVersion1() {
+        ByteBuffer blob = ByteBuffer.allocate(9 + CONTAINER_HEADER_LENGTH + 2 + 2 * 3).order(ByteOrder.LITTLE_ENDIAN);
+        blob.put((byte) 1);
+        blob.putInt(3);
+        blob.putInt(1);
+        blob.putChar((char) 1);  // Partition of ids 65536 through 131071
+        blob.put((byte) 0);      // Array container
+        blob.putChar((char) 3);
+        blob.putChar((char) 5);
+        blob.putChar((char) 6);
+        blob.putChar((char) 9);
+
+        DeliveryBitmap read = DeliveryBitmap.fromBytes(blob.array());
+        assertEquals(0, read.getFloor());
+        assertEquals(3, read.getCardinality());
+        assertTrue(read.contains(65536 + 5));
+        assertTrue(read.contains(65536 + 6));
+        assertTrue(read.contains(65536 + 9));
+        assertFalse(read.contains(5));
+        assertFalse(read.contains(65536 + 7));
+        assertEquals(65536 + 7, read.nextAbsent(65536 + 5));
+        assertCardinalityAgrees(blob.array());
+
+        // Written back in the current version
+        assertEquals(2, read.toBytes()[0]);
+    }
+
+    public void testReadUnknownVersion() {
+        byte[] blob = new DeliveryBitmap().toBytes();
+        blob[0] = 3;
+        try {
+            DeliveryBitmap.fromBytes(blob);
+            fail("Read a delivery bitmap of unknown version");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Version 5 collects each peer's delivery rows into a bitmap and drops the rows
+     */
+    public void testVersion5MigrationConvertsDeliveries() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE " + ChatDatabase.DELIVERED_MESSAGES + " (" +
+                    MessageDeliveryTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    MessageDeliveryTable.messageId + " INTEGER NOT NULL, " +
+                    MessageDeliveryTable.peerId + " INTEGER NOT NULL)");
+            db.execSQL(ChatDatabase.INDEX_DELIVERED_MESSAGE_PAIR);
+            insertDelivery(db, 1, 1);
+            insertDelivery(db, 2, 5);
+            insertDelivery(db, 1, 2);
+            insertDelivery(db, 1, 3);
+            insertDelivery(db, 1, 70000);
+
+            ChatDatabase.onUpgrade(getContext(), db, 4, 5);
+
+            Cursor bitmaps = db.query(ChatDatabase.MESSAGE_DELIVERIES,
+                    new String[] {MessageDeliveryBitmapTable.peerId, MessageDeliveryBitmapTable.bitmap},
+                    null, null, null, null, MessageDeliveryBitmapTable.peerId);
+            assertEquals(2, bitmaps.getCount());
+
+            bitmaps.moveToNext();
+            assertEquals(1, bitmaps.getInt(0));
+            DeliveryBitmap delivered = DeliveryBitmap.fromBytes(bitmaps.getBlob(1));
+            assertEquals(4, delivered.getCardinality());
+            assertEquals(4, delivered.nextAbsent(1));
+            assertTrue(delivered.contains(70000));
+            assertFalse(delivered.contains(5));
+
+            bitmaps.moveToNext();
+            assertEquals(2, bitmaps.getInt(0));
+            delivered = DeliveryBitmap.fromBytes(bitmaps.getBlob(1));
+            assertEquals(1, delivered.getCardinality());
+            assertTrue(delivered.contains(5));
+            bitmaps.close();
+
+            Cursor tables = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                    new String[] {ChatDatabase.DELIVERED_MESSAGES});
+            assertEquals(0, tables.getCount());
+            tables.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void insertDelivery(SQLiteDatabase db, int peerId, int messageId) {
+        db.execSQL("INSERT INTO " + ChatDatabase.DELIVERED_MESSAGES + " (" +
+                MessageDeliveryTable.peerId + ", " + MessageDeliveryTable.messageId + ") VALUES (?, ?)",
+                new Object[] {peerId, messageId});
+    }
+
+    private static void addRange(DeliveryBitmap bitmap, int firstId, int lastId) {
+        for (int id = firstId; id <= lastId; id++) {
+            bitmap.add(id);
+        }
+    }
+
+    private static void assertCardinalityAgrees(byte[] serialized) {
+        assertEquals(DeliveryBitmap.fromBytes(serialized).getCardinality(), DeliveryBitmap.getCardinality(serialized));
+    }
+}
@@ -0,0 +1,174 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Tests of {@link MessageBloomFilter} persistence, and of {@link DataStore} loading a saved filter.
+ * A false negative would let a stored message be stored again, so every test checks for none.
+ */
+public class MessageBloomFilterTest extends ApplicationTestCase<Application> {
+
+    private static final int SIGNATURE_LENGTH = 64;
+
+    private Random mRandom = new Random(17);
+    private File mFile;
+    private List<Integer> mCreatedPeerIds = new ArrayList<>();
+
+    public MessageBloomFilterTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_message_signatures.bloom");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        for (Integer peerId : mCreatedPeerIds) {
+            String[] args = new String[] {String.valueOf(peerId)};
+            getContext().getContentResolver().delete(ChatContentProvider.Messages.MESSAGES,
+                    MessageTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                    PeerTable.id + " = ?", args);
+        }
+        super.tearDown();
+    }
+
+    public void testWriteAndReadRoundTrip() throws IOException {
+        MessageBloomFilter filter = new MessageBloomFilter(1000);
+        List<byte[]> signatures = new ArrayList<>();
+        for (int x = 1; x <= 500; x++) {
+            byte[] signature = randomSignature();
+            signatures.add(signature);
+            filter.add(signature, x);
+        }
+        filter.writeTo(mFile);
+
+        MessageBloomFilter read = MessageBloomFilter.readFrom(mFile);
+        assertNotNull(read);
+        assertEquals(500, read.getMaxMessageId());
+        assertFalse(read.isSaturated());
+        for (byte[] signature : signatures) {
+            assertTrue(read.mightContain(signature));
+        }
+
+        // About 1% of absent signatures are false positives
+        int falsePositives = 0;
+        for (int x = 0; x < 1000; x++) {
+            if (read.mightContain(randomSignature())) falsePositives++;
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 50);
+    }
+
+    public void testReadMissingFile() throws IOException {
+        assertNull(MessageBloomFilter.readFrom(mFile));
+    }
+
+    public void testReadRejectsWrongMagic() throws IOException {
+        writeFilterFile(MessageBloomFilter.FILE_MAGIC + 1, MessageBloomFilter.MIN_BIT_COUNT / 64, 0, 0);
+        assertNull(MessageBloomFilter.readFrom(mFile));
+    }
+
+    public void testReadRejectsNonPowerOfTwoWordCount() throws IOException {
+        writeFilterFile(MessageBloomFilter.FILE_MAGIC, MessageBloomFilter.MIN_BIT_COUNT / 64 + 1, 0, 0);
+        assertNull(MessageBloomFilter.readFrom(mFile));
+    }
+
+    public void testLoadCatchesUpMessagesStoredAfterSave() throws IOException {
+        SQLiteStore dataStore = new SQLiteStore(getContext());
+        OwnedIdentityPacket sender = createSender(dataStore);
+
+        MessagePacket saved = storeMessage(dataStore, sender);
+        dataStore.loadMessageFilter(mFile).writeTo(mFile);
+        MessagePacket unsaved = storeMessage(dataStore, sender);
+
+        MessageBloomFilter loaded = dataStore.loadMessageFilter(mFile);
+        assertTrue(loaded.mightContain(saved.signature));
+        assertTrue(loaded.mightContain(unsaved.signature));
+        assertEquals(dataStore.getMaxMessageId(), loaded.getMaxMessageId());
+    }
+
+    public void testLoadRebuildsSaturatedFilter() throws IOException {
+        SQLiteStore dataStore = new SQLiteStore(getContext());
+        OwnedIdentityPacket sender = createSender(dataStore);
+
+        MessagePacket older = storeMessage(dataStore, sender);
+        MessagePacket newer = storeMessage(dataStore, sender);
+
+        // An empty filter claiming more messages than it was sized for, saved just before newer was stored
+        int wordCount = MessageBloomFilter.MIN_BIT_COUNT / 64;
+        writeFilterFile(MessageBloomFilter.FILE_MAGIC, wordCount, wordCount * 64, dataStore.getMaxMessageId() - 1);
+
+        MessageBloomFilter loaded = dataStore.loadMessageFilter(mFile);
+        assertFalse(loaded.isSaturated());
+        // Only a rebuild from every stored message recovers older
+        assertTrue(loaded.mightContain(older.signature));
+        assertTrue(loaded.mightContain(newer.signature));
+    }
+
+    private void writeFilterFile(int magic, int wordCount, int messageCount, long maxMessageId) throws IOException {
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(mFile));
+        try {
+            output.writeInt(magic);
+            output.writeByte(MessageBloomFilter.FILE_VERSION);
+            output.writeByte(MessageBloomFilter.HASH_COUNT);
+            output.writeInt(wordCount);
+            output.writeInt(messageCount);
+            output.writeLong(maxMessageId);
+            for (int x = 0; x < wordCount; x++) {
+                output.writeLong(0);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private byte[] randomSignature() {
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        mRandom.nextBytes(signature);
+        return signature;
+    }
+
+    private OwnedIdentityPacket createSender(DataStore dataStore) {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        OwnedIdentityPacket sender = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        Peer peer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(sender);
+        mCreatedPeerIds.add(peer.getId());
+        return sender;
+    }
+
+    private MessagePacket storeMessage(DataStore dataStore, OwnedIdentityPacket sender) {
+        MessagePacket messagePacket = new BLEProtocolV2().serializeMessage(sender, new RandomString(40).nextString());
+        Message message = dataStore.createOrUpdateMessageWithProtocolMessage(messagePacket);
+        assertNotNull(message);
+        message.close();
+        return messagePacket;
+    }
+}
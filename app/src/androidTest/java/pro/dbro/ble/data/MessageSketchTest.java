@@ -0,0 +1,150 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.SketchPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Tests of the message sketches {@link DataStore} keeps current as messages are stored.
+ * Other messages may be stored, so each test checks the difference its own messages make.
+ */
+public class MessageSketchTest extends ApplicationTestCase<Application> {
+
+    private static final int CELL_COUNT = 60;
+
+    private DataStore mDataStore;
+    private OwnedIdentityPacket mSender;
+    private List<Integer> mCreatedPeerIds = new ArrayList<>();
+
+    public MessageSketchTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDataStore = new SQLiteStore(getContext());
+        mSender = createSender();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Integer peerId : mCreatedPeerIds) {
+            String[] args = new String[] {String.valueOf(peerId)};
+            getContext().getContentResolver().delete(ChatContentProvider.Messages.MESSAGES,
+                    MessageTable.peerId + " = ?", args);
+            getContext().getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                    PeerTable.id + " = ?", args);
+        }
+        super.tearDown();
+    }
+
+    public void testSketchGainsMessagesAsStored() {
+        InvertibleBloomLookupTable before = mDataStore.getMessageSketch(CELL_COUNT, BLEProtocolV2.VERSION);
+
+        List<Long> stored = new ArrayList<>();
+        for (int x = 0; x < 5; x++) {
+            stored.add(SketchPacket.getMessageKey(storeMessage(new BLEProtocolV2()).signature));
+        }
+
+        InvertibleBloomLookupTable.Difference difference = getDifference(before, BLEProtocolV2.VERSION);
+        assertNotNull(difference);
+        Collections.sort(stored);
+        Collections.sort(difference.localOnly);
+        assertEquals(stored, difference.localOnly);
+        assertEquals(0, difference.remoteOnly.size());
+    }
+
+    public void testSketchExcludesLaterVersions() {
+        InvertibleBloomLookupTable before = mDataStore.getMessageSketch(CELL_COUNT, BLEProtocol.VERSION);
+
+        MessagePacket legacyMessage = storeMessage(new BLEProtocol());
+        storeMessage(new BLEProtocolV2());
+
+        InvertibleBloomLookupTable.Difference difference = getDifference(before, BLEProtocol.VERSION);
+        assertNotNull(difference);
+        assertEquals(Collections.singletonList(SketchPacket.getMessageKey(legacyMessage.signature)), difference.localOnly);
+    }
+
+    public void testMessageStoredAgainIsAddedOnce() {
+        MessagePacket message = storeMessage(new BLEProtocolV2());
+        InvertibleBloomLookupTable before = mDataStore.getMessageSketch(CELL_COUNT, BLEProtocolV2.VERSION);
+
+        Message storedAgain = mDataStore.createOrUpdateMessageWithProtocolMessage(message);
+        assertNotNull(storedAgain);
+        storedAgain.close();
+
+        InvertibleBloomLookupTable.Difference difference = getDifference(before, BLEProtocolV2.VERSION);
+        assertNotNull(difference);
+        assertEquals(0, difference.localOnly.size());
+        assertEquals(0, difference.remoteOnly.size());
+    }
+
+    public void testSketchIsACopy() {
+        mDataStore.getMessageSketch(CELL_COUNT, BLEProtocolV2.VERSION).add(1);
+
+        InvertibleBloomLookupTable.Difference difference =
+                getDifference(mDataStore.getMessageSketch(CELL_COUNT, BLEProtocolV2.VERSION), BLEProtocolV2.VERSION);
+        assertNotNull(difference);
+        assertEquals(0, difference.localOnly.size());
+        assertEquals(0, difference.remoteOnly.size());
+    }
+
+    public void testMessageBySketchKey() {
+        MessagePacket messagePacket = storeMessage(new BLEProtocolV2());
+
+        Message message = mDataStore.getMessageBySketchKey(SketchPacket.getMessageKey(messagePacket.signature));
+        assertNotNull(message);
+        assertTrue(Arrays.equals(messagePacket.signature, message.getSignature()));
+        message.close();
+
+        byte[] unstoredSignature = messagePacket.signature.clone();
+        unstoredSignature[0] ^= 1;
+        assertNull(mDataStore.getMessageBySketchKey(SketchPacket.getMessageKey(unstoredSignature)));
+    }
+
+    /**
+     * @return the difference of the current sketch from before
+     */
+    private InvertibleBloomLookupTable.Difference getDifference(InvertibleBloomLookupTable before, byte maxProtocolVersion) {
+        InvertibleBloomLookupTable after = mDataStore.getMessageSketch(CELL_COUNT, maxProtocolVersion);
+        after.subtract(before);
+        return after.decode();
+    }
+
+    private OwnedIdentityPacket createSender() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        OwnedIdentityPacket sender = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        Peer peer = mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(sender);
+        mCreatedPeerIds.add(peer.getId());
+        return sender;
+    }
+
+    private MessagePacket storeMessage(BLEProtocol protocol) {
+        MessagePacket messagePacket = protocol.serializeMessage(mSender, new RandomString(40).nextString());
+        Message message = mDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket);
+        assertNotNull(message);
+        message.close();
+        return messagePacket;
+    }
+}
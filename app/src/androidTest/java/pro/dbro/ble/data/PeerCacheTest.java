@@ -0,0 +1,164 @@
+package pro.dbro.ble.data;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.IdentityPacket;
+
+/**
+ * Tests of {@link PeerCache}, and of {@link DataStore} reading peers through it
+ */
+public class PeerCacheTest extends ApplicationTestCase<Application> {
+
+    private static final int PUBLIC_KEY_LENGTH = 32;
+
+    private Random mRandom = new Random(23);
+    private List<Integer> mCreatedPeerIds = new ArrayList<>();
+
+    public PeerCacheTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Integer peerId : mCreatedPeerIds) {
+            getContext().getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                    PeerTable.id + " = ?", new String[] {String.valueOf(peerId)});
+        }
+        super.tearDown();
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        PeerCache cache = new PeerCache(2);
+        Peer first = createPeer(1, "first");
+        Peer second = createPeer(2, "second");
+        Peer third = createPeer(3, "third");
+
+        assertTrue(cache.put(first, cache.getGeneration()));
+        assertTrue(cache.put(second, cache.getGeneration()));
+        // Reading by public key refreshes recency as reading by id does
+        assertSame(first, cache.get(first.getPublicKey()));
+        assertTrue(cache.put(third, cache.getGeneration()));
+
+        assertNull(cache.get(second.getId()));
+        assertNull(cache.get(second.getPublicKey()));
+        assertSame(first, cache.get(first.getId()));
+        assertSame(third, cache.get(third.getPublicKey()));
+    }
+
+    public void testPutReplacesPeerWithSameId() {
+        PeerCache cache = new PeerCache(2);
+        Peer peer = createPeer(1, "peer");
+        Peer renamed = createPeer(1, "renamed");
+
+        cache.put(peer, cache.getGeneration());
+        cache.put(renamed, cache.getGeneration());
+
+        assertSame(renamed, cache.get(1));
+        assertNull(cache.get(peer.getPublicKey()));
+        assertSame(renamed, cache.get(renamed.getPublicKey()));
+    }
+
+    /**
+     * A snapshot loaded before an invalidation must not be cached after it
+     */
+    public void testPutAfterInvalidationIsDropped() {
+        PeerCache cache = new PeerCache(2);
+        Peer stale = createPeer(1, "stale");
+
+        int readGeneration = cache.getGeneration();
+        int writeGeneration = cache.invalidate(stale.getPublicKey());
+        assertFalse(cache.put(stale, readGeneration));
+        assertNull(cache.get(stale.getPublicKey()));
+
+        Peer written = new Peer(createPeerCursor(1, stale.getPublicKey(), "written"));
+        assertTrue(cache.put(written, writeGeneration));
+        assertSame(written, cache.get(1));
+
+        readGeneration = cache.getGeneration();
+        cache.clear();
+        assertFalse(cache.put(stale, readGeneration));
+        assertNull(cache.get(1));
+    }
+
+    /**
+     * A reader loading a peer while it is written must not leave the old snapshot cached
+     */
+    public void testReadRacingWriteDoesNotCacheStalePeer() throws InterruptedException {
+        final byte[] publicKey = createPublicKey();
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final Thread[] reader = new Thread[1];
+        final DataStore dataStore = new SQLiteStore(getContext()) {
+            @Override
+            protected Peer loadPeerByPubKey(@NonNull byte[] publicKey) {
+                Peer peer = super.loadPeerByPubKey(publicKey);
+                if (Thread.currentThread() == reader[0]) {
+                    loaded.countDown();
+                    try {
+                        written.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return peer;
+            }
+        };
+
+        // Insert the peer around the store, so the reader loads it from the database
+        ContentValues values = new ContentValues();
+        values.put(PeerTable.pubKey, publicKey);
+        values.put(PeerTable.alias, "before");
+        values.put(PeerTable.lastSeenDate, System.currentTimeMillis());
+        Uri peerUri = getContext().getContentResolver().insert(ChatContentProvider.Peers.PEERS, values);
+        assertNotNull(peerUri);
+        mCreatedPeerIds.add(Integer.parseInt(peerUri.getLastPathSegment()));
+
+        reader[0] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dataStore.getPeerByPubKey(publicKey);
+            }
+        });
+        reader[0].start();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(new IdentityPacket(publicKey, "after", new Date(), null));
+        written.countDown();
+        reader[0].join(5000);
+
+        assertEquals("after", dataStore.getPeerByPubKey(publicKey).getAlias());
+    }
+
+    private Peer createPeer(int id, String alias) {
+        return new Peer(createPeerCursor(id, createPublicKey(), alias));
+    }
+
+    private static MatrixCursor createPeerCursor(int id, byte[] publicKey, String alias) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {PeerTable.id, PeerTable.pubKey, PeerTable.secKey,
+                PeerTable.alias, PeerTable.rawPkt, PeerTable.lastSeenDate});
+        cursor.addRow(new Object[] {id, publicKey, null, alias, null, System.currentTimeMillis()});
+        cursor.moveToFirst();
+        return cursor;
+    }
+
+    private byte[] createPublicKey() {
+        byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+        mRandom.nextBytes(publicKey);
+        return publicKey;
+    }
+}
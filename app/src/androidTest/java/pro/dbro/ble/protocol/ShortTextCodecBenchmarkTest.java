@@ -0,0 +1,84 @@
+package pro.dbro.ble.protocol;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compression ratio and throughput of {@link ShortTextCodec} over typical chat messages.
+ */
+public class ShortTextCodecBenchmarkTest extends TestCase {
+    private static final String TAG = "ShortTextCodecBenchmark";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int ITERATIONS = 2000;
+
+    private static final String[] CORPUS = new String[] {
+            "hey are you still at the meeting?",
+            "On my way, be there in 10 minutes",
+            "Does anyone have a charger I can borrow",
+            "The battery on this thing is dying",
+            "Where should we meet after the show?",
+            "I think the network is down here, can you see this message?",
+            "yes! it works :)",
+            "Let me know when you get to the station",
+            "ok",
+            "What time is it?",
+            "Thanks for the help today, see you tomorrow",
+            "There is a lot of people near the north entrance, use the other one",
+            "Can you hear me now? I'm going to try from the other side of the building",
+            "lol that was great",
+            "\u00dcn\u00efc\u00f6d\u00e9 and emoji should survive too \ud83d\ude00"
+    };
+
+    public void testRoundTrip() {
+        for (String message : CORPUS) {
+            byte[] raw = message.getBytes(UTF_8);
+            byte[] encoded = ShortTextCodec.encode(raw, 0, raw.length);
+            byte[] decoded = ShortTextCodec.decode(encoded, 0, encoded.length);
+            assertTrue("Round trip failed for: " + message, Arrays.equals(raw, decoded));
+        }
+
+        // Arbitrary binary input must survive as verbatim runs
+        byte[] binary = new byte[300];
+        for (int x = 0; x < binary.length; x++) binary[x] = (byte) (x * 31);
+        byte[] encoded = ShortTextCodec.encode(binary, 0, binary.length);
+        assertTrue(Arrays.equals(binary, ShortTextCodec.decode(encoded, 0, encoded.length)));
+    }
+
+    public void testCompressionRatioAndSpeed() {
+        byte[][] raw = new byte[CORPUS.length][];
+        byte[][] encoded = new byte[CORPUS.length][];
+        int rawBytes = 0;
+        int encodedBytes = 0;
+        for (int x = 0; x < CORPUS.length; x++) {
+            raw[x] = CORPUS[x].getBytes(UTF_8);
+            encoded[x] = ShortTextCodec.encode(raw[x], 0, raw[x].length);
+            rawBytes += raw[x].length;
+            encodedBytes += encoded[x].length;
+        }
+
+        float ratio = encodedBytes / (float) rawBytes;
+        assertTrue("Codec should shrink typical chat text", ratio < 1f);
+
+        long encodeStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (byte[] message : raw) ShortTextCodec.encode(message, 0, message.length);
+        }
+        long encodeNs = System.nanoTime() - encodeStart;
+
+        long decodeStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (byte[] message : encoded) ShortTextCodec.decode(message, 0, message.length);
+        }
+        long decodeNs = System.nanoTime() - decodeStart;
+
+        long totalMessages = (long) ITERATIONS * CORPUS.length;
+        Log.i(TAG, String.format("%d -> %d bytes (ratio %.2f). Encode %d ns/msg, decode %d ns/msg",
+                rawBytes, encodedBytes, ratio, encodeNs / totalMessages, decodeNs / totalMessages));
+    }
+}
@@ -0,0 +1,90 @@
+package pro.dbro.ble.protocol;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Microbenchmark of {@link BLEProtocol} timestamp decoding when several
+ * flows deserialize concurrently.
+ */
+public class TimestampBenchmarkTest extends TestCase {
+    private static final String TAG = "TimestampBenchmark";
+
+    private static final int DECODES_PER_THREAD = 500000;
+    private static final int THREADS            = 4;
+
+    /**
+     * Timestamps must stay wire-compatible with the little-endian
+     * ByteBuffer encoding used by protocol version 1.
+     */
+    public void testTimestampMatchesByteBufferEncoding() {
+        long[] values = new long[] { 0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, System.currentTimeMillis() };
+        byte[] packet = new byte[BLEProtocol.TIMESTAMP_LENGTH + 3];
+
+        for (long value : values) {
+            BLEProtocol.putLongLittleEndian(packet, 3, value);
+
+            ByteBuffer expected = ByteBuffer.allocate(BLEProtocol.TIMESTAMP_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            expected.putLong(value);
+            for (int x = 0; x < BLEProtocol.TIMESTAMP_LENGTH; x++) {
+                assertEquals(expected.get(x), packet[3 + x]);
+            }
+            assertEquals(value, BLEProtocol.getLongLittleEndian(packet, 3));
+        }
+    }
+
+    /**
+     * Logs decoding time on one thread against several threads at once. Timing depends
+     * on the device, so only the decoded values are asserted.
+     */
+    public void testConcurrentTimestampDecoding() throws Exception {
+        final byte[] packet = new byte[BLEProtocol.MESSAGE_RESPONSE_LENGTH];
+        BLEProtocol.putLongLittleEndian(packet, 2, System.currentTimeMillis());
+
+        // Warm up
+        decode(packet, DECODES_PER_THREAD);
+
+        long singleStart = System.nanoTime();
+        long expectedSum = decode(packet, DECODES_PER_THREAD);
+        long singleNs = System.nanoTime() - singleStart;
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Callable<Long>> workers = new ArrayList<>(THREADS);
+        for (int x = 0; x < THREADS; x++) {
+            workers.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return decode(packet, DECODES_PER_THREAD);
+                }
+            });
+        }
+
+        long concurrentStart = System.nanoTime();
+        for (Future<Long> result : executor.invokeAll(workers)) {
+            assertEquals(expectedSum, (long) result.get());
+        }
+        long concurrentNs = System.nanoTime() - concurrentStart;
+        executor.shutdown();
+
+        Log.i(TAG, String.format("%d decodes: 1 thread %d ms. %d threads concurrently %d ms",
+                DECODES_PER_THREAD, singleNs / 1000000, THREADS, concurrentNs / 1000000));
+    }
+
+    private static long decode(byte[] packet, int count) {
+        long sum = 0;
+        for (int x = 0; x < count; x++) {
+            sum += BLEProtocol.getDateFromTimestampBuffer(packet, 2).getTime();
+        }
+        return sum;
+    }
+}
@@ -1,24 +1,23 @@
 package pro.dbro.ble;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
-import java.util.HashMap;
-
 import pro.dbro.airshare.app.AirShareService;
 import pro.dbro.airshare.transport.Transport;
-import pro.dbro.ble.data.ContentProviderStore;
+import pro.dbro.ble.data.AsyncDataStore;
+import pro.dbro.ble.data.MessageCompactor;
+import pro.dbro.ble.data.RetentionPolicy;
+import pro.dbro.ble.data.SQLiteStore;
 import pro.dbro.ble.data.DataStore;
 import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.Peer;
-import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV3;
 import pro.dbro.ble.protocol.MessagePacket;
-import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
 import pro.dbro.ble.ui.Notification;
 import pro.dbro.ble.ui.activities.LogConsumer;
@@ -29,7 +28,8 @@ import timber.log.Timber;
  */
 public class ChatClient implements AirShareService.Callback,
                                    ChatPeerFlow.DataOutlet,
-                                   ChatPeerFlow.Callback {
+                                   ChatPeerFlow.Callback,
+                                   FlowWatchdog.Listener {
 
     public interface Callback {
         /** Client should not invoke remotePeer#close() */
@@ -40,24 +40,36 @@ public class ChatClient implements AirShareService.Callback,
     public static final String TAG = "ChatApp";
     public static final String AIRSHARE_SERVICE_NAME = "BLEMeshChat";
 
+    /** Times a stalled flow is restarted on the same link before the link is presumed dropped */
+    private static final int MAX_STALL_RESTARTS = 2;
+
     private Context   mContext;
     private DataStore mDataStore;
+    private AsyncDataStore mAsyncDataStore;
     private Protocol  mProtocol;
+    private LocalIdentityCache mLocalIdentityCache;
     private AirShareService.ServiceBinder mAirShareServiceBinder;
     private Callback mCallback;
+    /** Flows call back from the flow and storage threads. The client calls back on the main thread */
+    private Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-    private HashMap<pro.dbro.airshare.session.Peer, ChatPeerFlow> mFlows = new HashMap<>();
-
-    /** AirShare Peer -> BLEMeshChat Peer id */
-    private BiMap<pro.dbro.airshare.session.Peer, Integer> mConnectedPeers = HashBiMap.create();
+    /** Flows of connected AirShare peers. AirShare and UI callbacks arrive on separate threads */
+    private FlowRegistry mFlows = new FlowRegistry();
+    private FlowWatchdog mWatchdog = new FlowWatchdog(mFlows, this);
+    /** Progress of flows ended recently, by peer */
+    private FlowCheckpoint.Store mCheckpoints = new FlowCheckpoint.Store();
 
     // <editor-fold desc="Public API">
 
     public ChatClient(@NonNull Context context) {
         mContext = context;
 
-        mProtocol  = new BLEProtocol();
-        mDataStore = new ContentProviderStore(context);
+        mProtocol  = new BLEProtocolV3();
+        mDataStore = new SQLiteStore(context);
+        mAsyncDataStore = new AsyncDataStore(mDataStore);
+        mLocalIdentityCache = new LocalIdentityCache(mDataStore, mProtocol);
+
+        MessageCompactor.schedule(mDataStore, PrefsManager.getRetentionPolicy(context));
     }
 
     public void setAirShareServiceBinder(AirShareService.ServiceBinder binder) {
@@ -72,7 +84,7 @@ public class ChatClient implements AirShareService.Callback,
     // <editor-fold desc="Identity & Availability">
 
     public void makeAvailable() {
-        if (mDataStore.getPrimaryLocalPeer() == null) {
+        if (mLocalIdentityCache.getLocalPeer() == null) {
             Timber.e("No primary Identity. Cannot make client available");
             return;
         }
@@ -84,6 +96,7 @@ public class ChatClient implements AirShareService.Callback,
 
         mAirShareServiceBinder.advertiseLocalUser();
         mAirShareServiceBinder.scanForOtherUsers();
+        mWatchdog.start();
     }
 
     public void makeUnavailable() {
@@ -93,71 +106,97 @@ public class ChatClient implements AirShareService.Callback,
         }
 
         mAirShareServiceBinder.stop();
+        mWatchdog.stop();
+        mAsyncDataStore.saveMessageFilter();
     }
 
     public Peer getPrimaryLocalPeer() {
-        return mDataStore.getPrimaryLocalPeer();
+        return mLocalIdentityCache.getLocalPeer();
     }
 
     public Peer createPrimaryIdentity(String alias) {
         // TODO Test if this should be moved to background thread and async call?
-        return mDataStore.createLocalPeerWithAlias(alias, mProtocol);
+        Peer localPeer = mDataStore.createLocalPeerWithAlias(alias, mProtocol);
+        mLocalIdentityCache.invalidate();
+        return localPeer;
     }
 
     // </editor-fold desc="Identity & Availability">
 
     // <editor-fold desc="Messages">
 
+    /**
+     * Store a message from the primary identity, then queue it to connected peers
+     */
     public void sendPublicMessageFromPrimaryIdentity(String body) {
-        MessagePacket messagePacket = mProtocol.serializeMessage((OwnedIdentityPacket) getPrimaryLocalPeer().getIdentity(), body);
-        mDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket).close();
+        final MessagePacket messagePacket = mProtocol.serializeMessage(mLocalIdentityCache.getIdentity(), body);
+        mAsyncDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket, new AsyncDataStore.Callback<Message>() {
+            @Override
+            public void onResult(@Nullable Message message) {
+                if (message != null) message.close();
+                queueMessageToConnectedPeers(messagePacket);
+            }
+        });
+    }
+
+    private void queueMessageToConnectedPeers(MessagePacket messagePacket) {
         // TODO : Send to connected peers. Future peers will get message during flow
         if (mAirShareServiceBinder != null) {
 
-            for (pro.dbro.airshare.session.Peer peer : mConnectedPeers.keySet()) {
-                ChatPeerFlow flow = mFlows.get(peer);
+            for (FlowRegistry.Registration registration : mFlows.getRegistrations()) {
                 // If we're actively flowing with a peer, add the message to that flow
-                // else, send immediately
-                if (flow != null && !flow.isComplete())
-                    flow.queueMessage(messagePacket);
-                else
-                    mAirShareServiceBinder.send(messagePacket.rawPacket, peer);
+                // else, send immediately if the peer reads the message's protocol version
+                registration.flow.offerMessage(messagePacket);
             }
 
         }
     }
 
+    /**
+     * Store policy and compact messages by it now, then periodically
+     */
+    public void setRetentionPolicy(@NonNull RetentionPolicy policy) {
+        PrefsManager.setRetentionPolicy(mContext, policy);
+        MessageCompactor.schedule(mDataStore, policy);
+        MessageCompactor.compactNow(mDataStore, policy);
+    }
+
     // </editor-fold desc="Messages">
 
     public DataStore getDataStore() {
         return mDataStore;
     }
 
+    public AsyncDataStore getAsyncDataStore() {
+        return mAsyncDataStore;
+    }
+
     // </editor-fold desc="Public API">
 
     // <editor-fold desc="Private API">
 
     @Override
     public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow,
-                                       @NonNull Peer remotePeer,
-                                       @NonNull ConnectionStatus status) {
+                                       @NonNull final Peer remotePeer,
+                                       @NonNull final ConnectionStatus status) {
+
+        // A flow may identify its peer after the peer disconnects, from packets still in intake
+        if (status == ConnectionStatus.CONNECTED && !mFlows.setRemotePeerId(flow, remotePeer.getId())) {
+            Timber.d("Ignoring identity of %s from a closed flow", remotePeer.getAlias());
+            return;
+        }
 
         Timber.d("%s %s", remotePeer.getAlias(), status == ConnectionStatus.CONNECTED ? "connected" : "disconnected");
-        if (mCallback != null)
-            mCallback.onAppPeerStatusUpdated(remotePeer, status);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null)
+                    mCallback.onAppPeerStatusUpdated(remotePeer, status);
+            }
+        });
 
         if (!mAirShareServiceBinder.isActivityReceivingMessages())
             Notification.displayPeerAvailableNotification(mContext, remotePeer, status == ConnectionStatus.CONNECTED);
-
-        switch (status) {
-            case CONNECTED:
-                mConnectedPeers.put(flow.getRemoteAirSharePeer(), remotePeer.getId());
-                break;
-
-            case DISCONNECTED:
-                mConnectedPeers.remove(flow.getRemoteAirSharePeer());
-                break;
-        }
     }
 
     @Override
@@ -183,23 +222,25 @@ public class ChatClient implements AirShareService.Callback,
 
     @Override
     public void onDataRecevied(@NonNull AirShareService.ServiceBinder binder, @Nullable byte[] data, @NonNull pro.dbro.airshare.session.Peer sender, @Nullable Exception exception) {
-        ChatPeerFlow flow = mFlows.get(sender);
+        ChatPeerFlow flow = mFlows.getFlow(sender);
 
         if (flow == null) {
             Timber.w("No flow for %s", sender.getAlias());
             return;
         }
 
-        try {
-            flow.onDataReceived(data);
-        } catch (ChatPeerFlow.UnexpectedDataException e) {
-            Timber.e(e, "Error processing received data");
+        if (data == null) {
+            Timber.w(exception, "Received no data from %s", sender.getAlias());
+            return;
         }
+
+        // The flow is called back once data is decoded, verified and stored
+        PacketIntake.submit(flow, data);
     }
 
     @Override
     public void onDataSent(@NonNull AirShareService.ServiceBinder binder, @Nullable byte[] data, @NonNull pro.dbro.airshare.session.Peer recipient, @Nullable Exception exception) {
-        ChatPeerFlow flow = mFlows.get(recipient);
+        ChatPeerFlow flow = mFlows.getFlow(recipient);
 
         if (flow == null) {
             Timber.w("No flow for %s", recipient.getAlias());
@@ -216,22 +257,87 @@ public class ChatClient implements AirShareService.Callback,
     @Override
     public void onPeerStatusUpdated(@NonNull AirShareService.ServiceBinder binder, @NonNull pro.dbro.airshare.session.Peer peer, @NonNull Transport.ConnectionStatus newStatus, boolean peerIsHost) {
         if (newStatus == Transport.ConnectionStatus.CONNECTED) {
-            mConnectedPeers.put(peer, null); // We will add the BLEMeshChat peer id after identity is received
             Timber.d("Beginning flow with %s as %s", peer.getAlias(), peerIsHost ? "host" : "client");
-            mFlows.put(peer, new ChatPeerFlow(mDataStore, mProtocol, this, peer, peerIsHost, this));
+            // Register before the flow sends, so its first acknowledgement finds it
+            ChatPeerFlow flow = createFlow(peer, peerIsHost);
+            ChatPeerFlow previous = mFlows.register(peer, flow);
+            if (previous != null) {
+                // Reconnected without a disconnect event
+                previous.close();
+                if (previous.getCheckpoint() != null) mCheckpoints.put(peer, previous.getCheckpoint());
+            }
+            Timber.d("%d flows registered", mFlows.size());
+
+            FlowCheckpoint checkpoint = mCheckpoints.take(peer);
+            if (checkpoint != null) flow.resumeFrom(checkpoint);
+            flow.start();
         }
         else if (newStatus == Transport.ConnectionStatus.DISCONNECTED) {
-
-            if (!mConnectedPeers.containsKey(peer) || mConnectedPeers.get(peer) == null) {
-                if (mConnectedPeers.containsKey(peer)) mConnectedPeers.remove(peer);
+            FlowRegistry.Registration registration = mFlows.unregister(peer);
+            if (registration == null) {
                 Timber.w("Cannot report peer %s disconnected, no connection record", peer.getAlias());
                 return;
             }
+            endFlow(registration);
+        }
+    }
+
+    /**
+     * Restart a flow stalled mid-sync on the same link, resuming from its checkpoint, as the
+     * link may still be up, e.g: if a frame was lost. After {@link #MAX_STALL_RESTARTS} the link
+     * is presumed dropped without a disconnect event, and the flow is aborted. A later
+     * connection with the peer resumes from its checkpoint
+     */
+    @Override
+    public void onFlowStalled(@NonNull FlowRegistry.Registration registration) {
+        if (registration.restarts >= MAX_STALL_RESTARTS) {
+            if (!mFlows.unregister(registration)) return;
+
+            Timber.w("Aborting stalled flow with %s", registration.airSharePeer.getAlias());
+            endFlow(registration);
+            return;
+        }
 
-            int blePeerId = mConnectedPeers.get(peer);
-            Peer remotePeer = mDataStore.getPeerById(blePeerId);
-            onAppPeerStatusUpdated(mFlows.get(peer), remotePeer, ConnectionStatus.DISCONNECTED);
+        ChatPeerFlow flow = createFlow(registration.airSharePeer, registration.flow.isPeerHost());
+        if (mFlows.replace(registration, flow) == null) return;
+
+        Timber.w("Restarting stalled flow with %s", registration.airSharePeer.getAlias());
+        registration.flow.close();
+        mAsyncDataStore.saveMessageFilter();
+
+        FlowCheckpoint checkpoint = registration.flow.getCheckpoint();
+        if (checkpoint != null) flow.resumeFrom(checkpoint);
+        flow.start();
+    }
+
+    private ChatPeerFlow createFlow(@NonNull pro.dbro.airshare.session.Peer peer, boolean peerIsHost) {
+        return new ChatPeerFlow(mAsyncDataStore, mProtocol, mLocalIdentityCache, this, peer, peerIsHost, this);
+    }
+
+    /**
+     * Close an unregistered flow, checkpoint its progress and report its peer disconnected
+     */
+    private void endFlow(FlowRegistry.Registration registration) {
+        final ChatPeerFlow flow = registration.flow;
+        flow.close();
+        mAsyncDataStore.saveMessageFilter();
+
+        FlowCheckpoint checkpoint = flow.getCheckpoint();
+        if (checkpoint != null) mCheckpoints.put(registration.airSharePeer, checkpoint);
+
+        Integer blePeerId = registration.getRemotePeerId();
+        if (blePeerId == null) {
+            Timber.w("Cannot report peer %s disconnected, no identity received", registration.airSharePeer.getAlias());
+            return;
         }
+
+        mAsyncDataStore.getPeerById(blePeerId, new AsyncDataStore.Callback<Peer>() {
+            @Override
+            public void onResult(@Nullable Peer remotePeer) {
+                if (remotePeer != null)
+                    onAppPeerStatusUpdated(flow, remotePeer, ConnectionStatus.DISCONNECTED);
+            }
+        });
     }
 
     @Override
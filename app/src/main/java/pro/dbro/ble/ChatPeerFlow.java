@@ -1,22 +1,36 @@
 package pro.dbro.ble;
 
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import pro.dbro.airshare.session.Peer;
+import pro.dbro.ble.data.AsyncDataStore;
 import pro.dbro.ble.data.DataStore;
 import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.protocol.AggregatePacket;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BLEProtocolV2;
+import pro.dbro.ble.protocol.BLEProtocolV3;
 import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
 import pro.dbro.ble.protocol.MessagePacket;
 import pro.dbro.ble.protocol.NoDataPacket;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
+import pro.dbro.ble.protocol.ProtocolV2;
+import pro.dbro.ble.protocol.SketchPacket;
 import timber.log.Timber;
 
 /**
@@ -30,6 +44,35 @@ import timber.log.Timber;
  * 2) Client peer waits for host identity
  * 3) Client peer writes outgoing messages
  * 4) Client peer waits for incoming messages
+ *
+ * Each peer ends its identity phase with a NoData packet whose version byte is the highest
+ * protocol version it reads. Messages are only sent to the remote peer in a version it reads.
+ * When both peers read version 2, queued identities and messages are packed into
+ * {@link AggregatePacket} frames so a backlog goes out in a few large sends.
+ *
+ * When both peers read version 2 they also reconcile message sets. Each peer sends a
+ * {@link SketchPacket} of every message it holds at the end of the last phase it writes before
+ * the remote peer's message phase: the host at the end of its identity phase, the client after
+ * its messages. A peer holding the remote sketch sends only the messages the remote peer lacks,
+ * falling back to its delivery records if the difference is too large to decode.
+ *
+ * When both peers read version 3, steps 3 and 4 run at once in {@link State#DUPLEX_MSGS}.
+ * Peers only learn each other's version from the identity NoData packets, so identities
+ * are still exchanged in turn. The client leads its messages with its sketch, and the host
+ * begins its messages once that sketch, or the client's first message, arrives. Each peer ends
+ * its messages with NoData, and the flow completes once both have.
+ *
+ * Up to a window of frames may be awaiting acknowledgement at once. Acknowledgements are matched
+ * to frames by content, and each phase's NoData is only sent once every frame is acknowledged.
+ *
+ * Public methods are synchronized on the flow, so each flow may be called from any thread.
+ * Received packets are delivered on the shared {@link FlowThread}, as selecting outgoing items
+ * reads the store synchronously.
+ * Once {@link #close()}d, a flow ignores further events. A flow that makes no progress within
+ * its state's timeout reports itself {@link #isStalled(long)}, and should be closed.
+ *
+ * A flow begun shortly after another with the same peer resumes from its
+ * {@link FlowCheckpoint}, reusing the sketches the peers exchanged rather than sending them again.
  * Created by davidbrodsky on 4/16/15.
  */
 public class ChatPeerFlow {
@@ -53,6 +96,7 @@ public class ChatPeerFlow {
                                            @NonNull pro.dbro.ble.data.model.Peer peer,
                                            @NonNull ConnectionStatus status);
 
+        /** Called from a storage thread */
         public void onMessageSent(@NonNull ChatPeerFlow flow,
                                   @NonNull Message message,
                                   @NonNull pro.dbro.ble.data.model.Peer recipient);
@@ -63,64 +107,326 @@ public class ChatPeerFlow {
 
     }
 
+    /** Frames outstanding at once unless otherwise specified. A window of 1 is stop-and-wait */
+    public static final int DEFAULT_SEND_WINDOW = 4;
+
+    /** Sketch cells. Differences of up to about half as many messages decode reliably */
+    private static final int SKETCH_CELLS = 120;
+
+    /** A flow making no progress for this long in an identity or message state is stalled */
+    static final long IDENTITY_STATE_TIMEOUT_MS = 15 * 1000;
+    static final long MESSAGE_STATE_TIMEOUT_MS  = 30 * 1000;
+
     private static final int MESSAGES_PER_RESPONSE = 50;
     private static final int IDENTITIES_PER_RESPONSE = 10;
-    public static enum State { CLIENT_WRITE_ID, HOST_WRITE_ID, CLIENT_WRITE_MSGS, HOST_WRITE_MSGS }
+
+    /** Re-encodes local messages for peers that read only version 1 */
+    private static final BLEProtocol sLegacyProtocol = new BLEProtocol();
+    public static enum State { CLIENT_WRITE_ID, HOST_WRITE_ID, CLIENT_WRITE_MSGS, HOST_WRITE_MSGS, DUPLEX_MSGS }
 
     private State mState = State.CLIENT_WRITE_ID;
+    private LocalIdentityCache mLocalIdentityCache;
     private OwnedIdentityPacket mLocalIdentity;
     private Peer mRemoteAirSharePeer;
     private Protocol mProtocol;
     private DataStore mDataStore;
+    private AsyncDataStore mAsyncDataStore;
     private DataOutlet mOutlet;
     private IdentityPacket mRemoteIdentity;
     private Callback mCallback;
-    private ArrayDeque<MessagePacket> mMessageOutbox = new ArrayDeque<>();
-    private ArrayDeque<IdentityPacket> mIdentityOutbox = new ArrayDeque<>();
+    /** Raw packets not yet sent */
+    private ArrayDeque<byte[]> mMessageOutbox = new ArrayDeque<>();
+    private ArrayDeque<byte[]> mIdentityOutbox = new ArrayDeque<>();
+    /** Frames sent but not yet acknowledged, in send order */
+    private ArrayList<byte[]> mInFlight = new ArrayList<>();
+    private int mSendWindow;
+    /** Deliveries to the remote peer not yet recorded. See {@link #flushDeliveryReceipts()} */
+    private ArrayList<MessagePacket> mPendingMessageReceipts = new ArrayList<>();
+    private ArrayList<IdentityPacket> mPendingIdentityReceipts = new ArrayList<>();
+    /** The last receipts submitted for recording. Writes complete in submission order */
+    private Future<?> mReceiptWrite;
 
     private boolean mPeerIsHost;
     private boolean mIsComplete = false;
     private boolean mFetchedMessages = false;
     private boolean mFetchedIdentities = false;
     private boolean mGotRemotePeerIdentity = false;
-
-    public ChatPeerFlow(DataStore dataStore,
+    private boolean mNoDataInFlight = false;
+    private boolean mSentSketch = false;
+    private boolean mIsClosed = false;
+    /** In {@link State#DUPLEX_MSGS}, whether each peer's NoData has ended its messages */
+    private boolean mLocalMsgsDone = false;
+    private boolean mRemoteMsgsDone = false;
+    /** In {@link State#DUPLEX_MSGS}, whether the client has sent anything but its sketch */
+    private boolean mRemoteBeganMsgs = false;
+    private long mLastProgressMillis;
+
+    /** Public key of the remote peer's own identity, the first it sends */
+    private byte[] mRemotePeerPublicKey;
+    /** The checkpoint of the previous flow with the remote peer, if resuming */
+    private FlowCheckpoint mResumeCheckpoint;
+    /** Set when closed, if the remote peer identified itself */
+    private FlowCheckpoint mCheckpoint;
+    private boolean mSketchDelivered = false;
+    /** Stored messages re-encoded in version 1 for the remote peer, by hex signature of the re-encoding */
+    private HashMap<String, MessagePacket> mLegacyEncodings = new HashMap<>();
+    /** Sketch keys of messages selected for the remote peer as missing from its sketch */
+    private HashSet<Long> mRemoteLacks = new HashSet<>();
+
+    /** The remote peer's message set sketch, if received */
+    private InvertibleBloomLookupTable mRemoteSketch;
+
+    /** Protocol version advertised by the remote peer's identity NoData. Legacy peers advertise 1 */
+    private byte mRemoteProtocolVersion = BLEProtocol.VERSION;
+
+    public ChatPeerFlow(AsyncDataStore dataStore,
                         Protocol protocol,
+                        LocalIdentityCache localIdentityCache,
                         DataOutlet outlet,
                         Peer remotePeer,
                         boolean peerIsHost,
                         Callback callback) {
 
+        this(dataStore, protocol, localIdentityCache, outlet, remotePeer, peerIsHost, callback, DEFAULT_SEND_WINDOW);
+    }
+
+    /**
+     * @param sendWindow the maximum number of frames awaiting acknowledgement at once
+     */
+    public ChatPeerFlow(AsyncDataStore dataStore,
+                        Protocol protocol,
+                        LocalIdentityCache localIdentityCache,
+                        DataOutlet outlet,
+                        Peer remotePeer,
+                        boolean peerIsHost,
+                        Callback callback,
+                        int sendWindow) {
+
+        if (sendWindow < 1) throw new IllegalArgumentException("sendWindow must be positive");
+
+        mSendWindow = sendWindow;
         mRemoteAirSharePeer = remotePeer;
         mOutlet = outlet;
         mProtocol = protocol;
-        mDataStore = dataStore;
-        mLocalIdentity = (OwnedIdentityPacket) dataStore.getPrimaryLocalPeer().getIdentity();
+        mAsyncDataStore = dataStore;
+        mDataStore = dataStore.getDataStore();
+        mLocalIdentityCache = localIdentityCache;
+        mLocalIdentity = localIdentityCache.getIdentity();
         mPeerIsHost = peerIsHost;
         mCallback = callback;
+    }
 
+    /**
+     * Begin the flow. Call once the flow is registered to receive events for its peer
+     */
+    public synchronized void start() {
+        mLastProgressMillis = SystemClock.elapsedRealtime();
         // Client initiates flow
-        if (mPeerIsHost)
+        if (mPeerIsHost && !mIsClosed)
             sendIdentity();
     }
 
-    public boolean isComplete() {
+    /**
+     * Resume from checkpoint, if it is with the same remote peer. Call before {@link #start()}
+     */
+    synchronized void resumeFrom(@NonNull FlowCheckpoint checkpoint) {
+        mResumeCheckpoint = checkpoint;
+        // Awaited before outgoing items are selected, so none the previous flow delivered are sent again
+        if (mReceiptWrite == null) mReceiptWrite = checkpoint.receiptWrite;
+    }
+
+    /**
+     * @return the flow's progress with its remote peer, once closed
+     */
+    @Nullable
+    synchronized FlowCheckpoint getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * @return whether the flow has made no progress within its current state's timeout.
+     * Complete flows only exchange live messages, and never stall
+     */
+    public synchronized boolean isStalled(long nowMillis) {
+        if (mIsComplete || mIsClosed) return false;
+
+        long timeout = (mState == State.CLIENT_WRITE_ID || mState == State.HOST_WRITE_ID) ?
+                IDENTITY_STATE_TIMEOUT_MS : MESSAGE_STATE_TIMEOUT_MS;
+        return nowMillis - mLastProgressMillis > timeout;
+    }
+
+    public synchronized boolean isComplete() {
         return mIsComplete;
     }
 
+    /**
+     * Submit buffered deliveries to the remote peer for recording, in one commit per packet
+     * type. Called before outgoing items are selected, when the flow completes, and should be
+     * called when the remote peer disconnects. Only outgoing selection waits for the commits.
+     *
+     * Receipts buffered when the process dies are lost. Their packets are then considered
+     * undelivered and are sent again at the next encounter, where the recipient discards them
+     * as already stored. Delivery is therefore at least once, as it is for an unacknowledged send.
+     */
+    public synchronized void flushDeliveryReceipts() {
+        if (mRemoteIdentity == null) return;
+
+        if (mPendingIdentityReceipts.size() > 0) {
+            mReceiptWrite = mAsyncDataStore.markIdentitiesDeliveredToPeer(mPendingIdentityReceipts, mRemoteIdentity);
+            mPendingIdentityReceipts.clear();
+        }
+        if (mPendingMessageReceipts.size() > 0) {
+            mReceiptWrite = mAsyncDataStore.markMessagesDeliveredToPeer(mPendingMessageReceipts, mRemoteIdentity);
+            mPendingMessageReceipts.clear();
+        }
+    }
+
+    /**
+     * Flush buffered deliveries and wait until every receipt submitted is recorded, so that
+     * outgoing selection observes them
+     */
+    private void recordDeliveryReceipts() {
+        flushDeliveryReceipts();
+        if (mReceiptWrite != null) {
+            // Packets whose receipts went unrecorded remain undelivered, and may be selected again.
+            // As with a lost receipt, the recipient discards them as already stored
+            if (!AsyncDataStore.await(mReceiptWrite))
+                Timber.w("Delivery receipts to %s were not recorded", mRemoteAirSharePeer.getAlias());
+            mReceiptWrite = null;
+        }
+    }
+
     public Peer getRemoteAirSharePeer() {
         return mRemoteAirSharePeer;
     }
 
-    public void queueMessage(MessagePacket message) {
-        mMessageOutbox.add(message);
+    /**
+     * @return whether the remote peer is host of the link, and the local peer its client
+     */
+    boolean isPeerHost() {
+        return mPeerIsHost;
+    }
+
+    Protocol getProtocol() {
+        return mProtocol;
+    }
+
+    DataStore getDataStore() {
+        return mDataStore;
+    }
+
+    AsyncDataStore getAsyncDataStore() {
+        return mAsyncDataStore;
+    }
+
+    /**
+     * @return the highest protocol version both peers read. Until the remote peer's
+     * identity NoData is received this is conservatively the legacy version.
+     */
+    public byte getProtocolVersion() {
+        return (byte) Math.min(mProtocol.getVersion(), mRemoteProtocolVersion);
+    }
+
+    /**
+     * @return the protocol's version 2 packets, or null if either peer doesn't read them
+     */
+    @Nullable
+    private ProtocolV2 getProtocolV2() {
+        if (getProtocolVersion() < BLEProtocolV2.VERSION || !(mProtocol instanceof ProtocolV2))
+            return null;
+        return (ProtocolV2) mProtocol;
+    }
+
+    /**
+     * @return whether packet is written in a protocol version the remote peer reads
+     */
+    public synchronized boolean canSend(byte[] packet) {
+        return mProtocol.getPacketVersion(packet) <= getProtocolVersion();
+    }
+
+    public synchronized void queueMessage(MessagePacket message) {
+        if (!mIsClosed) mMessageOutbox.add(message.rawPacket);
+    }
+
+    /**
+     * Deliver a message authored after the flow began. Until the flow completes it is queued
+     * to the flow's outbox, then it is sent immediately in a version the remote peer reads
+     */
+    public synchronized void offerMessage(MessagePacket message) {
+        if (mIsClosed) return;
+
+        if (!mIsComplete) {
+            queueMessage(message);
+        } else {
+            byte[] packet = getSendableMessage(message.rawPacket);
+            if (packet != null) mOutlet.sendData(mRemoteAirSharePeer, packet);
+        }
+    }
+
+    /**
+     * @return message in a protocol version the remote peer reads, or null if there is none.
+     * Messages the local identity wrote in a later version are re-encoded in version 1, so legacy
+     * peers still receive them. Signatures are deterministic, so each message is always
+     * re-encoded to the same packet
+     */
+    @Nullable
+    private byte[] getSendableMessage(byte[] packet) {
+        if (canSend(packet)) return packet;
+
+        MessagePacket message = mProtocol.deserializeMessage(packet);
+        if (!Arrays.equals(message.sender.publicKey, mLocalIdentity.publicKey)) return null;
+
+        MessagePacket legacyMessage = sLegacyProtocol.serializeMessage(mLocalIdentity, message.getBody(), message.getAuthoredDate());
+        if (legacyMessage == null) return null;
+        mLegacyEncodings.put(DataUtil.bytesToHex(legacyMessage.signature), message);
+        return legacyMessage.rawPacket;
+    }
+
+    /**
+     * Record buffered deliveries, checkpoint and release the flow's buffers. Called when the
+     * remote peer disconnects or the flow stalls. Events arriving afterwards, e.g: packets still
+     * in {@link PacketIntake}, are ignored
+     */
+    public synchronized void close() {
+        if (mIsClosed) return;
+
+        flushDeliveryReceipts();
+        mIsClosed = true;
+
+        if (mRemotePeerPublicKey != null) {
+            // If we skipped our sketch, the remote peer resumed with the one it held
+            boolean sketchDelivered = mSketchDelivered || (mResumeCheckpoint != null && mResumeCheckpoint.sketchDelivered);
+            mCheckpoint = new FlowCheckpoint(mRemotePeerPublicKey, mRemoteSketch, sketchDelivered, mReceiptWrite);
+        }
+        releaseBuffers();
+        mLegacyEncodings.clear();
+        mRemoteSketch = null;
+        mResumeCheckpoint = null;
+    }
+
+    public synchronized boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * Outboxes serve only the flow's phases, not live messages after it completes. The remote
+     * sketch is kept for the checkpoint
+     */
+    private void releaseBuffers() {
+        mIdentityOutbox = new ArrayDeque<>();
+        mMessageOutbox  = new ArrayDeque<>();
+        mInFlight.clear();
+        mRemoteLacks = new HashSet<>();
     }
 
     /**
      * Called when data is acknowledged as sent to the peer passed to this instance's constructor
      * @return whether this flow is complete and should not receive further events.
      */
-    public boolean onDataSent(byte[] data) throws UnexpectedDataException {
+    public synchronized boolean onDataSent(byte[] data) throws UnexpectedDataException {
+        if (mIsClosed) return true;
+        mLastProgressMillis = SystemClock.elapsedRealtime();
+
         // When data is ack'd we should be in a local-peer writing state
         if ((!mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete))) ||
             (mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete)))) {
@@ -142,22 +448,31 @@ public class ChatPeerFlow {
                 switch(type) {
                     case IdentityPacket.TYPE:
 
-                        IdentityPacket sentIdPkt = mProtocol.deserializeIdentity(data);
-                        mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(sentIdPkt);
-                        // We can only report the identity sent once we know the peer's identity
-                        // We also always want to send our own identity first
-                        if (mRemoteIdentity != null) {
-                            Timber.d("Marked identity %s delivered to %s", sentIdPkt.alias, mRemoteIdentity.alias);
-                            mDataStore.markIdentityDeliveredToPeer(sentIdPkt, mRemoteIdentity);
+                        acknowledge(data);
+                        handleSentIdentity(data);
+                        sendAsAppropriate();
+                        break;
+
+                    case AggregatePacket.TYPE:
+
+                        acknowledge(data);
+                        AggregatePacket sentIdAggregate = deserializeAggregate(data, IdentityPacket.TYPE);
+                        for (int x = 0; x < sentIdAggregate.getItemCount(); x++) {
+                            handleSentIdentity(sentIdAggregate.getItem(x));
                         }
+                        sendAsAppropriate();
+                        break;
 
-                        mIdentityOutbox.poll();
+                    case SketchPacket.TYPE:
 
+                        acknowledge(data);
+                        mSketchDelivered = true;
                         sendAsAppropriate();
                         break;
 
                     case NoDataPacket.TYPE:
 
+                        mNoDataInFlight = false;
                         incrementStateAndSendAsAppropriate();
                         break;
 
@@ -169,24 +484,43 @@ public class ChatPeerFlow {
 
             case HOST_WRITE_MSGS:
             case CLIENT_WRITE_MSGS:
+            case DUPLEX_MSGS:
 
                 switch(type) {
                     case MessagePacket.TYPE:
 
-                        MessagePacket msgPkt = mProtocol.deserializeMessageWithIdentity(data, mRemoteIdentity);
-                        Message msg = mDataStore.createOrUpdateMessageWithProtocolMessage(msgPkt);
-                        // Mark incoming messages as delivered to sender
-                        mDataStore.markMessageDeliveredToPeer(msgPkt, mRemoteIdentity);
-                        mCallback.onMessageSent(this, msg, mDataStore.getPeerByPubKey(mRemoteIdentity.publicKey));
+                        acknowledge(data);
+                        handleSentMessage(mProtocol.deserializeVerifiedMessage(data));
+                        sendAsAppropriate();
+                        break;
+
+                    case AggregatePacket.TYPE:
 
-                        mMessageOutbox.poll();
+                        acknowledge(data);
+                        AggregatePacket sentMsgAggregate = deserializeAggregate(data, MessagePacket.TYPE);
+                        // Items were selected from the store, whoever wrote them, so aren't verified again
+                        for (byte[] sentMsg : sentMsgAggregate.getItems()) {
+                            handleSentMessage(mProtocol.deserializeVerifiedMessage(sentMsg));
+                        }
+                        sendAsAppropriate();
+                        break;
+
+                    case SketchPacket.TYPE:
 
+                        acknowledge(data);
+                        mSketchDelivered = true;
                         sendAsAppropriate();
                         break;
 
                     case NoDataPacket.TYPE:
 
-                        incrementStateAndSendAsAppropriate();
+                        mNoDataInFlight = false;
+                        if (mState == State.DUPLEX_MSGS) {
+                            mLocalMsgsDone = true;
+                            completeIfBothMsgsDone();
+                        } else {
+                            incrementStateAndSendAsAppropriate();
+                        }
                         break;
 
                     default:
@@ -203,90 +537,99 @@ public class ChatPeerFlow {
     }
 
     /**
-     * Called when data is received from the peer passed to this instance's constructor
+     * Called with data received from the peer passed to this instance's constructor, once
+     * processed by {@link PacketIntake}
      * @return whether this flow is complete and should not receive further events.
      */
-    public boolean onDataReceived(byte[] data) throws UnexpectedDataException {
+    synchronized boolean onPacketReceived(ReceivedPacket packet) throws UnexpectedDataException {
+        if (mIsClosed) return true;
+        mLastProgressMillis = SystemClock.elapsedRealtime();
+
         // When data comes in we should be in a remote-peer writing state
         if ((!mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete))) ||
             (mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete)))) {
 
-            throw new IllegalStateException(String.format("onDataReceived invalid state %s for local as %s", mState, mPeerIsHost ? "client" : "host"));
+            throw new IllegalStateException(String.format("onPacketReceived invalid state %s for local as %s", mState, mPeerIsHost ? "client" : "host"));
 
         }
 
-        //Timber.d("Received data %s", DataUtil.bytesToHex(data));
-
-        byte type = mProtocol.getPacketType(data);
-
         switch (mState) {
             case HOST_WRITE_ID:
             case CLIENT_WRITE_ID:
 
-                switch(type) {
+                switch(packet.type) {
                     case IdentityPacket.TYPE:
+                    case AggregatePacket.TYPE:
 
-                        mRemoteIdentity = mProtocol.deserializeIdentity(data);
-                        Timber.d("Got remote identity for %s", mRemoteIdentity.alias);
-                        pro.dbro.ble.data.model.Peer remotePeer = mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(mRemoteIdentity);
-                        // Only treat first identity as that of connected peer
-                        if (!mGotRemotePeerIdentity) {
-                            mCallback.onAppPeerStatusUpdated(this, remotePeer, Callback.ConnectionStatus.CONNECTED);
-                            mGotRemotePeerIdentity = true;
+                        assertItemType(packet, IdentityPacket.TYPE);
+                        for (int x = 0; x < packet.identities.size(); x++) {
+                            handleReceivedIdentity(packet.identities.get(x), packet.identityPeers.get(x));
                         }
                         break;
 
+                    case SketchPacket.TYPE:
+
+                        receiveSketch(packet.sketch);
+                        break;
+
                     case NoDataPacket.TYPE:
 
-                        Timber.d("Received identity NoData");
+                        mRemoteProtocolVersion = packet.version;
+                        Timber.d("Received identity NoData. Remote peer reads protocol version %d", mRemoteProtocolVersion);
                         incrementStateAndSendAsAppropriate();
                         break;
 
                     default:
 
-                        throw new UnexpectedDataException(String.format("Expected IdentityPacket (type %d). Got type %d", IdentityPacket.TYPE, type));
+                        throw new UnexpectedDataException(String.format("Expected IdentityPacket (type %d). Got type %d", IdentityPacket.TYPE, packet.type));
                 }
 
                 break;
 
             case HOST_WRITE_MSGS:
             case CLIENT_WRITE_MSGS:
+            case DUPLEX_MSGS:
 
-                switch (type) {
+                switch (packet.type) {
                     case MessagePacket.TYPE:
+                    case AggregatePacket.TYPE:
 
-                        MessagePacket msgPkt = mProtocol.deserializeMessageWithIdentity(data, mRemoteIdentity);
-                        Timber.d("Received msg %s", msgPkt.body);
-
-                        // Mark incoming messages as delivered to sender
-
-                        boolean isNewMessage = true;
-                        Message existingMessage = mDataStore.getMessageBySignature(msgPkt.signature);
-                        if (existingMessage != null) {
-                            isNewMessage = false;
-                            existingMessage.close();
+                        assertItemType(packet, MessagePacket.TYPE);
+                        for (MessagePacket storedMessage : packet.storedMessages) {
+                            bufferDeliveryReceipt(storedMessage);
                         }
+                        for (int x = 0; x < packet.messages.size(); x++) {
+                            handleReceivedMessage(packet.messages.get(x), packet.newMessages.get(x), packet.sender);
+                        }
+                        break;
 
-                        // TODO : Allow updating a message?
-                        Message msg = mDataStore.createOrUpdateMessageWithProtocolMessage(msgPkt);
-                        mDataStore.markMessageDeliveredToPeer(msgPkt, mRemoteIdentity);
-
-                        if (isNewMessage)
-                            mCallback.onMessageReceived(this, msg, mDataStore.getPeerByPubKey(mRemoteIdentity.publicKey));
+                    case SketchPacket.TYPE:
 
+                        receiveSketch(packet.sketch);
                         break;
 
                     case NoDataPacket.TYPE:
 
                         Timber.d("Received msg NoData");
-                        incrementStateAndSendAsAppropriate();
+                        if (mState == State.DUPLEX_MSGS) {
+                            mRemoteMsgsDone = true;
+                            completeIfBothMsgsDone();
+                        } else {
+                            incrementStateAndSendAsAppropriate();
+                        }
                         break;
 
                     default:
 
-                        throw new UnexpectedDataException(String.format("Expected MessagePacket (type %d). Got type %d", MessagePacket.TYPE, type));
+                        throw new UnexpectedDataException(String.format("Expected MessagePacket (type %d). Got type %d", MessagePacket.TYPE, packet.type));
 
                 }
+
+                if (mState == State.DUPLEX_MSGS) {
+                    // The client leads with its sketch. Anything else means none is coming
+                    if (packet.type != SketchPacket.TYPE) mRemoteBeganMsgs = true;
+                    sendAsAppropriate();
+                }
                 break;
 
             default:
@@ -297,46 +640,317 @@ public class ChatPeerFlow {
 
     private void sendIdentity() {
         if (!mFetchedIdentities) {
+            recordDeliveryReceipts();
 
             // If we're the client, we're initiating the identity flow, and we won't have the remote identity yet
-            mIdentityOutbox.addAll(getIdentitiesForIdentity(mRemoteIdentity == null ? null : mRemoteIdentity.publicKey,
-                    IDENTITIES_PER_RESPONSE));
+            for (IdentityPacket identity : getIdentitiesForIdentity(mRemoteIdentity == null ? null : mRemoteIdentity.publicKey,
+                    IDENTITIES_PER_RESPONSE)) {
+                mIdentityOutbox.add(identity.rawPacket);
+            }
             mFetchedIdentities = true;
         }
 
-        Timber.d("Send identity %s", mIdentityOutbox.size() == 0 ? "NoData" : "");
-        mOutlet.sendData(mRemoteAirSharePeer,
-                         mIdentityOutbox.size() == 0 ?
-                            mProtocol.serializeNoDataPacket(mLocalIdentity).rawPacket :
-                            mIdentityOutbox.peek().rawPacket);
+        sendFromOutbox(IdentityPacket.TYPE, mIdentityOutbox);
     }
 
     private void sendMessage() {
         if (!mFetchedMessages) {
-            mMessageOutbox.addAll(getMessagesForIdentity(mRemoteIdentity.publicKey, MESSAGES_PER_RESPONSE));
+            // In duplex, the client's sketch leads its messages so the host can begin its own
+            if (mState == State.DUPLEX_MSGS && shouldSendSketch()) sendSketch();
+
+            // Messages just received from the remote peer must not be selected to send back
+            recordDeliveryReceipts();
+            for (MessagePacket message : getMessagesForIdentity(mRemoteIdentity.publicKey, MESSAGES_PER_RESPONSE)) {
+                mMessageOutbox.add(message.rawPacket);
+            }
             mFetchedMessages = true;
         }
 
-        Timber.d("Send message %s", mMessageOutbox.size() == 0 ? "NoData" : "");
-        mOutlet.sendData(mRemoteAirSharePeer,
-                         mMessageOutbox.size() == 0 ?
-                            mProtocol.serializeNoDataPacket(mLocalIdentity).rawPacket :
-                            mMessageOutbox.peek().rawPacket);
+        // Messages written in a version the remote peer can't read remain undelivered,
+        // unless the local identity wrote them
+        ArrayDeque<byte[]> sendable = new ArrayDeque<>(mMessageOutbox.size());
+        for (byte[] packet : mMessageOutbox) {
+            byte[] sendablePacket = getSendableMessage(packet);
+            if (sendablePacket != null) sendable.add(sendablePacket);
+        }
+        mMessageOutbox = sendable;
+
+        sendFromOutbox(MessagePacket.TYPE, mMessageOutbox);
+    }
+
+    /**
+     * Send frames from the head of outbox until the send window is full. Once outbox is empty
+     * and every frame is acknowledged, send NoData to end the current phase.
+     */
+    private void sendFromOutbox(byte itemType, ArrayDeque<byte[]> outbox) {
+        while (mInFlight.size() < mSendWindow && outbox.size() > 0) {
+            byte[] frame;
+            int itemCount = getFrameItemCount(outbox);
+            if (itemCount == 1) {
+                frame = outbox.poll();
+            } else {
+                List<byte[]> items = new ArrayList<>(itemCount);
+                for (int x = 0; x < itemCount; x++) {
+                    items.add(outbox.poll());
+                }
+                Timber.d("Framing %d queued packets in aggregate", itemCount);
+                frame = getProtocolV2().serializeAggregate(itemType, items).rawPacket;
+            }
+
+            Timber.d("Send frame of type %d. %d in flight", itemType, mInFlight.size() + 1);
+            mInFlight.add(frame);
+            mOutlet.sendData(mRemoteAirSharePeer, frame);
+        }
+
+        if (outbox.size() == 0 && mInFlight.size() == 0 && shouldSendSketch()) {
+            sendSketch();
+            return;
+        }
+
+        if (outbox.size() == 0 && mInFlight.size() == 0 && !mNoDataInFlight) {
+            Timber.d("Send NoData");
+            mNoDataInFlight = true;
+            mOutlet.sendData(mRemoteAirSharePeer, mLocalIdentityCache.getNoDataPacket().rawPacket);
+        }
+    }
+
+    private void sendSketch() {
+        mSentSketch = true;
+        byte[] sketch = getProtocolV2().serializeSketch(mLocalIdentity,
+                mDataStore.getMessageSketch(SKETCH_CELLS, getProtocolVersion())).rawPacket;
+        Timber.d("Send sketch of %d bytes", sketch.length);
+        mInFlight.add(sketch);
+        mOutlet.sendData(mRemoteAirSharePeer, sketch);
+    }
+
+    /**
+     * @return whether the local peer should send its sketch in the current phase.
+     * That is the last phase it writes before the remote peer writes messages, or for
+     * the client, the duplex message phase
+     */
+    private boolean shouldSendSketch() {
+        if (mSentSketch || getProtocolV2() == null) return false;
+
+        // The remote peer resumes with the sketch it received last flow
+        if (mResumeCheckpoint != null && mResumeCheckpoint.sketchDelivered) return false;
+
+        // mPeerIsHost indicates the remote peer is host, and we are client
+        return mPeerIsHost ? (mState == State.CLIENT_WRITE_MSGS || mState == State.DUPLEX_MSGS) : mState == State.HOST_WRITE_ID;
+    }
+
+    private void receiveSketch(SketchPacket sketchPkt) {
+        mRemoteSketch = sketchPkt.getSketch();
+        Timber.d("Received sketch of %d cells", mRemoteSketch.getCellCount());
+    }
+
+    /**
+     * @return the messages held locally but missing from {@link #mRemoteSketch},
+     * or null if the difference is too large to decode
+     */
+    @Nullable
+    private List<MessagePacket> getMessagesMissingFromRemoteSketch(int maxMessages) {
+        // The local sketch also holds tombstones, so the remote peer doesn't send back messages we've deleted
+        InvertibleBloomLookupTable difference = mDataStore.getMessageSketch(mRemoteSketch.getCellCount(), getProtocolVersion());
+        difference.subtract(mRemoteSketch);
+
+        InvertibleBloomLookupTable.Difference decoded = difference.decode();
+        if (decoded == null) return null;
+
+        Timber.d("Reconciled message sets. Remote peer lacks %d, we lack %d", decoded.localOnly.size(), decoded.remoteOnly.size());
+        List<MessagePacket> missing = new ArrayList<>(decoded.localOnly.size());
+        for (Long key : decoded.localOnly) {
+            if (missing.size() == maxMessages) break;
+
+            // Tombstones have no message to send
+            Message message = mDataStore.getMessageBySketchKey(key);
+            if (message == null) continue;
+
+            missing.add(message.getProtocolMessage(mDataStore));
+            mRemoteLacks.add(key);
+            message.close();
+        }
+        return missing;
+    }
+
+    /**
+     * @return 1 if the remote peer can't read aggregate frames. Otherwise the number of
+     * packets from the head of outbox that fit in one aggregate frame
+     */
+    private int getFrameItemCount(ArrayDeque<byte[]> outbox) {
+        if (outbox.size() == 1 || getProtocolV2() == null)
+            return 1;
+
+        int itemBytes = 0;
+        int itemCount = 0;
+        for (byte[] item : outbox) {
+            int nextItemBytes = itemBytes + item.length;
+            if (itemCount == BLEProtocolV2.MAX_AGGREGATE_ITEMS ||
+                BLEProtocolV2.getAggregateLength(itemCount + 1, nextItemBytes) > BLEProtocolV2.MAX_AGGREGATE_LENGTH)
+                break;
+            itemBytes = nextItemBytes;
+            itemCount++;
+        }
+        return Math.max(1, itemCount);
+    }
+
+    /**
+     * Remove an acknowledged frame from {@link #mInFlight}. Packets sent outside the flow,
+     * e.g: live messages after the flow completes, are not in flight.
+     */
+    private void acknowledge(byte[] data) {
+        for (int x = 0; x < mInFlight.size(); x++) {
+            if (Arrays.equals(mInFlight.get(x), data)) {
+                mInFlight.remove(x);
+                return;
+            }
+        }
+        if (!mIsComplete)
+            Timber.w("Acknowledged data was not in flight");
+    }
+
+    private static void assertItemType(ReceivedPacket packet, byte expectedItemType) throws UnexpectedDataException {
+        if (packet.itemType != expectedItemType)
+            throw new UnexpectedDataException(String.format("Expected aggregate of type %d. Got type %d", expectedItemType, packet.itemType));
+    }
+
+    private AggregatePacket deserializeAggregate(byte[] data, byte expectedItemType) throws UnexpectedDataException {
+        ProtocolV2 protocol = getProtocolV2();
+        if (protocol == null)
+            throw new UnexpectedDataException("Aggregate frames require protocol version 2");
+
+        AggregatePacket aggregate = protocol.deserializeAggregate(data);
+        if (aggregate.itemType != expectedItemType)
+            throw new UnexpectedDataException(String.format("Expected aggregate of type %d. Got type %d", expectedItemType, aggregate.itemType));
+        return aggregate;
+    }
+
+    /**
+     * Sent identities were selected from the store, so only their delivery is recorded
+     */
+    private void handleSentIdentity(byte[] data) {
+        IdentityPacket sentIdPkt = mProtocol.deserializeIdentity(data);
+        // We can only report the identity sent once we know the peer's identity
+        // We also always want to send our own identity first
+        if (mRemoteIdentity != null) {
+            Timber.d("Marked identity %s delivered to %s", sentIdPkt.getAlias(), mRemoteIdentity.getAlias());
+            bufferDeliveryReceipt(sentIdPkt);
+        }
+    }
+
+    /**
+     * Sent messages were selected from the store, so only their delivery is recorded.
+     * The callback is notified from a storage thread, once the message and recipient are read
+     */
+    private void handleSentMessage(MessagePacket sentMsgPkt) {
+        // A re-encoded message is recorded as the stored message's delivery
+        MessagePacket storedMsgPkt = mLegacyEncodings.remove(DataUtil.bytesToHex(sentMsgPkt.signature));
+        final MessagePacket msgPkt = storedMsgPkt != null ? storedMsgPkt : sentMsgPkt;
+        bufferDeliveryReceipt(msgPkt);
+
+        // Keep the remote sketch current for the checkpoint. Only keys it lacked may be added
+        long key = SketchPacket.getMessageKey(msgPkt.signature);
+        if (mRemoteSketch != null && mRemoteLacks.remove(key))
+            mRemoteSketch.add(key);
+
+        final byte[] recipientPublicKey = mRemoteIdentity.publicKey;
+        mAsyncDataStore.read(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Message msg = mDataStore.getMessageBySignature(msgPkt.signature);
+                pro.dbro.ble.data.model.Peer recipient = mDataStore.getPeerByPubKey(recipientPublicKey);
+                // The message may have been compacted since it was selected
+                if (msg != null && recipient != null)
+                    mCallback.onMessageSent(ChatPeerFlow.this, msg, recipient);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Receipts for packets exchanged after the flow completes are recorded immediately
+     */
+    private void bufferDeliveryReceipt(MessagePacket msgPkt) {
+        mPendingMessageReceipts.add(msgPkt);
+        if (mIsComplete) flushDeliveryReceipts();
+    }
+
+    private void bufferDeliveryReceipt(IdentityPacket idPkt) {
+        mPendingIdentityReceipts.add(idPkt);
+        if (mIsComplete) flushDeliveryReceipts();
+    }
+
+    private void handleReceivedIdentity(IdentityPacket idPkt, pro.dbro.ble.data.model.Peer remotePeer) {
+        mRemoteIdentity = idPkt;
+        Timber.d("Got remote identity for %s", mRemoteIdentity.getAlias());
+        // Only treat first identity as that of connected peer
+        if (!mGotRemotePeerIdentity) {
+            mRemotePeerPublicKey = idPkt.publicKey;
+            resumeWithRemotePeer();
+            mCallback.onAppPeerStatusUpdated(this, remotePeer, Callback.ConnectionStatus.CONNECTED);
+            mGotRemotePeerIdentity = true;
+        }
+    }
+
+    /**
+     * Adopt the remote sketch of the checkpoint, if it is with the remote peer.
+     * A sketch the remote peer sends this flow replaces it
+     */
+    private void resumeWithRemotePeer() {
+        if (mResumeCheckpoint == null) return;
+
+        if (!mResumeCheckpoint.isFor(mRemotePeerPublicKey)) {
+            mResumeCheckpoint = null;
+            return;
+        }
+
+        Timber.d("Resuming flow with %s", mRemoteIdentity.getAlias());
+        if (mRemoteSketch == null) mRemoteSketch = mResumeCheckpoint.remoteSketch;
+    }
+
+    /**
+     * @param newMessage the stored copy of msgPkt, if it was not previously stored
+     */
+    private void handleReceivedMessage(MessagePacket msgPkt,
+                                       @Nullable Message newMessage,
+                                       @Nullable pro.dbro.ble.data.model.Peer sender) {
+        Timber.d("Received msg %s", msgPkt.getBody());
+
+        // Mark incoming messages as delivered to sender
+        bufferDeliveryReceipt(msgPkt);
+
+        if (newMessage != null)
+            mCallback.onMessageReceived(this, newMessage, sender);
     }
 
     private void incrementStateAndSendAsAppropriate() {
         if (mState == State.HOST_WRITE_MSGS) {
-            Timber.d("ChatPeerFlow complete!");
-            mIsComplete = true;
+            complete();
             return;
         }
 
-        mState = State.values()[mState.ordinal() + 1];
+        // Peers reading version 3 exchange messages at once. Legacy peers take turns
+        if (mState == State.HOST_WRITE_ID && getProtocolVersion() >= BLEProtocolV3.VERSION)
+            mState = State.DUPLEX_MSGS;
+        else
+            mState = State.values()[mState.ordinal() + 1];
         Timber.d("ChatPeerFlow New State : %s", mState);
         sendAsAppropriate();
     }
 
+    private void completeIfBothMsgsDone() {
+        if (mLocalMsgsDone && mRemoteMsgsDone) complete();
+    }
+
+    private void complete() {
+        Timber.d("ChatPeerFlow complete!");
+        mIsComplete = true;
+        flushDeliveryReceipts();
+        releaseBuffers();
+    }
+
     private void sendAsAppropriate() {
+        // Once complete, only live messages are sent
+        if (mIsComplete) return;
 
         switch (mState) {
             case CLIENT_WRITE_ID:
@@ -354,6 +968,12 @@ public class ChatPeerFlow {
             case HOST_WRITE_MSGS:
                 if (!mPeerIsHost) sendMessage();
                 break;
+
+            case DUPLEX_MSGS:
+                if (mLocalMsgsDone) break;
+                // The host selects its messages with the client's sketch, which leads the client's messages
+                if (mPeerIsHost || mRemoteSketch != null || mRemoteBeganMsgs) sendMessage();
+                break;
         }
     }
 
@@ -367,8 +987,17 @@ public class ChatPeerFlow {
 
         if (recipientPublicKey != null) {
             // Get messages not delievered to peer
-            pro.dbro.ble.data.model.Peer recipient = mDataStore.getPeerByPubKey(recipientPublicKey);
-            List<MessagePacket> messages = mDataStore.getOutgoingMessagesForPeer(recipient, maxMessages);
+            List<MessagePacket> messages = null;
+            if (mRemoteSketch != null)
+                messages = getMessagesMissingFromRemoteSketch(maxMessages);
+
+            if (messages == null) {
+                // No sketch, or too many differences to decode it
+                pro.dbro.ble.data.model.Peer recipient = mDataStore.getPeerByPubKey(recipientPublicKey);
+                // Local messages are selected whatever their version, as they can be re-encoded
+                messages = mDataStore.getOutgoingMessagesForPeer(recipient, maxMessages, getProtocolVersion(),
+                        mLocalIdentityCache.getLocalPeer());
+            }
 
             if (messages == null || messages.size() == 0) {
                 Timber.d("Got no messages for peer with pub key " + DataUtil.bytesToHex(recipientPublicKey));
@@ -410,7 +1039,7 @@ public class ChatPeerFlow {
             Timber.d("Got no identities to send for peer %s. Sending own identity", recipientPublicKey == null ? "" : "with pub key " + DataUtil.bytesToHex(recipientPublicKey).substring(2, 6));
             // For now, at least send our identity
             if (identities == null) identities = new ArrayList<>(1);
-            identities.add(mDataStore.getPrimaryLocalPeer().getIdentity());
+            identities.add(mLocalIdentity);
         }
         identityPacketQueue.addAll(identities);
 
@@ -0,0 +1,106 @@
+package pro.dbro.ble;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
+
+/**
+ * Sync progress with a remote peer when its {@link ChatPeerFlow} ended, used to resume a flow
+ * with the same peer that begins within {@link #RESUME_WINDOW_MS}.
+ *
+ * Identities and messages the remote peer acknowledged are recorded by delivery receipts,
+ * which are flushed when a flow closes, so they're not selected again regardless. The flush is
+ * asynchronous, so a checkpoint holds its write for the resuming flow to await before selecting
+ * outgoing items. A checkpoint also holds what isn't stored: the message set sketches the peers
+ * exchanged, which would otherwise be rebuilt and sent again at the start of each flow.
+ */
+class FlowCheckpoint {
+
+    /** Flows beginning within this long of the last with the same peer resume from it */
+    static final long RESUME_WINDOW_MS = 2 * 60 * 1000;
+
+    final byte[] remotePublicKey;
+    /**
+     * The remote peer's sketch, plus the messages it has since acknowledged.
+     * Null if no sketch was received
+     */
+    @Nullable
+    final InvertibleBloomLookupTable remoteSketch;
+    /** Whether the remote peer acknowledged the local sketch, and may resume with it */
+    final boolean sketchDelivered;
+    /** The last delivery receipts the flow submitted for recording, if any. May be pending */
+    @Nullable
+    final Future<?> receiptWrite;
+
+    private final long mCreatedMillis = SystemClock.elapsedRealtime();
+
+    FlowCheckpoint(@NonNull byte[] remotePublicKey,
+                   @Nullable InvertibleBloomLookupTable remoteSketch,
+                   boolean sketchDelivered,
+                   @Nullable Future<?> receiptWrite) {
+        this.remotePublicKey = remotePublicKey;
+        this.remoteSketch    = remoteSketch;
+        this.sketchDelivered = sketchDelivered;
+        this.receiptWrite    = receiptWrite;
+    }
+
+    boolean isFor(@Nullable byte[] publicKey) {
+        return Arrays.equals(remotePublicKey, publicKey);
+    }
+
+    boolean isExpired(long nowMillis) {
+        return nowMillis - mCreatedMillis > RESUME_WINDOW_MS;
+    }
+
+    /**
+     * The latest checkpoint with each remote peer, by AirShare peer public key. Safe for use
+     * from any thread
+     */
+    static class Store {
+        private final ConcurrentHashMap<String, FlowCheckpoint> mCheckpoints = new ConcurrentHashMap<>();
+
+        void put(@NonNull pro.dbro.airshare.session.Peer airSharePeer, @NonNull FlowCheckpoint checkpoint) {
+            byte[] key = airSharePeer.getPublicKey();
+            if (key == null) return;
+
+            // Drop expired checkpoints, as relays meet many peers they won't see again soon
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Map.Entry<String, FlowCheckpoint>> checkpoints = mCheckpoints.entrySet().iterator();
+            while (checkpoints.hasNext()) {
+                if (checkpoints.next().getValue().isExpired(now)) checkpoints.remove();
+            }
+            mCheckpoints.put(DataUtil.bytesToHex(key), checkpoint);
+        }
+
+        /**
+         * Remove and return the checkpoint with airSharePeer, if still within the resume window
+         */
+        @Nullable
+        FlowCheckpoint take(@NonNull pro.dbro.airshare.session.Peer airSharePeer) {
+            return take(airSharePeer, SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * Remove and return the checkpoint with airSharePeer, if within the resume window as of
+         * nowMillis, on {@link SystemClock#elapsedRealtime()}
+         */
+        @Nullable
+        FlowCheckpoint take(@NonNull pro.dbro.airshare.session.Peer airSharePeer, long nowMillis) {
+            byte[] key = airSharePeer.getPublicKey();
+            if (key == null) return null;
+
+            FlowCheckpoint checkpoint = mCheckpoints.remove(DataUtil.bytesToHex(key));
+            if (checkpoint == null || checkpoint.isExpired(nowMillis)) return null;
+            return checkpoint;
+        }
+    }
+}
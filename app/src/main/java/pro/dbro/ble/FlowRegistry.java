@@ -0,0 +1,120 @@
+package pro.dbro.ble;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pro.dbro.airshare.session.Peer;
+
+/**
+ * The {@link ChatPeerFlow} of each connected AirShare peer, and the BLEMeshChat peer id
+ * each flow has identified. Safe for use from any thread.
+ *
+ * Registrations are held in a {@link ConcurrentHashMap}, whose updates lock only the bin of
+ * the peer updated, so callbacks for many peers don't contend. A flow is removed when its peer
+ * disconnects, and {@link ChatPeerFlow#close()} is left to the caller.
+ */
+class FlowRegistry {
+
+    static class Registration {
+        final Peer         airSharePeer;
+        final ChatPeerFlow flow;
+        /** Stalled flows this flow's link has replaced. See {@link #replace(Registration, ChatPeerFlow)} */
+        final int          restarts;
+        /** BLEMeshChat peer id, once the flow has received the remote identity */
+        private volatile Integer mRemotePeerId;
+
+        Registration(Peer airSharePeer, ChatPeerFlow flow, int restarts) {
+            this.airSharePeer = airSharePeer;
+            this.flow         = flow;
+            this.restarts     = restarts;
+        }
+
+        @Nullable
+        Integer getRemotePeerId() {
+            return mRemotePeerId;
+        }
+    }
+
+    private final ConcurrentHashMap<Peer, Registration> mRegistrations = new ConcurrentHashMap<>();
+
+    /**
+     * Register flow for airSharePeer
+     * @return the flow previously registered for airSharePeer, if any
+     */
+    @Nullable
+    ChatPeerFlow register(@NonNull Peer airSharePeer, @NonNull ChatPeerFlow flow) {
+        Registration previous = mRegistrations.put(airSharePeer, new Registration(airSharePeer, flow, 0));
+        return previous == null ? null : previous.flow;
+    }
+
+    /**
+     * Replace the flow of registration with flow, on the same link, if registration is still
+     * current for its AirShare peer. The remote peer id already identified is kept.
+     * {@link ChatPeerFlow#close()} of the replaced flow is left to the caller
+     * @return the new registration, or null if registration is no longer current
+     */
+    @Nullable
+    Registration replace(@NonNull Registration registration, @NonNull ChatPeerFlow flow) {
+        Registration replacement = new Registration(registration.airSharePeer, flow, registration.restarts + 1);
+        replacement.mRemotePeerId = registration.mRemotePeerId;
+        return mRegistrations.replace(registration.airSharePeer, registration, replacement) ? replacement : null;
+    }
+
+    @Nullable
+    ChatPeerFlow getFlow(@NonNull Peer airSharePeer) {
+        Registration registration = mRegistrations.get(airSharePeer);
+        return registration == null ? null : registration.flow;
+    }
+
+    /**
+     * Record the BLEMeshChat peer id identified by flow
+     * @return false if flow is no longer registered, e.g: its peer has since disconnected
+     */
+    boolean setRemotePeerId(@NonNull ChatPeerFlow flow, int remotePeerId) {
+        Registration registration = mRegistrations.get(flow.getRemoteAirSharePeer());
+        if (registration == null || registration.flow != flow) return false;
+
+        registration.mRemotePeerId = remotePeerId;
+        return true;
+    }
+
+    /**
+     * Remove the registration of airSharePeer
+     * @return the registration removed, if any
+     */
+    @Nullable
+    Registration unregister(@NonNull Peer airSharePeer) {
+        return mRegistrations.remove(airSharePeer);
+    }
+
+    /**
+     * Remove registration, if it is still current for its AirShare peer
+     * @return whether registration was removed
+     */
+    boolean unregister(@NonNull Registration registration) {
+        return mRegistrations.remove(registration.airSharePeer, registration);
+    }
+
+    /**
+     * @return whether flow is registered for its AirShare peer
+     */
+    boolean isRegistered(@NonNull ChatPeerFlow flow) {
+        Registration registration = mRegistrations.get(flow.getRemoteAirSharePeer());
+        return registration != null && registration.flow == flow;
+    }
+
+    /**
+     * @return a snapshot of the current registrations
+     */
+    List<Registration> getRegistrations() {
+        return new ArrayList<>(mRegistrations.values());
+    }
+
+    int size() {
+        return mRegistrations.size();
+    }
+}
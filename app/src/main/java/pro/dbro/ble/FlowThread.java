@@ -0,0 +1,27 @@
+package pro.dbro.ble;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+
+/**
+ * The thread {@link ChatPeerFlow}s are driven from, shared by every flow. Flows read the
+ * {@link pro.dbro.ble.data.DataStore} synchronously when selecting outgoing items, which
+ * mustn't block the main thread.
+ */
+class FlowThread {
+
+    private static Handler sHandler;
+
+    private FlowThread() {}
+
+    @NonNull
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("ChatPeerFlow");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
@@ -0,0 +1,58 @@
+package pro.dbro.ble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+/**
+ * Checks each registered {@link ChatPeerFlow} every {@link #CHECK_INTERVAL_MS} and reports
+ * those that made no progress within their state's timeout, e.g: when a link drops without
+ * a disconnect event. Flows are driven from the {@link FlowThread}, so they are checked there,
+ * without contending with the main thread, and stalled flows are reported there.
+ */
+class FlowWatchdog {
+
+    interface Listener {
+        void onFlowStalled(@NonNull FlowRegistry.Registration registration);
+    }
+
+    static final long CHECK_INTERVAL_MS = 1000;
+
+    private final Handler      mHandler = FlowThread.getHandler();
+    private final FlowRegistry mFlows;
+    private final Listener     mListener;
+    private boolean mRunning;
+
+    FlowWatchdog(@NonNull FlowRegistry flows, @NonNull Listener listener) {
+        mFlows    = flows;
+        mListener = listener;
+    }
+
+    void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mHandler.postDelayed(mCheck, CHECK_INTERVAL_MS);
+    }
+
+    void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mCheck);
+    }
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            check(SystemClock.elapsedRealtime());
+            if (mRunning) mHandler.postDelayed(this, CHECK_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Report each registered flow stalled as of nowMillis, on {@link SystemClock#elapsedRealtime()}
+     */
+    void check(long nowMillis) {
+        for (FlowRegistry.Registration registration : mFlows.getRegistrations()) {
+            if (registration.flow.isStalled(nowMillis)) mListener.onFlowStalled(registration);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package pro.dbro.ble;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.NoDataPacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.Protocol;
+
+/**
+ * Holds the primary local peer, its identity and a pre-signed NoData packet, sparing
+ * a database query and a signature each time a flow begins or ends a phase.
+ *
+ * The NoData packet is re-signed once older than {@link #NODATA_MAX_AGE_MS}
+ * so its timestamp remains meaningful. This class is thread-safe.
+ */
+public class LocalIdentityCache {
+
+    public static final long NODATA_MAX_AGE_MS = 5 * 60 * 1000;
+
+    private final DataStore mDataStore;
+    private final Protocol  mProtocol;
+
+    private Peer                mLocalPeer;
+    private OwnedIdentityPacket mIdentity;
+    private NoDataPacket        mNoData;
+    private long                mNoDataSignedMillis;
+
+    public LocalIdentityCache(@NonNull DataStore dataStore, @NonNull Protocol protocol) {
+        mDataStore = dataStore;
+        mProtocol  = protocol;
+    }
+
+    /**
+     * @return the primary local peer, or null if no identity is set
+     */
+    @Nullable
+    public synchronized Peer getLocalPeer() {
+        if (mLocalPeer == null) {
+            mLocalPeer = mDataStore.getPrimaryLocalPeer();
+            if (mLocalPeer != null)
+                mIdentity = (OwnedIdentityPacket) mLocalPeer.getIdentity();
+        }
+        return mLocalPeer;
+    }
+
+    /**
+     * @return the identity of {@link #getLocalPeer()}, or null if no identity is set
+     */
+    @Nullable
+    public synchronized OwnedIdentityPacket getIdentity() {
+        getLocalPeer();
+        return mIdentity;
+    }
+
+    /**
+     * @return a NoData packet signed by {@link #getIdentity()} within {@link #NODATA_MAX_AGE_MS}
+     */
+    @NonNull
+    public synchronized NoDataPacket getNoDataPacket() {
+        OwnedIdentityPacket identity = getIdentity();
+        if (identity == null)
+            throw new IllegalStateException("No primary identity to sign NoData");
+
+        long now = SystemClock.elapsedRealtime();
+        if (mNoData == null || now - mNoDataSignedMillis > NODATA_MAX_AGE_MS) {
+            mNoData = mProtocol.serializeNoDataPacket(identity);
+            mNoDataSignedMillis = now;
+        }
+        return mNoData;
+    }
+
+    /**
+     * Forget the cached peer and packets, e.g: after the primary identity is created
+     */
+    public synchronized void invalidate() {
+        mLocalPeer = null;
+        mIdentity  = null;
+        mNoData    = null;
+    }
+}
@@ -0,0 +1,423 @@
+package pro.dbro.ble;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.AggregatePacket;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.NoDataPacket;
+import pro.dbro.ble.protocol.Protocol;
+import pro.dbro.ble.protocol.ProtocolV2;
+import pro.dbro.ble.protocol.SketchPacket;
+import timber.log.Timber;
+
+/**
+ * Processes packets received by {@link ChatPeerFlow}s in stages, each on its own thread:
+ *
+ * 1) Decode: read the packet type and split aggregate frames into their items
+ * 2) Dedupe: find messages already stored byte for byte, which needn't be verified again,
+ *    and drop those deleted by compaction
+ * 3) Verify: deserialize identities, sketches and messages, checking their signatures
+ * 4) Persist: store identities and messages on the {@link pro.dbro.ble.data.AsyncDataStore} writer
+ * 5) Notify: hand the processed packet to its flow on the {@link FlowThread}
+ *
+ * Stages are joined by bounded queues, so one packet's signatures are verified while the
+ * previous packet is written, and {@link #submit(ChatPeerFlow, byte[])} blocks once the decode
+ * queue is full. Each stage handles packets in the order received, so each flow sees its
+ * packets in order. A packet a stage fails to process is logged and dropped.
+ *
+ * There is one pipeline per process, as every flow shares one database.
+ */
+public class PacketIntake {
+
+    /** Packets each stage's queue holds before the stage ahead of it blocks */
+    public static final int STAGE_CAPACITY = 32;
+
+    /** Queue depth and latency of a stage since the process started */
+    public static class StageMetrics {
+        public final String name;
+        /** Packets waiting for the stage */
+        public final int queueDepth;
+        public final long processedCount;
+        /** Time from entering the stage's queue to leaving the stage, in milliseconds */
+        public final double meanLatencyMs;
+        public final double maxLatencyMs;
+
+        StageMetrics(String name, int queueDepth, long processedCount, double meanLatencyMs, double maxLatencyMs) {
+            this.name           = name;
+            this.queueDepth     = queueDepth;
+            this.processedCount = processedCount;
+            this.meanLatencyMs  = meanLatencyMs;
+            this.maxLatencyMs   = maxLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d queued, %d processed, %.1f ms mean, %.1f ms max",
+                    name, queueDepth, processedCount, meanLatencyMs, maxLatencyMs);
+        }
+    }
+
+    private static final Stage sNotify  = new NotifyStage();
+    private static final Stage sPersist = new PersistStage(sNotify);
+    private static final Stage sVerify  = new VerifyStage(sPersist);
+    private static final Stage sDedupe  = new DedupeStage(sVerify);
+    private static final Stage sDecode  = new DecodeStage(sDedupe);
+
+    private static final Stage[] sStages = new Stage[] { sDecode, sDedupe, sVerify, sPersist, sNotify };
+
+    /**
+     * Queue data received by flow for processing. Blocks while the decode queue is full
+     */
+    public static void submit(@NonNull ChatPeerFlow flow, @NonNull byte[] data) {
+        sDecode.put(new ReceivedPacket(flow, data));
+    }
+
+    /**
+     * @return the metrics of each stage, in pipeline order
+     */
+    public static List<StageMetrics> getStageMetrics() {
+        List<StageMetrics> metrics = new ArrayList<>(sStages.length);
+        for (Stage stage : sStages) {
+            metrics.add(stage.getMetrics());
+        }
+        return metrics;
+    }
+
+    // <editor-fold desc="Stages">
+
+    private static abstract class Stage {
+        private final String mName;
+        private final Stage  mNext;
+
+        // Written only by the thread running the stage
+        private volatile long mProcessedCount;
+        private volatile long mTotalLatencyNanos;
+        private volatile long mMaxLatencyNanos;
+
+        Stage(String name, Stage next) {
+            mName = name;
+            mNext = next;
+        }
+
+        abstract void put(ReceivedPacket packet);
+
+        abstract int getQueueDepth();
+
+        /**
+         * @return whether packet should continue to the next stage
+         */
+        abstract boolean process(ReceivedPacket packet) throws Exception;
+
+        /**
+         * Process packet, record its latency and pass it on
+         */
+        void handle(ReceivedPacket packet) {
+            boolean processed = false;
+            try {
+                processed = process(packet);
+            } catch (Exception e) {
+                Timber.e(e, "%s failed to process packet of type %d. Dropping", mName, packet.type);
+            }
+
+            long latency = System.nanoTime() - packet.enqueuedNanos;
+            mProcessedCount++;
+            mTotalLatencyNanos += latency;
+            if (latency > mMaxLatencyNanos) mMaxLatencyNanos = latency;
+
+            if (processed && mNext != null) mNext.put(packet);
+        }
+
+        StageMetrics getMetrics() {
+            long count = mProcessedCount;
+            return new StageMetrics(mName, getQueueDepth(), count,
+                    count == 0 ? 0 : mTotalLatencyNanos / (count * 1e6),
+                    mMaxLatencyNanos / 1e6);
+        }
+    }
+
+    /**
+     * A stage run on a dedicated thread, taking packets from a bounded queue
+     */
+    private static abstract class ThreadStage extends Stage implements Runnable {
+        private final BlockingQueue<ReceivedPacket> mQueue = new ArrayBlockingQueue<>(STAGE_CAPACITY);
+
+        ThreadStage(String name, Stage next) {
+            super(name, next);
+            Thread thread = new Thread(this, "PacketIntake-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        void put(ReceivedPacket packet) {
+            packet.enqueuedNanos = System.nanoTime();
+            try {
+                mQueue.put(packet);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Timber.w("Interrupted queueing packet of type %d. Dropping", packet.type);
+            }
+        }
+
+        @Override
+        int getQueueDepth() {
+            return mQueue.size();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    handle(mQueue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class DecodeStage extends ThreadStage {
+        DecodeStage(Stage next) {
+            super("Decode", next);
+        }
+
+        @Override
+        boolean process(ReceivedPacket packet) {
+            Protocol protocol = packet.flow.getProtocol();
+            packet.type = protocol.getPacketType(packet.data);
+            packet.itemType = packet.type;
+
+            switch (packet.type) {
+                case IdentityPacket.TYPE:
+                case MessagePacket.TYPE:
+                    packet.items = Collections.singletonList(packet.data);
+                    break;
+
+                case AggregatePacket.TYPE:
+                    if (!(protocol instanceof ProtocolV2)) {
+                        Timber.w("Received aggregate frame, which protocol version %d doesn't read. Dropping", protocol.getVersion());
+                        return false;
+                    }
+                    AggregatePacket aggregate = ((ProtocolV2) protocol).deserializeAggregate(packet.data);
+                    packet.itemType = aggregate.itemType;
+                    packet.items = aggregate.getItems();
+                    break;
+
+                case NoDataPacket.TYPE:
+                    // Peers advertise the highest protocol version they read in the NoData version byte
+                    packet.version = protocol.getPacketVersion(packet.data);
+                    break;
+            }
+            // Packets of unexpected type are rejected by the flow
+            return true;
+        }
+    }
+
+    private static class DedupeStage extends ThreadStage {
+        DedupeStage(Stage next) {
+            super("Dedupe", next);
+        }
+
+        @Override
+        boolean process(ReceivedPacket packet) {
+            if (packet.itemType != MessagePacket.TYPE) return true;
+
+            Protocol protocol   = packet.flow.getProtocol();
+            DataStore dataStore = packet.flow.getDataStore();
+            for (byte[] item : packet.items) {
+                byte[] signature = protocol.getMessageSignature(item);
+                // Peers relay messages we've since deleted. They're dropped rather than stored again as new
+                if (dataStore.wasMessageDeleted(signature)) continue;
+
+                // The message filter answers for most new messages without a query
+                Message storedMessage = dataStore.getMessageBySignature(signature);
+                // The stored copy was verified when first received. Relays receive most messages many times over
+                if (storedMessage != null && Arrays.equals(storedMessage.getRawPacket(), item))
+                    packet.storedMessages.add(storedMessage.getProtocolMessage(dataStore));
+                else
+                    packet.unstoredMessages.add(item);
+
+                if (storedMessage != null) storedMessage.close();
+            }
+            return true;
+        }
+    }
+
+    private static class VerifyStage extends ThreadStage {
+        /** The last identity received from each flow's remote peer. Used only by this stage's thread */
+        private final Map<ChatPeerFlow, IdentityPacket> mRemoteIdentities = new WeakHashMap<>();
+
+        VerifyStage(Stage next) {
+            super("Verify", next);
+        }
+
+        @Override
+        boolean process(ReceivedPacket packet) {
+            Protocol protocol = packet.flow.getProtocol();
+
+            switch (packet.itemType) {
+                case IdentityPacket.TYPE:
+                    for (byte[] item : packet.items) {
+                        try {
+                            IdentityPacket identity = protocol.deserializeIdentity(item);
+                            packet.identities.add(identity);
+                            mRemoteIdentities.put(packet.flow, identity);
+                        } catch (RuntimeException e) {
+                            Timber.w(e, "Dropping invalid identity");
+                        }
+                    }
+                    break;
+
+                case MessagePacket.TYPE:
+                    if (packet.unstoredMessages.size() == 0) break;
+
+                    // Verify the frame's signatures in parallel. Forged messages are dropped
+                    for (MessagePacket message : protocol.deserializeMessagesWithIdentity(packet.unstoredMessages,
+                            mRemoteIdentities.get(packet.flow))) {
+                        if (message != null) packet.messages.add(message);
+                    }
+                    break;
+
+                case SketchPacket.TYPE:
+                    if (!(protocol instanceof ProtocolV2)) {
+                        Timber.w("Received sketch, which protocol version %d doesn't read. Dropping", protocol.getVersion());
+                        return false;
+                    }
+                    packet.sketch = ((ProtocolV2) protocol).deserializeSketch(packet.data);
+                    break;
+            }
+            packet.remoteIdentity = mRemoteIdentities.get(packet.flow);
+            return true;
+        }
+    }
+
+    /**
+     * Items are stored one by one. An item that fails to store is dropped from the packet, so its
+     * flow neither records it delivered nor reports it received, and the others carry on
+     */
+    private static class PersistStage extends ThreadStage {
+        PersistStage(Stage next) {
+            super("Persist", next);
+        }
+
+        @Override
+        boolean process(final ReceivedPacket packet) throws ExecutionException, InterruptedException {
+            if (packet.identities.size() == 0 && packet.messages.size() == 0) return true;
+
+            final DataStore dataStore = packet.flow.getDataStore();
+            // Writes go through the store's single writer. The next packet is verified meanwhile
+            packet.flow.getAsyncDataStore().write(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<IdentityPacket> storedIdentities = new ArrayList<>(packet.identities.size());
+                    for (IdentityPacket identity : packet.identities) {
+                        Peer peer = storeIdentity(dataStore, identity);
+                        if (peer == null) continue;
+                        storedIdentities.add(identity);
+                        packet.identityPeers.add(peer);
+                    }
+                    packet.identities = storedIdentities;
+
+                    List<MessagePacket> storedMessages = new ArrayList<>(packet.messages.size());
+                    boolean anyNew = false;
+                    for (MessagePacket message : packet.messages) {
+                        Message storedMessage;
+                        try {
+                            // A message may have been stored since dedupe, e.g: by a copy in a preceding packet
+                            Message existingMessage = dataStore.getMessageBySignature(message.signature);
+                            boolean isNew = existingMessage == null;
+                            if (existingMessage != null) existingMessage.close();
+
+                            // TODO : Allow updating a message?
+                            storedMessage = dataStore.createOrUpdateMessageWithProtocolMessage(message);
+                            if (!isNew && storedMessage != null) {
+                                storedMessage.close();
+                                storedMessage = null;
+                            }
+                        } catch (RuntimeException e) {
+                            Timber.e(e, "Failed to store message. Dropping");
+                            continue;
+                        }
+                        storedMessages.add(message);
+                        packet.newMessages.add(storedMessage);
+                        anyNew |= storedMessage != null;
+                    }
+                    packet.messages = storedMessages;
+
+                    if (anyNew && packet.remoteIdentity != null)
+                        packet.sender = dataStore.getPeerByPubKey(packet.remoteIdentity.publicKey);
+                    return null;
+                }
+            }).get();
+            return true;
+        }
+
+        @Nullable
+        private static Peer storeIdentity(DataStore dataStore, IdentityPacket identity) {
+            try {
+                Peer peer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(identity);
+                if (peer == null) Timber.e("Failed to store identity of %s. Dropping", identity.getAlias());
+                return peer;
+            } catch (RuntimeException e) {
+                Timber.e(e, "Failed to store identity of %s. Dropping", identity.getAlias());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Flows are driven from the {@link FlowThread}, so they are notified there
+     */
+    private static class NotifyStage extends Stage {
+        private final Handler       mHandler = FlowThread.getHandler();
+        private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+        NotifyStage() {
+            super("Notify", null);
+        }
+
+        @Override
+        void put(final ReceivedPacket packet) {
+            packet.enqueuedNanos = System.nanoTime();
+            mQueueDepth.incrementAndGet();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mQueueDepth.decrementAndGet();
+                    handle(packet);
+                }
+            });
+        }
+
+        @Override
+        int getQueueDepth() {
+            return mQueueDepth.get();
+        }
+
+        @Override
+        boolean process(ReceivedPacket packet) throws ChatPeerFlow.UnexpectedDataException {
+            packet.flow.onPacketReceived(packet);
+            return true;
+        }
+    }
+
+    // </editor-fold desc="Stages">
+}
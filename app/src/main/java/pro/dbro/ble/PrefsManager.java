@@ -1,6 +1,9 @@
 package pro.dbro.ble;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+
+import pro.dbro.ble.data.RetentionPolicy;
 
 
 /**
@@ -13,6 +16,10 @@ public class PrefsManager {
 
     /** SharedPreferences keys */
     private static final String APP_STATUS = "status";
+    private static final String RETENTION_MAX_AGE      = "retention_max_age";
+    private static final String RETENTION_MAX_MESSAGES = "retention_max_msgs";
+    private static final String RETENTION_MAX_BYTES    = "retention_max_bytes";
+    private static final String RETENTION_RECLAIM      = "retention_reclaim";
 
     public static int getStatus(Context context) {
         return context.getSharedPreferences(APP_PREFS, Context.MODE_PRIVATE)
@@ -25,6 +32,27 @@ public class PrefsManager {
                .commit();
     }
 
+    /**
+     * @return the stored retention policy, or {@link RetentionPolicy#DEFAULT} where none is stored
+     */
+    public static RetentionPolicy getRetentionPolicy(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(APP_PREFS, Context.MODE_PRIVATE);
+        RetentionPolicy defaults = RetentionPolicy.DEFAULT;
+        return new RetentionPolicy(prefs.getLong(RETENTION_MAX_AGE, defaults.getMaxAgeMillis()),
+                                   prefs.getInt(RETENTION_MAX_MESSAGES, defaults.getMaxMessages()),
+                                   prefs.getLong(RETENTION_MAX_BYTES, defaults.getMaxBytes()),
+                                   prefs.getBoolean(RETENTION_RECLAIM, defaults.shouldReclaimSpace()));
+    }
+
+    public static void setRetentionPolicy(Context context, RetentionPolicy policy) {
+        context.getSharedPreferences(APP_PREFS, Context.MODE_PRIVATE).edit()
+               .putLong(RETENTION_MAX_AGE, policy.getMaxAgeMillis())
+               .putInt(RETENTION_MAX_MESSAGES, policy.getMaxMessages())
+               .putLong(RETENTION_MAX_BYTES, policy.getMaxBytes())
+               .putBoolean(RETENTION_RECLAIM, policy.shouldReclaimSpace())
+               .apply();
+    }
+
     public static void clearState(Context context) {
         context.getSharedPreferences(APP_PREFS, Context.MODE_PRIVATE).edit().clear().apply();
     }
@@ -0,0 +1,77 @@
+package pro.dbro.ble;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.SketchPacket;
+
+/**
+ * A packet received from a {@link ChatPeerFlow}'s remote peer, and the results of each
+ * {@link PacketIntake} stage. Each stage fills in its own fields before handing the packet on,
+ * so every field is read only by the stages after the one that wrote it.
+ */
+class ReceivedPacket {
+
+    final ChatPeerFlow flow;
+    final byte[] data;
+
+    /** When the packet entered its current stage's queue */
+    long enqueuedNanos;
+
+    // <editor-fold desc="Decode">
+
+    /** Packet type, as read from the packet header */
+    byte type;
+    /** Type of the packets in {@link #items}. For aggregates, the type of its items */
+    byte itemType;
+    /** The identity or message packets framed, in order */
+    List<byte[]> items = Collections.emptyList();
+    /** For NoData, the highest protocol version the remote peer reads */
+    byte version;
+
+    // </editor-fold desc="Decode">
+
+    // <editor-fold desc="Dedupe">
+
+    /** Messages stored byte for byte, which are not verified again */
+    List<MessagePacket> storedMessages = new ArrayList<>();
+    /** Messages in {@link #items} not stored */
+    List<byte[]> unstoredMessages = new ArrayList<>();
+
+    // </editor-fold desc="Dedupe">
+
+    // <editor-fold desc="Verify">
+
+    /** The remote peer's identity, as of this packet. The last identity it sent */
+    IdentityPacket remoteIdentity;
+    /** Valid identities. Those that fail to persist are dropped from it */
+    List<IdentityPacket> identities = new ArrayList<>();
+    /** Messages with valid signatures. Forged messages are dropped, as are those that fail to persist */
+    List<MessagePacket> messages = new ArrayList<>();
+    SketchPacket sketch;
+
+    // </editor-fold desc="Verify">
+
+    // <editor-fold desc="Persist">
+
+    /** The stored peer of each of {@link #identities} */
+    List<Peer> identityPeers = new ArrayList<>();
+    /** The stored copy of each of {@link #messages}, or null where it was previously stored */
+    List<Message> newMessages = new ArrayList<>();
+    /** The stored peer of {@link #remoteIdentity}, if any message is new */
+    Peer sender;
+
+    // </editor-fold desc="Persist">
+
+    ReceivedPacket(@NonNull ChatPeerFlow flow, @NonNull byte[] data) {
+        this.flow = flow;
+        this.data = data;
+    }
+}
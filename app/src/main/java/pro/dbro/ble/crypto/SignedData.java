@@ -0,0 +1,23 @@
+package pro.dbro.ble.crypto;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A (public key, signature, message) triple awaiting verification.
+ * Only the first messageLength bytes of message are covered by signature.
+ */
+public class SignedData {
+
+    public final byte[] publicKey;
+    public final byte[] signature;
+    public final byte[] message;
+    public final int    messageLength;
+
+    public SignedData(@NonNull byte[] publicKey, @NonNull byte[] signature,
+                      @NonNull byte[] message, int messageLength) {
+        this.publicKey     = publicKey;
+        this.signature     = signature;
+        this.message       = message;
+        this.messageLength = messageLength;
+    }
+}
@@ -5,6 +5,16 @@ import android.support.annotation.NonNull;
 import org.abstractj.kalium.NaCl;
 import org.abstractj.kalium.Sodium;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Wrapper around libsodium functions.
  *
@@ -17,6 +27,21 @@ public class SodiumShaker {
     private static final int crypto_sign_SECRETKEYBYTES = 64;
     public static final int crypto_sign_BYTES = 64;
 
+    /** Batches smaller than this are verified on the calling thread */
+    private static final int MIN_PARALLEL_BATCH = 4;
+    private static final int VERIFY_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final ExecutorService sVerifyExecutor = Executors.newFixedThreadPool(VERIFY_WORKERS, new ThreadFactory() {
+        private int mCount = 0;
+
+        @Override
+        public synchronized Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "SodiumVerify-" + mCount++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     static {
         // Load native libraries
         NaCl.sodium();
@@ -52,12 +77,80 @@ public class SodiumShaker {
      * @param message the data with signature
      */
     public static boolean verifySignature(@NonNull byte[] public_key, @NonNull byte[] signature, @NonNull byte[] message) {
+        return verifySignature(public_key, signature, message, message.length);
+    }
+
+    /**
+     * Verify that signature and public_key verify the first message_len bytes of message.
+     * This allows verifying a signed prefix of a packet without copying it.
+     *
+     * @param public_key the public key corresponding to signature
+     * @param signature the signature of message decipherable with public_key
+     * @param message the data with signature
+     * @param message_len the number of leading bytes of message that were signed
+     */
+    public static boolean verifySignature(@NonNull byte[] public_key, @NonNull byte[] signature, @NonNull byte[] message, int message_len) {
         // Verify signature
 
-        if (Sodium.crypto_sign_ed25519_verify_detached(signature, message, message.length, public_key) != 0) {
+        if (Sodium.crypto_sign_ed25519_verify_detached(signature, message, message_len, public_key) != 0) {
             /* Incorrect signature! */
             return false;
         }
         return true;
     }
+
+    /**
+     * Verify a batch of signatures, spreading the work across a small fixed pool of
+     * worker threads plus the calling thread. Blocks until every item is verified.
+     *
+     * @return a bitmap where bit i is set if and only if batch item i has a valid signature
+     */
+    public static BitSet verifyBatch(@NonNull final List<SignedData> batch) {
+        final BitSet result = new BitSet(batch.size());
+
+        if (batch.size() < MIN_PARALLEL_BATCH) {
+            verifyRange(batch, 0, batch.size(), result);
+            return result;
+        }
+
+        // Split the batch into one contiguous range per worker, and one for the calling thread
+        int numRanges = Math.min(VERIFY_WORKERS + 1, batch.size());
+        int rangeSize = (batch.size() + numRanges - 1) / numRanges;
+
+        List<Future<BitSet>> pending = new ArrayList<>(numRanges - 1);
+        for (int start = rangeSize; start < batch.size(); start += rangeSize) {
+            final int rangeStart = start;
+            final int rangeEnd   = Math.min(start + rangeSize, batch.size());
+            pending.add(sVerifyExecutor.submit(new Callable<BitSet>() {
+                @Override
+                public BitSet call() {
+                    BitSet rangeResult = new BitSet(batch.size());
+                    verifyRange(batch, rangeStart, rangeEnd, rangeResult);
+                    return rangeResult;
+                }
+            }));
+        }
+
+        verifyRange(batch, 0, Math.min(rangeSize, batch.size()), result);
+
+        for (Future<BitSet> rangeResult : pending) {
+            try {
+                result.or(rangeResult.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted during batch verification", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch verification failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static void verifyRange(List<SignedData> batch, int start, int end, BitSet result) {
+        for (int x = start; x < end; x++) {
+            SignedData item = batch.get(x);
+            if (verifySignature(item.publicKey, item.signature, item.message, item.messageLength))
+                result.set(x);
+        }
+    }
 }
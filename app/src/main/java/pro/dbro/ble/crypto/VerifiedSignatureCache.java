@@ -0,0 +1,117 @@
+package pro.dbro.ble.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pro.dbro.ble.util.ByteArrayKey;
+
+/**
+ * A bounded, least-recently-used record of signatures that have already
+ * passed {@link SodiumShaker#verifySignature(byte[], byte[], byte[], int)}.
+ *
+ * An entry is keyed by signature and remembers the public key and signed data it
+ * was verified against. A lookup only hits if all three match exactly, so a
+ * valid signature replayed over altered content is never trusted.
+ *
+ * Only successful verifications are recorded. This class is thread-safe.
+ */
+public class VerifiedSignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final LinkedHashMap<ByteArrayKey, VerifiedEntry> mEntries;
+
+    private final AtomicLong mHits   = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public VerifiedSignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public VerifiedSignatureCache(final int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+
+        mEntries = new LinkedHashMap<ByteArrayKey, VerifiedEntry>(capacity, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayKey, VerifiedEntry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return whether signature was previously recorded as a valid signature
+     * by public_key over the first message_len bytes of message
+     */
+    public boolean isVerified(@NonNull byte[] public_key, @NonNull byte[] signature,
+                              @NonNull byte[] message, int message_len) {
+        VerifiedEntry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(new ByteArrayKey(signature));
+        }
+
+        if (entry != null && entry.matches(public_key, message, message_len)) {
+            mHits.incrementAndGet();
+            return true;
+        }
+        mMisses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record that signature is a valid signature by public_key over the
+     * first message_len bytes of message.
+     */
+    public void putVerified(@NonNull byte[] public_key, @NonNull byte[] signature,
+                            @NonNull byte[] message, int message_len) {
+        ByteArrayKey key = new ByteArrayKey(signature.clone());
+        VerifiedEntry entry = new VerifiedEntry(public_key.clone(), Arrays.copyOf(message, message_len));
+        synchronized (mEntries) {
+            mEntries.put(key, entry);
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    private static class VerifiedEntry {
+        private final byte[] mPublicKey;
+        private final byte[] mSignedData;
+
+        VerifiedEntry(byte[] publicKey, byte[] signedData) {
+            mPublicKey  = publicKey;
+            mSignedData = signedData;
+        }
+
+        boolean matches(byte[] publicKey, byte[] message, int message_len) {
+            if (message_len != mSignedData.length || message.length < message_len) return false;
+            if (!Arrays.equals(mPublicKey, publicKey)) return false;
+
+            for (int x = 0; x < message_len; x++) {
+                if (mSignedData[x] != message[x]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package pro.dbro.ble.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.Protocol;
+
+/**
+ * Runs {@link DataStore} calls off the calling thread, so disk I/O blocks neither packet
+ * handling nor frames.
+ *
+ * Writes run in submission order on a single writer thread, as SQLite admits one writer at
+ * a time regardless. Reads run on a small pool, concurrently with writes under write-ahead
+ * logging. A read may therefore complete before a write submitted earlier; wait on the write's
+ * {@link Future} first to read it back. The threads are shared by every instance, as every
+ * store shares one database.
+ *
+ * Results may also be delivered to a {@link Callback} on the main thread. Failures are logged
+ * and rethrown from the Future, and delivered only to a {@link FailureCallback}.
+ */
+public class AsyncDataStore {
+    private static final String TAG = "AsyncDataStore";
+
+    private static final int READER_THREADS = 2;
+
+    public interface Callback<T> {
+        void onResult(@Nullable T result);
+    }
+
+    /**
+     * A {@link Callback} also told of failure, e.g: to clear state set while the call was pending
+     */
+    public interface FailureCallback<T> extends Callback<T> {
+        void onFailure(@NonNull Exception e);
+    }
+
+    private static final ExecutorService sWriter  = Executors.newSingleThreadExecutor(new StoreThreadFactory("DataStoreWriter"));
+    private static final ExecutorService sReaders = Executors.newFixedThreadPool(READER_THREADS, new StoreThreadFactory("DataStoreReader"));
+
+    private final DataStore mDataStore;
+    private final Handler   mCallbackHandler = new Handler(Looper.getMainLooper());
+
+    public AsyncDataStore(@NonNull DataStore dataStore) {
+        mDataStore = dataStore;
+    }
+
+    /**
+     * @return the store wrapped, for calls that must complete before the caller continues
+     */
+    public DataStore getDataStore() {
+        return mDataStore;
+    }
+
+    // <editor-fold desc="Submission">
+
+    public <T> Future<T> read(@NonNull Callable<T> query) {
+        return read(query, null);
+    }
+
+    public <T> Future<T> read(@NonNull Callable<T> query, @Nullable Callback<T> callback) {
+        return sReaders.submit(new Task<>(query, callback));
+    }
+
+    public <T> Future<T> write(@NonNull Callable<T> update) {
+        return write(update, null);
+    }
+
+    public <T> Future<T> write(@NonNull Callable<T> update, @Nullable Callback<T> callback) {
+        return sWriter.submit(new Task<>(update, callback));
+    }
+
+    /**
+     * Wait for a submitted call, e.g: a write that a synchronous read must observe.
+     * Interruption is restored
+     *
+     * @return whether the call completed. If not, it failed, and was logged, or the wait was interrupted
+     */
+    public static boolean await(@NonNull Future<?> future) {
+        try {
+            future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Logged by Task
+            return false;
+        }
+    }
+
+    // </editor-fold desc="Submission">
+
+    // <editor-fold desc="Writes">
+
+    public Future<Message> createOrUpdateMessageWithProtocolMessage(@NonNull final MessagePacket messagePacket,
+                                                                    @Nullable Callback<Message> callback) {
+        return write(new Callable<Message>() {
+            @Override
+            public Message call() {
+                return mDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket);
+            }
+        }, callback);
+    }
+
+    public Future<Peer> createLocalPeerWithAlias(@NonNull final String alias, @Nullable final Protocol protocol,
+                                                 @Nullable Callback<Peer> callback) {
+        return write(new Callable<Peer>() {
+            @Override
+            public Peer call() {
+                return mDataStore.createLocalPeerWithAlias(alias, protocol);
+            }
+        }, callback);
+    }
+
+    /**
+     * messages is copied, so the caller may reuse it immediately
+     */
+    public Future<Void> markMessagesDeliveredToPeer(@NonNull List<MessagePacket> messages,
+                                                    @NonNull final IdentityPacket recipient) {
+        final List<MessagePacket> deliveries = new ArrayList<>(messages);
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDataStore.markMessagesDeliveredToPeer(deliveries, recipient);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * payloadIdentities is copied, so the caller may reuse it immediately
+     */
+    public Future<Void> markIdentitiesDeliveredToPeer(@NonNull List<IdentityPacket> payloadIdentities,
+                                                      @NonNull final IdentityPacket recipient) {
+        final List<IdentityPacket> deliveries = new ArrayList<>(payloadIdentities);
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDataStore.markIdentitiesDeliveredToPeer(deliveries, recipient);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> saveMessageFilter() {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDataStore.saveMessageFilter();
+                return null;
+            }
+        });
+    }
+
+    // </editor-fold desc="Writes">
+
+    // <editor-fold desc="Reads">
+
+    public Future<Peer> getPeerById(final int id, @Nullable Callback<Peer> callback) {
+        return read(new Callable<Peer>() {
+            @Override
+            public Peer call() {
+                return mDataStore.getPeerById(id);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> countPeers(@Nullable Callback<Integer> callback) {
+        return read(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDataStore.countPeers();
+            }
+        }, callback);
+    }
+
+    public Future<Integer> countMessagesPassed(@Nullable Callback<Integer> callback) {
+        return read(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDataStore.countMessagesPassed();
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link DataStore#getMessagesReceivedBefore(Peer, long, int, int)}
+     */
+    public Future<MessageCollection> getMessagesReceivedBefore(@Nullable final Peer author, final long beforeReceivedMillis,
+                                                               final int beforeId, final int limit,
+                                                               @Nullable Callback<MessageCollection> callback) {
+        return read(new Callable<MessageCollection>() {
+            @Override
+            public MessageCollection call() {
+                return fill(mDataStore.getMessagesReceivedBefore(author, beforeReceivedMillis, beforeId, limit));
+            }
+        }, callback);
+    }
+
+    /**
+     * See {@link DataStore#getMessagesReceivedAfter(Peer, long, int)}
+     */
+    public Future<MessageCollection> getMessagesReceivedAfter(@Nullable final Peer author, final long afterReceivedMillis,
+                                                              final int afterId,
+                                                              @Nullable Callback<MessageCollection> callback) {
+        return read(new Callable<MessageCollection>() {
+            @Override
+            public MessageCollection call() {
+                return fill(mDataStore.getMessagesReceivedAfter(author, afterReceivedMillis, afterId));
+            }
+        }, callback);
+    }
+
+    // </editor-fold desc="Reads">
+
+    /**
+     * Cursors run their query when first counted or moved. Do so here, rather than on the
+     * thread the cursor is handed to
+     */
+    @Nullable
+    private static MessageCollection fill(@Nullable MessageCollection messages) {
+        if (messages != null) messages.getCursor().getCount();
+        return messages;
+    }
+
+    private class Task<T> implements Callable<T> {
+        private final Callable<T> mCall;
+        private final Callback<T> mCallback;
+
+        Task(Callable<T> call, @Nullable Callback<T> callback) {
+            mCall     = call;
+            mCallback = callback;
+        }
+
+        @Override
+        public T call() throws Exception {
+            final T result;
+            try {
+                result = mCall.call();
+            } catch (final Exception e) {
+                Log.e(TAG, "DataStore call failed", e);
+                if (mCallback instanceof FailureCallback) {
+                    mCallbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            ((FailureCallback<T>) mCallback).onFailure(e);
+                        }
+                    });
+                }
+                throw e;
+            }
+
+            if (mCallback != null) {
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onResult(result);
+                    }
+                });
+            }
+            return result;
+        }
+    }
+
+    private static class StoreThreadFactory implements ThreadFactory {
+        private final String mName;
+        private int mCount = 0;
+
+        StoreThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -3,24 +3,26 @@ package pro.dbro.ble.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 import pro.dbro.ble.crypto.KeyPair;
 import pro.dbro.ble.crypto.SodiumShaker;
 import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.ChatDatabase;
 import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.IdentityDeliveryTable;
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.MessageCollection;
-import pro.dbro.ble.data.model.MessageDeliveryTable;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
 import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.MessageTombstoneTable;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.data.model.PeerTable;
 import pro.dbro.ble.protocol.IdentityPacket;
@@ -39,27 +41,61 @@ import pro.dbro.ble.protocol.Protocol;
 public class ContentProviderStore extends DataStore {
     public static final String TAG = "DataManager";
 
-    public ContentProviderStore(Context context) {
-        super(context);
-    }
+    /** Selects messages whose version byte is at most the hex-encoded version argument */
+    static final String PROTOCOL_VERSION_AT_MOST = "hex(substr(" + MessageTable.rawPacket + ", 1, 1)) <= ?";
 
-    @Override
-    public void markMessageDeliveredToPeer(@NonNull MessagePacket messagePacket, @NonNull IdentityPacket recipientPacket) {
-        Message message = getMessageBySignature(messagePacket.signature);
-        Peer recipient = getPeerByPubKey(recipientPacket.publicKey);
+    /**
+     * Selects peers not yet delivered to a recipient. The argument is the recipient id.
+     * The anti-join is served by the p_dlvry (pr_id, pp_id) index
+     */
+    static final String OUTGOING_IDENTITIES_SELECTION =
+            "NOT EXISTS (SELECT 1 FROM " + ChatDatabase.DELIVERED_IDENTITIES +
+            " WHERE " + IdentityDeliveryTable.peerRecipientId + " = ? AND " +
+                        IdentityDeliveryTable.peerPayloadId + " = " + ChatDatabase.PEERS + "." + PeerTable.id + ")";
 
-        if (message == null || recipient == null) {
-            Log.w(TAG, "Unable to record message delivery. No peer or message database id available");
-            return;
-        }
+    /**
+     * Selects remote peers last seen before the argument, in epoch millis, that authored no stored
+     * messages. The anti-join is served by the msgs (p_id, recv_date) index
+     */
+    static final String STALE_PEERS_SELECTION =
+            PeerTable.secKey + " IS NULL AND " + PeerTable.lastSeenDate + " < ?" +
+            " AND NOT EXISTS (SELECT 1 FROM " + ChatDatabase.MESSAGES +
+            " WHERE " + MessageTable.peerId + " = " + ChatDatabase.PEERS + "." + PeerTable.id + ")";
 
-        ContentValues delivery = new ContentValues();
-        delivery.put(MessageDeliveryTable.messageId, message.getId());
-        delivery.put(MessageDeliveryTable.peerId, recipient.getId());
+    /**
+     * Selects up to the second argument of the oldest messages with ids below the first argument
+     */
+    static final String OLDEST_MESSAGES_BEFORE_SELECTION =
+            MessageTable.id + " IN (SELECT " + MessageTable.id + " FROM " + ChatDatabase.MESSAGES +
+            " WHERE " + MessageTable.id + " < ? ORDER BY " + MessageTable.id + " LIMIT ?)";
+
+    /**
+     * Selects every tombstone but the argument count most recently dated
+     */
+    static final String OLDEST_TOMBSTONES_BEYOND_SELECTION =
+            MessageTombstoneTable.signature + " IN (SELECT " + MessageTombstoneTable.signature +
+            " FROM " + ChatDatabase.MESSAGE_TOMBSTONES + " ORDER BY " + MessageTombstoneTable.deletedDate +
+            " DESC LIMIT -1 OFFSET ?)";
+
+    /**
+     * Selects messages received before a message. Arguments are its received date, twice, then its id.
+     * The first term is a range of the msgs (recv_date) or (p_id, recv_date) index, whose rowids break ties
+     */
+    static final String RECEIVED_BEFORE_SELECTION =
+            MessageTable.receivedDate + " <= ? AND (" + MessageTable.receivedDate + " < ? OR " + MessageTable.id + " < ?)";
+
+    /**
+     * Selects messages received after a message. Arguments are its received date, twice, then its id
+     */
+    static final String RECEIVED_AFTER_SELECTION =
+            MessageTable.receivedDate + " >= ? AND (" + MessageTable.receivedDate + " > ? OR " + MessageTable.id + " > ?)";
 
-        mContext.getContentResolver().insert(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES, delivery);
-        Log.i(TAG, "Recorded message delivery");
-        message.close();
+    /** Most recently received first. Equal dates are ordered by id, making the order total */
+    static final String RECENT_MESSAGES_ORDER =
+            MessageTable.receivedDate + " DESC, " + MessageTable.id + " DESC";
+
+    public ContentProviderStore(Context context) {
+        super(context);
     }
 
     @Override
@@ -76,8 +112,38 @@ public class ContentProviderStore extends DataStore {
         delivery.put(IdentityDeliveryTable.peerPayloadId, payloadPeer.getId());
         delivery.put(IdentityDeliveryTable.peerRecipientId, recipientPeer.getId());
 
-        mContext.getContentResolver().insert(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, delivery);
-        Log.i(TAG, "Recorded identity delivery");
+        try {
+            mContext.getContentResolver().insert(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, delivery);
+            Log.i(TAG, "Recorded identity delivery");
+        } catch (SQLException e) {
+            // The p_dlvry_pair index rejects deliveries already recorded
+            Log.d(TAG, "Identity delivery already recorded");
+        }
+    }
+
+    @Override
+    public void markIdentitiesDeliveredToPeer(@NonNull List<IdentityPacket> payloadIdentities, @NonNull IdentityPacket recipientIdentity) {
+        Peer recipient = getPeerByPubKey(recipientIdentity.publicKey);
+        if (payloadIdentities.size() == 0 || recipient == null) return;
+
+        List<byte[]> publicKeys = new ArrayList<>(payloadIdentities.size());
+        for (IdentityPacket payloadIdentity : payloadIdentities) {
+            publicKeys.add(payloadIdentity.publicKey);
+        }
+        List<Integer> payloadIds = queryIds(ChatContentProvider.Peers.PEERS, PeerTable.id,
+                whereBlobIn(PeerTable.pubKey, publicKeys), null);
+
+        payloadIds.removeAll(queryIds(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, IdentityDeliveryTable.peerPayloadId,
+                IdentityDeliveryTable.peerRecipientId + " = ? AND " + whereIn(IdentityDeliveryTable.peerPayloadId, payloadIds),
+                new String[] {String.valueOf(recipient.getId())}));
+
+        ContentValues[] deliveries = new ContentValues[payloadIds.size()];
+        for (int x = 0; x < deliveries.length; x++) {
+            deliveries[x] = new ContentValues();
+            deliveries[x].put(IdentityDeliveryTable.peerPayloadId, payloadIds.get(x));
+            deliveries[x].put(IdentityDeliveryTable.peerRecipientId, recipient.getId());
+        }
+        bulkInsertDeliveries(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, deliveries);
     }
 
     @Nullable
@@ -88,7 +154,7 @@ public class ContentProviderStore extends DataStore {
         dbEntry.put(PeerTable.pubKey, keyPair.publicKey);
         dbEntry.put(PeerTable.secKey, keyPair.secretKey);
         dbEntry.put(PeerTable.alias, alias);
-        dbEntry.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        dbEntry.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         if (protocol != null) {
             // If protocol is available, use it to cache the Identity packet for transmission
             dbEntry.put(PeerTable.rawPkt, protocol.serializeIdentity(
@@ -119,40 +185,19 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
-    @Nullable
-    @Override
-    public List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages) {
-        // TODO : Don't send messages past a certain age etc?
-        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES, null, null, null, null);
-        if (messagesCursor != null) {
-            List<MessagePacket> messagesToSend = new ArrayList<>();
-            while (messagesCursor.moveToNext()) {
-                Message individualMessage = new Message(messagesCursor);
-                if (!haveDeliveredMessageToPeer(individualMessage, recipient)) {
-                    messagesToSend.add(individualMessage.getProtocolMessage(this));
-                    if (messagesToSend.size() > maxMessages) break;
-                }
-            }
-
-            messagesCursor.close();
-            return messagesToSend;
-        }
-        return null;
-    }
-
     @Override
     public List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
         // TODO : Don't send identities past a certain age etc?
-        Cursor identitiesCursor = mContext.getContentResolver().query(ChatContentProvider.Peers.PEERS, null, null, null, null);
+        Cursor identitiesCursor = mContext.getContentResolver().query(ChatContentProvider.Peers.PEERS,
+                null,
+                OUTGOING_IDENTITIES_SELECTION,
+                new String[] {String.valueOf(recipient.getId())},
+                PeerTable.id + " ASC LIMIT " + maxIdentities);
+
         if (identitiesCursor != null) {
-            List<IdentityPacket> identitiesToSend = new ArrayList<>();
+            List<IdentityPacket> identitiesToSend = new ArrayList<>(identitiesCursor.getCount());
             while (identitiesCursor.moveToNext()) {
-                Peer payloadPeer = new Peer(identitiesCursor);
-                if (!haveDeliveredPeerIdentityToPeer(payloadPeer, recipient)) {
-                    identitiesToSend.add(payloadPeer.getIdentity());
-                    if (identitiesToSend.size() > maxIdentities) break;
-                }
-
+                identitiesToSend.add(new Peer(identitiesCursor).getIdentity());
             }
 
             identitiesCursor.close();
@@ -189,16 +234,57 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
+    @Override
+    public MessageCollection getMessagesReceivedBefore(@Nullable Peer author, long beforeReceivedMillis, int beforeId, int limit) {
+        return queryMessageList(mContext, author, RECEIVED_BEFORE_SELECTION, beforeReceivedMillis, beforeId,
+                RECENT_MESSAGES_ORDER + " LIMIT " + limit);
+    }
+
+    @Override
+    public MessageCollection getMessagesReceivedAfter(@Nullable Peer author, long afterReceivedMillis, int afterId) {
+        return queryMessageList(mContext, author, RECEIVED_AFTER_SELECTION, afterReceivedMillis, afterId,
+                RECENT_MESSAGES_ORDER);
+    }
+
+    /**
+     * Query {@link #MESSAGE_LIST_COLUMNS} through the provider, so the cursor is notified of changes.
+     * Shared with {@link SQLiteStore}
+     *
+     * @param keySelection {@link #RECEIVED_BEFORE_SELECTION} or {@link #RECEIVED_AFTER_SELECTION}
+     */
+    @Nullable
+    static MessageCollection queryMessageList(Context context, @Nullable Peer author,
+                                              String keySelection, long receivedMillis, int id,
+                                              String sortOrder) {
+        String selection = keySelection;
+        String[] selectionArgs = new String[] {String.valueOf(receivedMillis), String.valueOf(receivedMillis), String.valueOf(id)};
+        if (author != null) {
+            selection = MessageTable.peerId + " = ? AND " + keySelection;
+            selectionArgs = new String[] {String.valueOf(author.getId()), selectionArgs[0], selectionArgs[1], selectionArgs[2]};
+        }
+
+        Cursor messagesCursor = context.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                MESSAGE_LIST_COLUMNS,
+                selection,
+                selectionArgs,
+                sortOrder);
+
+        if (messagesCursor != null) {
+            return new MessageCollection(messagesCursor);
+        }
+        return null;
+    }
+
     @Nullable
     @Override
-    public Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket remoteIdentityPacket) {
+    protected Peer writeRemotePeer(@NonNull IdentityPacket remoteIdentityPacket) {
         // Query if peer exists
-        Peer peer = getPeerByPubKey(remoteIdentityPacket.publicKey);
+        Peer peer = loadPeerByPubKey(remoteIdentityPacket.publicKey);
 
         ContentValues peerValues = new ContentValues();
-        peerValues.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        peerValues.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         peerValues.put(PeerTable.pubKey, remoteIdentityPacket.publicKey);
-        peerValues.put(PeerTable.alias, remoteIdentityPacket.alias);
+        peerValues.put(PeerTable.alias, remoteIdentityPacket.getAlias());
         peerValues.put(PeerTable.rawPkt, remoteIdentityPacket.rawPacket);
 
         if (peer != null) {
@@ -208,11 +294,12 @@ public class ContentProviderStore extends DataStore {
             int updated = mContext.getContentResolver().update(
                     ChatContentProvider.Peers.PEERS,
                     peerValues,
-                    "quote("+ PeerTable.pubKey + ") = ?" ,
-                    new String[] {DataUtil.bytesToHex(remoteIdentityPacket.publicKey)});
+                    whereBlobEquals(PeerTable.pubKey, remoteIdentityPacket.publicKey),
+                    null);
             if (updated != 1) {
                 Log.e(TAG, "Failed to update peer last seen");
             }
+            peer = loadPeerById(peer.getId());
         } else {
             // Peer does not exist. Create.
             Uri peerUri = mContext.getContentResolver().insert(
@@ -220,7 +307,7 @@ public class ContentProviderStore extends DataStore {
                     peerValues);
 
             // Fetch newly created peer
-            peer = getPeerById(Integer.parseInt(peerUri.getLastPathSegment()));
+            peer = loadPeerById(Integer.parseInt(peerUri.getLastPathSegment()));
             Log.i(TAG, String.format("Created new peer %d for pubkey %s", Integer.parseInt(peerUri.getLastPathSegment()), DataUtil.bytesToHex(remoteIdentityPacket.publicKey)));
 
             if (peer == null) {
@@ -232,26 +319,26 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket) {
+    protected Message writeMessage(@NonNull MessagePacket protocolMessagePacket) {
         // Query if peer exists
         Peer peer = getPeerByPubKey(protocolMessagePacket.sender.publicKey);
 
         if (peer == null)
             throw new IllegalStateException("Failed to get peer for message");
 
-        // See if message exists
+        // See if message exists. New messages are usually answered by the message filter
         Message message = getMessageBySignature(protocolMessagePacket.signature);
         if (message == null) {
             // Message doesn't exist in our database
 
             // Insert message into database
             ContentValues newMessageEntry = new ContentValues();
-            newMessageEntry.put(MessageTable.body, protocolMessagePacket.body);
+            newMessageEntry.put(MessageTable.body, protocolMessagePacket.getBody());
             newMessageEntry.put(MessageTable.peerId, peer.getId());
-            newMessageEntry.put(MessageTable.receivedDate, DataUtil.storedDateFormatter.format(new Date()));
-            newMessageEntry.put(MessageTable.authoredDate, DataUtil.storedDateFormatter.format(protocolMessagePacket.authoredDate));
+            newMessageEntry.put(MessageTable.receivedDate, System.currentTimeMillis());
+            newMessageEntry.put(MessageTable.authoredDate, protocolMessagePacket.getAuthoredDate().getTime());
             newMessageEntry.put(MessageTable.signature, protocolMessagePacket.signature);
-            newMessageEntry.put(MessageTable.replySig, protocolMessagePacket.replySig);
+            newMessageEntry.put(MessageTable.replySig, protocolMessagePacket.getReplySignature());
             newMessageEntry.put(MessageTable.rawPacket, protocolMessagePacket.rawPacket);
 
             Uri newMessageUri = mContext.getContentResolver().insert(
@@ -270,12 +357,12 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Message getMessageBySignature(@NonNull byte[] signature) {
+    protected Message loadMessageBySignature(@NonNull byte[] signature) {
         Cursor messageCursor = mContext.getContentResolver().query(
                 ChatContentProvider.Messages.MESSAGES,
                 null,
-                "quote(" + MessageTable.signature + ") = ?",
-                new String[] {DataUtil.bytesToHex(signature)},
+                whereBlobEquals(MessageTable.signature, signature),
+                null,
                 null);
         if (messageCursor != null && messageCursor.moveToFirst()) {
             return new Message(messageCursor);
@@ -298,12 +385,12 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Peer getPeerByPubKey(@NonNull byte[] publicKey) {
+    protected Peer loadPeerByPubKey(@NonNull byte[] publicKey) {
         Cursor peerCursor = mContext.getContentResolver().query(
                 ChatContentProvider.Peers.PEERS,
                 null,
-                "quote(" + PeerTable.pubKey + ") = ?",
-                new String[] {DataUtil.bytesToHex(publicKey)},
+                whereBlobEquals(PeerTable.pubKey, publicKey),
+                null,
                 null);
         if (peerCursor != null && peerCursor.moveToFirst()) {
             Peer peer = new Peer(peerCursor);
@@ -315,7 +402,7 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Peer getPeerById(int id) {
+    protected Peer loadPeerById(int id) {
         Cursor peerCursor = mContext.getContentResolver().query(
                 ChatContentProvider.Peers.PEERS,
                 null,
@@ -330,6 +417,57 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
+    @Override
+    protected long getMaxMessageId() {
+        Cursor maxIdCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {"MAX(" + MessageTable.id + ")"},
+                null,
+                null,
+                null);
+        long maxId = 0;
+        if (maxIdCursor != null) {
+            if (maxIdCursor.moveToFirst()) maxId = maxIdCursor.getLong(0);
+            maxIdCursor.close();
+        }
+        return maxId;
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSignaturesAfter(long messageId) {
+        return mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.signature},
+                MessageTable.id + " > ?",
+                new String[] {String.valueOf(messageId)},
+                null);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSignaturesAfter(long messageId, byte maxProtocolVersion) {
+        return mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.signature},
+                MessageTable.id + " > ? AND " + PROTOCOL_VERSION_AT_MOST,
+                new String[] {String.valueOf(messageId), String.format("%02X", maxProtocolVersion)},
+                MessageTable.id + " ASC");
+    }
+
+    @Nullable
+    @Override
+    protected Message loadMessageBySignatureBetween(@NonNull byte[] lowest, @NonNull byte[] highest) {
+        Cursor messageCursor = mContext.getContentResolver().query(
+                ChatContentProvider.Messages.MESSAGES,
+                null,
+                MessageTable.signature + " BETWEEN " + DataUtil.bytesToHex(lowest) + " AND " + DataUtil.bytesToHex(highest),
+                null,
+                null);
+        if (messageCursor != null && messageCursor.moveToFirst()) {
+            return new Message(messageCursor);
+        }
+        if (messageCursor != null) messageCursor.close();
+        return null;
+    }
+
     @Override
     public int countPeers() {
         Cursor peerCursor = mContext.getContentResolver().query(
@@ -346,50 +484,226 @@ public class ContentProviderStore extends DataStore {
         return 0;
     }
 
+    @NonNull
     @Override
-    public int countMessagesPassed() {
-        Cursor deliveryCursor = mContext.getContentResolver().query(
-                ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
-                new String[] {MessageDeliveryTable.id},
+    protected Cursor queryMessageIdsFrom(int messageId, byte maxProtocolVersion, int anyVersionPeerId) {
+        return mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {MessageTable.id},
+                MessageTable.id + " >= ? AND (" + PROTOCOL_VERSION_AT_MOST + " OR " + MessageTable.peerId + " = ?)",
+                new String[] {String.valueOf(messageId), String.format("%02X", maxProtocolVersion),
+                              String.valueOf(anyVersionPeerId)},
+                MessageTable.id + " ASC");
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessagesById(@NonNull List<Integer> ids) {
+        return mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
                 null,
+                whereIn(MessageTable.id, ids),
                 null,
+                MessageTable.id + " ASC");
+    }
+
+    @Nullable
+    @Override
+    protected byte[] loadMessageDeliveries(int peerId) {
+        Cursor deliveryCursor = mContext.getContentResolver().query(
+                ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                new String[] {MessageDeliveryBitmapTable.bitmap},
+                MessageDeliveryBitmapTable.peerId + " = ?",
+                new String[] {String.valueOf(peerId)},
                 null);
+        byte[] delivered = null;
         if (deliveryCursor != null) {
-            int result = deliveryCursor.getCount();
+            if (deliveryCursor.moveToFirst()) delivered = deliveryCursor.getBlob(0);
             deliveryCursor.close();
-            return result;
         }
-        return 0;
+        return delivered;
     }
 
-    /** Utility */
+    @Override
+    protected void writeMessageDeliveries(int peerId, @NonNull byte[] delivered) {
+        ContentValues deliveryValues = new ContentValues();
+        deliveryValues.put(MessageDeliveryBitmapTable.bitmap, delivered);
+
+        int updated = mContext.getContentResolver().update(
+                ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                deliveryValues,
+                MessageDeliveryBitmapTable.peerId + " = ?",
+                new String[] {String.valueOf(peerId)});
+        if (updated == 0) {
+            deliveryValues.put(MessageDeliveryBitmapTable.peerId, peerId);
+            mContext.getContentResolver().insert(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES, deliveryValues);
+        }
+    }
 
-    private boolean haveDeliveredMessageToPeer(Message message, Peer peer) {
-        Cursor deliveryCursor = mContext.getContentResolver().query(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+    @NonNull
+    @Override
+    protected Cursor queryMessageDeliveries() {
+        return mContext.getContentResolver().query(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                new String[] {MessageDeliveryBitmapTable.peerId, MessageDeliveryBitmapTable.bitmap},
+                null,
                 null,
-                MessageDeliveryTable.messageId + " = ? AND " + MessageDeliveryTable.peerId + " = ?",
-                new String[]{String.valueOf(message.getId()), String.valueOf(peer.getId())},
                 null);
-        try {
-            return deliveryCursor != null && deliveryCursor.moveToFirst();
-        } finally {
-            if (deliveryCursor != null) deliveryCursor.close();
-        }
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSizesNewestFirst() {
+        return mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.authoredDate, "length(" + MessageTable.rawPacket + ")"},
+                null,
+                null,
+                MessageTable.id + " DESC");
     }
 
     /**
-     * @return whether peerPayload has been delivered to peerRecipient
+     * Tombstones are inserted in their own provider transaction, before the messages are deleted
      */
-    private boolean haveDeliveredPeerIdentityToPeer(Peer peerPayload, Peer peerRecipient) {
-        Cursor deliveryCursor = mContext.getContentResolver().query(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+    @Override
+    protected int deleteMessagesBefore(int messageId, int limit, long deletedMillis) {
+        String[] args = new String[] {String.valueOf(messageId), String.valueOf(limit)};
+        Cursor signatureCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                new String[] {MessageTable.signature},
+                OLDEST_MESSAGES_BEFORE_SELECTION + " AND " + MessageTable.signature + " IS NOT NULL",
+                args,
+                null);
+        if (signatureCursor != null) {
+            ContentValues[] tombstones = new ContentValues[signatureCursor.getCount()];
+            for (int x = 0; signatureCursor.moveToNext(); x++) {
+                tombstones[x] = new ContentValues();
+                tombstones[x].put(MessageTombstoneTable.signature, signatureCursor.getBlob(0));
+                tombstones[x].put(MessageTombstoneTable.deletedDate, deletedMillis);
+            }
+            signatureCursor.close();
+            if (tombstones.length > 0)
+                mContext.getContentResolver().bulkInsert(ChatContentProvider.MessageTombstones.MESSAGE_TOMBSTONES, tombstones);
+        }
+
+        return mContext.getContentResolver().delete(ChatContentProvider.Messages.MESSAGES,
+                OLDEST_MESSAGES_BEFORE_SELECTION, args);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryTombstoneSignatures() {
+        return mContext.getContentResolver().query(ChatContentProvider.MessageTombstones.MESSAGE_TOMBSTONES,
+                new String[] {MessageTombstoneTable.signature},
+                null,
                 null,
-                IdentityDeliveryTable.peerRecipientId + " = ? AND " + IdentityDeliveryTable.peerPayloadId + " = ?",
-                new String[]{String.valueOf(peerRecipient.getId()), String.valueOf(peerPayload.getId())},
                 null);
+    }
+
+    @Override
+    protected boolean hasTombstone(@NonNull byte[] signature) {
+        Cursor tombstoneCursor = mContext.getContentResolver().query(
+                ChatContentProvider.MessageTombstones.MESSAGE_TOMBSTONES,
+                new String[] {MessageTombstoneTable.signature},
+                whereBlobEquals(MessageTombstoneTable.signature, signature),
+                null,
+                null);
+        if (tombstoneCursor == null) return false;
+        boolean found = tombstoneCursor.getCount() > 0;
+        tombstoneCursor.close();
+        return found;
+    }
+
+    @Override
+    protected int deleteTombstonesBefore(long deletedMillis) {
+        return mContext.getContentResolver().delete(ChatContentProvider.MessageTombstones.MESSAGE_TOMBSTONES,
+                MessageTombstoneTable.deletedDate + " < ?",
+                new String[] {String.valueOf(deletedMillis)});
+    }
+
+    @Override
+    protected int deleteTombstonesBeyond(int count) {
+        return mContext.getContentResolver().delete(ChatContentProvider.MessageTombstones.MESSAGE_TOMBSTONES,
+                OLDEST_TOMBSTONES_BEYOND_SELECTION,
+                new String[] {String.valueOf(count)});
+    }
+
+    /**
+     * Each table is deleted from in its own provider transaction
+     */
+    @Override
+    protected int deleteStalePeers(long lastSeenMillis) {
+        List<Integer> peerIds = queryIds(ChatContentProvider.Peers.PEERS, PeerTable.id,
+                STALE_PEERS_SELECTION, new String[] {String.valueOf(lastSeenMillis)});
+        if (peerIds.size() == 0) return 0;
+
+        mContext.getContentResolver().delete(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+                whereIn(IdentityDeliveryTable.peerRecipientId, peerIds) + " OR " +
+                whereIn(IdentityDeliveryTable.peerPayloadId, peerIds), null);
+        mContext.getContentResolver().delete(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                whereIn(MessageDeliveryBitmapTable.peerId, peerIds), null);
+        return mContext.getContentResolver().delete(ChatContentProvider.Peers.PEERS,
+                whereIn(PeerTable.id, peerIds), null);
+    }
+
+    /** Utility */
+
+    /**
+     * Insert deliveries in the provider's single bulk transaction. If a concurrent flow recorded
+     * one of them first the transaction is rolled back, so insert each individually instead.
+     */
+    private void bulkInsertDeliveries(Uri deliveriesUri, ContentValues[] deliveries) {
+        if (deliveries.length == 0) return;
         try {
-            return deliveryCursor != null && deliveryCursor.moveToFirst();
-        } finally {
-            if (deliveryCursor != null) deliveryCursor.close();
+            mContext.getContentResolver().bulkInsert(deliveriesUri, deliveries);
+            Log.i(TAG, String.format("Recorded %d deliveries", deliveries.length));
+        } catch (SQLException e) {
+            for (ContentValues delivery : deliveries) {
+                try {
+                    mContext.getContentResolver().insert(deliveriesUri, delivery);
+                } catch (SQLException duplicate) {
+                    Log.d(TAG, "Delivery already recorded");
+                }
+            }
         }
     }
+
+    private List<Integer> queryIds(Uri uri, String idColumn, String selection, String[] selectionArgs) {
+        List<Integer> ids = new ArrayList<>();
+        Cursor idCursor = mContext.getContentResolver().query(uri, new String[] {idColumn}, selection, selectionArgs, null);
+        if (idCursor != null) {
+            while (idCursor.moveToNext()) {
+                ids.add(idCursor.getInt(0));
+            }
+            idCursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * @return a selection matching column to any of values, as blob literals.
+     * See {@link #whereBlobEquals(String, byte[])}
+     */
+    private static String whereBlobIn(String column, List<byte[]> values) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int x = 0; x < values.size(); x++) {
+            if (x > 0) selection.append(", ");
+            selection.append(DataUtil.bytesToHex(values.get(x)));
+        }
+        return selection.append(')').toString();
+    }
+
+    static String whereIn(String column, List<Integer> ids) {
+        StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int x = 0; x < ids.size(); x++) {
+            if (x > 0) selection.append(", ");
+            selection.append(ids.get(x));
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * @return a selection comparing column to value as a blob literal. Unlike comparing
+     * quote(column) to a string argument, this lets SQLite use column's index.
+     * ContentResolver only binds String arguments, so the literal is inlined. It is always
+     * hex digits, see {@link DataUtil#bytesToHex(byte[])}
+     */
+    private static String whereBlobEquals(String column, byte[] value) {
+        return column + " = " + DataUtil.bytesToHex(value);
+    }
 }
@@ -1,17 +1,30 @@
 package pro.dbro.ble.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.MessageTable;
 import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.BLEProtocol;
 import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
 import pro.dbro.ble.protocol.MessagePacket;
 import pro.dbro.ble.protocol.Protocol;
+import pro.dbro.ble.protocol.SketchPacket;
 
 /**
  * Data persistence layer. Any data storage mechanism
@@ -20,6 +33,45 @@ import pro.dbro.ble.protocol.Protocol;
  * Created by davidbrodsky on 10/20/14.
  */
 public abstract class DataStore {
+    private static final String TAG = "DataStore";
+
+    private static final String MESSAGE_FILTER_FILENAME = "message_signatures.bloom";
+
+    /** Messages deleted per transaction, so compaction never holds the database for long */
+    private static final int COMPACTION_CHUNK_SIZE = 256;
+
+    /** Shared by every store, as they share one database */
+    private static final PeerCache sPeerCache = new PeerCache(PeerCache.DEFAULT_CAPACITY);
+
+    /** Signatures of every stored message. Loaded on first use, guarded by DataStore.class */
+    private static MessageBloomFilter sMessageFilter;
+
+    /** Sketches kept at once. Flows use one cell count, and each protocol version needs its own */
+    private static final int MAX_MESSAGE_SKETCHES = 4;
+
+    /** Sketches of the stored message set by cell count and protocol version, least recently
+     *  used first. Built on first use, guarded by DataStore.class */
+    private static final LinkedHashMap<Integer, MessageSketch> sMessageSketches =
+            new LinkedHashMap<Integer, MessageSketch>(MAX_MESSAGE_SKETCHES, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MessageSketch> eldest) {
+                    return size() > MAX_MESSAGE_SKETCHES;
+                }
+            };
+
+    /** Incremented when compaction discards the sketches, so none built meanwhile is kept */
+    private static int sMessageSketchGeneration;
+
+    /** Messages authored longer ago than this policy allows are not stored */
+    private static volatile RetentionPolicy sRetentionPolicy = RetentionPolicy.DEFAULT;
+
+    /** Serializes each read-modify-write of a peer's delivered messages */
+    private static final Object sDeliveryLock = new Object();
+
+    /** The columns shown in a message list, excluding the packet and signature blobs */
+    public static final String[] MESSAGE_LIST_COLUMNS = new String[] {
+            MessageTable.id, MessageTable.peerId, MessageTable.body,
+            MessageTable.authoredDate, MessageTable.receivedDate};
 
     protected Context mContext;
 
@@ -27,36 +79,650 @@ public abstract class DataStore {
         mContext = context.getApplicationContext();
     }
 
-    public abstract void markMessageDeliveredToPeer(@NonNull MessagePacket message, @NonNull IdentityPacket recipient);
-
     public abstract void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity);
 
+    /**
+     * Record the delivery of each identity to recipient in a single commit.
+     * Deliveries already recorded, and identities or recipients not stored, are skipped.
+     */
+    public abstract void markIdentitiesDeliveredToPeer(@NonNull List<IdentityPacket> payloadIdentities, @NonNull IdentityPacket recipientIdentity);
+
     public abstract Peer createLocalPeerWithAlias(@NonNull String alias, @Nullable Protocol protocol);
 
     public abstract Peer getPrimaryLocalPeer();
 
-    public abstract List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages);
-
     public abstract List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxMessages);
 
     public abstract MessageCollection getRecentMessages();
 
     public abstract MessageCollection getRecentMessagesByPeer(@NonNull Peer author);
 
-    public abstract Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket identityPacket);
+    /**
+     * @return up to limit messages received before the message identified by beforeReceivedMillis
+     * and beforeId, most recently received first. Pass {@link Long#MAX_VALUE} and {@link Integer#MAX_VALUE}
+     * for the most recent messages. Only {@link #MESSAGE_LIST_COLUMNS} are read.
+     * @param author the author of the messages, or null for messages by any peer
+     */
+    public abstract MessageCollection getMessagesReceivedBefore(@Nullable Peer author, long beforeReceivedMillis, int beforeId, int limit);
+
+    /**
+     * @return the messages received after the message identified by afterReceivedMillis and afterId,
+     * most recently received first. Only {@link #MESSAGE_LIST_COLUMNS} are read.
+     * @param author the author of the messages, or null for messages by any peer
+     */
+    public abstract MessageCollection getMessagesReceivedAfter(@Nullable Peer author, long afterReceivedMillis, int afterId);
 
-    public abstract Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket);
+    /**
+     * Store identityPacket, refreshing any cached snapshot of its peer
+     */
+    @Nullable
+    public Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket identityPacket) {
+        int generation = sPeerCache.invalidate(identityPacket.publicKey);
+        Peer peer = writeRemotePeer(identityPacket);
+        if (peer != null) sPeerCache.put(peer, generation);
+        return peer;
+    }
 
-    public abstract Message getMessageBySignature(@NonNull byte[] signature);
+    /**
+     * Store protocolMessagePacket, unless it was authored before the retention policy's max age
+     * or was deleted by compaction. See {@link #setRetentionPolicy(RetentionPolicy)}
+     * @return the stored message, or null if it is not stored
+     */
+    @Nullable
+    public Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket) {
+        if (!sRetentionPolicy.admits(protocolMessagePacket.getAuthoredDate().getTime(), System.currentTimeMillis()) ||
+            wasMessageDeleted(protocolMessagePacket.signature))
+            return null;
+
+        Message message = writeMessage(protocolMessagePacket);
+        if (message != null) {
+            getMessageFilter().add(protocolMessagePacket.signature, message.getId());
+            addToMessageSketches(protocolMessagePacket, message.getId());
+        }
+        return message;
+    }
+
+    /**
+     * @return the message with signature. Messages certainly not stored are answered
+     * without a query, see {@link #mightHaveMessage(byte[])}
+     */
+    @Nullable
+    public Message getMessageBySignature(@NonNull byte[] signature) {
+        if (!mightHaveMessage(signature)) return null;
+        return loadMessageBySignature(signature);
+    }
+
+    /**
+     * @return false if no message with signature is stored. True if one probably is
+     */
+    public boolean mightHaveMessage(@NonNull byte[] signature) {
+        return getMessageFilter().mightContain(signature);
+    }
+
+    /**
+     * @return whether a message with signature was deleted by compaction within the retention
+     * policy's max age. Peers may still hold such messages, but they are not stored again
+     */
+    public boolean wasMessageDeleted(@NonNull byte[] signature) {
+        // The filter also holds the signatures of deleted messages, and answers for most new messages
+        return mightHaveMessage(signature) && hasTombstone(signature);
+    }
+
+    /**
+     * @return the signature of every message deleted by compaction within the retention
+     * policy's max age, see {@link #wasMessageDeleted(byte[])}
+     */
+    public List<byte[]> getDeletedMessageSignatures() {
+        Cursor signatureCursor = queryTombstoneSignatures();
+        List<byte[]> signatures = new ArrayList<>(signatureCursor.getCount());
+        while (signatureCursor.moveToNext()) {
+            signatures.add(signatureCursor.getBlob(0));
+        }
+        signatureCursor.close();
+        return signatures;
+    }
+
+    /**
+     * Set the policy messages are stored under. Shared by every store, as they share one database
+     */
+    public void setRetentionPolicy(@NonNull RetentionPolicy policy) {
+        sRetentionPolicy = policy;
+    }
+
+    /**
+     * Save the signature filter, so it need only be caught up with messages stored after
+     * now when next loaded. Messages stored but not yet saved are never missed, only re-read.
+     */
+    public void saveMessageFilter() {
+        try {
+            getMessageFilter().writeTo(getMessageFilterFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save message filter", e);
+        }
+    }
 
     public abstract Message getMessageById(int id);
 
-    public abstract Peer getPeerByPubKey(@NonNull byte[] publicKey);
+    /**
+     * @return a snapshot of the peer with publicKey, read through a cache shared by every store
+     */
+    @Nullable
+    public Peer getPeerByPubKey(@NonNull byte[] publicKey) {
+        Peer peer = sPeerCache.get(publicKey);
+        if (peer == null) {
+            int generation = sPeerCache.getGeneration();
+            peer = loadPeerByPubKey(publicKey);
+            if (peer != null) sPeerCache.put(peer, generation);
+        }
+        return peer;
+    }
 
-    public abstract Peer getPeerById(int id);
+    /**
+     * @return a snapshot of the peer with id, read through a cache shared by every store
+     */
+    @Nullable
+    public Peer getPeerById(int id) {
+        Peer peer = sPeerCache.get(id);
+        if (peer == null) {
+            int generation = sPeerCache.getGeneration();
+            peer = loadPeerById(id);
+            if (peer != null) sPeerCache.put(peer, generation);
+        }
+        return peer;
+    }
 
     public abstract int countPeers();
 
-    public abstract int countMessagesPassed();
+    /**
+     * @return the number of message deliveries recorded, across all peers
+     */
+    public int countMessagesPassed() {
+        int count = 0;
+        Cursor deliveries = queryMessageDeliveries();
+        while (deliveries.moveToNext()) {
+            count += DeliveryBitmap.getCardinality(deliveries.getBlob(1));
+        }
+        deliveries.close();
+        return count;
+    }
+
+    // <editor-fold desc="Message Deliveries">
+
+    public void markMessageDeliveredToPeer(@NonNull MessagePacket message, @NonNull IdentityPacket recipient) {
+        markMessagesDeliveredToPeer(Collections.singletonList(message), recipient);
+    }
+
+    /**
+     * Record the delivery of each message to recipient in a single write.
+     * Deliveries already recorded, and messages or recipients not stored, are skipped.
+     */
+    public void markMessagesDeliveredToPeer(@NonNull List<MessagePacket> messages, @NonNull IdentityPacket recipient) {
+        Peer recipientPeer = getPeerByPubKey(recipient.publicKey);
+        if (messages.size() == 0 || recipientPeer == null) return;
+
+        synchronized (sDeliveryLock) {
+            DeliveryBitmap delivered = DeliveryBitmap.fromBytes(loadMessageDeliveries(recipientPeer.getId()));
+            int recorded = 0;
+            for (MessagePacket message : messages) {
+                long messageId = getMessageIdBySignature(message.signature);
+                if (messageId != -1 && delivered.add((int) messageId)) recorded++;
+            }
+
+            if (recorded > 0) {
+                writeMessageDeliveries(recipientPeer.getId(), delivered.toBytes());
+                Log.i(TAG, String.format("Recorded %d message deliveries", recorded));
+            }
+        }
+    }
+
+    /**
+     * @return the oldest stored messages not yet delivered to recipient, in the order they were stored
+     * @param maxProtocolVersion the highest protocol version recipient reads.
+     *                           Messages written in a later version are excluded.
+     */
+    @NonNull
+    public List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages, byte maxProtocolVersion) {
+        return getOutgoingMessagesForPeer(recipient, maxMessages, maxProtocolVersion, null);
+    }
+
+    /**
+     * As {@link #getOutgoingMessagesForPeer(Peer, int, byte)}, but messages by anyVersionAuthor
+     * are included whatever their version, e.g: the local peer's, which may be re-encoded
+     */
+    @NonNull
+    public List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages, byte maxProtocolVersion,
+                                                          @Nullable Peer anyVersionAuthor) {
+        DeliveryBitmap delivered;
+        synchronized (sDeliveryLock) {
+            delivered = DeliveryBitmap.fromBytes(loadMessageDeliveries(recipient.getId()));
+        }
+
+        // Deliveries are mostly a run of the oldest ids, which the scan starts after. Ids begin at 1
+        List<Integer> outgoingIds = new ArrayList<>(maxMessages);
+        Cursor ids = queryMessageIdsFrom(delivered.nextAbsent(1), maxProtocolVersion,
+                anyVersionAuthor == null ? -1 : anyVersionAuthor.getId());
+        while (outgoingIds.size() < maxMessages && ids.moveToNext()) {
+            int id = ids.getInt(0);
+            if (!delivered.contains(id)) outgoingIds.add(id);
+        }
+        ids.close();
+
+        List<MessagePacket> messagesToSend = new ArrayList<>(outgoingIds.size());
+        if (outgoingIds.size() == 0) return messagesToSend;
+
+        Cursor messagesCursor = queryMessagesById(outgoingIds);
+        // Most outgoing messages share a handful of authors
+        HashMap<Integer, IdentityPacket> senders = new HashMap<>();
+        while (messagesCursor.moveToNext()) {
+            Message individualMessage = new Message(messagesCursor);
+            IdentityPacket sender = senders.get(individualMessage.getSenderId());
+            if (sender == null) {
+                sender = getPeerById(individualMessage.getSenderId()).getIdentity();
+                senders.put(individualMessage.getSenderId(), sender);
+            }
+            messagesToSend.add(individualMessage.getProtocolMessage(sender));
+        }
+        messagesCursor.close();
+        return messagesToSend;
+    }
+
+    // </editor-fold desc="Message Deliveries">
+
+    // <editor-fold desc="Compaction">
+
+    /**
+     * Delete the messages policy no longer retains, and remote peers not seen within its
+     * max age that have no remaining messages. Messages are deleted oldest first,
+     * {@link #COMPACTION_CHUNK_SIZE} per transaction. Intended for a background thread,
+     * see {@link MessageCompactor}
+     *
+     * Each deleted message leaves a tombstone of its signature, so that copies peers still
+     * relay aren't stored again as new. Tombstones are kept for
+     * {@link RetentionPolicy#getTombstoneMaxAgeMillis()}, and at most
+     * {@link RetentionPolicy#MAX_TOMBSTONES} of the newest are kept
+     *
+     * @return the number of messages deleted
+     */
+    public int compact(@NonNull RetentionPolicy policy) {
+        long now = System.currentTimeMillis();
+
+        int firstRetainedId = findFirstRetainedMessageId(policy, now);
+        int deleted = 0;
+        int chunkDeleted;
+        do {
+            chunkDeleted = deleteMessagesBefore(firstRetainedId, COMPACTION_CHUNK_SIZE, now);
+            deleted += chunkDeleted;
+        } while (chunkDeleted == COMPACTION_CHUNK_SIZE);
+
+        int tombstonesDeleted = deleteTombstonesBefore(now - policy.getTombstoneMaxAgeMillis());
+        tombstonesDeleted += deleteTombstonesBeyond(RetentionPolicy.MAX_TOMBSTONES);
+
+        // Ids are never reused, so the deleted ids may be treated as delivered to everyone
+        if (deleted > 0) raiseDeliveryFloors(firstRetainedId);
+        if (deleted > 0 || tombstonesDeleted > 0) {
+            rebuildMessageFilter(firstRetainedId);
+            discardMessageSketches();
+        }
+
+        int peersDeleted = 0;
+        if (policy.getMaxAgeMillis() > 0) {
+            peersDeleted = deleteStalePeers(now - policy.getMaxAgeMillis());
+            if (peersDeleted > 0) sPeerCache.clear();
+        }
+
+        if (policy.shouldReclaimSpace() && (deleted > 0 || peersDeleted > 0)) reclaimSpace();
+
+        Log.i(TAG, String.format("Compaction deleted %d messages and %d peers", deleted, peersDeleted));
+        return deleted;
+    }
+
+    /**
+     * @return the lowest message id policy retains, or 0 if every message is retained.
+     * Messages are retained newest first until the count or size limit is reached. As only the
+     * oldest messages are deleted, those past the max age are deleted once every message
+     * received before them is too. As each was authored within the max age of being received,
+     * none outlives it by more than the max age
+     */
+    private int findFirstRetainedMessageId(RetentionPolicy policy, long now) {
+        if (policy.getMaxAgeMillis() == 0 && policy.getMaxMessages() == 0 && policy.getMaxBytes() == 0)
+            return 0;
+
+        int firstRetainedId = 0;
+        // The lowest id every message below which is past the max age: the oldest message that isn't
+        int firstUnexpiredId = 0;
+        int newerCount = 0;
+        long newerBytes = 0;
+        Cursor messages = queryMessageSizesNewestFirst();
+        while (messages.moveToNext()) {
+            int id = messages.getInt(0);
+            long bytes = messages.getLong(2);
+            if (!policy.retains(newerCount, newerBytes, bytes)) {
+                firstRetainedId = id + 1;
+                break;
+            }
+            if (firstUnexpiredId == 0) firstUnexpiredId = id + 1;
+            if (policy.admits(messages.getLong(1), now)) firstUnexpiredId = id;
+            newerCount++;
+            newerBytes += bytes;
+        }
+        messages.close();
+        return Math.max(firstRetainedId, firstUnexpiredId);
+    }
+
+    private void raiseDeliveryFloors(int floor) {
+        synchronized (sDeliveryLock) {
+            HashMap<Integer, byte[]> raised = new HashMap<>();
+            Cursor deliveries = queryMessageDeliveries();
+            while (deliveries.moveToNext()) {
+                DeliveryBitmap delivered = DeliveryBitmap.fromBytes(deliveries.getBlob(1));
+                if (delivered.getFloor() >= floor) continue;
+                delivered.setFloor(floor);
+                raised.put(deliveries.getInt(0), delivered.toBytes());
+            }
+            deliveries.close();
+
+            for (Map.Entry<Integer, byte[]> entry : raised.entrySet()) {
+                writeMessageDeliveries(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replace the message filter with one holding only the retained messages and current
+     * tombstones, so expired tombstones no longer cause false positives
+     */
+    private void rebuildMessageFilter(int firstRetainedId) {
+        List<byte[]> tombstones = getDeletedMessageSignatures();
+        // Leave room for twice the retained messages and tombstones
+        long retained = Math.max(0, getMaxMessageId() - firstRetainedId + 1) + tombstones.size();
+        MessageBloomFilter filter = new MessageBloomFilter((int) Math.min(Integer.MAX_VALUE, 2 * retained));
+        addMessagesAfter(filter, 0);
+        addTombstones(filter, tombstones);
+
+        synchronized (DataStore.class) {
+            // Messages stored during the scan were added to the filter being replaced
+            addMessagesAfter(filter, filter.getMaxMessageId());
+            sMessageFilter = filter;
+        }
+        saveMessageFilter();
+    }
+
+    // </editor-fold desc="Compaction">
+
+    // <editor-fold desc="Storage">
+
+    /**
+     * Insert or update the peer described by identityPacket
+     * @return the stored peer, read from storage rather than the cache
+     */
+    @Nullable
+    protected abstract Peer writeRemotePeer(@NonNull IdentityPacket identityPacket);
+
+    @Nullable
+    protected abstract Peer loadPeerByPubKey(@NonNull byte[] publicKey);
+
+    @Nullable
+    protected abstract Peer loadPeerById(int id);
+
+    /**
+     * Insert the message described by protocolMessagePacket, if not already stored
+     * @return the stored message
+     */
+    @Nullable
+    protected abstract Message writeMessage(@NonNull MessagePacket protocolMessagePacket);
+
+    @Nullable
+    protected abstract Message loadMessageBySignature(@NonNull byte[] signature);
+
+    /**
+     * @return the highest stored message id, or 0 if there are none
+     */
+    protected abstract long getMaxMessageId();
+
+    /**
+     * @return a cursor over the id and signature, in that column order, of each message
+     * with an id greater than messageId
+     */
+    @NonNull
+    protected abstract Cursor queryMessageSignaturesAfter(long messageId);
+
+    /**
+     * @return a cursor over the id and signature, in that column order, of each message
+     * with an id greater than messageId written in at most maxProtocolVersion, ascending by id
+     */
+    @NonNull
+    protected abstract Cursor queryMessageSignaturesAfter(long messageId, byte maxProtocolVersion);
+
+    /**
+     * @return a message with a signature between lowest and highest, inclusive, or null if none is stored
+     */
+    @Nullable
+    protected abstract Message loadMessageBySignatureBetween(@NonNull byte[] lowest, @NonNull byte[] highest);
+
+    /**
+     * @return the id of the message with signature, or -1 if not stored
+     */
+    protected long getMessageIdBySignature(@NonNull byte[] signature) {
+        Message message = getMessageBySignature(signature);
+        if (message == null) return -1;
+        int id = message.getId();
+        message.close();
+        return id;
+    }
+
+    /**
+     * @return a cursor over the ids, ascending, of each message with an id of at least
+     * messageId written in at most maxProtocolVersion, or by the peer anyVersionPeerId.
+     * anyVersionPeerId is -1 if no peer is excepted
+     */
+    @NonNull
+    protected abstract Cursor queryMessageIdsFrom(int messageId, byte maxProtocolVersion, int anyVersionPeerId);
+
+    /**
+     * @return a cursor over the messages with ids, ascending by id
+     */
+    @NonNull
+    protected abstract Cursor queryMessagesById(@NonNull List<Integer> ids);
+
+    /**
+     * @return the serialized {@link DeliveryBitmap} of messages delivered to peerId, or null if none are
+     */
+    @Nullable
+    protected abstract byte[] loadMessageDeliveries(int peerId);
+
+    /**
+     * Replace the serialized {@link DeliveryBitmap} of messages delivered to peerId
+     */
+    protected abstract void writeMessageDeliveries(int peerId, @NonNull byte[] delivered);
+
+    /**
+     * @return a cursor over the id and serialized {@link DeliveryBitmap}, in that column order,
+     * of every peer with deliveries recorded
+     */
+    @NonNull
+    protected abstract Cursor queryMessageDeliveries();
+
+    /**
+     * @return a cursor over the id, authored date and packet size, in that column order,
+     * of every message, descending by id
+     */
+    @NonNull
+    protected abstract Cursor queryMessageSizesNewestFirst();
+
+    /**
+     * Delete up to limit of the oldest messages with ids below messageId in one transaction,
+     * leaving a tombstone of each message's signature dated deletedMillis
+     * @return the number of messages deleted
+     */
+    protected abstract int deleteMessagesBefore(int messageId, int limit, long deletedMillis);
+
+    /**
+     * @return a cursor over the signature of every tombstone
+     */
+    @NonNull
+    protected abstract Cursor queryTombstoneSignatures();
+
+    protected abstract boolean hasTombstone(@NonNull byte[] signature);
+
+    /**
+     * Delete the tombstones of messages deleted before deletedMillis
+     * @return the number of tombstones deleted
+     */
+    protected abstract int deleteTombstonesBefore(long deletedMillis);
+
+    /**
+     * Delete all but the count most recently dated tombstones
+     * @return the number of tombstones deleted
+     */
+    protected abstract int deleteTombstonesBeyond(int count);
+
+    /**
+     * Delete remote peers last seen before lastSeenMillis that authored no stored messages,
+     * along with the deliveries recorded to and of them
+     * @return the number of peers deleted
+     */
+    protected abstract int deleteStalePeers(long lastSeenMillis);
+
+    /**
+     * Return pages freed by deletion to the file system. Stores unable to do so do nothing
+     */
+    protected void reclaimSpace() {
+    }
+
+    // </editor-fold desc="Storage">
+
+    // <editor-fold desc="Message Filter">
+
+    private MessageBloomFilter getMessageFilter() {
+        synchronized (DataStore.class) {
+            if (sMessageFilter == null) sMessageFilter = loadMessageFilter(getMessageFilterFile());
+            return sMessageFilter;
+        }
+    }
+
+    /**
+     * Read the filter saved to file and add the messages stored since it was saved. Without
+     * a usable saved filter, build one from every stored message
+     */
+    MessageBloomFilter loadMessageFilter(@NonNull File file) {
+        MessageBloomFilter filter = null;
+        try {
+            filter = MessageBloomFilter.readFrom(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read message filter", e);
+        }
+
+        // Ids only increase and tombstones keep deleted messages' ids unused, so the highest
+        // bounds the count of messages and tombstones. A filter holding higher ids was saved
+        // for a database since deleted
+        long maxMessageId = getMaxMessageId();
+        if (filter == null || filter.getMaxMessageId() > maxMessageId) {
+            filter = new MessageBloomFilter((int) maxMessageId);
+            addTombstones(filter, getDeletedMessageSignatures());
+        }
+
+        addMessagesAfter(filter, filter.getMaxMessageId());
+
+        if (filter.isSaturated()) {
+            filter = new MessageBloomFilter((int) (2 * maxMessageId));
+            addMessagesAfter(filter, 0);
+            addTombstones(filter, getDeletedMessageSignatures());
+        }
+        return filter;
+    }
+
+    /**
+     * Add tombstones without raising the filter's max message id, which tracks stored messages
+     */
+    private static void addTombstones(MessageBloomFilter filter, List<byte[]> tombstones) {
+        for (byte[] signature : tombstones) {
+            filter.add(signature, 0);
+        }
+    }
+
+    private void addMessagesAfter(MessageBloomFilter filter, long messageId) {
+        Cursor signatures = queryMessageSignaturesAfter(messageId);
+        while (signatures.moveToNext()) {
+            filter.add(signatures.getBlob(1), signatures.getLong(0));
+        }
+        signatures.close();
+    }
+
+    private File getMessageFilterFile() {
+        return new File(mContext.getFilesDir(), MESSAGE_FILTER_FILENAME);
+    }
+
+    // </editor-fold desc="Message Filter">
+
+    // <editor-fold desc="Message Sketches">
+
+    /**
+     * @return a sketch with cellCount cells of every stored message written in at most
+     * maxProtocolVersion, and every tombstone. Safe to modify. The sketch is built on first
+     * request, then kept current as messages are stored, until compaction discards it
+     */
+    @NonNull
+    public InvertibleBloomLookupTable getMessageSketch(int cellCount, byte maxProtocolVersion) {
+        int key = (cellCount << 8) | (maxProtocolVersion & 0xFF);
+        int generation;
+        synchronized (DataStore.class) {
+            MessageSketch sketch = sMessageSketches.get(key);
+            if (sketch != null) return sketch.getTable();
+            generation = sMessageSketchGeneration;
+        }
+
+        MessageSketch sketch = new MessageSketch(cellCount, maxProtocolVersion);
+        addMessagesAfter(sketch, 0);
+        for (byte[] signature : getDeletedMessageSignatures()) {
+            sketch.addTombstone(signature);
+        }
+
+        synchronized (DataStore.class) {
+            // Messages stored during the scan were added to no sketch
+            addMessagesAfter(sketch, sketch.getMaxMessageId());
+            if (generation == sMessageSketchGeneration) sMessageSketches.put(key, sketch);
+            return sketch.getTable();
+        }
+    }
+
+    /**
+     * @return the stored message with the sketch key, see {@link SketchPacket#getMessageKey(byte[])}.
+     * Keys are 64 bits of signature, so another message sharing one is vanishingly unlikely
+     */
+    @Nullable
+    public Message getMessageBySketchKey(long key) {
+        byte[][] signatureRange = SketchPacket.getSignatureRange(key);
+        return loadMessageBySignatureBetween(signatureRange[0], signatureRange[1]);
+    }
+
+    private void addToMessageSketches(@NonNull MessagePacket messagePacket, int messageId) {
+        byte version = messagePacket.rawPacket[BLEProtocol.VERSION_OFFSET];
+        synchronized (DataStore.class) {
+            for (MessageSketch sketch : sMessageSketches.values()) {
+                if (version <= sketch.maxProtocolVersion) sketch.addMessage(messageId, messagePacket.signature);
+            }
+        }
+    }
+
+    private void addMessagesAfter(MessageSketch sketch, long messageId) {
+        Cursor signatures = queryMessageSignaturesAfter(messageId, sketch.maxProtocolVersion);
+        while (signatures.moveToNext()) {
+            sketch.addMessage(signatures.getLong(0), signatures.getBlob(1));
+        }
+        signatures.close();
+    }
+
+    /**
+     * Discard every sketch, as compaction deleted messages or tombstones.
+     * Each is rebuilt when next requested
+     */
+    private static void discardMessageSketches() {
+        synchronized (DataStore.class) {
+            sMessageSketches.clear();
+            sMessageSketchGeneration++;
+        }
+    }
+
+    // </editor-fold desc="Message Sketches">
 
 }
@@ -0,0 +1,463 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ids, such as the ids of messages delivered to a peer.
+ *
+ * Ids are partitioned by their high 16 bits, roaring-style. Each partition holds its
+ * low 16 bits in a sorted array while sparse, or in a 65536 bit bitmap once dense.
+ * {@link #toBytes()} additionally run-length encodes partitions where that is smaller,
+ * which is typical as deliveries cover mostly consecutive ids.
+ *
+ * This class is not thread-safe.
+ */
+public class DeliveryBitmap {
+
+    /** Version 1 lacked the floor */
+    private static final byte FORMAT_VERSION = 2;
+
+    /** Arrays larger than this occupy more than a bitmap's 8 KB */
+    private static final int MAX_ARRAY_LENGTH = 4096;
+    private static final int BITMAP_WORDS     = 1024;
+
+    private static final byte CONTAINER_ARRAY  = 0;
+    private static final byte CONTAINER_BITMAP = 1;
+    private static final byte CONTAINER_RUNS   = 2;
+
+    /** Header: [version=1][cardinality=4][floor=4][container_count=4] */
+    private static final int HEADER_LENGTH = 13;
+
+    /** Sorted high 16 bits of each partition, parallel to {@link #mContainers} */
+    private char[]      mKeys       = new char[4];
+    private Container[] mContainers = new Container[4];
+    private int mContainerCount;
+    private int mCardinality;
+    /** Ids below this are present, but not stored */
+    private int mFloor;
+
+    /**
+     * @return the number of ids present at or above {@link #getFloor()}
+     */
+    public int getCardinality() {
+        return mCardinality;
+    }
+
+    public int getFloor() {
+        return mFloor;
+    }
+
+    /**
+     * Treat every id below floor as present, discarding those stored. Used once the
+     * ids below floor no longer exist, e.g: their messages were deleted
+     */
+    public void setFloor(int floor) {
+        if (floor <= mFloor) return;
+        mFloor = floor;
+
+        char floorKey = (char) (floor >>> 16);
+        int removed = 0;
+        while (removed < mContainerCount && mKeys[removed] < floorKey) {
+            mCardinality -= mContainers[removed].getCardinality();
+            removed++;
+        }
+        if (removed < mContainerCount && mKeys[removed] == floorKey) {
+            Container container = mContainers[removed];
+            mCardinality -= container.removeBelow((char) floor);
+            if (container.getCardinality() == 0) removed++;
+        }
+        System.arraycopy(mKeys, removed, mKeys, 0, mContainerCount - removed);
+        System.arraycopy(mContainers, removed, mContainers, 0, mContainerCount - removed);
+        Arrays.fill(mContainers, mContainerCount - removed, mContainerCount, null);
+        mContainerCount -= removed;
+    }
+
+    public boolean contains(int id) {
+        if (id < mFloor) return true;
+        int index = findContainer((char) (id >>> 16));
+        return index >= 0 && mContainers[index].contains((char) id);
+    }
+
+    /**
+     * @return whether id was added, i.e: was not already present
+     */
+    public boolean add(int id) {
+        if (id < 0) throw new IllegalArgumentException("ids must be non-negative");
+        if (id < mFloor) return false;
+
+        char key = (char) (id >>> 16);
+        int index = findContainer(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+
+        Container container = mContainers[index];
+        if (!container.add((char) id)) return false;
+
+        if (container instanceof ArrayContainer && container.getCardinality() > MAX_ARRAY_LENGTH)
+            mContainers[index] = ((ArrayContainer) container).toBitmap();
+        mCardinality++;
+        return true;
+    }
+
+    /**
+     * @return the smallest id at least fromId that is not present
+     */
+    public int nextAbsent(int fromId) {
+        int id = Math.max(fromId, mFloor);
+        while (true) {
+            int index = findContainer((char) (id >>> 16));
+            if (index < 0) return id;
+
+            int low = mContainers[index].nextAbsent((char) id);
+            if (low >= 0) return (id & 0xFFFF0000) | low;
+
+            // The rest of this partition is present
+            id = (id & 0xFFFF0000) + 0x10000;
+        }
+    }
+
+    // <editor-fold desc="Serialization">
+
+    @NonNull
+    public byte[] toBytes() {
+        int length = HEADER_LENGTH;
+        byte[] containerTypes = new byte[mContainerCount];
+        for (int x = 0; x < mContainerCount; x++) {
+            Container container = mContainers[x];
+            int runCount = container.countRuns();
+            int arrayLength  = 2 + 2 * container.getCardinality();
+            int runsLength   = 2 + 4 * runCount;
+            int bitmapLength = 8 * BITMAP_WORDS;
+
+            if (runsLength <= arrayLength && runsLength <= bitmapLength) {
+                containerTypes[x] = CONTAINER_RUNS;
+                length += 3 + runsLength;
+            } else if (arrayLength <= bitmapLength) {
+                containerTypes[x] = CONTAINER_ARRAY;
+                length += 3 + arrayLength;
+            } else {
+                containerTypes[x] = CONTAINER_BITMAP;
+                length += 3 + bitmapLength;
+            }
+        }
+
+        ByteBuffer output = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        output.put(FORMAT_VERSION);
+        output.putInt(mCardinality);
+        output.putInt(mFloor);
+        output.putInt(mContainerCount);
+        for (int x = 0; x < mContainerCount; x++) {
+            output.putChar(mKeys[x]);
+            output.put(containerTypes[x]);
+            switch (containerTypes[x]) {
+                case CONTAINER_RUNS:
+                    mContainers[x].writeRuns(output);
+                    break;
+                case CONTAINER_ARRAY:
+                    mContainers[x].writeArray(output);
+                    break;
+                default:
+                    mContainers[x].toBitmap().writeBitmap(output);
+            }
+        }
+        return output.array();
+    }
+
+    /**
+     * @param serialized the output of {@link #toBytes()}, or null for an empty bitmap
+     */
+    @NonNull
+    public static DeliveryBitmap fromBytes(@Nullable byte[] serialized) {
+        DeliveryBitmap bitmap = new DeliveryBitmap();
+        if (serialized == null || serialized.length == 0) return bitmap;
+
+        ByteBuffer input = ByteBuffer.wrap(serialized).order(ByteOrder.LITTLE_ENDIAN);
+        byte version = input.get();
+        if (version < 1 || version > FORMAT_VERSION)
+            throw new IllegalArgumentException("Unknown delivery bitmap format");
+
+        input.getInt();  // Cardinality is recounted as containers are read
+        if (version > 1) bitmap.mFloor = input.getInt();
+        int containerCount = input.getInt();
+        for (int x = 0; x < containerCount; x++) {
+            char key = input.getChar();
+            Container container;
+            switch (input.get()) {
+                case CONTAINER_RUNS:
+                    container = readRuns(input);
+                    break;
+                case CONTAINER_ARRAY:
+                    container = ArrayContainer.read(input);
+                    break;
+                case CONTAINER_BITMAP:
+                    container = BitmapContainer.read(input);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown delivery bitmap container");
+            }
+            bitmap.insertContainer(bitmap.mContainerCount, key, container);
+            bitmap.mCardinality += container.getCardinality();
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the cardinality of a serialized bitmap without reading its contents
+     */
+    public static int getCardinality(@Nullable byte[] serialized) {
+        if (serialized == null || serialized.length < 5) return 0;
+        return ByteBuffer.wrap(serialized, 1, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static Container readRuns(ByteBuffer input) {
+        int runCount = input.getChar();
+        ArrayContainer array = new ArrayContainer();
+        BitmapContainer bitmap = null;
+        for (int x = 0; x < runCount; x++) {
+            int start = input.getChar();
+            int end   = start + input.getChar();
+            for (int value = start; value <= end; value++) {
+                if (bitmap == null && array.getCardinality() == MAX_ARRAY_LENGTH) bitmap = array.toBitmap();
+                if (bitmap != null) bitmap.add((char) value);
+                else array.add((char) value);
+            }
+        }
+        return bitmap != null ? bitmap : array;
+    }
+
+    // </editor-fold desc="Serialization">
+
+    // <editor-fold desc="Private API">
+
+    private int findContainer(char key) {
+        return Arrays.binarySearch(mKeys, 0, mContainerCount, key);
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (mContainerCount == mKeys.length) {
+            mKeys       = Arrays.copyOf(mKeys, mContainerCount * 2);
+            mContainers = Arrays.copyOf(mContainers, mContainerCount * 2);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mContainerCount - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mContainerCount - index);
+        mKeys[index]       = key;
+        mContainers[index] = container;
+        mContainerCount++;
+    }
+
+    /** The low 16 bits of the ids in one partition */
+    private static abstract class Container {
+        abstract int getCardinality();
+        abstract boolean contains(char value);
+        abstract boolean add(char value);
+        /** @return the number of values removed */
+        abstract int removeBelow(char value);
+        /** @return the smallest value at least from not present, or -1 if there is none */
+        abstract int nextAbsent(char from);
+        /** @return the next present value after from, or -1. from of -1 begins the iteration */
+        abstract int nextPresent(int from);
+        abstract BitmapContainer toBitmap();
+
+        int countRuns() {
+            int runs = 0;
+            int previous = -2;
+            for (int value = nextPresent(-1); value >= 0; value = nextPresent(value)) {
+                if (value != previous + 1) runs++;
+                previous = value;
+            }
+            return runs;
+        }
+
+        /** Write [run_count=2] then [start=2][length - 1=2] per run */
+        void writeRuns(ByteBuffer output) {
+            output.putChar((char) countRuns());
+            int start = nextPresent(-1);
+            while (start >= 0) {
+                int end = start;
+                int next = nextPresent(end);
+                while (next == end + 1) {
+                    end = next;
+                    next = nextPresent(end);
+                }
+                output.putChar((char) start);
+                output.putChar((char) (end - start));
+                start = next;
+            }
+        }
+
+        /** Write [count=2][value=2, per value] */
+        void writeArray(ByteBuffer output) {
+            output.putChar((char) getCardinality());
+            for (int value = nextPresent(-1); value >= 0; value = nextPresent(value)) {
+                output.putChar((char) value);
+            }
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        private char[] mValues = new char[4];
+        private int mCount;
+
+        static ArrayContainer read(ByteBuffer input) {
+            ArrayContainer container = new ArrayContainer();
+            container.mCount  = input.getChar();
+            container.mValues = new char[Math.max(4, container.mCount)];
+            for (int x = 0; x < container.mCount; x++) {
+                container.mValues[x] = input.getChar();
+            }
+            return container;
+        }
+
+        @Override
+        int getCardinality() {
+            return mCount;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(mValues, 0, mCount, value) >= 0;
+        }
+
+        @Override
+        boolean add(char value) {
+            int index = Arrays.binarySearch(mValues, 0, mCount, value);
+            if (index >= 0) return false;
+
+            index = -index - 1;
+            if (mCount == mValues.length) mValues = Arrays.copyOf(mValues, mCount * 2);
+            System.arraycopy(mValues, index, mValues, index + 1, mCount - index);
+            mValues[index] = value;
+            mCount++;
+            return true;
+        }
+
+        @Override
+        int removeBelow(char value) {
+            int index = Arrays.binarySearch(mValues, 0, mCount, value);
+            if (index < 0) index = -index - 1;
+            System.arraycopy(mValues, index, mValues, 0, mCount - index);
+            mCount -= index;
+            return index;
+        }
+
+        @Override
+        int nextAbsent(char from) {
+            int index = Arrays.binarySearch(mValues, 0, mCount, from);
+            if (index < 0) return from;
+
+            while (index + 1 < mCount && mValues[index + 1] == mValues[index] + 1) {
+                index++;
+            }
+            return mValues[index] == 0xFFFF ? -1 : mValues[index] + 1;
+        }
+
+        @Override
+        int nextPresent(int from) {
+            if (from + 1 > 0xFFFF) return -1;
+            int index = Arrays.binarySearch(mValues, 0, mCount, (char) (from + 1));
+            if (index < 0) index = -index - 1;
+            return index < mCount ? mValues[index] : -1;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int x = 0; x < mCount; x++) {
+                bitmap.add(mValues[x]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] mWords = new long[BITMAP_WORDS];
+        private int mCount;
+
+        static BitmapContainer read(ByteBuffer input) {
+            BitmapContainer container = new BitmapContainer();
+            for (int x = 0; x < BITMAP_WORDS; x++) {
+                container.mWords[x] = input.getLong();
+                container.mCount += Long.bitCount(container.mWords[x]);
+            }
+            return container;
+        }
+
+        void writeBitmap(ByteBuffer output) {
+            for (long word : mWords) {
+                output.putLong(word);
+            }
+        }
+
+        @Override
+        int getCardinality() {
+            return mCount;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (mWords[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        boolean add(char value) {
+            long bit = 1L << value;
+            if ((mWords[value >>> 6] & bit) != 0) return false;
+            mWords[value >>> 6] |= bit;
+            mCount++;
+            return true;
+        }
+
+        @Override
+        int removeBelow(char value) {
+            int removed = 0;
+            int wordIndex = value >>> 6;
+            for (int x = 0; x < wordIndex; x++) {
+                removed += Long.bitCount(mWords[x]);
+                mWords[x] = 0;
+            }
+            long below = mWords[wordIndex] & ~(-1L << value);
+            removed += Long.bitCount(below);
+            mWords[wordIndex] &= ~below;
+            mCount -= removed;
+            return removed;
+        }
+
+        @Override
+        int nextAbsent(char from) {
+            int wordIndex = from >>> 6;
+            long word = ~mWords[wordIndex] & (-1L << from);
+            while (word == 0) {
+                if (++wordIndex == BITMAP_WORDS) return -1;
+                word = ~mWords[wordIndex];
+            }
+            return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int nextPresent(int from) {
+            int value = from + 1;
+            if (value > 0xFFFF) return -1;
+            int wordIndex = value >>> 6;
+            long word = mWords[wordIndex] & (-1L << value);
+            while (word == 0) {
+                if (++wordIndex == BITMAP_WORDS) return -1;
+                word = mWords[wordIndex];
+            }
+            return wordIndex * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+    }
+
+    // </editor-fold desc="Private API">
+}
@@ -0,0 +1,164 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over the signatures of stored messages. {@link #mightContain(byte[])}
+ * answers that a message is definitely not stored without querying the database.
+ *
+ * Ed25519 signatures are uniformly distributed, so the first 16 bytes of a signature
+ * serve directly as the two hashes combined into each of {@link #HASH_COUNT} bit indexes.
+ *
+ * The filter records the highest message id added, so a copy saved by {@link #writeTo(File)}
+ * can be caught up with messages stored after it was written. This class is thread-safe.
+ */
+class MessageBloomFilter {
+
+    public static final int HASH_COUNT = 7;
+
+    /** About a 1% false positive rate at this many messages per bit */
+    private static final int BITS_PER_MESSAGE = 10;
+
+    /** 16 KB, about a 1% false positive rate up to 13,000 messages */
+    static final int MIN_BIT_COUNT = 1 << 17;
+
+    static final int FILE_MAGIC   = 0x424c4d46;  // "BLMF"
+    static final int FILE_VERSION = 1;
+
+    private final long[] mBits;
+    private int  mMessageCount;
+    private long mMaxMessageId;
+
+    /**
+     * @param expectedMessages the number of messages the filter should hold
+     *                         before its false positive rate exceeds about 1%
+     */
+    MessageBloomFilter(int expectedMessages) {
+        this(new long[getBitCount(expectedMessages) / 64]);
+    }
+
+    private MessageBloomFilter(long[] bits) {
+        mBits = bits;
+    }
+
+    /**
+     * @return whether a message with signature may have been added.
+     * False means it certainly was not
+     */
+    synchronized boolean mightContain(@NonNull byte[] signature) {
+        long hash1 = getHash(signature, 0);
+        long hash2 = getHash(signature, 8);
+        long mask  = mBits.length * 64L - 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long index = (hash1 + i * hash2) & mask;
+            if ((mBits[(int) (index >>> 6)] & (1L << index)) == 0) return false;
+        }
+        return true;
+    }
+
+    synchronized void add(@NonNull byte[] signature, long messageId) {
+        long hash1 = getHash(signature, 0);
+        long hash2 = getHash(signature, 8);
+        long mask  = mBits.length * 64L - 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long index = (hash1 + i * hash2) & mask;
+            mBits[(int) (index >>> 6)] |= 1L << index;
+        }
+        mMessageCount++;
+        mMaxMessageId = Math.max(mMaxMessageId, messageId);
+    }
+
+    synchronized long getMaxMessageId() {
+        return mMaxMessageId;
+    }
+
+    /**
+     * @return whether the filter holds more messages than it was sized for
+     */
+    synchronized boolean isSaturated() {
+        return mMessageCount * BITS_PER_MESSAGE > mBits.length * 64L;
+    }
+
+    // <editor-fold desc="Persistence">
+
+    /**
+     * Write the filter to file, replacing it only once completely written
+     */
+    synchronized void writeTo(@NonNull File file) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            output.writeInt(FILE_MAGIC);
+            output.writeByte(FILE_VERSION);
+            output.writeByte(HASH_COUNT);
+            output.writeInt(mBits.length);
+            output.writeInt(mMessageCount);
+            output.writeLong(mMaxMessageId);
+            for (long word : mBits) {
+                output.writeLong(word);
+            }
+        } finally {
+            output.close();
+        }
+        if (!partial.renameTo(file))
+            throw new IOException("Failed to replace " + file);
+    }
+
+    /**
+     * @return the filter written to file by {@link #writeTo(File)}, or null if there is
+     * none or it was written in another format
+     */
+    @Nullable
+    static MessageBloomFilter readFrom(@NonNull File file) throws IOException {
+        if (!file.exists()) return null;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != FILE_MAGIC ||
+                input.readByte() != FILE_VERSION ||
+                input.readByte() != HASH_COUNT) return null;
+
+            int wordCount = input.readInt();
+            // Word counts are powers of two, so indexes may be masked
+            if (wordCount < MIN_BIT_COUNT / 64 || Integer.bitCount(wordCount) != 1) return null;
+
+            MessageBloomFilter filter = new MessageBloomFilter(new long[wordCount]);
+            filter.mMessageCount = input.readInt();
+            filter.mMaxMessageId = input.readLong();
+            for (int x = 0; x < wordCount; x++) {
+                filter.mBits[x] = input.readLong();
+            }
+            return filter;
+        } finally {
+            input.close();
+        }
+    }
+
+    // </editor-fold desc="Persistence">
+
+    private static int getBitCount(int expectedMessages) {
+        int bitCount = MIN_BIT_COUNT;
+        while (bitCount < (long) expectedMessages * BITS_PER_MESSAGE && bitCount < (1 << 30)) {
+            bitCount <<= 1;
+        }
+        return bitCount;
+    }
+
+    private static long getHash(byte[] signature, int offset) {
+        long value = 0;
+        for (int x = 7; x >= 0; x--) {
+            value = (value << 8) | (signature[offset + x] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,82 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a {@link RetentionPolicy} by running {@link DataStore#compact(RetentionPolicy)}
+ * on a low priority background thread, shortly after {@link #schedule(DataStore, RetentionPolicy)}
+ * and every {@link #COMPACTION_INTERVAL_MS} thereafter.
+ *
+ * There is one schedule per process, as every store shares one database.
+ */
+public class MessageCompactor {
+    private static final String TAG = "MessageCompactor";
+
+    public static final long COMPACTION_INTERVAL_MS = 60 * 60 * 1000;
+
+    /** Leave application startup, and its first flows, uncontended */
+    private static final long INITIAL_DELAY_MS = 60 * 1000;
+
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private static ScheduledFuture<?> sSchedule;
+
+    /**
+     * Compact dataStore periodically according to policy, replacing any previous schedule
+     */
+    public static synchronized void schedule(@NonNull DataStore dataStore, @NonNull RetentionPolicy policy) {
+        dataStore.setRetentionPolicy(policy);
+        cancel();
+        sSchedule = sExecutor.scheduleWithFixedDelay(new Compaction(dataStore, policy),
+                INITIAL_DELAY_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void cancel() {
+        if (sSchedule != null) {
+            sSchedule.cancel(false);
+            sSchedule = null;
+        }
+    }
+
+    /**
+     * Compact dataStore once, as soon as any compaction in progress completes
+     */
+    public static void compactNow(@NonNull DataStore dataStore, @NonNull RetentionPolicy policy) {
+        sExecutor.execute(new Compaction(dataStore, policy));
+    }
+
+    private static class Compaction implements Runnable {
+        private final DataStore       mDataStore;
+        private final RetentionPolicy mPolicy;
+
+        Compaction(DataStore dataStore, RetentionPolicy policy) {
+            mDataStore = dataStore;
+            mPolicy    = policy;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mDataStore.compact(mPolicy);
+            } catch (RuntimeException e) {
+                // An exception would cancel the schedule. Try again next interval
+                Log.e(TAG, "Compaction failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.protocol.InvertibleBloomLookupTable;
+import pro.dbro.ble.protocol.SketchPacket;
+
+/**
+ * A sketch of the stored message set as a peer reading up to {@link #maxProtocolVersion} sees it:
+ * the key of every message written in that version or earlier, and of every tombstone, so the
+ * peer doesn't send back messages that were deleted. See {@link DataStore#getMessageSketch(int, byte)}
+ *
+ * As {@link MessageBloomFilter}, the sketch records the highest message id added and skips
+ * messages at or below it, so a message stored again is not added twice.
+ * Not thread-safe, guarded by DataStore.class
+ */
+class MessageSketch {
+
+    final byte maxProtocolVersion;
+
+    private final InvertibleBloomLookupTable mTable;
+    private long mMaxMessageId;
+
+    MessageSketch(int cellCount, byte maxProtocolVersion) {
+        this.maxProtocolVersion = maxProtocolVersion;
+        mTable = new InvertibleBloomLookupTable(cellCount);
+    }
+
+    /**
+     * Add the message with id, unless a message with an id at least as high was added
+     */
+    void addMessage(long id, @NonNull byte[] signature) {
+        if (id <= mMaxMessageId) return;
+
+        mTable.add(SketchPacket.getMessageKey(signature));
+        mMaxMessageId = id;
+    }
+
+    void addTombstone(@NonNull byte[] signature) {
+        mTable.add(SketchPacket.getMessageKey(signature));
+    }
+
+    long getMaxMessageId() {
+        return mMaxMessageId;
+    }
+
+    /**
+     * @return a copy of the sketch's table, safe to modify
+     */
+    @NonNull
+    InvertibleBloomLookupTable getTable() {
+        return mTable.copy();
+    }
+}
@@ -0,0 +1,91 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.util.ByteArrayKey;
+
+/**
+ * A bounded, least-recently-used cache of {@link Peer} snapshots, indexed by both
+ * database id and public key. This class is thread-safe.
+ *
+ * A snapshot read from the database may be stale by the time it is put, if the peer was
+ * written meanwhile. Callers read {@link #getGeneration()} before loading a snapshot and
+ * pass it to {@link #put(Peer, int)}, which drops the snapshot if the cache was
+ * invalidated since.
+ */
+class PeerCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<Integer, Peer> mById;
+    private final HashMap<ByteArrayKey, Peer> mByPublicKey = new HashMap<>();
+    private int mGeneration;
+
+    PeerCache(final int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+
+        mById = new LinkedHashMap<Integer, Peer>(capacity, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Peer> eldest) {
+                if (size() <= capacity) return false;
+                mByPublicKey.remove(new ByteArrayKey(eldest.getValue().getPublicKey()));
+                return true;
+            }
+        };
+    }
+
+    @Nullable
+    synchronized Peer get(int id) {
+        return mById.get(id);
+    }
+
+    @Nullable
+    synchronized Peer get(@NonNull byte[] publicKey) {
+        Peer peer = mByPublicKey.get(new ByteArrayKey(publicKey));
+        // Refresh the peer's recency
+        if (peer != null) mById.get(peer.getId());
+        return peer;
+    }
+
+    /**
+     * @return the current generation, advanced by every invalidation
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache peer, unless the cache was invalidated since generation was read
+     * @return whether peer was cached
+     */
+    synchronized boolean put(@NonNull Peer peer, int generation) {
+        if (generation != mGeneration) return false;
+
+        Peer replaced = mById.put(peer.getId(), peer);
+        if (replaced != null) mByPublicKey.remove(new ByteArrayKey(replaced.getPublicKey()));
+        mByPublicKey.put(new ByteArrayKey(peer.getPublicKey()), peer);
+        return true;
+    }
+
+    /**
+     * Remove the peer with publicKey, before it is written
+     * @return the new generation, to put the written peer with
+     */
+    synchronized int invalidate(@NonNull byte[] publicKey) {
+        Peer peer = mByPublicKey.remove(new ByteArrayKey(publicKey));
+        if (peer != null) mById.remove(peer.getId());
+        return ++mGeneration;
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mById.clear();
+        mByPublicKey.clear();
+    }
+}
@@ -0,0 +1,85 @@
+package pro.dbro.ble.data;
+
+/**
+ * Limits on the messages kept for store-and-forward. Messages are retained newest first,
+ * by order of arrival, until any limit is reached. A limit of 0 is no limit.
+ *
+ * Age is measured from when a message was authored, both when it is received and when it is
+ * compacted, so a message relayed late is kept no longer than one received as it was written.
+ */
+public class RetentionPolicy {
+
+    public static final RetentionPolicy DEFAULT = new RetentionPolicy(
+            30L * 24 * 60 * 60 * 1000,  // 30 days
+            10000,
+            16L * 1024 * 1024,          // 16 MB of message packets
+            true);
+
+    /** Tombstones are kept at most this many, and this long without a max age */
+    public static final int  MAX_TOMBSTONES               = 20000;
+    public static final long DEFAULT_TOMBSTONE_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;  // 30 days
+
+    private final long    mMaxAgeMillis;
+    private final int     mMaxMessages;
+    private final long    mMaxBytes;
+    private final boolean mReclaimSpace;
+
+    /**
+     * @param maxAgeMillis the greatest age of a message, by when it was authored.
+     *                     Remote peers not seen for as long, with no messages, are also removed
+     * @param maxMessages  the greatest number of messages
+     * @param maxBytes     the greatest total size of message packets
+     * @param reclaimSpace whether to return the pages freed by compaction to the file system
+     */
+    public RetentionPolicy(long maxAgeMillis, int maxMessages, long maxBytes, boolean reclaimSpace) {
+        if (maxAgeMillis < 0 || maxMessages < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Retention limits must be non-negative");
+
+        mMaxAgeMillis = maxAgeMillis;
+        mMaxMessages  = maxMessages;
+        mMaxBytes     = maxBytes;
+        mReclaimSpace = reclaimSpace;
+    }
+
+    public long getMaxAgeMillis() {
+        return mMaxAgeMillis;
+    }
+
+    public int getMaxMessages() {
+        return mMaxMessages;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public boolean shouldReclaimSpace() {
+        return mReclaimSpace;
+    }
+
+    /**
+     * @return how long a tombstone is kept: the max age, by when its message was authored too
+     * long ago to be stored anyway, or {@link #DEFAULT_TOMBSTONE_AGE_MILLIS} without one
+     */
+    public long getTombstoneMaxAgeMillis() {
+        return mMaxAgeMillis == 0 ? DEFAULT_TOMBSTONE_AGE_MILLIS : mMaxAgeMillis;
+    }
+
+    /**
+     * @return whether a message is retained by the count and size limits, given the count and
+     * total size of the newer messages retained and its own size. See {@link #admits(long, long)}
+     * for the age limit
+     */
+    boolean retains(int newerCount, long newerBytes, long bytes) {
+        return (mMaxMessages == 0 || newerCount < mMaxMessages) &&
+               (mMaxBytes    == 0 || newerBytes + bytes <= mMaxBytes);
+    }
+
+    /**
+     * @return whether a message authored at authoredMillis is recent enough to store, or to keep
+     * stored
+     */
+    boolean admits(long authoredMillis, long nowMillis) {
+        return mMaxAgeMillis == 0 || nowMillis - authoredMillis <= mMaxAgeMillis;
+    }
+}
@@ -0,0 +1,602 @@
+package pro.dbro.ble.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.data.model.IdentityDeliveryTable;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.MessageDeliveryBitmapTable;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.MessageTombstoneTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.Protocol;
+
+/**
+ * A {@link DataStore} writing directly to the database behind {@link ChatContentProvider},
+ * avoiding the provider's per-call IPC and cursor overhead on the packet path.
+ *
+ * The lookups and inserts made for every packet received are compiled once.
+ * Blob arguments are bound, rather than inlined as hex literals.
+ * Cursors shown in the UI are still queried through the provider so that they
+ * are registered for change notifications, which this store sends after each write.
+ *
+ * {@link SQLiteStatement}s are not thread safe, so each is used while holding its lock.
+ */
+public class SQLiteStore extends DataStore {
+    public static final String TAG = "SQLiteStore";
+
+    /** PRAGMA auto_vacuum value */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final SQLiteDatabase mDb;
+
+    private final SQLiteStatement mPeerIdByPubKey;
+    private final SQLiteStatement mMessageIdBySignature;
+    private final SQLiteStatement mMessageIdBySignatureBetween;
+    private final SQLiteStatement mTombstoneBySignature;
+    private final SQLiteStatement mInsertMessage;
+    private final SQLiteStatement mWriteMessageDeliveries;
+    private final SQLiteStatement mInsertIdentityDelivery;
+
+    public SQLiteStore(@NonNull Context context) {
+        super(context);
+        // The helper generated from ChatDatabase, shared with the content provider
+        mDb = pro.dbro.ble.schematic.ChatDatabase.getInstance(mContext).getWritableDatabase();
+
+        mPeerIdByPubKey = mDb.compileStatement(
+                "SELECT " + PeerTable.id + " FROM " + ChatDatabase.PEERS +
+                " WHERE " + PeerTable.pubKey + " = ?");
+
+        mMessageIdBySignature = mDb.compileStatement(
+                "SELECT " + MessageTable.id + " FROM " + ChatDatabase.MESSAGES +
+                " WHERE " + MessageTable.signature + " = ?");
+
+        // A range over the unique signature index
+        mMessageIdBySignatureBetween = mDb.compileStatement(
+                "SELECT " + MessageTable.id + " FROM " + ChatDatabase.MESSAGES +
+                " WHERE " + MessageTable.signature + " BETWEEN ? AND ? LIMIT 1");
+
+        mTombstoneBySignature = mDb.compileStatement(
+                "SELECT 1 FROM " + ChatDatabase.MESSAGE_TOMBSTONES +
+                " WHERE " + MessageTombstoneTable.signature + " = ?");
+
+        mInsertMessage = mDb.compileStatement(
+                "INSERT OR IGNORE INTO " + ChatDatabase.MESSAGES + " (" +
+                MessageTable.body + ", " + MessageTable.peerId + ", " + MessageTable.receivedDate + ", " +
+                MessageTable.authoredDate + ", " + MessageTable.signature + ", " + MessageTable.replySig + ", " +
+                MessageTable.rawPacket + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+
+        mWriteMessageDeliveries = mDb.compileStatement(
+                "INSERT OR REPLACE INTO " + ChatDatabase.MESSAGE_DELIVERIES + " (" +
+                MessageDeliveryBitmapTable.peerId + ", " + MessageDeliveryBitmapTable.bitmap + ") VALUES (?, ?)");
+
+        // The p_dlvry_pair unique index ignores deliveries already recorded
+        mInsertIdentityDelivery = mDb.compileStatement(
+                "INSERT OR IGNORE INTO " + ChatDatabase.DELIVERED_IDENTITIES + " (" +
+                IdentityDeliveryTable.peerPayloadId + ", " + IdentityDeliveryTable.peerRecipientId + ") VALUES (?, ?)");
+    }
+
+    @Override
+    public void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity) {
+        long payloadId = getPeerId(payloadIdentity.publicKey);
+        long recipientId = getPeerId(recipientIdentity.publicKey);
+
+        if (payloadId == -1 || recipientId == -1) {
+            Log.w(TAG, "Unable to fetch payload or recipient identity. Cannot mark identity delivered");
+            return;
+        }
+
+        if (insertPair(mInsertIdentityDelivery, payloadId, recipientId) != -1) {
+            Log.i(TAG, "Recorded identity delivery");
+            notifyChange(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES);
+        }
+    }
+
+    @Override
+    public void markIdentitiesDeliveredToPeer(@NonNull List<IdentityPacket> payloadIdentities, @NonNull IdentityPacket recipientIdentity) {
+        long recipientId = getPeerId(recipientIdentity.publicKey);
+        if (payloadIdentities.size() == 0 || recipientId == -1) return;
+
+        int recorded = 0;
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (IdentityPacket payloadIdentity : payloadIdentities) {
+                long payloadId = getPeerId(payloadIdentity.publicKey);
+                if (payloadId != -1 && insertPair(mInsertIdentityDelivery, payloadId, recipientId) != -1)
+                    recorded++;
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        if (recorded > 0) {
+            Log.i(TAG, String.format("Recorded %d identity deliveries", recorded));
+            notifyChange(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Peer createLocalPeerWithAlias(@NonNull String alias, @Nullable Protocol protocol) {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        ContentValues dbEntry = new ContentValues();
+        dbEntry.put(PeerTable.pubKey, keyPair.publicKey);
+        dbEntry.put(PeerTable.secKey, keyPair.secretKey);
+        dbEntry.put(PeerTable.alias, alias);
+        dbEntry.put(PeerTable.lastSeenDate, System.currentTimeMillis());
+        if (protocol != null) {
+            // If protocol is available, use it to cache the Identity packet for transmission
+            dbEntry.put(PeerTable.rawPkt, protocol.serializeIdentity(
+                    new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, alias, null)));
+        }
+        long id = mDb.insert(ChatDatabase.PEERS, null, dbEntry);
+        notifyChange(ChatContentProvider.Peers.PEERS);
+        return getPeerById((int) id);
+    }
+
+    @Nullable
+    @Override
+    public Peer getPrimaryLocalPeer() {
+        Cursor result = mDb.query(ChatDatabase.PEERS, null,
+                PeerTable.secKey + " IS NOT NULL", null,
+                null, null, null, "1");
+        return readPeer(result);
+    }
+
+    @Override
+    public List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
+        Cursor identitiesCursor = mDb.query(ChatDatabase.PEERS, null,
+                ContentProviderStore.OUTGOING_IDENTITIES_SELECTION,
+                new String[] {String.valueOf(recipient.getId())},
+                null, null,
+                PeerTable.id + " ASC",
+                String.valueOf(maxIdentities));
+
+        List<IdentityPacket> identitiesToSend = new ArrayList<>(identitiesCursor.getCount());
+        while (identitiesCursor.moveToNext()) {
+            identitiesToSend.add(new Peer(identitiesCursor).getIdentity());
+        }
+        identitiesCursor.close();
+        return identitiesToSend;
+    }
+
+    @Override
+    public MessageCollection getRecentMessages() {
+        // Queried through the provider so the UI is notified of new messages
+        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                null,
+                null,
+                null,
+                MessageTable.receivedDate + " DESC");
+
+        if (messagesCursor != null) {
+            return new MessageCollection(messagesCursor);
+        }
+        return null;
+    }
+
+    @Override
+    public MessageCollection getRecentMessagesByPeer(@NonNull Peer author) {
+        // Queried through the provider so the UI is notified of new messages
+        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+                null,
+                MessageTable.peerId + "=?",
+                new String[] { String.valueOf(author.getId()) },
+                MessageTable.receivedDate + " DESC");
+
+        if (messagesCursor != null) {
+            return new MessageCollection(messagesCursor);
+        }
+        return null;
+    }
+
+    @Override
+    public MessageCollection getMessagesReceivedBefore(@Nullable Peer author, long beforeReceivedMillis, int beforeId, int limit) {
+        // Queried through the provider so the UI is notified of new messages
+        return ContentProviderStore.queryMessageList(mContext, author, ContentProviderStore.RECEIVED_BEFORE_SELECTION,
+                beforeReceivedMillis, beforeId, ContentProviderStore.RECENT_MESSAGES_ORDER + " LIMIT " + limit);
+    }
+
+    @Override
+    public MessageCollection getMessagesReceivedAfter(@Nullable Peer author, long afterReceivedMillis, int afterId) {
+        return ContentProviderStore.queryMessageList(mContext, author, ContentProviderStore.RECEIVED_AFTER_SELECTION,
+                afterReceivedMillis, afterId, ContentProviderStore.RECENT_MESSAGES_ORDER);
+    }
+
+    @Nullable
+    @Override
+    protected Peer writeRemotePeer(@NonNull IdentityPacket remoteIdentityPacket) {
+        long peerId = queryIdByBlob(mPeerIdByPubKey, remoteIdentityPacket.publicKey);
+
+        ContentValues peerValues = new ContentValues();
+        peerValues.put(PeerTable.lastSeenDate, System.currentTimeMillis());
+        peerValues.put(PeerTable.pubKey, remoteIdentityPacket.publicKey);
+        peerValues.put(PeerTable.alias, remoteIdentityPacket.getAlias());
+        peerValues.put(PeerTable.rawPkt, remoteIdentityPacket.rawPacket);
+
+        if (peerId != -1) {
+            // Peer exists. Modify lastSeenDate
+            Log.i(TAG, "Updating peer for pubkey " + DataUtil.bytesToHex(remoteIdentityPacket.publicKey));
+            int updated = mDb.update(ChatDatabase.PEERS, peerValues,
+                    PeerTable.id + " = ?", new String[] {String.valueOf(peerId)});
+            if (updated != 1) {
+                Log.e(TAG, "Failed to update peer last seen");
+            }
+        } else {
+            // Peer does not exist. Create.
+            peerId = mDb.insert(ChatDatabase.PEERS, null, peerValues);
+            Log.i(TAG, String.format("Created new peer %d for pubkey %s", peerId, DataUtil.bytesToHex(remoteIdentityPacket.publicKey)));
+        }
+        notifyChange(ChatContentProvider.Peers.PEERS);
+
+        Peer peer = loadPeerById((int) peerId);
+        if (peer == null) {
+            Log.e(TAG, "Failed to query peer after insertion.");
+        }
+        return peer;
+    }
+
+    @Nullable
+    @Override
+    protected Message writeMessage(@NonNull MessagePacket protocolMessagePacket) {
+        long peerId = getPeerId(protocolMessagePacket.sender.publicKey);
+
+        if (peerId == -1)
+            throw new IllegalStateException("Failed to get peer for message");
+
+        long messageId;
+        synchronized (mInsertMessage) {
+            mInsertMessage.bindString(1, protocolMessagePacket.getBody());
+            mInsertMessage.bindLong(2, peerId);
+            mInsertMessage.bindLong(3, System.currentTimeMillis());
+            mInsertMessage.bindLong(4, protocolMessagePacket.getAuthoredDate().getTime());
+            mInsertMessage.bindBlob(5, protocolMessagePacket.signature);
+            bindNullableBlob(mInsertMessage, 6, protocolMessagePacket.getReplySignature());
+            mInsertMessage.bindBlob(7, protocolMessagePacket.rawPacket);
+            messageId = mInsertMessage.executeInsert();
+            mInsertMessage.clearBindings();
+        }
+
+        if (messageId == -1) {
+            // The msgs_sig index ignored a message we already have. Since we currently
+            // don't have any mutable message fields (e.g hopcount) there is nothing to update
+            Log.i(TAG, "Received stored message. Ignoring");
+            return loadMessageBySignature(protocolMessagePacket.signature);
+        }
+
+        notifyChange(ChatContentProvider.Messages.MESSAGES);
+        return getMessageById((int) messageId);
+    }
+
+    @Nullable
+    @Override
+    protected Message loadMessageBySignature(@NonNull byte[] signature) {
+        long id = queryIdByBlob(mMessageIdBySignature, signature);
+        return id == -1 ? null : getMessageById((int) id);
+    }
+
+    @Nullable
+    @Override
+    public Message getMessageById(int id) {
+        Cursor messageCursor = mDb.query(ChatDatabase.MESSAGES, null,
+                MessageTable.id + " = ?", new String[] {String.valueOf(id)},
+                null, null, null);
+        if (messageCursor.moveToFirst()) {
+            return new Message(messageCursor);
+        }
+        messageCursor.close();
+        return null;
+    }
+
+    @Nullable
+    @Override
+    protected Peer loadPeerByPubKey(@NonNull byte[] publicKey) {
+        long id = queryIdByBlob(mPeerIdByPubKey, publicKey);
+        return id == -1 ? null : loadPeerById((int) id);
+    }
+
+    @Nullable
+    @Override
+    protected Peer loadPeerById(int id) {
+        Cursor peerCursor = mDb.query(ChatDatabase.PEERS, null,
+                PeerTable.id + " = ?", new String[] {String.valueOf(id)},
+                null, null, null);
+        return readPeer(peerCursor);
+    }
+
+    @Override
+    protected long getMaxMessageId() {
+        return DatabaseUtils.longForQuery(mDb,
+                "SELECT COALESCE(MAX(" + MessageTable.id + "), 0) FROM " + ChatDatabase.MESSAGES, null);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSignaturesAfter(long messageId) {
+        return mDb.query(ChatDatabase.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.signature},
+                MessageTable.id + " > ?", new String[] {String.valueOf(messageId)},
+                null, null, null);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSignaturesAfter(long messageId, byte maxProtocolVersion) {
+        return mDb.query(ChatDatabase.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.signature},
+                MessageTable.id + " > ? AND " + ContentProviderStore.PROTOCOL_VERSION_AT_MOST,
+                new String[] {String.valueOf(messageId), String.format("%02X", maxProtocolVersion)},
+                null, null,
+                MessageTable.id + " ASC");
+    }
+
+    @Nullable
+    @Override
+    protected Message loadMessageBySignatureBetween(@NonNull byte[] lowest, @NonNull byte[] highest) {
+        long id;
+        synchronized (mMessageIdBySignatureBetween) {
+            mMessageIdBySignatureBetween.bindBlob(1, lowest);
+            mMessageIdBySignatureBetween.bindBlob(2, highest);
+            try {
+                id = mMessageIdBySignatureBetween.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return null;
+            } finally {
+                mMessageIdBySignatureBetween.clearBindings();
+            }
+        }
+        return getMessageById((int) id);
+    }
+
+    @Override
+    protected long getMessageIdBySignature(@NonNull byte[] signature) {
+        if (!mightHaveMessage(signature)) return -1;
+        return queryIdByBlob(mMessageIdBySignature, signature);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageIdsFrom(int messageId, byte maxProtocolVersion, int anyVersionPeerId) {
+        return mDb.query(ChatDatabase.MESSAGES,
+                new String[] {MessageTable.id},
+                MessageTable.id + " >= ? AND (" + ContentProviderStore.PROTOCOL_VERSION_AT_MOST + " OR " + MessageTable.peerId + " = ?)",
+                new String[] {String.valueOf(messageId), String.format("%02X", maxProtocolVersion),
+                              String.valueOf(anyVersionPeerId)},
+                null, null,
+                MessageTable.id + " ASC");
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessagesById(@NonNull List<Integer> ids) {
+        return mDb.query(ChatDatabase.MESSAGES, null,
+                ContentProviderStore.whereIn(MessageTable.id, ids), null,
+                null, null,
+                MessageTable.id + " ASC");
+    }
+
+    @Nullable
+    @Override
+    protected byte[] loadMessageDeliveries(int peerId) {
+        Cursor deliveryCursor = mDb.query(ChatDatabase.MESSAGE_DELIVERIES,
+                new String[] {MessageDeliveryBitmapTable.bitmap},
+                MessageDeliveryBitmapTable.peerId + " = ?", new String[] {String.valueOf(peerId)},
+                null, null, null);
+        byte[] delivered = deliveryCursor.moveToFirst() ? deliveryCursor.getBlob(0) : null;
+        deliveryCursor.close();
+        return delivered;
+    }
+
+    @Override
+    protected void writeMessageDeliveries(int peerId, @NonNull byte[] delivered) {
+        synchronized (mWriteMessageDeliveries) {
+            mWriteMessageDeliveries.bindLong(1, peerId);
+            mWriteMessageDeliveries.bindBlob(2, delivered);
+            mWriteMessageDeliveries.executeInsert();
+            mWriteMessageDeliveries.clearBindings();
+        }
+        notifyChange(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageDeliveries() {
+        return mDb.query(ChatDatabase.MESSAGE_DELIVERIES,
+                new String[] {MessageDeliveryBitmapTable.peerId, MessageDeliveryBitmapTable.bitmap},
+                null, null, null, null, null);
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryMessageSizesNewestFirst() {
+        return mDb.query(ChatDatabase.MESSAGES,
+                new String[] {MessageTable.id, MessageTable.authoredDate, "length(" + MessageTable.rawPacket + ")"},
+                null, null, null, null,
+                MessageTable.id + " DESC");
+    }
+
+    @Override
+    protected int deleteMessagesBefore(int messageId, int limit, long deletedMillis) {
+        int deleted;
+        mDb.beginTransactionNonExclusive();
+        try {
+            mDb.execSQL("INSERT OR IGNORE INTO " + ChatDatabase.MESSAGE_TOMBSTONES + " (" +
+                    MessageTombstoneTable.signature + ", " + MessageTombstoneTable.deletedDate + ")" +
+                    " SELECT " + MessageTable.signature + ", ? FROM " + ChatDatabase.MESSAGES +
+                    " WHERE " + ContentProviderStore.OLDEST_MESSAGES_BEFORE_SELECTION +
+                    " AND " + MessageTable.signature + " IS NOT NULL",
+                    new Object[] {deletedMillis, messageId, limit});
+            deleted = mDb.delete(ChatDatabase.MESSAGES,
+                    ContentProviderStore.OLDEST_MESSAGES_BEFORE_SELECTION,
+                    new String[] {String.valueOf(messageId), String.valueOf(limit)});
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (deleted > 0) notifyChange(ChatContentProvider.Messages.MESSAGES);
+        return deleted;
+    }
+
+    @NonNull
+    @Override
+    protected Cursor queryTombstoneSignatures() {
+        return mDb.query(ChatDatabase.MESSAGE_TOMBSTONES,
+                new String[] {MessageTombstoneTable.signature},
+                null, null, null, null, null);
+    }
+
+    @Override
+    protected boolean hasTombstone(@NonNull byte[] signature) {
+        return queryIdByBlob(mTombstoneBySignature, signature) != -1;
+    }
+
+    @Override
+    protected int deleteTombstonesBefore(long deletedMillis) {
+        return mDb.delete(ChatDatabase.MESSAGE_TOMBSTONES,
+                MessageTombstoneTable.deletedDate + " < ?",
+                new String[] {String.valueOf(deletedMillis)});
+    }
+
+    @Override
+    protected int deleteTombstonesBeyond(int count) {
+        return mDb.delete(ChatDatabase.MESSAGE_TOMBSTONES,
+                ContentProviderStore.OLDEST_TOMBSTONES_BEYOND_SELECTION,
+                new String[] {String.valueOf(count)});
+    }
+
+    @Override
+    protected int deleteStalePeers(long lastSeenMillis) {
+        List<Integer> peerIds = new ArrayList<>();
+        Cursor peerCursor = mDb.query(ChatDatabase.PEERS, new String[] {PeerTable.id},
+                ContentProviderStore.STALE_PEERS_SELECTION, new String[] {String.valueOf(lastSeenMillis)},
+                null, null, null);
+        while (peerCursor.moveToNext()) {
+            peerIds.add(peerCursor.getInt(0));
+        }
+        peerCursor.close();
+        if (peerIds.size() == 0) return 0;
+
+        int deleted;
+        mDb.beginTransactionNonExclusive();
+        try {
+            mDb.delete(ChatDatabase.DELIVERED_IDENTITIES,
+                    ContentProviderStore.whereIn(IdentityDeliveryTable.peerRecipientId, peerIds) + " OR " +
+                    ContentProviderStore.whereIn(IdentityDeliveryTable.peerPayloadId, peerIds), null);
+            mDb.delete(ChatDatabase.MESSAGE_DELIVERIES,
+                    ContentProviderStore.whereIn(MessageDeliveryBitmapTable.peerId, peerIds), null);
+            deleted = mDb.delete(ChatDatabase.PEERS,
+                    ContentProviderStore.whereIn(PeerTable.id, peerIds), null);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        notifyChange(ChatContentProvider.Peers.PEERS);
+        return deleted;
+    }
+
+    /**
+     * Databases created from version 5 track free pages, see {@link ChatDatabase#onConfigure(SQLiteDatabase)},
+     * and release them incrementally. Older databases are rebuilt once by VACUUM to do the same
+     */
+    @Override
+    protected void reclaimSpace() {
+        try {
+            if (DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+                // Each row stepped frees a page, so the cursor is read to its end
+                Cursor vacuum = mDb.rawQuery("PRAGMA incremental_vacuum", null);
+                vacuum.getCount();
+                vacuum.close();
+            } else {
+                mDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                mDb.execSQL("VACUUM");
+            }
+        } catch (SQLiteException e) {
+            // e.g: VACUUM can't run while another statement is in progress. Try again next compaction
+            Log.w(TAG, "Failed to reclaim space", e);
+        }
+    }
+
+    @Override
+    public int countPeers() {
+        return (int) DatabaseUtils.queryNumEntries(mDb, ChatDatabase.PEERS);
+    }
+
+    /** Utility */
+
+    /**
+     * @return the id selected by statement with value bound to its only argument, or -1 if no row matched
+     */
+    private static long queryIdByBlob(SQLiteStatement statement, byte[] value) {
+        synchronized (statement) {
+            statement.bindBlob(1, value);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * @return the id of the peer with publicKey, usually from the peer cache, or -1 if not stored
+     */
+    private long getPeerId(byte[] publicKey) {
+        Peer peer = getPeerByPubKey(publicKey);
+        return peer == null ? -1 : peer.getId();
+    }
+
+    /**
+     * @return the row id inserted by statement, or -1 if the pair was already recorded
+     */
+    private static long insertPair(SQLiteStatement statement, long first, long second) {
+        synchronized (statement) {
+            statement.bindLong(1, first);
+            statement.bindLong(2, second);
+            long rowId = statement.executeInsert();
+            statement.clearBindings();
+            return rowId;
+        }
+    }
+
+    private static void bindNullableBlob(SQLiteStatement statement, int index, @Nullable byte[] value) {
+        if (value == null) statement.bindNull(index);
+        else statement.bindBlob(index, value);
+    }
+
+    @Nullable
+    private static Peer readPeer(Cursor peerCursor) {
+        Peer peer = peerCursor.moveToFirst() ? new Peer(peerCursor) : null;
+        peerCursor.close();
+        return peer;
+    }
+
+    private void notifyChange(Uri uri) {
+        mContext.getContentResolver().notifyChange(uri, null);
+    }
+}
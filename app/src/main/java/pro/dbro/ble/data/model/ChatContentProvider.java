@@ -57,7 +57,7 @@ public final class ChatContentProvider {
 
     /** MessageDelivery API **/
 
-    @TableEndpoint(table = ChatDatabase.DELIVERED_MESSAGES)
+    @TableEndpoint(table = ChatDatabase.MESSAGE_DELIVERIES)
     public static class MessageDeliveries {
 
         private static final String ENDPOINT = "message_deliveries";
@@ -65,11 +65,26 @@ public final class ChatContentProvider {
         @ContentUri(
                 path = ENDPOINT,
                 type = "vnd.android.cursor.dir/list",
-                defaultSort = MessageDeliveryTable.messageId + " ASC")
+                defaultSort = MessageDeliveryBitmapTable.peerId + " ASC")
         public static final Uri MESSAGE_DELIVERIES = buildUri(ENDPOINT);
 
     }
 
+    /** MessageTombstone API **/
+
+    @TableEndpoint(table = ChatDatabase.MESSAGE_TOMBSTONES)
+    public static class MessageTombstones {
+
+        private static final String ENDPOINT = "message_tombstones";
+
+        @ContentUri(
+                path = ENDPOINT,
+                type = "vnd.android.cursor.dir/list",
+                defaultSort = MessageTombstoneTable.deletedDate + " ASC")
+        public static final Uri MESSAGE_TOMBSTONES = buildUri(ENDPOINT);
+
+    }
+
     /** IdentityDelivery API **/
 
     @TableEndpoint(table = ChatDatabase.DELIVERED_IDENTITIES)
@@ -1,8 +1,18 @@
 package pro.dbro.ble.data.model;
 
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
 import net.simonvt.schematic.annotation.Database;
+import net.simonvt.schematic.annotation.ExecOnCreate;
+import net.simonvt.schematic.annotation.OnConfigure;
+import net.simonvt.schematic.annotation.OnUpgrade;
 import net.simonvt.schematic.annotation.Table;
 
+import pro.dbro.ble.data.DeliveryBitmap;
+
 /**
  * SQL Database definition.
  *
@@ -11,11 +21,227 @@ import net.simonvt.schematic.annotation.Table;
 @Database(version = ChatDatabase.DATABASE_VERSION)
 public class ChatDatabase {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
 
     /** Table Definition                Reference Name                                     SQL Tablename */
-    @Table(PeerTable.class)             public static final String  PEERS                = "peers";
-    @Table(MessageTable.class)          public static final String  MESSAGES             = "msgs";
-    @Table(MessageDeliveryTable.class)  public static final String  DELIVERED_MESSAGES   = "m_dlvry";
-    @Table(IdentityDeliveryTable.class) public static final String  DELIVERED_IDENTITIES = "p_dlvry";
+    @Table(PeerTable.class)                  public static final String  PEERS                = "peers";
+    @Table(MessageTable.class)               public static final String  MESSAGES             = "msgs";
+    @Table(MessageDeliveryBitmapTable.class) public static final String  MESSAGE_DELIVERIES   = "m_dlvd";
+    @Table(IdentityDeliveryTable.class)      public static final String  DELIVERED_IDENTITIES = "p_dlvry";
+    @Table(MessageTombstoneTable.class)      public static final String  MESSAGE_TOMBSTONES   = "msg_tomb";
+
+    /** The {@link MessageDeliveryTable} of versions 1 through 4, converted to {@link #MESSAGE_DELIVERIES} */
+    public static final String DELIVERED_MESSAGES = "m_dlvry";
+
+    /** Indexes. Deliveries are looked up by recipient, then payload, when selecting outgoing items.
+     *  Those on {@link #DELIVERED_MESSAGES} are only created by upgrades before version 5.
+     *  Identity deliveries are looked up by {@link #INDEX_DELIVERED_IDENTITY_PAIR} */
+    public static final String INDEX_DELIVERED_MESSAGES =
+            "CREATE INDEX IF NOT EXISTS m_dlvry_recipient ON " + DELIVERED_MESSAGES +
+            "(" + MessageDeliveryTable.peerId + ", " + MessageDeliveryTable.messageId + ")";
+
+    /** Unique indexes. Packets are looked up by signature and public key for every packet received */
+    @ExecOnCreate public static final String INDEX_MESSAGE_SIGNATURE =
+            "CREATE UNIQUE INDEX IF NOT EXISTS msgs_sig ON " + MESSAGES + "(" + MessageTable.signature + ")";
+
+    @ExecOnCreate public static final String INDEX_PEER_PUBLIC_KEY =
+            "CREATE UNIQUE INDEX IF NOT EXISTS peers_pk ON " + PEERS + "(" + PeerTable.pubKey + ")";
+
+    public static final String INDEX_DELIVERED_MESSAGE_PAIR =
+            "CREATE UNIQUE INDEX IF NOT EXISTS m_dlvry_pair ON " + DELIVERED_MESSAGES +
+            "(" + MessageDeliveryTable.messageId + ", " + MessageDeliveryTable.peerId + ")";
+
+    @ExecOnCreate public static final String INDEX_DELIVERED_IDENTITY_PAIR =
+            "CREATE UNIQUE INDEX IF NOT EXISTS p_dlvry_pair ON " + DELIVERED_IDENTITIES +
+            "(" + IdentityDeliveryTable.peerRecipientId + ", " + IdentityDeliveryTable.peerPayloadId + ")";
+
+    @ExecOnCreate public static final String INDEX_MESSAGES_BY_PEER =
+            "CREATE INDEX IF NOT EXISTS msgs_peer_recv ON " + MESSAGES +
+            "(" + MessageTable.peerId + ", " + MessageTable.receivedDate + ")";
+
+    /** Recent messages are listed by received date */
+    @ExecOnCreate public static final String INDEX_MESSAGES_BY_RECEIVED =
+            "CREATE INDEX IF NOT EXISTS msgs_recv ON " + MESSAGES + "(" + MessageTable.receivedDate + ")";
+
+    /**
+     * Write-ahead logging lets the UI read through the content provider while
+     * {@link pro.dbro.ble.data.SQLiteStore} writes received packets.
+     * Incremental auto vacuum lets compaction return freed pages without rebuilding the database.
+     * It only applies to databases created after it is set, others must first VACUUM
+     */
+    @OnConfigure
+    public static void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
+    }
+
+    @OnUpgrade
+    public static void onUpgrade(Context context, SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL(INDEX_DELIVERED_MESSAGES);
+        }
+        if (oldVersion < 3) {
+            db.beginTransaction();
+            try {
+                removeDuplicatesForUniqueIndexes(db);
+                db.execSQL(INDEX_MESSAGE_SIGNATURE);
+                db.execSQL(INDEX_PEER_PUBLIC_KEY);
+                db.execSQL(INDEX_DELIVERED_MESSAGE_PAIR);
+                db.execSQL(INDEX_DELIVERED_IDENTITY_PAIR);
+                // Version 2 indexed the same columns without uniqueness
+                db.execSQL("DROP INDEX IF EXISTS p_dlvry_recipient");
+                db.execSQL(INDEX_MESSAGES_BY_PEER);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 4) {
+            db.beginTransaction();
+            try {
+                convertDatesToEpochMillis(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 5) {
+            db.beginTransaction();
+            try {
+                convertMessageDeliveriesToBitmaps(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        if (oldVersion < 6) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + MESSAGE_TOMBSTONES + " (" +
+                    MessageTombstoneTable.signature + " BLOB PRIMARY KEY, " +
+                    MessageTombstoneTable.deletedDate + " INTEGER NOT NULL)");
+        }
+    }
+
+    /**
+     * Versions 1 through 4 stored a row per message delivered to each peer.
+     * Collect each peer's rows into a {@link DeliveryBitmap}.
+     */
+    private static void convertMessageDeliveriesToBitmaps(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MESSAGE_DELIVERIES + " (" +
+                MessageDeliveryBitmapTable.peerId + " INTEGER PRIMARY KEY, " +
+                MessageDeliveryBitmapTable.bitmap + " BLOB NOT NULL)");
+
+        Cursor deliveries = db.query(DELIVERED_MESSAGES,
+                new String[] {MessageDeliveryTable.peerId, MessageDeliveryTable.messageId},
+                null, null, null, null, MessageDeliveryTable.peerId);
+        int peerId = -1;
+        DeliveryBitmap delivered = null;
+        while (deliveries.moveToNext()) {
+            if (deliveries.getInt(0) != peerId) {
+                if (delivered != null) insertDeliveryBitmap(db, peerId, delivered);
+                peerId = deliveries.getInt(0);
+                delivered = new DeliveryBitmap();
+            }
+            delivered.add(deliveries.getInt(1));
+        }
+        if (delivered != null) insertDeliveryBitmap(db, peerId, delivered);
+        deliveries.close();
+
+        // The table's indexes are dropped with it
+        db.execSQL("DROP TABLE " + DELIVERED_MESSAGES);
+    }
+
+    private static void insertDeliveryBitmap(SQLiteDatabase db, int peerId, DeliveryBitmap delivered) {
+        ContentValues values = new ContentValues();
+        values.put(MessageDeliveryBitmapTable.peerId, peerId);
+        values.put(MessageDeliveryBitmapTable.bitmap, delivered.toBytes());
+        db.insert(MESSAGE_DELIVERIES, null, values);
+    }
+
+    /**
+     * Versions 1 through 3 stored dates as local time "yyyy-MM-dd HH:mm:ss" TEXT.
+     * A TEXT column converts integers to text, so the affected tables are rebuilt with INTEGER
+     * date columns, converting each date as it is copied.
+     */
+    private static void convertDatesToEpochMillis(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE msgs_v4 (" +
+                MessageTable.id           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                MessageTable.body         + " TEXT NOT NULL, " +
+                MessageTable.peerId       + " INTEGER, " +
+                MessageTable.authoredDate + " INTEGER, " +
+                MessageTable.receivedDate + " INTEGER, " +
+                MessageTable.signature    + " BLOB, " +
+                MessageTable.replySig     + " BLOB, " +
+                MessageTable.rawPacket    + " BLOB)");
+        db.execSQL("INSERT INTO msgs_v4 SELECT " +
+                MessageTable.id + ", " + MessageTable.body + ", " + MessageTable.peerId + ", " +
+                epochMillis(MessageTable.authoredDate) + ", " + epochMillis(MessageTable.receivedDate) + ", " +
+                MessageTable.signature + ", " + MessageTable.replySig + ", " + MessageTable.rawPacket +
+                " FROM " + MESSAGES);
+        db.execSQL("DROP TABLE " + MESSAGES);
+        db.execSQL("ALTER TABLE msgs_v4 RENAME TO " + MESSAGES);
+
+        db.execSQL("CREATE TABLE peers_v4 (" +
+                PeerTable.id           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                PeerTable.alias        + " TEXT, " +
+                PeerTable.lastSeenDate + " INTEGER NOT NULL, " +
+                PeerTable.pubKey       + " BLOB NOT NULL, " +
+                PeerTable.secKey       + " BLOB, " +
+                PeerTable.rawPkt       + " BLOB)");
+        db.execSQL("INSERT INTO peers_v4 SELECT " +
+                PeerTable.id + ", " + PeerTable.alias + ", " + epochMillis(PeerTable.lastSeenDate) + ", " +
+                PeerTable.pubKey + ", " + PeerTable.secKey + ", " + PeerTable.rawPkt +
+                " FROM " + PEERS);
+        db.execSQL("DROP TABLE " + PEERS);
+        db.execSQL("ALTER TABLE peers_v4 RENAME TO " + PEERS);
+
+        // Indexes are dropped with their tables
+        db.execSQL(INDEX_MESSAGE_SIGNATURE);
+        db.execSQL(INDEX_PEER_PUBLIC_KEY);
+        db.execSQL(INDEX_MESSAGES_BY_PEER);
+        db.execSQL(INDEX_MESSAGES_BY_RECEIVED);
+    }
+
+    /** @return an expression converting a local time TEXT date column to epoch millis */
+    private static String epochMillis(String column) {
+        return "COALESCE(CAST(strftime('%s', " + column + ", 'utc') AS INTEGER) * 1000, 0)";
+    }
+
+    /**
+     * Version 1 and 2 recorded every delivery acknowledgement, and could race to store the same
+     * peer or message twice. Keep the earliest row of each, pointing references to it.
+     */
+    private static void removeDuplicatesForUniqueIndexes(SQLiteDatabase db) {
+        // Point messages and deliveries at the earliest peer row for each public key
+        repointToEarliest(db, MESSAGES, MessageTable.peerId, PEERS, PeerTable.id, PeerTable.pubKey);
+        repointToEarliest(db, DELIVERED_MESSAGES, MessageDeliveryTable.peerId, PEERS, PeerTable.id, PeerTable.pubKey);
+        repointToEarliest(db, DELIVERED_IDENTITIES, IdentityDeliveryTable.peerRecipientId, PEERS, PeerTable.id, PeerTable.pubKey);
+        repointToEarliest(db, DELIVERED_IDENTITIES, IdentityDeliveryTable.peerPayloadId, PEERS, PeerTable.id, PeerTable.pubKey);
+        // and deliveries at the earliest message row for each signature
+        repointToEarliest(db, DELIVERED_MESSAGES, MessageDeliveryTable.messageId, MESSAGES, MessageTable.id, MessageTable.signature);
+
+        deleteDuplicates(db, PEERS, PeerTable.id, PeerTable.pubKey);
+        deleteDuplicates(db, MESSAGES, MessageTable.id, MessageTable.signature);
+        deleteDuplicates(db, DELIVERED_MESSAGES, MessageDeliveryTable.id,
+                MessageDeliveryTable.messageId + ", " + MessageDeliveryTable.peerId);
+        deleteDuplicates(db, DELIVERED_IDENTITIES, IdentityDeliveryTable.id,
+                IdentityDeliveryTable.peerRecipientId + ", " + IdentityDeliveryTable.peerPayloadId);
+    }
+
+    /**
+     * Point table.column at the earliest row of referencedTable with the same uniqueColumn
+     * as the row it references. References to missing rows are left alone.
+     */
+    private static void repointToEarliest(SQLiteDatabase db, String table, String column,
+                                          String referencedTable, String idColumn, String uniqueColumn) {
+        db.execSQL("UPDATE " + table + " SET " + column + " = " +
+                "(SELECT MIN(r." + idColumn + ") FROM " + referencedTable + " r, " + referencedTable + " a" +
+                " WHERE a." + idColumn + " = " + table + "." + column +
+                " AND r." + uniqueColumn + " = a." + uniqueColumn + ")" +
+                " WHERE " + column + " IN (SELECT " + idColumn + " FROM " + referencedTable + ")");
+    }
+
+    private static void deleteDuplicates(SQLiteDatabase db, String table, String idColumn, String uniqueColumns) {
+        db.execSQL("DELETE FROM " + table + " WHERE " + idColumn + " NOT IN " +
+                "(SELECT MIN(" + idColumn + ") FROM " + table + " GROUP BY " + uniqueColumns + ")");
+    }
 }
\ No newline at end of file
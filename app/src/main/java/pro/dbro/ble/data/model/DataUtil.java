@@ -1,8 +1,5 @@
 package pro.dbro.ble.data.model;
 
-import java.text.SimpleDateFormat;
-import java.util.Locale;
-
 /**
  * Utilities for converting between Java and Database friendly types
  *
@@ -10,8 +7,6 @@ import java.util.Locale;
  */
 public class DataUtil {
 
-    public static SimpleDateFormat storedDateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-
     final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     /**
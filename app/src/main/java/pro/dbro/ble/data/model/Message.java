@@ -4,10 +4,10 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.text.ParseException;
 import java.util.Date;
 
 import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.protocol.IdentityPacket;
 import pro.dbro.ble.protocol.MessagePacket;
 
 /**
@@ -33,13 +33,12 @@ public class Message extends CursorModel {
         return mCursor.getString(mCursor.getColumnIndex(MessageTable.body));
     }
 
+    public long getAuthoredDateMillis() {
+        return mCursor.getLong(mCursor.getColumnIndex(MessageTable.authoredDate));
+    }
+
     public Date getAuthoredDate() {
-        try {
-            return DataUtil.storedDateFormatter.parse(mCursor.getString(mCursor.getColumnIndex(MessageTable.authoredDate)));
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return new Date(getAuthoredDateMillis());
     }
 
     public byte[] getPublicKey(DataStore dataStore) {
@@ -60,13 +59,25 @@ public class Message extends CursorModel {
 
     @Nullable
     public Peer getSender(DataStore dataStore) {
-        return dataStore.getPeerById(mCursor.getInt(mCursor.getColumnIndex(MessageTable.peerId)));
+        return dataStore.getPeerById(getSenderId());
+    }
+
+    public int getSenderId() {
+        return mCursor.getInt(mCursor.getColumnIndex(MessageTable.peerId));
     }
 
     @Nullable
     public MessagePacket getProtocolMessage(DataStore dataStore) {
+        return getProtocolMessage(getSender(dataStore).getIdentity());
+    }
+
+    /**
+     * Use when the sender's identity is already known, avoiding a peer query
+     */
+    @NonNull
+    public MessagePacket getProtocolMessage(@NonNull IdentityPacket sender) {
         return new MessagePacket(
-                getSender(dataStore).getIdentity(),
+                sender,
                 getSignature(),
                 getReplySignature(),
                 getBody(),
@@ -77,11 +88,6 @@ public class Message extends CursorModel {
 
     @Nullable
     public Date getRelativeReceivedDate() {
-        try {
-            return DataUtil.storedDateFormatter.parse(
-                    mCursor.getString(mCursor.getColumnIndex(MessageTable.authoredDate)));
-        } catch (ParseException e) {
-            return null;
-        }
+        return getAuthoredDate();
     }
 }
@@ -0,0 +1,19 @@
+package pro.dbro.ble.data.model;
+
+import net.simonvt.schematic.annotation.DataType;
+import net.simonvt.schematic.annotation.NotNull;
+import net.simonvt.schematic.annotation.PrimaryKey;
+
+import static net.simonvt.schematic.annotation.DataType.Type.BLOB;
+import static net.simonvt.schematic.annotation.DataType.Type.INTEGER;
+
+/**
+ * The ids of messages delivered to each peer, as a serialized {@link pro.dbro.ble.data.DeliveryBitmap}.
+ * Kept apart from {@link PeerTable} so peer queries don't read the bitmaps.
+ */
+public interface MessageDeliveryBitmapTable {
+
+    /** SQL type        Modifiers                   Reference Name            SQL Column Name */
+    @DataType(INTEGER)  @PrimaryKey                 String peerId              = "p_id";
+    @DataType(BLOB)     @NotNull                    String bitmap              = "bits";
+}
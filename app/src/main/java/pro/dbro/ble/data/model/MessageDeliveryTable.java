@@ -8,7 +8,8 @@ import net.simonvt.schematic.annotation.PrimaryKey;
 import static net.simonvt.schematic.annotation.DataType.Type.INTEGER;
 
 /**
- * Used to avoid sending a single messages to a particular client multiple times
+ * Used to avoid sending a single messages to a particular client multiple times.
+ * Replaced in database version 5 by {@link MessageDeliveryBitmapTable}, and kept to migrate earlier versions
  *
  * Created by davidbrodsky on 7/28/14.
  */
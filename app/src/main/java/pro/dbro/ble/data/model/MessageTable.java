@@ -18,8 +18,8 @@ public interface MessageTable {
     @DataType(INTEGER)  @PrimaryKey @AutoIncrement  String id               = "_id";
     @DataType(TEXT)     @NotNull                    String body             = "body";
     @DataType(INTEGER)                              String peerId           = "p_id";
-    @DataType(TEXT)                                 String authoredDate     = "author_date";
-    @DataType(TEXT)                                 String receivedDate     = "recv_date";
+    @DataType(INTEGER)                              String authoredDate     = "author_date";  // epoch millis
+    @DataType(INTEGER)                              String receivedDate     = "recv_date";    // epoch millis
     @DataType(BLOB)                                 String signature        = "sig";
     @DataType(BLOB)                                 String replySig         = "r_sig";
     @DataType(BLOB)                                 String rawPacket        = "pkt";
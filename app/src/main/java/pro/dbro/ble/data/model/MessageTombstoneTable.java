@@ -0,0 +1,19 @@
+package pro.dbro.ble.data.model;
+
+import net.simonvt.schematic.annotation.DataType;
+import net.simonvt.schematic.annotation.NotNull;
+import net.simonvt.schematic.annotation.PrimaryKey;
+
+import static net.simonvt.schematic.annotation.DataType.Type.BLOB;
+import static net.simonvt.schematic.annotation.DataType.Type.INTEGER;
+
+/**
+ * The signatures of messages deleted by compaction, so copies received afterwards
+ * are recognized and not stored again as new.
+ */
+public interface MessageTombstoneTable {
+
+    /** SQL type        Modifiers                   Reference Name            SQL Column Name */
+    @DataType(BLOB)     @PrimaryKey                 String signature           = "sig";
+    @DataType(INTEGER)  @NotNull                    String deletedDate         = "del_date";  // epoch millis
+}
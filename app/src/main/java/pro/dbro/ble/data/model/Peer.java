@@ -4,24 +4,26 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.text.ParseException;
 import java.util.Date;
 
 import pro.dbro.ble.protocol.IdentityPacket;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 
 /**
+ * An immutable snapshot of a peer's database row. Snapshots are cached by
+ * {@link pro.dbro.ble.data.DataStore}, so the arrays returned must not be modified.
+ *
  * Created by davidbrodsky on 10/12/14.
  */
 public class Peer {
 
-    private int mId;
-    private byte[] mPublicKey;
-    private byte[] mSecretKey;
-    private String mAlias;
-    private Date mLastSeen;
+    private final int mId;
+    private final byte[] mPublicKey;
+    private final byte[] mSecretKey;
+    private final String mAlias;
+    private final long mLastSeenMillis;
 
-    private byte[] mRawPkt;
+    private final byte[] mRawPkt;
 
 
     public Peer(@NonNull Cursor cursor) {
@@ -30,12 +32,7 @@ public class Peer {
         mSecretKey = cursor.getBlob(cursor.getColumnIndex(PeerTable.secKey));
         mAlias = cursor.getString(cursor.getColumnIndex(PeerTable.alias));
         mRawPkt = cursor.getBlob(cursor.getColumnIndex(PeerTable.rawPkt));
-
-        try {
-            mLastSeen = DataUtil.storedDateFormatter.parse(cursor.getString(cursor.getColumnIndex(PeerTable.lastSeenDate)));
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
+        mLastSeenMillis = cursor.getLong(cursor.getColumnIndex(PeerTable.lastSeenDate));
     }
 
     public int getId() {
@@ -50,9 +47,13 @@ public class Peer {
         return mAlias;
     }
 
+    public long getLastSeenMillis() {
+        return mLastSeenMillis;
+    }
+
     @Nullable
     public Date getLastDateSeen() {
-        return mLastSeen;
+        return new Date(mLastSeenMillis);
     }
     /**
      * @return whether this peer represents the application user.
@@ -70,7 +71,7 @@ public class Peer {
      */
     public IdentityPacket getIdentity() {
         if (!isLocalPeer()) {
-            return new IdentityPacket(mPublicKey, mAlias, mLastSeen, mRawPkt);
+            return new IdentityPacket(mPublicKey, mAlias, getLastDateSeen(), mRawPkt);
         } else {
             return new OwnedIdentityPacket(mSecretKey, mPublicKey, mAlias, mRawPkt);
         }
@@ -0,0 +1,51 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only view over a frame packing several serialized packets of one type
+ * into a single transmission. The frame itself is not signed, as every item is.
+ *
+ * Items are copied out of {@link #rawPacket} on access.
+ */
+public class AggregatePacket {
+    public static final byte TYPE = 0x04;
+
+    /** The type of every packet in this frame, e.g: {@link MessagePacket#TYPE} */
+    final public byte itemType;
+    final public byte[] rawPacket;
+
+    /** Offset of each item in {@link #rawPacket}, followed by the frame length */
+    private final int[] mItemOffsets;
+
+    AggregatePacket(byte itemType,
+                    @NonNull byte[] rawPacket,
+                    @NonNull int[] itemOffsets) {
+
+        this.itemType  = itemType;
+        this.rawPacket = rawPacket;
+        mItemOffsets   = itemOffsets;
+    }
+
+    public int getItemCount() {
+        return mItemOffsets.length - 1;
+    }
+
+    @NonNull
+    public byte[] getItem(int index) {
+        return Arrays.copyOfRange(rawPacket, mItemOffsets[index], mItemOffsets[index + 1]);
+    }
+
+    @NonNull
+    public List<byte[]> getItems() {
+        List<byte[]> items = new ArrayList<>(getItemCount());
+        for (int x = 0; x < getItemCount(); x++) {
+            items.add(getItem(x));
+        }
+        return items;
+    }
+}
@@ -5,11 +5,16 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.List;
 
+import pro.dbro.ble.crypto.SignedData;
 import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.crypto.VerifiedSignatureCache;
 
 /**
  * Created by davidbrodsky on 10/14/14.
@@ -28,10 +33,40 @@ public class BLEProtocol implements Protocol {
     public static final int MESSAGE_BODY_LENGTH        = 140;  // bytes
     public static final int ALIAS_LENGTH               = 35;   // bytes
 
-    private static final ByteBuffer sTimeStampBuffer = ByteBuffer.allocate(Long.SIZE / 8);
+    static final int SIGNATURE_LENGTH = SodiumShaker.crypto_sign_BYTES;
 
-    static {
-        sTimeStampBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Field offsets common to every protocol version */
+    public static final int VERSION_OFFSET              = 0;
+    static final int TYPE_OFFSET                        = 1;
+    static final int TIMESTAMP_OFFSET                   = 2;
+    static final int PUBLIC_KEY_OFFSET                  = 10;
+
+    /** Version 1 field offsets. Signed data is every byte preceding the signature */
+    private static final int IDENTITY_ALIAS_OFFSET      = 42;
+    private static final int IDENTITY_SIGNATURE_OFFSET  = 77;
+    private static final int MESSAGE_BODY_OFFSET        = 42;
+    private static final int MESSAGE_REPLY_SIG_OFFSET   = 182;
+    private static final int MESSAGE_SIGNATURE_OFFSET   = 246;
+    private static final int NODATA_SIGNATURE_OFFSET    = 42;
+
+    static final int TIMESTAMP_LENGTH = Long.SIZE / 8;
+
+    /** Signatures already verified by this instance. Most packets in a dense mesh are duplicates */
+    private final VerifiedSignatureCache mVerifiedSignatures;
+
+    public BLEProtocol() {
+        this(new VerifiedSignatureCache());
+    }
+
+    public BLEProtocol(@NonNull VerifiedSignatureCache verifiedSignatures) {
+        mVerifiedSignatures = verifiedSignatures;
+    }
+
+    /** @return the cache of verified signatures, e.g: to inspect hit and miss counts */
+    public VerifiedSignatureCache getVerifiedSignatureCache() {
+        return mVerifiedSignatures;
     }
 
     /** Outgoing
@@ -50,12 +85,12 @@ public class BLEProtocol implements Protocol {
         try {
             byte[] identity = new byte[IDENTITY_RESPONSE_LENGTH];
             int writeIndex = 0;
-            writeIndex += addVersionToBuffer(identity, writeIndex);
+            writeIndex += addVersionToBuffer(identity, VERSION, writeIndex);
             writeIndex += addTypeToBuffer(identity, IdentityPacket.TYPE, writeIndex);
             writeIndex += addTimestampToBuffer(identity, writeIndex);
             writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, identity, writeIndex);
-            writeIndex += addAliasToBuffer(ownedIdentity.alias, identity, writeIndex);
-            writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, identity, writeIndex);
+            writeIndex += addAliasToBuffer(ownedIdentity.getAlias(), identity, writeIndex);
+            writeIndex += addSignatureToBuffer(ownedIdentity.publicKey, ownedIdentity.secretKey, identity, writeIndex);
 
             if (writeIndex != IDENTITY_RESPONSE_LENGTH)
                 throw new IllegalStateException("Generated Identity does not match expected length");
@@ -70,18 +105,28 @@ public class BLEProtocol implements Protocol {
 
     @Nullable
     public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body) {
+        return serializeMessage(ownedIdentity, body, new Date());
+    }
+
+    /**
+     * Serialize a version 1 message authored at authoredDate. Signatures are deterministic, so
+     * the same arguments always produce the same packet, e.g: to re-encode a later version's
+     * message for a legacy peer
+     */
+    @Nullable
+    public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body, @NonNull Date authoredDate) {
         // Protocol version 1
         //[[version=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
         try {
             byte[] message = new byte[MESSAGE_RESPONSE_LENGTH];
             int writeIndex = 0;
-            writeIndex += addVersionToBuffer(message, writeIndex);
+            writeIndex += addVersionToBuffer(message, VERSION, writeIndex);
             writeIndex += addTypeToBuffer(message, MessagePacket.TYPE, writeIndex);
-            writeIndex += addTimestampToBuffer(message, writeIndex);
+            writeIndex += addTimestampToBuffer(message, writeIndex, authoredDate.getTime());
             writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, message, writeIndex);
             writeIndex += addMessageBodyToBuffer(body, message, writeIndex);
             writeIndex += 64; // Empty reply_signature
-            writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, message, writeIndex);
+            writeIndex += addSignatureToBuffer(ownedIdentity.publicKey, ownedIdentity.secretKey, message, writeIndex);
 
             if (writeIndex != MESSAGE_RESPONSE_LENGTH)
                 throw new IllegalStateException("Generated Message does not match expected length");
@@ -96,13 +141,15 @@ public class BLEProtocol implements Protocol {
 
     @NonNull
     public NoDataPacket serializeNoDataPacket(@NonNull OwnedIdentityPacket ownedIdentity) {
+        // The NoData version advertises the highest protocol version we can read.
+        // Legacy peers never inspect NoData packets beyond their type
         byte[] noDataPkt = new byte[NODATA_RESPONSE_LENGTH];
         int writeIndex = 0;
-        writeIndex += addVersionToBuffer(noDataPkt, writeIndex);
+        writeIndex += addVersionToBuffer(noDataPkt, getVersion(), writeIndex);
         writeIndex += addTypeToBuffer(noDataPkt, NoDataPacket.TYPE, writeIndex);
         writeIndex += addTimestampToBuffer(noDataPkt, writeIndex);
         writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, noDataPkt, writeIndex);
-        writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, noDataPkt, writeIndex);
+        writeIndex += addSignatureToBuffer(ownedIdentity.publicKey, ownedIdentity.secretKey, noDataPkt, writeIndex);
 
         if (writeIndex != NODATA_RESPONSE_LENGTH)
             throw new IllegalStateException("Generated Message does not match expected length");
@@ -122,84 +169,82 @@ public class BLEProtocol implements Protocol {
 
         // Protocol version 1
         //[[version=1][type=1][timestamp=8][sender_public_key=32][display_name=35]][signature=64]
-        try {
-            int readIndex     = 0;
-            byte[] timestamp  = new byte[Long.SIZE / 8];
-            byte[] public_key = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-            byte[] alias      = new byte[ALIAS_LENGTH];
-            byte[] signature  = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] signedData = new byte[IDENTITY_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-            readIndex += assertBufferVersion(identity, readIndex);
-            readIndex += assertBufferType(identity, IdentityPacket.TYPE, readIndex);
-            readIndex += getBytesFromBuffer(identity, timestamp, readIndex);
-            readIndex += getBytesFromBuffer(identity, public_key, readIndex);
-            readIndex += getBytesFromBuffer(identity, alias, readIndex);
-            readIndex += getBytesFromBuffer(identity, signature, readIndex);
-
-            System.arraycopy(identity, 0, signedData, 0, signedData.length);
-            boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
-            if (!validSignature)
-                throw new IllegalStateException("Identity signature does not match content!");
-
-            return new IdentityPacket(public_key, new String(alias, "UTF-8"), getDateFromTimestampBuffer(timestamp), identity);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate Identity response. Are there invalid UTF-8 characters in the user alias?");
-            e.printStackTrace();
-        }
-        return null;
-    }
+        assertBufferVersion(identity, VERSION_OFFSET);
+        assertBufferType(identity, IdentityPacket.TYPE, TYPE_OFFSET);
 
-    @Nullable
-    public MessagePacket deserializeMessageWithIdentity(@NonNull byte[] message, @NonNull IdentityPacket identity) {
-        if (message.length != MESSAGE_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, MESSAGE_RESPONSE_LENGTH));
+        byte[] public_key = getBytesFromBuffer(identity, PUBLIC_KEY_OFFSET, SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+        byte[] signature  = getBytesFromBuffer(identity, IDENTITY_SIGNATURE_OFFSET, SodiumShaker.crypto_sign_BYTES);
 
-        // TODO Don't duplicate this code between de
-        MessagePacket messageWithoutIdentity = deserializeMessage(message);
-        MessagePacket messageWithIdentity = null;
+        boolean validSignature = verifySignature(public_key, signature, identity, IDENTITY_SIGNATURE_OFFSET);
+        if (!validSignature)
+            throw new IllegalStateException("Identity signature does not match content!");
 
-        if (messageWithoutIdentity != null) {
-            messageWithIdentity = MessagePacket.attachIdentityToMessage(messageWithoutIdentity, identity);
-        }
-        return messageWithIdentity;
+        return new IdentityPacket(public_key, identity, TIMESTAMP_OFFSET, IDENTITY_ALIAS_OFFSET, ALIAS_LENGTH);
+    }
+
+    @Nullable
+    public MessagePacket deserializeMessageWithIdentity(@NonNull byte[] message, @Nullable IdentityPacket identity) {
+        return attachIdentityIfAuthor(deserializeMessage(message), identity);
     }
 
     @Nullable
     public MessagePacket deserializeMessage(@NonNull byte[] message) {
-        if (message.length != MESSAGE_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, MESSAGE_RESPONSE_LENGTH));
+        MessagePacket messagePacket = parseMessage(message);
 
-        // Protocol version 1
-        //[[version=1][type=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
-        try {
-            int readIndex          = 0;
-            byte[] timestamp       = new byte[Long.SIZE / 8];
-            byte[] public_key      = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-            byte[] body            = new byte[MESSAGE_BODY_LENGTH];
-            byte[] signature       = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] replySignature  = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] signedData      = new byte[MESSAGE_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-            readIndex += assertBufferVersion(message, readIndex);
-            readIndex += assertBufferType(message, MessagePacket.TYPE, readIndex);
-            readIndex += getBytesFromBuffer(message, timestamp, readIndex);
-            readIndex += getBytesFromBuffer(message, public_key, readIndex);
-            readIndex += getBytesFromBuffer(message, body, readIndex);
-            readIndex += getBytesFromBuffer(message, replySignature, readIndex);
-            readIndex += getBytesFromBuffer(message, signature, readIndex);
-
-            System.arraycopy(message, 0, signedData, 0, signedData.length);
-            boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
-            if (!validSignature)
-                throw new IllegalStateException("Message signature does not match content!");
-
-            return new MessagePacket(public_key, signature, replySignature, getDateFromTimestampBuffer(timestamp), new String(body, "UTF-8"), message);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate Identity response. Are there invalid UTF-8 characters in the user alias?");
-            e.printStackTrace();
+        boolean validSignature = verifySignature(messagePacket.sender.publicKey, messagePacket.signature, message, message.length - SIGNATURE_LENGTH);
+        if (!validSignature)
+            throw new IllegalStateException("Message signature does not match content!");
+
+        return messagePacket;
+    }
+
+    @NonNull
+    public MessagePacket deserializeVerifiedMessage(@NonNull byte[] message) {
+        return parseMessage(message);
+    }
+
+    @NonNull
+    public List<MessagePacket> deserializeMessagesWithIdentity(@NonNull List<byte[]> messages, @Nullable IdentityPacket identity) {
+        List<MessagePacket> messagePackets = new ArrayList<>(messages.size());
+        List<SignedData> unverified = new ArrayList<>();
+        int[] unverifiedIndexes = new int[messages.size()];
+
+        for (int x = 0; x < messages.size(); x++) {
+            byte[] message = messages.get(x);
+            MessagePacket messagePacket;
+            try {
+                messagePacket = parseMessage(message);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Malformed message. Dropping from batch: " + e.getMessage());
+                messagePackets.add(null);
+                continue;
+            }
+            messagePackets.add(messagePacket);
+
+            // Each message is verified with the key of its own author, which may not be identity
+            int signedLength = message.length - SIGNATURE_LENGTH;
+            if (!mVerifiedSignatures.isVerified(messagePacket.sender.publicKey, messagePacket.signature, message, signedLength)) {
+                unverifiedIndexes[unverified.size()] = x;
+                unverified.add(new SignedData(messagePacket.sender.publicKey, messagePacket.signature, message, signedLength));
+            }
         }
-        return null;
+
+        BitSet validSignatures = SodiumShaker.verifyBatch(unverified);
+
+        for (int x = 0; x < unverified.size(); x++) {
+            SignedData signedData = unverified.get(x);
+            if (validSignatures.get(x)) {
+                mVerifiedSignatures.putVerified(signedData.publicKey, signedData.signature, signedData.message, signedData.messageLength);
+            } else {
+                Log.w(TAG, "Message signature does not match content! Dropping from batch");
+                messagePackets.set(unverifiedIndexes[x], null);
+            }
+        }
+
+        for (int x = 0; x < messagePackets.size(); x++) {
+            messagePackets.set(x, attachIdentityIfAuthor(messagePackets.get(x), identity));
+        }
+        return messagePackets;
     }
 
     @NonNull
@@ -209,53 +254,94 @@ public class BLEProtocol implements Protocol {
 
         // Protocol version 1
         // [[version=1][type=1][timestamp=8][sender_public_key=32]][signature=64]
-        int readIndex     = 0;
-        byte[] timestamp  = new byte[Long.SIZE / 8];
-        byte[] public_key = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-        byte[] signature  = new byte[SodiumShaker.crypto_sign_BYTES];
-        byte[] signedData = new byte[NODATA_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-        readIndex += assertBufferVersion(noDataPkt, readIndex);
-        readIndex += assertBufferType(noDataPkt, NoDataPacket.TYPE, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, timestamp, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, public_key, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, signature, readIndex);
-
-        System.arraycopy(noDataPkt, 0, signedData, 0, signedData.length);
-        boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
+        // The layout is shared by every version, but the version byte varies with the sender.
+        // Any version is accepted, including later ones. Peers then use the lower of their versions
+        assertBufferType(noDataPkt, NoDataPacket.TYPE, TYPE_OFFSET);
+
+        byte[] public_key = getBytesFromBuffer(noDataPkt, PUBLIC_KEY_OFFSET, SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+        byte[] signature  = getBytesFromBuffer(noDataPkt, NODATA_SIGNATURE_OFFSET, SodiumShaker.crypto_sign_BYTES);
+
+        boolean validSignature = verifySignature(public_key, signature, noDataPkt, NODATA_SIGNATURE_OFFSET);
         if (!validSignature)
             throw new IllegalStateException("NoData signature does not match content!");
 
-        return new NoDataPacket(public_key, getDateFromTimestampBuffer(timestamp), signature, noDataPkt);
+        return new NoDataPacket(public_key, signature, noDataPkt, TIMESTAMP_OFFSET);
     }
 
 
     public byte getPacketType(@NonNull byte[] message) {
-        byte[] type = new byte[1];
-        getTypeFromBuffer(message, type, 1);
-        return type[0];
+        return getTypeFromBuffer(message, TYPE_OFFSET);
+    }
+
+    public byte getPacketVersion(@NonNull byte[] packet) {
+        return getVersionFromBuffer(packet, VERSION_OFFSET);
+    }
+
+    @NonNull
+    public byte[] getMessageSignature(@NonNull byte[] message) {
+        if (message.length <= SIGNATURE_LENGTH)
+            throw new IllegalArgumentException(String.format("Message of %d bytes is too short to be signed", message.length));
+
+        // Every version ends a message with its signature
+        return getBytesFromBuffer(message, message.length - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+    }
+
+    public byte getVersion() {
+        return VERSION;
     }
 
     // </editor-fold desc="Public API">
 
     // <editor-fold desc="Private API">
 
-    private static int addVersionToBuffer(@NonNull byte[] input, int offset) {
+    /**
+     * Parse a message packet into a view without verifying its signature.
+     * The signature is always the final {@link #SIGNATURE_LENGTH} bytes of the packet.
+     */
+    @NonNull
+    MessagePacket parseMessage(@NonNull byte[] message) {
+        if (message.length != MESSAGE_RESPONSE_LENGTH)
+            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, MESSAGE_RESPONSE_LENGTH));
+
+        // Protocol version 1
+        //[[version=1][type=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
+        assertBufferVersion(message, VERSION_OFFSET);
+        assertBufferType(message, MessagePacket.TYPE, TYPE_OFFSET);
+
+        byte[] public_key = getBytesFromBuffer(message, PUBLIC_KEY_OFFSET, SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+        byte[] signature  = getBytesFromBuffer(message, MESSAGE_SIGNATURE_OFFSET, SodiumShaker.crypto_sign_BYTES);
+
+        // We don't have the sender's full identity response
+        IdentityPacket sender = new IdentityPacket(public_key, null, null, null);
+        return new MessagePacket(sender, signature, message, TIMESTAMP_OFFSET,
+                                 MESSAGE_BODY_OFFSET, MESSAGE_BODY_LENGTH, false, MESSAGE_REPLY_SIG_OFFSET);
+    }
+
+    /**
+     * Attach identity to a verified message if identity is its author. Messages relayed from
+     * other authors keep the bare identity parsed from the packet
+     */
+    @Nullable
+    static MessagePacket attachIdentityIfAuthor(@Nullable MessagePacket message, @Nullable IdentityPacket identity) {
+        if (message == null || identity == null || !Arrays.equals(message.sender.publicKey, identity.publicKey))
+            return message;
+        return MessagePacket.attachIdentityToMessage(message, identity);
+    }
+
+    static int addVersionToBuffer(@NonNull byte[] input, byte version, int offset) {
         int bytesToWrite = 1;
         assertBufferLength(input, offset + bytesToWrite);
 
-        input[offset] = VERSION;
+        input[offset] = version;
         return bytesToWrite;
     }
 
-    private static int getVersionFromBuffer(@NonNull byte[] input, @NonNull byte[] version, int offset) {
-        int bytesToRead = 1;
-        assertBufferLength(input, offset + bytesToRead);
-        version[0] = input[offset];
-        return bytesToRead;
+    static byte getVersionFromBuffer(@NonNull byte[] input, int offset) {
+        assertBufferLength(input, offset + 1);
+        return input[offset];
     }
 
-    private static int addTypeToBuffer(@NonNull byte[] input, byte type, int offset) {
+    static int addTypeToBuffer(@NonNull byte[] input, byte type, int offset) {
         int bytesToWrite = 1;
         assertBufferLength(input, offset + bytesToWrite);
 
@@ -263,27 +349,24 @@ public class BLEProtocol implements Protocol {
         return bytesToWrite;
     }
 
-    private static int getTypeFromBuffer(@NonNull byte[] input, @NonNull byte[] type, int offset) {
-        int bytesToRead = 1;
-        assertBufferLength(input, offset + bytesToRead);
-        type[0] = input[offset];
-        return bytesToRead;
+    static byte getTypeFromBuffer(@NonNull byte[] input, int offset) {
+        assertBufferLength(input, offset + 1);
+        return input[offset];
     }
 
-    private static int addTimestampToBuffer(@NonNull byte[] input, int offset) {
-        synchronized (sTimeStampBuffer) {
-            int bytesToWrite = Long.SIZE / 8;
-            assertBufferLength(input, offset + bytesToWrite);
+    static int addTimestampToBuffer(@NonNull byte[] input, int offset) {
+        return addTimestampToBuffer(input, offset, System.currentTimeMillis());
+    }
 
-            long unixTime64 = System.currentTimeMillis();
-            sTimeStampBuffer.rewind();
-            sTimeStampBuffer.putLong(unixTime64);
-            System.arraycopy(sTimeStampBuffer.array(), 0, input, offset, bytesToWrite);
-            return bytesToWrite;
-        }
+    static int addTimestampToBuffer(@NonNull byte[] input, int offset, long unixTime64) {
+        int bytesToWrite = TIMESTAMP_LENGTH;
+        assertBufferLength(input, offset + bytesToWrite);
+
+        putLongLittleEndian(input, offset, unixTime64);
+        return bytesToWrite;
     }
 
-    private static int addPublicKeyToBuffer(@NonNull byte[] public_key, @NonNull byte[] input, int offset) {
+    static int addPublicKeyToBuffer(@NonNull byte[] public_key, @NonNull byte[] input, int offset) {
         int bytesToWrite = public_key.length;
         assertBufferLength(input, offset + bytesToWrite);
 
@@ -317,27 +400,51 @@ public class BLEProtocol implements Protocol {
         return bytesToWrite;
     }
 
-    private static int getBytesFromBuffer(@NonNull byte[] input, @NonNull byte[] output, int offset) {
-        int bytesToRead = output.length;
-        assertBufferLength(input, offset + bytesToRead);
+    static byte[] getBytesFromBuffer(@NonNull byte[] input, int offset, int length) {
+        assertBufferLength(input, offset + length);
+
+        byte[] output = new byte[length];
+        System.arraycopy(input, offset, output, 0, length);
+        return output;
+    }
 
-        System.arraycopy(input, offset, output, 0, bytesToRead);
-        return bytesToRead;
+    /**
+     * Decode a space-padded UTF-8 text field of input without copying it first
+     */
+    static String getTextFromBuffer(@NonNull byte[] input, int offset, int length) {
+        assertBufferLength(input, offset + length);
+        return new String(input, offset, length, UTF_8).trim();
     }
 
     /**
      * Generate signature for input from the first byte until the offset byte. Append signature to input after offset byte.
+     * The signature is recorded as verified, since we'll commonly deserialize our own packets after sending them.
      */
-    private static int addSignatureToBuffer(@NonNull byte[] secret_key, @NonNull byte[] input, int offset) {
+    int addSignatureToBuffer(@NonNull byte[] public_key, @NonNull byte[] secret_key, @NonNull byte[] input, int offset) {
         int bytesToWrite = SodiumShaker.crypto_sign_BYTES;
         assertBufferLength(input, offset + bytesToWrite);
 
         byte[] signature = SodiumShaker.generateSignatureForMessage(secret_key, input, offset);
+        mVerifiedSignatures.putVerified(public_key, signature, input, offset);
 
         System.arraycopy(signature, 0, input, offset, bytesToWrite);
         return bytesToWrite;
     }
 
+    /**
+     * Verify signature over the first message_len bytes of message, consulting
+     * {@link #mVerifiedSignatures} before doing the expensive Ed25519 verification.
+     */
+    boolean verifySignature(@NonNull byte[] public_key, @NonNull byte[] signature, @NonNull byte[] message, int message_len) {
+        if (mVerifiedSignatures.isVerified(public_key, signature, message, message_len))
+            return true;
+
+        boolean valid = SodiumShaker.verifySignature(public_key, signature, message, message_len);
+        if (valid)
+            mVerifiedSignatures.putVerified(public_key, signature, message, message_len);
+        return valid;
+    }
+
     /** Utility */
 
     /**
@@ -353,38 +460,51 @@ public class BLEProtocol implements Protocol {
         }
     }
 
-    private static void assertBufferLength(byte[] input, int minimumLength) {
+    static void assertBufferLength(byte[] input, int minimumLength) {
         if (input.length < minimumLength)
             throw new IllegalArgumentException(String.format("Operation requires input buffer length %d. Actual: %d", minimumLength, input.length));
     }
 
-    private static int assertBufferVersion(byte[] input, int offset) {
-        byte[] version = new byte[1];
-        getVersionFromBuffer(input, version, offset);
+    private static void assertBufferVersion(byte[] input, int offset) {
+        byte version = getVersionFromBuffer(input, offset);
 
-        if (version[0] != VERSION)
-            throw new IllegalStateException(String.format("Response is for an unknown protocol version. Got %d. Expected %d", version[0], VERSION));
-        return 1;
+        if (version != VERSION)
+            throw new IllegalStateException(String.format("Response is for an unknown protocol version. Got %d. Expected %d", version, VERSION));
     }
 
-    private static int assertBufferType(byte[] input, byte expectedType, int offset) {
-        byte[] type = new byte[1];
-        getTypeFromBuffer(input, type, offset);
+    static void assertBufferType(byte[] input, byte expectedType, int offset) {
+        byte type = getTypeFromBuffer(input, offset);
 
-        if (type[0] != expectedType)
-            throw new IllegalStateException(String.format("Response is for an unexpected message type. Got %d. Expected %d", type[0], expectedType));
-        return 1;
+        if (type != expectedType)
+            throw new IllegalStateException(String.format("Response is for an unexpected message type. Got %d. Expected %d", type, expectedType));
     }
 
     @Nullable
-    private static Date getDateFromTimestampBuffer(byte[] timestamp) {
-        synchronized (sTimeStampBuffer) {
-            sTimeStampBuffer.clear();
-            sTimeStampBuffer.put(timestamp);
-            sTimeStampBuffer.rewind();
-            // TODO: Test if flip needed
-            return new Date(sTimeStampBuffer.getLong());
+    static Date getDateFromTimestampBuffer(byte[] input, int offset) {
+        assertBufferLength(input, offset + TIMESTAMP_LENGTH);
+        return new Date(getLongLittleEndian(input, offset));
+    }
+
+    /**
+     * Write value into input at offset as a little-endian 64 bit integer.
+     * Holds no shared state, so is safe to call concurrently.
+     */
+    static void putLongLittleEndian(@NonNull byte[] input, int offset, long value) {
+        for (int x = 0; x < TIMESTAMP_LENGTH; x++) {
+            input[offset + x] = (byte) (value >>> (8 * x));
+        }
+    }
+
+    /**
+     * Read a little-endian 64 bit integer from input at offset.
+     * Holds no shared state, so is safe to call concurrently.
+     */
+    static long getLongLittleEndian(@NonNull byte[] input, int offset) {
+        long value = 0;
+        for (int x = TIMESTAMP_LENGTH - 1; x >= 0; x--) {
+            value = (value << 8) | (input[offset + x] & 0xFF);
         }
+        return value;
     }
 
     // </editor-fold desc="Private API">
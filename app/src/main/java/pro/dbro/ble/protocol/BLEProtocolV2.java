@@ -0,0 +1,278 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.crypto.VerifiedSignatureCache;
+
+/**
+ * Bluetooth LE Mesh Chat Protocol version 2.
+ *
+ * Messages carry a length-prefixed body instead of one padded to
+ * {@link #MESSAGE_BODY_LENGTH}, and omit the reply signature when it is empty.
+ * Bodies are compressed with {@link ShortTextCodec} whenever that makes them shorter.
+ * Several packets of one type may be sent together in an {@link AggregatePacket}, and peers
+ * may exchange a {@link SketchPacket} to reconcile their message sets.
+ * Version 1 packets are still read, so this implementation can talk to
+ * any peer. Version 2 packets must only be sent to peers that have advertised
+ * version 2 in their NoData packet. See {@link pro.dbro.ble.ChatPeerFlow}.
+ *
+ * Identities are still written in version 1. They are exchanged before
+ * peers know each other's version, and are relayed as signed blobs to peers
+ * we may never have negotiated with.
+ */
+public class BLEProtocolV2 extends BLEProtocol implements ProtocolV2 {
+
+    /** Bluetooth LE Mesh Chat Protocol Version */
+    public static final byte VERSION = 0x02;
+
+    /** Message flags */
+    private static final byte FLAG_HAS_REPLY_SIG   = 0x01;
+    private static final byte FLAG_COMPRESSED_BODY = 0x02;
+
+    private static final int MESSAGE_FLAGS_OFFSET       = 42;
+    private static final int MESSAGE_BODY_LENGTH_OFFSET = 43;
+    private static final int MESSAGE_BODY_OFFSET        = 44;
+
+    /** A message with an empty body and no reply signature */
+    public static final int MIN_MESSAGE_RESPONSE_LENGTH = MESSAGE_BODY_OFFSET + SIGNATURE_LENGTH;  // bytes
+
+    /** Aggregate frames */
+    public static final int MAX_AGGREGATE_LENGTH        = 4096; // bytes
+    public static final int MAX_AGGREGATE_ITEMS         = 0xFF;
+
+    private static final int AGGREGATE_ITEM_TYPE_OFFSET  = 2;
+    private static final int AGGREGATE_ITEM_COUNT_OFFSET = 3;
+    private static final int AGGREGATE_LENGTHS_OFFSET    = 4;
+    private static final int AGGREGATE_ITEM_LENGTH_BYTES = 2;
+
+    /** Sketches */
+    private static final int SKETCH_CELL_COUNT_OFFSET    = 42;
+    private static final int SKETCH_CELLS_OFFSET         = 44;
+
+    /** The most cells, in whole partitions, of a sketch no longer than an aggregate frame. A receiver builds
+     *  a local sketch of as many cells, so the count is bounded well below what the 2 byte field holds */
+    public static final int MAX_SKETCH_CELLS             =
+            (MAX_AGGREGATE_LENGTH - SKETCH_CELLS_OFFSET - SIGNATURE_LENGTH) / InvertibleBloomLookupTable.CELL_LENGTH /
+            InvertibleBloomLookupTable.HASH_COUNT * InvertibleBloomLookupTable.HASH_COUNT;
+
+    public BLEProtocolV2() {
+        super();
+    }
+
+    public BLEProtocolV2(@NonNull VerifiedSignatureCache verifiedSignatures) {
+        super(verifiedSignatures);
+    }
+
+    @Nullable
+    @Override
+    public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body) {
+        // Protocol version 2
+        //[[version=1][type=1][timestamp=8][sender_public_key=32][flags=1][body_length=1][body=body_length]][signature=64]
+        byte[] bodyAsBytes = body.trim().getBytes(UTF_8);
+        int bodyLength = Math.min(bodyAsBytes.length, MESSAGE_BODY_LENGTH);
+        byte flags = 0; // No reply signature
+
+        byte[] compressedBody = ShortTextCodec.encode(bodyAsBytes, 0, bodyLength);
+        if (compressedBody.length < bodyLength) {
+            flags |= FLAG_COMPRESSED_BODY;
+            bodyAsBytes = compressedBody;
+            bodyLength  = compressedBody.length;
+        }
+
+        byte[] message = new byte[MESSAGE_BODY_OFFSET + bodyLength + SIGNATURE_LENGTH];
+        int writeIndex = 0;
+        writeIndex += addVersionToBuffer(message, VERSION, writeIndex);
+        writeIndex += addTypeToBuffer(message, MessagePacket.TYPE, writeIndex);
+        writeIndex += addTimestampToBuffer(message, writeIndex);
+        writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, message, writeIndex);
+        message[writeIndex++] = flags;
+        message[writeIndex++] = (byte) bodyLength;
+        System.arraycopy(bodyAsBytes, 0, message, writeIndex, bodyLength);
+        writeIndex += bodyLength;
+        writeIndex += addSignatureToBuffer(ownedIdentity.publicKey, ownedIdentity.secretKey, message, writeIndex);
+
+        if (writeIndex != message.length)
+            throw new IllegalStateException("Generated Message does not match expected length");
+
+        return deserializeMessageWithIdentity(message, ownedIdentity);
+    }
+
+    @NonNull
+    @Override
+    public AggregatePacket serializeAggregate(byte itemType, @NonNull List<byte[]> items) {
+        // Protocol version 2
+        //[version=1][type=1][item_type=1][item_count=1][item_length=2, per item][items]
+        int itemBytes = 0;
+        for (byte[] item : items) {
+            itemBytes += item.length;
+        }
+
+        int length = getAggregateLength(items.size(), itemBytes);
+        if (items.size() == 0 || items.size() > MAX_AGGREGATE_ITEMS || length > MAX_AGGREGATE_LENGTH)
+            throw new IllegalArgumentException(String.format("Cannot aggregate %d items of %d bytes", items.size(), itemBytes));
+
+        byte[] aggregate = new byte[length];
+        int writeIndex = 0;
+        writeIndex += addVersionToBuffer(aggregate, VERSION, writeIndex);
+        writeIndex += addTypeToBuffer(aggregate, AggregatePacket.TYPE, writeIndex);
+        aggregate[writeIndex++] = itemType;
+        aggregate[writeIndex++] = (byte) items.size();
+        for (byte[] item : items) {
+            if (item.length <= TYPE_OFFSET || item.length > 0xFFFF || item[TYPE_OFFSET] != itemType)
+                throw new IllegalArgumentException("Aggregate items must share item type");
+            aggregate[writeIndex++] = (byte) item.length;
+            aggregate[writeIndex++] = (byte) (item.length >> 8);
+        }
+        for (byte[] item : items) {
+            System.arraycopy(item, 0, aggregate, writeIndex, item.length);
+            writeIndex += item.length;
+        }
+
+        return deserializeAggregate(aggregate);
+    }
+
+    @NonNull
+    @Override
+    public AggregatePacket deserializeAggregate(@NonNull byte[] aggregate) {
+        if (aggregate.length < AGGREGATE_LENGTHS_OFFSET || aggregate.length > MAX_AGGREGATE_LENGTH)
+            throw new IllegalArgumentException(String.format("Aggregate is illegal length. Got %d", aggregate.length));
+
+        // Protocol version 2
+        //[version=1][type=1][item_type=1][item_count=1][item_length=2, per item][items]
+        assertBufferType(aggregate, AggregatePacket.TYPE, TYPE_OFFSET);
+        if (getVersionFromBuffer(aggregate, VERSION_OFFSET) != VERSION)
+            throw new IllegalStateException(String.format("Aggregate is for unknown protocol version. Got %d", aggregate[VERSION_OFFSET]));
+
+        byte itemType = aggregate[AGGREGATE_ITEM_TYPE_OFFSET];
+        int itemCount = aggregate[AGGREGATE_ITEM_COUNT_OFFSET] & 0xFF;
+
+        int[] itemOffsets = new int[itemCount + 1];
+        int lengthIndex = AGGREGATE_LENGTHS_OFFSET;
+        itemOffsets[0] = AGGREGATE_LENGTHS_OFFSET + itemCount * AGGREGATE_ITEM_LENGTH_BYTES;
+        for (int x = 0; x < itemCount; x++) {
+            assertBufferLength(aggregate, lengthIndex + AGGREGATE_ITEM_LENGTH_BYTES);
+            int itemLength = (aggregate[lengthIndex] & 0xFF) | ((aggregate[lengthIndex + 1] & 0xFF) << 8);
+            lengthIndex += AGGREGATE_ITEM_LENGTH_BYTES;
+            itemOffsets[x + 1] = itemOffsets[x] + itemLength;
+        }
+
+        if (itemOffsets[itemCount] != aggregate.length)
+            throw new IllegalArgumentException(String.format("Aggregate is illegal length. Got %d expected %d", aggregate.length, itemOffsets[itemCount]));
+
+        return new AggregatePacket(itemType, aggregate, itemOffsets);
+    }
+
+    @NonNull
+    @Override
+    public SketchPacket serializeSketch(@NonNull OwnedIdentityPacket ownedIdentity, @NonNull InvertibleBloomLookupTable sketch) {
+        // Protocol version 2
+        //[[version=1][type=1][timestamp=8][sender_public_key=32][cell_count=2][cells=14, per cell]][signature=64]
+        int cellCount = sketch.getCellCount();
+        if (cellCount > MAX_SKETCH_CELLS)
+            throw new IllegalArgumentException(String.format("Sketch has %d cells. Max is %d", cellCount, MAX_SKETCH_CELLS));
+
+        byte[] sketchPkt = new byte[SKETCH_CELLS_OFFSET + cellCount * InvertibleBloomLookupTable.CELL_LENGTH + SIGNATURE_LENGTH];
+        int writeIndex = 0;
+        writeIndex += addVersionToBuffer(sketchPkt, VERSION, writeIndex);
+        writeIndex += addTypeToBuffer(sketchPkt, SketchPacket.TYPE, writeIndex);
+        writeIndex += addTimestampToBuffer(sketchPkt, writeIndex);
+        writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, sketchPkt, writeIndex);
+        sketchPkt[writeIndex++] = (byte) cellCount;
+        sketchPkt[writeIndex++] = (byte) (cellCount >> 8);
+        writeIndex += sketch.writeTo(sketchPkt, writeIndex);
+        writeIndex += addSignatureToBuffer(ownedIdentity.publicKey, ownedIdentity.secretKey, sketchPkt, writeIndex);
+
+        if (writeIndex != sketchPkt.length)
+            throw new IllegalStateException("Generated Sketch does not match expected length");
+
+        return deserializeSketch(sketchPkt);
+    }
+
+    @NonNull
+    @Override
+    public SketchPacket deserializeSketch(@NonNull byte[] sketch) {
+        if (sketch.length < SKETCH_CELLS_OFFSET + SIGNATURE_LENGTH)
+            throw new IllegalArgumentException(String.format("Sketch is illegal length. Got %d", sketch.length));
+
+        // Protocol version 2
+        //[[version=1][type=1][timestamp=8][sender_public_key=32][cell_count=2][cells=14, per cell]][signature=64]
+        assertBufferType(sketch, SketchPacket.TYPE, TYPE_OFFSET);
+        if (getVersionFromBuffer(sketch, VERSION_OFFSET) != VERSION)
+            throw new IllegalStateException(String.format("Sketch is for unknown protocol version. Got %d", sketch[VERSION_OFFSET]));
+
+        int cellCount = (sketch[SKETCH_CELL_COUNT_OFFSET] & 0xFF) | ((sketch[SKETCH_CELL_COUNT_OFFSET + 1] & 0xFF) << 8);
+        // Cells are partitioned in equal parts, one per hash
+        if (cellCount < InvertibleBloomLookupTable.HASH_COUNT || cellCount > MAX_SKETCH_CELLS ||
+            cellCount % InvertibleBloomLookupTable.HASH_COUNT != 0)
+            throw new IllegalArgumentException(String.format("Sketch has illegal cell count. Got %d, max is %d", cellCount, MAX_SKETCH_CELLS));
+
+        int signatureOffset = SKETCH_CELLS_OFFSET + cellCount * InvertibleBloomLookupTable.CELL_LENGTH;
+        if (sketch.length != signatureOffset + SIGNATURE_LENGTH)
+            throw new IllegalArgumentException(String.format("Sketch is illegal length. Got %d expected %d", sketch.length, signatureOffset + SIGNATURE_LENGTH));
+
+        byte[] public_key = getBytesFromBuffer(sketch, PUBLIC_KEY_OFFSET, SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+        byte[] signature  = getBytesFromBuffer(sketch, signatureOffset, SIGNATURE_LENGTH);
+
+        if (!verifySignature(public_key, signature, sketch, signatureOffset))
+            throw new IllegalStateException("Sketch signature does not match content!");
+
+        return new SketchPacket(public_key, signature, sketch, SKETCH_CELLS_OFFSET, cellCount);
+    }
+
+    /**
+     * @return the length of an aggregate frame holding itemCount packets totalling itemBytes
+     */
+    public static int getAggregateLength(int itemCount, int itemBytes) {
+        return AGGREGATE_LENGTHS_OFFSET + itemCount * AGGREGATE_ITEM_LENGTH_BYTES + itemBytes;
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    @NonNull
+    @Override
+    MessagePacket parseMessage(@NonNull byte[] message) {
+        if (getPacketVersion(message) != VERSION)
+            return super.parseMessage(message);
+
+        // Protocol version 2
+        //[[version=1][type=1][timestamp=8][sender_public_key=32][flags=1][body_length=1][body=body_length][reply_signature=64, if flagged]][signature=64]
+        if (message.length < MIN_MESSAGE_RESPONSE_LENGTH)
+            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected at least %d", message.length, MIN_MESSAGE_RESPONSE_LENGTH));
+
+        assertBufferType(message, MessagePacket.TYPE, TYPE_OFFSET);
+
+        byte flags       = message[MESSAGE_FLAGS_OFFSET];
+        int bodyLength   = message[MESSAGE_BODY_LENGTH_OFFSET] & 0xFF;
+        boolean hasReply = (flags & FLAG_HAS_REPLY_SIG) != 0;
+        boolean compressed = (flags & FLAG_COMPRESSED_BODY) != 0;
+
+        int replySigOffset = MESSAGE_BODY_OFFSET + bodyLength;
+        int expectedLength = replySigOffset + (hasReply ? SIGNATURE_LENGTH : 0) + SIGNATURE_LENGTH;
+
+        if (bodyLength > MESSAGE_BODY_LENGTH || message.length != expectedLength)
+            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, expectedLength));
+
+        // Compressed bodies are decoded lazily, so reject a bad code stream before anything reads it
+        if (compressed) {
+            int decodedLength = ShortTextCodec.getDecodedLength(message, MESSAGE_BODY_OFFSET, bodyLength);
+            if (decodedLength < 0 || decodedLength > MESSAGE_BODY_LENGTH)
+                throw new IllegalArgumentException(String.format("Message body is not a valid code stream. Decodes to %d bytes", decodedLength));
+        }
+
+        byte[] public_key = getBytesFromBuffer(message, PUBLIC_KEY_OFFSET, SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+        byte[] signature  = Arrays.copyOfRange(message, message.length - SIGNATURE_LENGTH, message.length);
+
+        // We don't have the sender's full identity response
+        IdentityPacket sender = new IdentityPacket(public_key, null, null, null);
+        return new MessagePacket(sender, signature, message, TIMESTAMP_OFFSET,
+                                 MESSAGE_BODY_OFFSET, bodyLength, compressed, hasReply ? replySigOffset : -1);
+    }
+}
@@ -0,0 +1,32 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.crypto.VerifiedSignatureCache;
+
+/**
+ * Bluetooth LE Mesh Chat Protocol version 3.
+ *
+ * Version 3 adds no packet formats. Every packet is still written in version 2 or earlier,
+ * so version 2 peers read everything a version 3 peer sends them. Peers advertising version 3
+ * in their NoData packet exchange messages in both directions at once once identities are
+ * exchanged. See {@link pro.dbro.ble.ChatPeerFlow}.
+ */
+public class BLEProtocolV3 extends BLEProtocolV2 {
+
+    /** Bluetooth LE Mesh Chat Protocol Version */
+    public static final byte VERSION = 0x03;
+
+    public BLEProtocolV3() {
+        super();
+    }
+
+    public BLEProtocolV3(@NonNull VerifiedSignatureCache verifiedSignatures) {
+        super(verifiedSignatures);
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+}
@@ -7,22 +7,64 @@ import java.util.Date;
 
 /**
  * An identity for a remote peer
+ *
+ * When produced by {@link Protocol#deserializeIdentity(byte[])} this is a read-only view
+ * over the received packet. The alias and timestamp are decoded from {@link #rawPacket}
+ * on first access.
+ *
  * Created by davidbrodsky on 10/13/14.
  */
 public class IdentityPacket {
     public static final byte TYPE = 0x01;
 
     public final byte[] publicKey;
-    public final Date   dateSeen;
-    public final String alias;
     public final byte[] rawPacket;
 
+    /** Location of fields within rawPacket. -1 if this packet is not a view over rawPacket */
+    private final int mTimestampOffset;
+    private final int mAliasOffset;
+    private final int mAliasLength;
+
+    private String mAlias;
+    private Date   mDateSeen;
+
     public IdentityPacket(@NonNull final byte[] publicKey, @Nullable String alias, @NonNull Date dateSeen,
                           @NonNull final byte[] rawPacket) {
         // dateSeen is allowed null because it's meaningless for OwnedIdentities
-        this.publicKey  = publicKey;
-        this.alias      = alias == null ? null : alias.trim();
-        this.dateSeen   = dateSeen;
-        this.rawPacket  = rawPacket;
+        this.publicKey   = publicKey;
+        this.rawPacket   = rawPacket;
+        mAlias           = alias == null ? null : alias.trim();
+        mDateSeen        = dateSeen;
+        mTimestampOffset = -1;
+        mAliasOffset     = -1;
+        mAliasLength     = 0;
+    }
+
+    /** Incoming. A view over rawPacket with fields at the given offsets */
+    IdentityPacket(@NonNull final byte[] publicKey,
+                   @NonNull final byte[] rawPacket,
+                   int timestampOffset,
+                   int aliasOffset,
+                   int aliasLength) {
+
+        this.publicKey   = publicKey;
+        this.rawPacket   = rawPacket;
+        mTimestampOffset = timestampOffset;
+        mAliasOffset     = aliasOffset;
+        mAliasLength     = aliasLength;
+    }
+
+    @Nullable
+    public String getAlias() {
+        if (mAlias == null && mAliasOffset >= 0)
+            mAlias = BLEProtocol.getTextFromBuffer(rawPacket, mAliasOffset, mAliasLength);
+        return mAlias;
+    }
+
+    @Nullable
+    public Date getDateSeen() {
+        if (mDateSeen == null && mTimestampOffset >= 0)
+            mDateSeen = BLEProtocol.getDateFromTimestampBuffer(rawPacket, mTimestampOffset);
+        return mDateSeen;
     }
 }
@@ -0,0 +1,197 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An invertible Bloom lookup table over 64 bit keys, used to reconcile the message
+ * sets of two peers. Subtracting the remote peer's table from one built locally with
+ * the same number of cells leaves only the symmetric difference of the two sets,
+ * which {@link #decode()} recovers if it is small enough.
+ *
+ * Each key is added to one cell in each of {@link #HASH_COUNT} equal partitions.
+ * Counts are 16 bit and wrap, which is harmless as only the difference is decoded.
+ */
+public class InvertibleBloomLookupTable {
+
+    public static final int HASH_COUNT = 3;
+
+    /** Serialized size of each cell: [count=2][key_sum=8][hash_sum=4] */
+    public static final int CELL_LENGTH = 14;  // bytes
+
+    private static final long CHECK_SEED = 0x5bd1e9955bd1e995L;
+
+    private final short[] mCounts;
+    private final long[]  mKeySums;
+    private final int[]   mHashSums;
+
+    /** The symmetric difference recovered by {@link #decode()} */
+    public static class Difference {
+        /** Keys only in the table subtracted from */
+        public final List<Long> localOnly  = new ArrayList<>();
+        /** Keys only in the subtracted table */
+        public final List<Long> remoteOnly = new ArrayList<>();
+    }
+
+    /**
+     * @param cellCount a multiple of {@link #HASH_COUNT}. About 1.5 cells are needed per
+     *                  differing key for decoding to reliably succeed
+     */
+    public InvertibleBloomLookupTable(int cellCount) {
+        if (cellCount < HASH_COUNT || cellCount % HASH_COUNT != 0)
+            throw new IllegalArgumentException("cellCount must be a positive multiple of " + HASH_COUNT);
+
+        mCounts   = new short[cellCount];
+        mKeySums  = new long[cellCount];
+        mHashSums = new int[cellCount];
+    }
+
+    public int getCellCount() {
+        return mCounts.length;
+    }
+
+    /**
+     * @return a copy of this table, e.g: to subtract from while keeping this one
+     */
+    @NonNull
+    public InvertibleBloomLookupTable copy() {
+        InvertibleBloomLookupTable copy = new InvertibleBloomLookupTable(mCounts.length);
+        System.arraycopy(mCounts,   0, copy.mCounts,   0, mCounts.length);
+        System.arraycopy(mKeySums,  0, copy.mKeySums,  0, mKeySums.length);
+        System.arraycopy(mHashSums, 0, copy.mHashSums, 0, mHashSums.length);
+        return copy;
+    }
+
+    public void add(long key) {
+        update(key, 1);
+    }
+
+    public void remove(long key) {
+        update(key, -1);
+    }
+
+    /**
+     * Subtract other, cell by cell, from this table
+     */
+    public void subtract(@NonNull InvertibleBloomLookupTable other) {
+        if (other.getCellCount() != getCellCount())
+            throw new IllegalArgumentException("Tables must have equal cell counts");
+
+        for (int x = 0; x < mCounts.length; x++) {
+            mCounts[x]   -= other.mCounts[x];
+            mKeySums[x]  ^= other.mKeySums[x];
+            mHashSums[x] ^= other.mHashSums[x];
+        }
+    }
+
+    /**
+     * Recover the keys remaining in this table by repeatedly peeling cells holding exactly
+     * one key. This table is emptied in the process.
+     *
+     * @return the difference, or null if it was too large to recover with this many cells
+     */
+    @Nullable
+    public Difference decode() {
+        Difference difference = new Difference();
+
+        boolean peeled = true;
+        while (peeled) {
+            peeled = false;
+            for (int x = 0; x < mCounts.length; x++) {
+                if (!isPure(x)) continue;
+
+                long key = mKeySums[x];
+                if (mCounts[x] == 1) {
+                    difference.localOnly.add(key);
+                    update(key, -1);
+                } else {
+                    difference.remoteOnly.add(key);
+                    update(key, 1);
+                }
+                peeled = true;
+            }
+        }
+
+        for (int x = 0; x < mCounts.length; x++) {
+            if (mCounts[x] != 0 || mKeySums[x] != 0 || mHashSums[x] != 0)
+                return null;
+        }
+        return difference;
+    }
+
+    // <editor-fold desc="Serialization">
+
+    /**
+     * Write each cell, little-endian, to output at offset
+     * @return the number of bytes written
+     */
+    int writeTo(@NonNull byte[] output, int offset) {
+        int writeIndex = offset;
+        for (int x = 0; x < mCounts.length; x++) {
+            output[writeIndex++] = (byte) mCounts[x];
+            output[writeIndex++] = (byte) (mCounts[x] >> 8);
+            BLEProtocol.putLongLittleEndian(output, writeIndex, mKeySums[x]);
+            writeIndex += 8;
+            for (int b = 0; b < 4; b++) {
+                output[writeIndex++] = (byte) (mHashSums[x] >> (8 * b));
+            }
+        }
+        return writeIndex - offset;
+    }
+
+    /**
+     * Read cellCount cells written by {@link #writeTo(byte[], int)} from input at offset
+     */
+    static InvertibleBloomLookupTable readFrom(@NonNull byte[] input, int offset, int cellCount) {
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(cellCount);
+        int readIndex = offset;
+        for (int x = 0; x < cellCount; x++) {
+            table.mCounts[x] = (short) ((input[readIndex] & 0xFF) | ((input[readIndex + 1] & 0xFF) << 8));
+            readIndex += 2;
+            table.mKeySums[x] = BLEProtocol.getLongLittleEndian(input, readIndex);
+            readIndex += 8;
+            int hashSum = 0;
+            for (int b = 0; b < 4; b++) {
+                hashSum |= (input[readIndex++] & 0xFF) << (8 * b);
+            }
+            table.mHashSums[x] = hashSum;
+        }
+        return table;
+    }
+
+    // </editor-fold desc="Serialization">
+
+    // <editor-fold desc="Private API">
+
+    private void update(long key, int delta) {
+        int hashSum = checkHash(key);
+        int partitionSize = mCounts.length / HASH_COUNT;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int cell = i * partitionSize + (int) ((mix(key + i) & Long.MAX_VALUE) % partitionSize);
+            mCounts[cell]   += delta;
+            mKeySums[cell]  ^= key;
+            mHashSums[cell] ^= hashSum;
+        }
+    }
+
+    private boolean isPure(int cell) {
+        return (mCounts[cell] == 1 || mCounts[cell] == -1) && mHashSums[cell] == checkHash(mKeySums[cell]);
+    }
+
+    private static int checkHash(long key) {
+        return (int) mix(key ^ CHECK_SEED);
+    }
+
+    /** SplitMix64 finalizer */
+    private static long mix(long value) {
+        long z = value + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // </editor-fold desc="Private API">
+}
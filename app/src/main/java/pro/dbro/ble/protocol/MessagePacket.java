@@ -2,39 +2,62 @@ package pro.dbro.ble.protocol;
 
 import android.support.annotation.NonNull;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
+ * When produced by {@link Protocol#deserializeMessage(byte[])} this is a read-only view
+ * over the received packet. Body, timestamp and reply signature are not copied out of
+ * {@link #rawPacket} until requested.
+ *
  * Created by davidbrodsky on 10/15/14.
  */
 public class MessagePacket {
     public static final byte TYPE = 0x02;
 
     final public IdentityPacket sender;
-    final public String body;
-    final public Date authoredDate;
     final public byte[] signature;
-    final public byte[] replySig;
     final public byte[] rawPacket;
 
-    /** Incoming */
-    public MessagePacket(@NonNull final byte[] publicKey,
-                         @NonNull byte[] signature,
-                         @NonNull byte[] replySig,
-                         @NonNull Date authoredDate,
-                         @NonNull String body,
-                         @NonNull byte[] rawPacket) {
+    /** Location of fields within rawPacket. -1 if this packet is not a view over rawPacket */
+    private final int mTimestampOffset;
+    private final int mBodyOffset;
+    private final int mBodyLength;
+    private final int mReplySigOffset;
+    private final boolean mBodyCompressed;
+
+    private String mBody;
+    private Date   mAuthoredDate;
+    private byte[] mReplySig;
+
+    /** Incoming. A view over rawPacket with fields at the given offsets */
+    MessagePacket(@NonNull IdentityPacket sender,
+                  @NonNull byte[] signature,
+                  @NonNull byte[] rawPacket,
+                  int timestampOffset,
+                  int bodyOffset,
+                  int bodyLength,
+                  boolean bodyCompressed,
+                  int replySigOffset) {
 
-        this.body         = body;
-        this.signature    = signature;
-        this.replySig     = replySig;
-        this.rawPacket    = rawPacket;
-        this.authoredDate = authoredDate;
-        sender            = new IdentityPacket(publicKey, null, null, null); // We don't have the sender's full identity response
+        this.sender      = sender;
+        this.signature   = signature;
+        this.rawPacket   = rawPacket;
+        mTimestampOffset = timestampOffset;
+        mBodyOffset      = bodyOffset;
+        mBodyLength      = bodyLength;
+        mBodyCompressed  = bodyCompressed;
+        mReplySigOffset  = replySigOffset;
     }
 
     public static MessagePacket attachIdentityToMessage(@NonNull MessagePacket message, @NonNull IdentityPacket identity) {
-        return new MessagePacket(identity, message.signature, message.replySig, message.body, message.rawPacket, message.authoredDate);
+        MessagePacket messageWithIdentity = new MessagePacket(identity, message.signature, message.rawPacket,
+                message.mTimestampOffset, message.mBodyOffset, message.mBodyLength, message.mBodyCompressed,
+                message.mReplySigOffset);
+        messageWithIdentity.mBody         = message.mBody;
+        messageWithIdentity.mAuthoredDate = message.mAuthoredDate;
+        messageWithIdentity.mReplySig     = message.mReplySig;
+        return messageWithIdentity;
     }
 
     /** Outgoing */
@@ -45,11 +68,72 @@ public class MessagePacket {
                          @NonNull byte[] rawPacket,
                          @NonNull Date authoredDate) {
 
-        this.body         = body.trim();
-        this.signature    = signature;
-        this.replySig     = replySig;
-        this.rawPacket    = rawPacket;
-        this.authoredDate = authoredDate;
-        this.sender       = sender;
+        this.sender      = sender;
+        this.signature   = signature;
+        this.rawPacket   = rawPacket;
+        mBody            = body.trim();
+        mReplySig        = replySig;
+        mAuthoredDate    = authoredDate;
+        mTimestampOffset = -1;
+        mBodyOffset      = -1;
+        mBodyLength      = 0;
+        mBodyCompressed  = false;
+        mReplySigOffset  = -1;
+    }
+
+    /**
+     * Compressed bodies are decoded on first access. Their code streams were validated when parsed
+     */
+    public String getBody() {
+        if (mBody == null && mBodyOffset >= 0) {
+            if (mBodyCompressed) {
+                byte[] body = ShortTextCodec.decode(rawPacket, mBodyOffset, mBodyLength);
+                mBody = BLEProtocol.getTextFromBuffer(body, 0, body.length);
+            } else {
+                mBody = BLEProtocol.getTextFromBuffer(rawPacket, mBodyOffset, mBodyLength);
+            }
+        }
+        return mBody;
+    }
+
+    public Date getAuthoredDate() {
+        if (mAuthoredDate == null && mTimestampOffset >= 0)
+            mAuthoredDate = BLEProtocol.getDateFromTimestampBuffer(rawPacket, mTimestampOffset);
+        return mAuthoredDate;
+    }
+
+    /**
+     * @return the signature of the message this is a reply to.
+     * All zeroes if this message is not a reply.
+     */
+    public byte[] getReplySignature() {
+        if (mReplySig == null) {
+            mReplySig = new byte[BLEProtocol.SIGNATURE_LENGTH];
+            // Version 2 packets omit an empty reply signature entirely
+            if (mReplySigOffset >= 0)
+                System.arraycopy(rawPacket, mReplySigOffset, mReplySig, 0, mReplySig.length);
+        }
+        return mReplySig;
+    }
+
+    /**
+     * @return a read-only slice of the encoded message body. Version 1 bodies are space-padded,
+     * and version 2 bodies may be compressed with {@link ShortTextCodec}
+     */
+    public ByteBuffer getBodySlice() {
+        if (mBodyOffset >= 0)
+            return slice(rawPacket, mBodyOffset, mBodyLength);
+        return ByteBuffer.wrap(getBody().getBytes(BLEProtocol.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /** @return a read-only slice of the reply signature */
+    public ByteBuffer getReplySignatureSlice() {
+        if (mReplySigOffset >= 0)
+            return slice(rawPacket, mReplySigOffset, BLEProtocol.SIGNATURE_LENGTH);
+        return ByteBuffer.wrap(getReplySignature()).asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer slice(byte[] buffer, int offset, int length) {
+        return ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer();
     }
 }
@@ -5,6 +5,9 @@ import android.support.annotation.NonNull;
 import java.util.Date;
 
 /**
+ * A read-only view over a received NoData packet. The timestamp is decoded
+ * from {@link #rawPacket} on first access.
+ *
  * Created by davidbrodsky on 10/15/14.
  *
  */
@@ -12,18 +15,26 @@ public class NoDataPacket {
     public static final byte TYPE = 0x03;
 
     final public byte[] publicKey;
-    final public Date authoredDate;
     final public byte[] signature;
     final public byte[] rawPacket;
 
-    public NoDataPacket(@NonNull final byte[] publicKey,
-                        @NonNull Date authoredDate,
-                        @NonNull byte[] signature,
-                        @NonNull byte[] rawPacket) {
+    private final int mTimestampOffset;
+    private Date mAuthoredDate;
+
+    NoDataPacket(@NonNull final byte[] publicKey,
+                 @NonNull byte[] signature,
+                 @NonNull byte[] rawPacket,
+                 int timestampOffset) {
+
+        this.publicKey   = publicKey;
+        this.signature   = signature;
+        this.rawPacket   = rawPacket;
+        mTimestampOffset = timestampOffset;
+    }
 
-        this.publicKey    = publicKey;
-        this.signature    = signature;
-        this.rawPacket    = rawPacket;
-        this.authoredDate = authoredDate;
+    public Date getAuthoredDate() {
+        if (mAuthoredDate == null)
+            mAuthoredDate = BLEProtocol.getDateFromTimestampBuffer(rawPacket, mTimestampOffset);
+        return mAuthoredDate;
     }
 }
@@ -3,6 +3,8 @@ package pro.dbro.ble.protocol;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.List;
+
 /**
  * Created by davidbrodsky on 10/20/14.
  */
@@ -27,12 +29,41 @@ public interface Protocol {
 
     public IdentityPacket deserializeIdentity(@NonNull byte[] identity);
 
-    /** Deserialize a message where the author identity is known */
+    /**
+     * Deserialize a message where the author identity may be known. The signature is verified
+     * with the author key in the packet, and identity is attached only if it is that author's
+     */
     public MessagePacket deserializeMessageWithIdentity(@NonNull byte[] message, @Nullable IdentityPacket identity);
 
     /** Deserialize a message where the author identity is not known */
     public MessagePacket deserializeMessage(@NonNull byte[] message);
 
+    /**
+     * Deserialize a message without verifying its signature. Only for messages already
+     * verified, e.g: those selected from the store and sent
+     */
+    public MessagePacket deserializeVerifiedMessage(@NonNull byte[] message);
+
+    /**
+     * Deserialize several messages at once, verifying their signatures in parallel, each with
+     * the author key in its packet. Entries that are malformed or fail signature verification
+     * are null in the returned list. identity is attached to the messages it authored. If
+     * identity is null, or for messages by other authors, the author identity is not known.
+     */
+    public List<MessagePacket> deserializeMessagesWithIdentity(@NonNull List<byte[]> messages, @Nullable IdentityPacket identity);
+
     public byte getPacketType(@NonNull byte[] message);
 
+    /**
+     * @return the signature of a serialized message, without verifying it.
+     * Useful to recognize a message already stored before paying for verification
+     */
+    public byte[] getMessageSignature(@NonNull byte[] message);
+
+    /** @return the protocol version a packet was written in */
+    public byte getPacketVersion(@NonNull byte[] packet);
+
+    /** @return the highest protocol version this implementation reads and writes */
+    public byte getVersion();
+
 }
@@ -0,0 +1,29 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Packets introduced in protocol version 2. Only implementations that read and write
+ * them implement this, so callers check for it rather than a version number.
+ * Peers must still only be sent these packets once they've advertised version 2.
+ */
+public interface ProtocolV2 extends Protocol {
+
+    /** Outgoing **/
+
+    /** Pack several serialized packets of itemType into one frame */
+    public AggregatePacket serializeAggregate(byte itemType, @NonNull List<byte[]> items);
+
+    /** Serialize a sketch of the messages held by ownedIdentity's peer */
+    public SketchPacket serializeSketch(@NonNull OwnedIdentityPacket ownedIdentity, @NonNull InvertibleBloomLookupTable sketch);
+
+    /** Incoming **/
+
+    /** Deserialize an aggregate frame. Items must be deserialized individually */
+    public AggregatePacket deserializeAggregate(@NonNull byte[] aggregate);
+
+    public SketchPacket deserializeSketch(@NonNull byte[] sketch);
+
+}
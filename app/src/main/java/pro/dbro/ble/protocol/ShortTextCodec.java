@@ -0,0 +1,211 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static-dictionary compressor for short chat messages, in the spirit of smaz.
+ *
+ * Each output byte below {@link #VERBATIM_BYTE} is an index into {@link #CODEBOOK}.
+ * {@link #VERBATIM_BYTE} is followed by one literal byte, and {@link #VERBATIM_RUN}
+ * by a length byte and that many literal bytes, so any UTF-8 input round trips.
+ *
+ * The codebook is part of the wire format. Never reorder or modify it.
+ */
+public class ShortTextCodec {
+
+    private static final int VERBATIM_BYTE = 254;
+    private static final int VERBATIM_RUN  = 255;
+    private static final int MAX_RUN       = 255;
+
+    /** Common chat text fragments. Index is the code */
+    private static final String[] CODEBOOK = new String[] {
+            " ", "e", "t", "a", "o", "i", "n", "s", "h", "r", "d", "l", "u", "c", "m", "w", "y",
+            "f", "g", "p", "b", "v", "k", "j", "x", "q", "z", "I", "T", "A", "S", "W", "H", "O",
+            "M", "N", "B", "Y", "D", "G", "C", "L", "P", "R", "F", "E", "U", "K", "J", "V", "0",
+            "1", "2", "3", "4", "5", "6", "7", "8", "9", ".", ",", "!", "?", "'", "\n", ":", ")",
+            "(", "-", "/", "\"", "@", "#", "the ", "the", " the ", "e ", " t", "th", "he", "in",
+            "er", "an", "re", "on", "at", "en", "nd", "ti", "es", "or", "te", "of", "ed", "is",
+            "it", "al", "ar", "st", "to", "nt", "ng", "se", "ha", "as", "ou", "io", "le", "ve",
+            "co", "me", "de", "hi", "ri", "ro", "ic", "ne", "ea", "ra", "ce", "li", "ch", "ll",
+            "be", "ma", "si", "om", "ur", "ca", "el", "ta", "la", "ns", "di", "fo", "ho", "pe",
+            "ec", "pr", "no", "ct", "us", "ng ", "ing", "ing ", "and", "and ", " and ", "for",
+            "for ", " for ", "you", "you ", " you ", "that", "this", "what", "with", "have", "are",
+            "not", "just", "can", "will", "how", "was", "get", "out", "now", "all", "but", "there",
+            "here", "when", "where", "who", "why", "yes", "yeah", "ok ", "okay", "lol", "haha",
+            "hey", "hello", "thanks", "please", "omg", "idk", "I'm", "don't", "it's", "going",
+            "know", "think", "good", "love", "like", "want", "need", "time", "today", "tonight",
+            "meet", "come", "about", "people", "police", "help", "safe", "tion", "ment", "ould",
+            "ly ", "er ", "ed ", "s ", "d ", "t ", "y ", "r ", "n ", "o ", "a ", "i ", "I ", "to ",
+            "of ", "is ", "it ", "in ", "on ", "at ", "me ", "my ", "we ", "so ", "do ", "be ",
+            "? ", ". ", ", ", "! ", "...", "!!", ":)", ":(", ";)", "<3", "http", "://", "www.",
+            ".com"
+    };
+
+    private static final byte[][] sEntries = new byte[CODEBOOK.length][];
+
+    /** Codebook indexes by first byte, longest entry first */
+    private static final int[][] sCandidates = new int[128][];
+
+    static {
+        if (CODEBOOK.length > VERBATIM_BYTE)
+            throw new IllegalStateException("Codebook too large");
+
+        List<List<Integer>> candidates = new ArrayList<>(sCandidates.length);
+        for (int x = 0; x < sCandidates.length; x++) candidates.add(new ArrayList<Integer>());
+
+        for (int code = 0; code < CODEBOOK.length; code++) {
+            sEntries[code] = CODEBOOK[code].getBytes(BLEProtocol.UTF_8);
+            List<Integer> sameFirstByte = candidates.get(sEntries[code][0]);
+            int insertAt = 0;
+            while (insertAt < sameFirstByte.size() && sEntries[sameFirstByte.get(insertAt)].length >= sEntries[code].length)
+                insertAt++;
+            sameFirstByte.add(insertAt, code);
+        }
+
+        for (int x = 0; x < sCandidates.length; x++) {
+            sCandidates[x] = new int[candidates.get(x).size()];
+            for (int y = 0; y < sCandidates[x].length; y++) sCandidates[x][y] = candidates.get(x).get(y);
+        }
+    }
+
+    /**
+     * @return input compressed by greedy longest codebook match
+     */
+    @NonNull
+    public static byte[] encode(@NonNull byte[] input, int offset, int length) {
+        // Worst case every other byte is an isolated literal, costing two bytes each
+        byte[] output = new byte[2 * length + 2];
+        int outIndex   = 0;
+        int runStart   = -1;
+        int end        = offset + length;
+
+        int readIndex = offset;
+        while (readIndex < end) {
+            int code = longestMatch(input, readIndex, end);
+            if (code < 0) {
+                if (runStart < 0) runStart = readIndex;
+                readIndex++;
+                if (readIndex - runStart == MAX_RUN) {
+                    outIndex = writeVerbatim(input, runStart, readIndex, output, outIndex);
+                    runStart = -1;
+                }
+                continue;
+            }
+
+            if (runStart >= 0) {
+                outIndex = writeVerbatim(input, runStart, readIndex, output, outIndex);
+                runStart = -1;
+            }
+            output[outIndex++] = (byte) code;
+            readIndex += sEntries[code].length;
+        }
+
+        if (runStart >= 0)
+            outIndex = writeVerbatim(input, runStart, end, output, outIndex);
+
+        return Arrays.copyOf(output, outIndex);
+    }
+
+    /**
+     * Check the code stream in input without decoding it
+     * @return the length input decodes to, or -1 if input is not a valid code stream
+     */
+    public static int getDecodedLength(@NonNull byte[] input, int offset, int length) {
+        int decodedLength = 0;
+        int end           = offset + length;
+
+        int readIndex = offset;
+        while (readIndex < end) {
+            int code = input[readIndex++] & 0xFF;
+            int literalLength;
+            if (code == VERBATIM_BYTE) {
+                literalLength = 1;
+            } else if (code == VERBATIM_RUN) {
+                if (readIndex >= end) return -1;
+                literalLength = input[readIndex++] & 0xFF;
+            } else {
+                if (code >= CODEBOOK.length) return -1;
+                decodedLength += sEntries[code].length;
+                continue;
+            }
+
+            if (readIndex + literalLength > end) return -1;
+            decodedLength += literalLength;
+            readIndex     += literalLength;
+        }
+        return decodedLength;
+    }
+
+    /**
+     * @return the bytes encoded in input by {@link #encode(byte[], int, int)}
+     * @throws IllegalArgumentException if input is not a valid code stream. See {@link #getDecodedLength(byte[], int, int)}
+     */
+    @NonNull
+    public static byte[] decode(@NonNull byte[] input, int offset, int length) {
+        // Codebook entries are at most a few bytes, so this rarely grows
+        byte[] output = new byte[length * 2];
+        int outIndex  = 0;
+        int end       = offset + length;
+
+        int readIndex = offset;
+        while (readIndex < end) {
+            int code = input[readIndex++] & 0xFF;
+            int literalLength;
+            if (code == VERBATIM_BYTE) {
+                literalLength = 1;
+            } else if (code == VERBATIM_RUN) {
+                if (readIndex >= end) throw new IllegalArgumentException("Truncated verbatim run");
+                literalLength = input[readIndex++] & 0xFF;
+            } else {
+                if (code >= CODEBOOK.length) throw new IllegalArgumentException("Unknown code " + code);
+                output = ensureCapacity(output, outIndex + sEntries[code].length);
+                System.arraycopy(sEntries[code], 0, output, outIndex, sEntries[code].length);
+                outIndex += sEntries[code].length;
+                continue;
+            }
+
+            if (readIndex + literalLength > end) throw new IllegalArgumentException("Truncated verbatim run");
+            output = ensureCapacity(output, outIndex + literalLength);
+            System.arraycopy(input, readIndex, output, outIndex, literalLength);
+            outIndex  += literalLength;
+            readIndex += literalLength;
+        }
+        return Arrays.copyOf(output, outIndex);
+    }
+
+    private static int longestMatch(byte[] input, int offset, int end) {
+        int first = input[offset];
+        if (first < 0) return -1; // Non-ASCII bytes are never in the codebook
+
+        for (int code : sCandidates[first]) {
+            byte[] entry = sEntries[code];
+            if (offset + entry.length > end) continue;
+
+            int x = 1;
+            while (x < entry.length && input[offset + x] == entry[x]) x++;
+            if (x == entry.length) return code;
+        }
+        return -1;
+    }
+
+    private static int writeVerbatim(byte[] input, int start, int end, byte[] output, int outIndex) {
+        int length = end - start;
+        if (length == 1) {
+            output[outIndex++] = (byte) VERBATIM_BYTE;
+        } else {
+            output[outIndex++] = (byte) VERBATIM_RUN;
+            output[outIndex++] = (byte) length;
+        }
+        System.arraycopy(input, start, output, outIndex, length);
+        return outIndex + length;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+        if (buffer.length >= capacity) return buffer;
+        return Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+}
@@ -0,0 +1,64 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view over a received set sketch: an {@link InvertibleBloomLookupTable}
+ * of the {@link #getMessageKey(byte[])} of every message the sender holds.
+ * The table is decoded from {@link #rawPacket} by {@link #getSketch()}.
+ */
+public class SketchPacket {
+    public static final byte TYPE = 0x05;
+
+    final public byte[] publicKey;
+    final public byte[] signature;
+    final public byte[] rawPacket;
+
+    private final int mCellsOffset;
+    private final int mCellCount;
+
+    SketchPacket(@NonNull byte[] publicKey,
+                 @NonNull byte[] signature,
+                 @NonNull byte[] rawPacket,
+                 int cellsOffset,
+                 int cellCount) {
+
+        this.publicKey = publicKey;
+        this.signature = signature;
+        this.rawPacket = rawPacket;
+        mCellsOffset   = cellsOffset;
+        mCellCount     = cellCount;
+    }
+
+    /**
+     * @return a copy of the sender's table, safe to modify
+     */
+    @NonNull
+    public InvertibleBloomLookupTable getSketch() {
+        return InvertibleBloomLookupTable.readFrom(rawPacket, mCellsOffset, mCellCount);
+    }
+
+    /**
+     * @return the key identifying a message in a sketch: the first 8 bytes of its
+     * signature, little-endian. Ed25519 signatures are uniformly distributed
+     */
+    public static long getMessageKey(@NonNull byte[] signature) {
+        return BLEProtocol.getLongLittleEndian(signature, 0);
+    }
+
+    /**
+     * @return the bounds, inclusive, of the signatures with key. The first is key's 8 bytes,
+     * the second is followed by the highest possible remainder of a signature
+     */
+    @NonNull
+    public static byte[][] getSignatureRange(long key) {
+        byte[] lowest  = new byte[BLEProtocol.SIGNATURE_LENGTH];
+        byte[] highest = new byte[BLEProtocol.SIGNATURE_LENGTH];
+        BLEProtocol.putLongLittleEndian(lowest, 0, key);
+        System.arraycopy(lowest, 0, highest, 0, 8);
+        Arrays.fill(highest, 8, highest.length, (byte) 0xFF);
+        return new byte[][] { Arrays.copyOf(lowest, 8), highest };
+    }
+}
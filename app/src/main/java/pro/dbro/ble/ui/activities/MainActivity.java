@@ -44,6 +44,7 @@ import pro.dbro.ble.ChatClient;
 import pro.dbro.ble.ChatPeerFlow;
 import pro.dbro.ble.PrefsManager;
 import pro.dbro.ble.R;
+import pro.dbro.ble.data.AsyncDataStore;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.ui.Notification;
@@ -220,19 +221,30 @@ public class MainActivity extends AppCompatActivity implements LogConsumer,
      */
     private void revealChatViews() {
         mMessagingFragment = new MessagingFragment();
-        mMessagingFragment.setDataStore(mClient.getDataStore());
+        mMessagingFragment.setDataStore(mClient.getAsyncDataStore());
         getSupportFragmentManager().beginTransaction()
                 .replace(R.id.container, mMessagingFragment, "messaging")
                 .setTransition(FragmentTransaction.TRANSIT_FRAGMENT_OPEN)
                 .commit();
 
         mProfileIdenticon.show(new String(mUserIdentity.publicKey));
-        ((TextView) findViewById(R.id.profile_name)).setText(mUserIdentity.alias);
+        ((TextView) findViewById(R.id.profile_name)).setText(mUserIdentity.getAlias());
     }
 
     private void refreshProfileStats() {
-        mPeersMetCount.setText(String.valueOf(Math.max(0, mClient.getDataStore().countPeers() - 1))); //ignore self
-        mMessagesPassedCount.setText(String.valueOf(mClient.getDataStore().countMessagesPassed()));
+        AsyncDataStore dataStore = mClient.getAsyncDataStore();
+        dataStore.countPeers(new AsyncDataStore.Callback<Integer>() {
+            @Override
+            public void onResult(Integer peerCount) {
+                mPeersMetCount.setText(String.valueOf(Math.max(0, peerCount - 1))); //ignore self
+            }
+        });
+        dataStore.countMessagesPassed(new AsyncDataStore.Callback<Integer>() {
+            @Override
+            public void onResult(Integer messagesPassed) {
+                mMessagesPassedCount.setText(String.valueOf(messagesPassed));
+            }
+        });
     }
 
     /**
@@ -320,7 +332,7 @@ public class MainActivity extends AppCompatActivity implements LogConsumer,
 //        identictionView.setTransitionName(getString(R.string.identicon_transition_name));
 //        usernameView.setTransitionName(getString(R.string.username_transition_name));
 
-        Fragment profileFragment = ProfileFragment.createForPeer(mClient.getDataStore(), peer);
+        Fragment profileFragment = ProfileFragment.createForPeer(mClient.getAsyncDataStore(), peer);
 
 //        final TransitionSet sharedElementTransition = new TransitionSet();
 //        sharedElementTransition.addTransition(new ChangeBounds());
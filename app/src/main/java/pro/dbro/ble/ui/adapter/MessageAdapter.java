@@ -1,7 +1,9 @@
 package pro.dbro.ble.ui.adapter;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
@@ -12,30 +14,55 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import im.delight.android.identicons.SymmetricIdenticon;
 import pro.dbro.ble.R;
+import pro.dbro.ble.data.AsyncDataStore;
 import pro.dbro.ble.data.DataStore;
-import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.MessageCollection;
 import pro.dbro.ble.data.model.MessageTable;
 import pro.dbro.ble.data.model.Peer;
 
 /**
+ * Lists messages most recently received first, loading {@link #PAGE_SIZE} at a time
+ * as the list is scrolled. Each page is copied from its cursor, which is then closed,
+ * so no cursor windows are held for the life of the list. Pages and senders are read
+ * on the {@link AsyncDataStore} reader threads.
+ *
  * Created by davidbrodsky on 10/19/14.
  */
-public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.ViewHolder> {
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.ViewHolder> {
     public static final String TAG = "MessageAdapter";
 
+    public static final int PAGE_SIZE = 50;
+
+    /** Load the next page once a message this close to the end of those loaded is shown */
+    private static final int PREFETCH_DISTANCE = 15;
+
     public interface MessageSelectedListener {
         void onMessageSelected(View identiconView, View usernameView, int messageId, int peerId);
     }
 
+    private Context mContext;
     private DataStore mDataStore;
+    private AsyncDataStore mAsyncDataStore;
+    private Peer mFromPeer;
     private RecyclerView mHost;
     private MessageSelectedListener mListener;
 
+    /** Loaded messages, most recently received first */
+    private ArrayList<MessageItem> mMessages = new ArrayList<>();
+    private boolean mHasOlderMessages = true;
+    private boolean mLoadPending;
+    private boolean mNewerLoadPending;
+    /** Messages changed while newer messages were loading */
+    private boolean mNewerLoadStale;
+
     public static class ViewHolder extends RecyclerView.ViewHolder {
         public View container;
         public TextView senderView;
@@ -43,6 +70,8 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
         public TextView authoredView;
         public SymmetricIdenticon identicon;
         public Peer peer;
+        /** Sender of the message bound */
+        int peerId;
 
 
         public ViewHolder(View v) {
@@ -56,62 +85,84 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
         }
     }
 
+    /** The displayed columns of a message row */
+    private static class MessageItem {
+        final int id;
+        final int peerId;
+        final String body;
+        final long authoredMillis;
+        final long receivedMillis;
+
+        MessageItem(Cursor cursor) {
+            id             = cursor.getInt(cursor.getColumnIndex(MessageTable.id));
+            peerId         = cursor.getInt(cursor.getColumnIndex(MessageTable.peerId));
+            body           = cursor.getString(cursor.getColumnIndex(MessageTable.body));
+            authoredMillis = cursor.getLong(cursor.getColumnIndex(MessageTable.authoredDate));
+            receivedMillis = cursor.getLong(cursor.getColumnIndex(MessageTable.receivedDate));
+        }
+    }
+
     /**
-     * Recommended constructor.
-     *
      * @param context       The context
-     * @param dataStore     The data backend
      * @param fromPeer      A Peer to show messages from, or null to show all messages
-     * @param flags         Flags used to determine the behavior of the adapter;
-     *                Currently it accept {@link #FLAG_REGISTER_CONTENT_OBSERVER}.
+     * @param dataStore     The data backend, shared with the rest of the application
      */
     public MessageAdapter(@NonNull Context context,
                           @Nullable Peer fromPeer,
-                          @NonNull DataStore dataStore,
-                          @Nullable MessageSelectedListener listener,
-                          int flags) {
-        super(context,
-                fromPeer == null ? dataStore.getRecentMessages().getCursor() :
-                                   dataStore.getRecentMessagesByPeer(fromPeer).getCursor(), flags);
-        mDataStore = dataStore;
+                          @NonNull AsyncDataStore dataStore,
+                          @Nullable MessageSelectedListener listener) {
+        mContext = context;
+        mFromPeer = fromPeer;
+        mDataStore = dataStore.getDataStore();
+        mAsyncDataStore = dataStore;
         mListener = listener;
+        setHasStableIds(true);
+        mLoadPending = true;
+        loadOlderMessages();
     }
 
     @Override
     public void onAttachedToRecyclerView(RecyclerView recyclerView) {
         mHost = recyclerView;
+        mContext.getContentResolver().registerContentObserver(ChatContentProvider.Messages.MESSAGES, true, mMessagesObserver);
     }
 
     @Override
-    public void onBindViewHolder(ViewHolder holder, Cursor cursor) {
-        holder.container.setTag(R.id.view_tag_msg_id, cursor.getInt(cursor.getColumnIndex(MessageTable.id)));
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mContext.getContentResolver().unregisterContentObserver(mMessagesObserver);
+        mHost = null;
+    }
 
-        if (holder.peer == null) // TODO : Should do this lookup on a background thread
-            holder.peer = mDataStore.getPeerById(cursor.getInt(cursor.getColumnIndex(MessageTable.peerId)));
+    @Override
+    public int getItemCount() {
+        return mMessages.size();
+    }
 
-        if (holder.peer != null) {
-            holder.container.setTag(R.id.view_tag_peer_id, holder.peer.getId());
-            holder.senderView.setText(holder.peer.getAlias());
-            holder.identicon.show(new String(holder.peer.getPublicKey()));
-        } else {
-            holder.senderView.setText("?");
-            holder.identicon.show(UUID.randomUUID());
-        }
-        holder.messageView.setText(cursor.getString(cursor.getColumnIndex(MessageTable.body)));
-        try {
-            holder.authoredView.setText(DateUtils.getRelativeTimeSpanString(
-                    DataUtil.storedDateFormatter.parse(cursor.getString(cursor.getColumnIndex(MessageTable.authoredDate))).getTime()));
-        } catch (ParseException e) {
-            holder.authoredView.setText("");
-            e.printStackTrace();
-        }
+    @Override
+    public long getItemId(int position) {
+        return mMessages.get(position).id;
     }
 
     @Override
-    protected void onContentChanged() {
-        Log.i(TAG, "onContentChanged");
-        changeCursor(mDataStore.getRecentMessages().getCursor());
-        mHost.smoothScrollToPosition(0);
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        MessageItem message = mMessages.get(position);
+        holder.container.setTag(R.id.view_tag_msg_id, message.id);
+
+        // Holders are recycled, so the peer is looked up again when the sender differs
+        holder.peerId = message.peerId;
+        if (holder.peer == null || holder.peer.getId() != message.peerId) {
+            holder.peer = null;
+            loadPeer(holder, message.peerId);
+        }
+        bindPeer(holder);
+        holder.messageView.setText(message.body);
+        holder.authoredView.setText(DateUtils.getRelativeTimeSpanString(message.authoredMillis));
+
+        // Items can't be inserted while binding, so the next page is loaded after
+        if (mHasOlderMessages && !mLoadPending && position >= mMessages.size() - PREFETCH_DISTANCE && mHost != null) {
+            mLoadPending = true;
+            mHost.post(mLoadOlderMessages);
+        }
     }
 
     @Override
@@ -132,4 +183,151 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
         // set the view's size, margins, paddings and layout parameters
         return new ViewHolder(v);
     }
+
+    private void loadPeer(final ViewHolder holder, final int peerId) {
+        mAsyncDataStore.getPeerById(peerId, new AsyncDataStore.Callback<Peer>() {
+            @Override
+            public void onResult(Peer peer) {
+                // The holder may since have been rebound to another sender
+                if (holder.peerId != peerId) return;
+                holder.peer = peer;
+                bindPeer(holder);
+            }
+        });
+    }
+
+    private static void bindPeer(ViewHolder holder) {
+        if (holder.peer != null) {
+            holder.container.setTag(R.id.view_tag_peer_id, holder.peer.getId());
+            holder.senderView.setText(holder.peer.getAlias());
+            holder.identicon.show(new String(holder.peer.getPublicKey()));
+        } else {
+            holder.senderView.setText("?");
+            holder.identicon.show(UUID.randomUUID());
+        }
+    }
+
+    // <editor-fold desc="Paging">
+
+    private Runnable mLoadOlderMessages = new Runnable() {
+        @Override
+        public void run() {
+            loadOlderMessages();
+        }
+    };
+
+    private ContentObserver mMessagesObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.i(TAG, "onContentChanged");
+            loadNewerMessages();
+        }
+    };
+
+    /**
+     * Append the page of messages received before the oldest loaded. Called with
+     * {@link #mLoadPending} set, which is cleared once the page is appended, or the read fails
+     * so that the next bind near the end retries
+     */
+    private void loadOlderMessages() {
+        long beforeReceivedMillis = Long.MAX_VALUE;
+        int beforeId = Integer.MAX_VALUE;
+        if (mMessages.size() > 0) {
+            MessageItem oldest = mMessages.get(mMessages.size() - 1);
+            beforeReceivedMillis = oldest.receivedMillis;
+            beforeId = oldest.id;
+        }
+
+        final long pageBeforeReceivedMillis = beforeReceivedMillis;
+        final int pageBeforeId = beforeId;
+        mAsyncDataStore.read(new Callable<List<MessageItem>>() {
+            @Override
+            public List<MessageItem> call() {
+                return readMessages(
+                        mDataStore.getMessagesReceivedBefore(mFromPeer, pageBeforeReceivedMillis, pageBeforeId, PAGE_SIZE));
+            }
+        }, new AsyncDataStore.FailureCallback<List<MessageItem>>() {
+            @Override
+            public void onResult(List<MessageItem> page) {
+                mLoadPending = false;
+                mHasOlderMessages = page.size() == PAGE_SIZE;
+
+                int start = mMessages.size();
+                mMessages.addAll(page);
+                notifyItemRangeInserted(start, page.size());
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                mLoadPending = false;
+            }
+        });
+    }
+
+    /**
+     * Prepend the messages received since the newest loaded
+     */
+    private void loadNewerMessages() {
+        if (mMessages.size() == 0) {
+            if (!mLoadPending) {
+                mLoadPending = true;
+                loadOlderMessages();
+            }
+            return;
+        }
+
+        // Another change may land after the pending load has read, so load again once it's done
+        if (mNewerLoadPending) {
+            mNewerLoadStale = true;
+            return;
+        }
+        mNewerLoadPending = true;
+
+        final MessageItem newest = mMessages.get(0);
+        mAsyncDataStore.read(new Callable<List<MessageItem>>() {
+            @Override
+            public List<MessageItem> call() {
+                return readMessages(
+                        mDataStore.getMessagesReceivedAfter(mFromPeer, newest.receivedMillis, newest.id));
+            }
+        }, new AsyncDataStore.FailureCallback<List<MessageItem>>() {
+            @Override
+            public void onResult(List<MessageItem> newer) {
+                if (newer.size() > 0) {
+                    mMessages.addAll(0, newer);
+                    notifyItemRangeInserted(0, newer.size());
+                    if (mHost != null) mHost.smoothScrollToPosition(0);
+                }
+                onNewerLoadFinished();
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                // The next change retries
+                onNewerLoadFinished();
+            }
+        });
+    }
+
+    private void onNewerLoadFinished() {
+        mNewerLoadPending = false;
+        if (mNewerLoadStale) {
+            mNewerLoadStale = false;
+            loadNewerMessages();
+        }
+    }
+
+    private static List<MessageItem> readMessages(@Nullable MessageCollection messages) {
+        List<MessageItem> items = new ArrayList<>();
+        if (messages == null) return items;
+
+        Cursor cursor = messages.getCursor();
+        while (cursor.moveToNext()) {
+            items.add(new MessageItem(cursor));
+        }
+        messages.close();
+        return items;
+    }
+
+    // </editor-fold desc="Paging">
 }
@@ -17,7 +17,7 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 import pro.dbro.ble.R;
-import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.AsyncDataStore;
 import pro.dbro.ble.ui.adapter.MessageAdapter;
 
 /**
@@ -33,7 +33,7 @@ public class MessagingFragment extends Fragment implements MessageAdapter.Messag
     }
 
     private ChatFragmentCallback mCallback;
-    DataStore mDataStore;
+    AsyncDataStore mDataStore;
     RecyclerView mRecyclerView;
     MessageAdapter mAdapter;
     EditText mMessageEntry;
@@ -43,7 +43,7 @@ public class MessagingFragment extends Fragment implements MessageAdapter.Messag
         // Required empty public constructor
     }
 
-    public void setDataStore(DataStore dataStore) {
+    public void setDataStore(AsyncDataStore dataStore) {
         mDataStore = dataStore;
     }
 
@@ -76,7 +76,7 @@ public class MessagingFragment extends Fragment implements MessageAdapter.Messag
         });
         mRecyclerView = (RecyclerView) mRoot.findViewById(R.id.recyclerView);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
-        mAdapter = new MessageAdapter(getActivity(), null, mDataStore, this, MessageAdapter.FLAG_REGISTER_CONTENT_OBSERVER);
+        mAdapter = new MessageAdapter(getActivity(), null, mDataStore, this);
         mRecyclerView.setAdapter(mAdapter);
         return mRoot;
     }
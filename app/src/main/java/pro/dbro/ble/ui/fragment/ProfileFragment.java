@@ -11,7 +11,7 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import pro.dbro.ble.R;
-import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.AsyncDataStore;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.ui.adapter.MessageAdapter;
 
@@ -20,14 +20,14 @@ import pro.dbro.ble.ui.adapter.MessageAdapter;
  */
 public class ProfileFragment extends Fragment {
 
-    DataStore mDataStore;
+    AsyncDataStore mDataStore;
     RecyclerView mRecyclerView;
     MessageAdapter mAdapter;
     Peer mFromPeer;
 
 //    TextView mUsernameView;
 
-    public static ProfileFragment createForPeer(@NonNull DataStore dataStore,
+    public static ProfileFragment createForPeer(@NonNull AsyncDataStore dataStore,
                                                 @NonNull Peer peer) {
 
         ProfileFragment frag = new ProfileFragment();
@@ -44,7 +44,7 @@ public class ProfileFragment extends Fragment {
         mFromPeer = fromPeer;
     }
 
-    public void setDataStore(DataStore dataStore) {
+    public void setDataStore(AsyncDataStore dataStore) {
         mDataStore = dataStore;
     }
 
@@ -59,7 +59,7 @@ public class ProfileFragment extends Fragment {
         final View root = inflater.inflate(R.layout.fragment_peer_profile, container, false);
         mRecyclerView = (RecyclerView) root.findViewById(R.id.recyclerView);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
-        mAdapter = new MessageAdapter(getActivity(), mFromPeer, mDataStore, null, MessageAdapter.FLAG_REGISTER_CONTENT_OBSERVER);
+        mAdapter = new MessageAdapter(getActivity(), mFromPeer, mDataStore, null);
         mRecyclerView.setAdapter(mAdapter);
 
 //        SymmetricIdenticon identicon = (SymmetricIdenticon) root.findViewById(R.id.profile_identicon);
@@ -0,0 +1,36 @@
+package pro.dbro.ble.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a byte array for use as a hash key, comparing by content rather than identity.
+ * The array is not copied, so it must not be modified while the key is in use.
+ */
+public final class ByteArrayKey {
+    private final byte[] mBytes;
+    private final int    mHash;
+
+    public ByteArrayKey(@NonNull byte[] bytes) {
+        mBytes = bytes;
+        mHash  = Arrays.hashCode(bytes);
+    }
+
+    @NonNull
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof ByteArrayKey)) return false;
+        return Arrays.equals(mBytes, ((ByteArrayKey) obj).mBytes);
+    }
+}